@@ -0,0 +1,52 @@
+package no.steras.opensamlbook;
+
+import org.opensaml.core.config.InitializationService;
+import org.opensaml.core.xml.XMLObject;
+import org.opensaml.core.xml.XMLObjectBuilderFactory;
+import org.opensaml.core.xml.config.XMLObjectProviderRegistrySupport;
+import org.opensaml.saml.saml2.core.Assertion;
+import org.opensaml.saml.saml2.core.Issuer;
+import org.openjdk.jmh.annotations.*;
+
+import javax.xml.namespace.QName;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost per object of the reflective builder lookup that buildSAMLObject used to do, compared with the cached builders.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class BuildSAMLObjectBenchmark {
+
+    @Setup
+    public void setUp() throws Exception {
+        InitializationService.initialize();
+    }
+
+    private static <T extends XMLObject> T buildReflectively(final Class<T> clazz) throws Exception {
+        XMLObjectBuilderFactory builderFactory = XMLObjectProviderRegistrySupport.getBuilderFactory();
+        QName defaultElementName = (QName)clazz.getDeclaredField("DEFAULT_ELEMENT_NAME").get(null);
+        return (T)builderFactory.getBuilder(defaultElementName).buildObject(defaultElementName);
+    }
+
+    @Benchmark
+    public Issuer issuerReflective() throws Exception {
+        return buildReflectively(Issuer.class);
+    }
+
+    @Benchmark
+    public Issuer issuerCached() {
+        return OpenSAMLUtils.buildSAMLObject(Issuer.class);
+    }
+
+    @Benchmark
+    public Assertion assertionReflective() throws Exception {
+        return buildReflectively(Assertion.class);
+    }
+
+    @Benchmark
+    public Assertion assertionCached() {
+        return OpenSAMLUtils.buildSAMLObject(Assertion.class);
+    }
+}
@@ -0,0 +1,148 @@
+package no.steras.opensamlbook;
+
+import no.steras.opensamlbook.idp.ArtifactResolutionBenchmark;
+import no.steras.opensamlbook.sp.AccessFilterBenchmark;
+import no.steras.opensamlbook.sp.ConsumerPostBenchmark;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * Runs the hot path benchmarks with 1, 4 and as many threads as there are processors, with the GC profiler, and
+ * compares throughput and allocation per operation with the stored baseline.
+ *
+ * The results are written to target/jmh/hotpaths.txt in the same format as the baseline in
+ * src/jmh/baseline/hotpaths.txt, one line per benchmark and thread count, so they can also be compared with diff. Pass
+ * <code>--update-baseline</code> as the first argument to replace the baseline. All other arguments are JMH options. The
+ * baseline is only replaced on a machine with at least {@value #MIN_BASELINE_PROCESSORS} processors, so the 4 thread
+ * rows measure scaling rather than oversubscription and there is a separate row for all processors.
+ *
+ * <pre>
+ * mvn -Pbenchmark test-compile exec:exec -Djmh.main=no.steras.opensamlbook.HotPathSuite -Djmh.args="-f 1 -wi 3 -i 5"
+ * </pre>
+ */
+public class HotPathSuite {
+    private static final Path BASELINE = Paths.get("src", "jmh", "baseline", "hotpaths.txt");
+    private static final Path RESULTS = Paths.get("target", "jmh", "hotpaths.txt");
+    private static final int MIN_BASELINE_PROCESSORS = 4;
+
+    public static void main(final String[] args) throws Exception {
+        List<String> arguments = new ArrayList<String>(Arrays.asList(args));
+        boolean updateBaseline = arguments.remove("--update-baseline");
+        int processors = Runtime.getRuntime().availableProcessors();
+        if (updateBaseline && processors < MIN_BASELINE_PROCESSORS) {
+            throw new IllegalStateException("The baseline must be recorded with at least " + MIN_BASELINE_PROCESSORS
+                    + " processors, this machine has " + processors);
+        }
+        Options commandLine = new CommandLineOptions(arguments.toArray(new String[0]));
+
+        SortedMap<String, String> lines = new TreeMap<String, String>();
+        for (int threads : threadCounts()) {
+            Options options = new OptionsBuilder()
+                    .parent(commandLine)
+                    .include(ArtifactResolutionBenchmark.class.getName())
+                    .include(AccessFilterBenchmark.class.getName())
+                    .include(ConsumerPostBenchmark.class.getName())
+                    .addProfiler(GCProfiler.class)
+                    .threads(threads)
+                    .build();
+            for (RunResult result : new Runner(options).run()) {
+                String key = key(result.getParams());
+                lines.put(key, format(key, result));
+            }
+        }
+
+        List<String> output = new ArrayList<String>();
+        output.add("# " + System.getProperty("java.vm.name") + " " + System.getProperty("java.version") + ", "
+                + processors + " processors");
+        output.add(String.format("# %-66s %14s %14s", "benchmark threads", "ops/s", "B/op"));
+        output.addAll(lines.values());
+
+        Files.createDirectories(RESULTS.getParent());
+        Files.write(RESULTS, output, StandardCharsets.UTF_8);
+        compare(lines, readBaseline());
+
+        if (updateBaseline) {
+            Files.createDirectories(BASELINE.getParent());
+            Files.write(BASELINE, output, StandardCharsets.UTF_8);
+            System.out.println("Baseline updated: " + BASELINE);
+        }
+    }
+
+    private static SortedSet<Integer> threadCounts() {
+        return new TreeSet<Integer>(Arrays.asList(1, 4, Runtime.getRuntime().availableProcessors()));
+    }
+
+    private static String key(final BenchmarkParams params) {
+        String name = params.getBenchmark();
+        StringBuilder key = new StringBuilder(name.substring(name.lastIndexOf('.', name.lastIndexOf('.') - 1) + 1));
+        for (Object paramKey : params.getParamsKeys()) {
+            key.append(':').append(paramKey).append('=').append(params.getParam((String)paramKey));
+        }
+        return String.format("%-58s t=%-4d", key, params.getThreads());
+    }
+
+    private static String format(final String key, final RunResult result) {
+        return String.format("%s %14.1f %14.0f", key, result.getPrimaryResult().getScore(), allocationPerOperation(result));
+    }
+
+    private static double allocationPerOperation(final RunResult result) {
+        for (Map.Entry<String, Result> secondary : result.getSecondaryResults().entrySet()) {
+            if (secondary.getKey().endsWith("gc.alloc.rate.norm")) {
+                return secondary.getValue().getScore();
+            }
+        }
+        return Double.NaN;
+    }
+
+    /**
+     * @return ops/s and B/op by benchmark and thread count
+     */
+    private static Map<String, double[]> readBaseline() throws IOException {
+        Map<String, double[]> baseline = new HashMap<String, double[]>();
+        if (!Files.exists(BASELINE)) {
+            return baseline;
+        }
+        for (String line : Files.readAllLines(BASELINE, StandardCharsets.UTF_8)) {
+            if (line.startsWith("#") || line.trim().isEmpty()) {
+                continue;
+            }
+            String[] columns = line.trim().split("\\s+");
+            baseline.put(columns[0] + ' ' + columns[1], new double[]{Double.parseDouble(columns[2]), Double.parseDouble(columns[3])});
+        }
+        return baseline;
+    }
+
+    private static void compare(final SortedMap<String, String> lines, final Map<String, double[]> baseline) {
+        System.out.println();
+        System.out.println("Compared with " + BASELINE + ":");
+        for (Map.Entry<String, String> line : lines.entrySet()) {
+            String[] columns = line.getValue().trim().split("\\s+");
+            double score = Double.parseDouble(columns[2]);
+            double allocation = Double.parseDouble(columns[3]);
+            double[] base = baseline.get(columns[0] + ' ' + columns[1]);
+            if (base == null) {
+                System.out.println(line.getValue() + "   (no baseline)");
+            } else {
+                System.out.println(String.format("%s   ops/s %+6.1f%%   B/op %+6.1f%%", line.getValue(),
+                        change(base[0], score), change(base[1], allocation)));
+            }
+        }
+    }
+
+    private static double change(final double base, final double value) {
+        return base == 0 ? 0 : (value - base) * 100 / base;
+    }
+}
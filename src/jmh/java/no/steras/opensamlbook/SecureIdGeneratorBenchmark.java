@@ -0,0 +1,59 @@
+package no.steras.opensamlbook;
+
+import net.shibboleth.utilities.java.support.security.SecureRandomIdentifierGenerationStrategy;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * IDs per second from the one SecureRandomIdentifierGenerationStrategy generateSecureRandomId used to share between
+ * all threads, compared with the striped generator, on one thread and on as many threads as there are processors.
+ * Other thread counts can be run with <code>-t</code>.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class SecureIdGeneratorBenchmark {
+    private SecureRandomIdentifierGenerationStrategy strategy;
+    private SecureIdGenerator striped;
+
+    @Setup
+    public void setUp() {
+        strategy = new SecureRandomIdentifierGenerationStrategy();
+        striped = new SecureIdGenerator("SHA1PRNG", 2 * Runtime.getRuntime().availableProcessors(), 64);
+        String id = striped.generateIdentifier();
+        if (id.length() != strategy.generateIdentifier().length() || !id.matches("_[0-9a-f]{32}")) {
+            throw new IllegalStateException("Unexpected ID " + id);
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public String sharedStrategy() {
+        return strategy.generateIdentifier();
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public String sharedStrategyAllThreads() {
+        return strategy.generateIdentifier();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public String striped() {
+        return striped.generateIdentifier();
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public String stripedAllThreads() {
+        return striped.generateIdentifier();
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.out.printf("%n%d stripes, %d batches, %d collisions%n",
+                striped.getStripes(), striped.getBatches(), striped.getCollisions());
+    }
+}
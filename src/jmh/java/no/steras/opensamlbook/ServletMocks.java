@@ -0,0 +1,214 @@
+package no.steras.opensamlbook;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Just enough of the servlet API to call the filters and servlets in benchmarks. Every method that is not handled
+ * returns null, false or 0.
+ */
+public final class ServletMocks {
+
+    private ServletMocks() {
+    }
+
+    /**
+     * A request with the given URL and form body. Request attributes and parameters given in <code>parameters</code>
+     * are kept in maps.
+     */
+    public static HttpServletRequest request(final String requestURL, final byte[] body, final HttpSession session,
+                                             final Map<String, String> parameters, final Cookie[] cookies) {
+        final Map<String, Object> attributes = new HashMap<String, Object>();
+        return proxy(HttpServletRequest.class, (method, args) -> {
+            switch (method.getName()) {
+                case "getRequestURL":
+                    return new StringBuffer(requestURL);
+                case "getRequestURI":
+                    return URI.create(requestURL).getRawPath();
+                case "getContextPath":
+                    return "/webprofile-ref-project";
+                case "getRemoteAddr":
+                    return "127.0.0.1";
+                case "getMethod":
+                    return body == null ? "GET" : "POST";
+                case "isSecure":
+                    return false;
+                case "getInputStream":
+                    return servletInputStream(body == null ? new byte[0] : body);
+                case "getSession":
+                    return session;
+                case "getCookies":
+                    return cookies;
+                case "getParameter":
+                    return parameters.get(args[0]);
+                case "getAttribute":
+                    return attributes.get(args[0]);
+                case "setAttribute":
+                    attributes.put((String)args[0], args[1]);
+                    return null;
+                default:
+                    return null;
+            }
+        });
+    }
+
+    /**
+     * A response that discards its body and remembers the last redirect location.
+     */
+    public static RecordingResponse response() {
+        return new RecordingResponse();
+    }
+
+    public static HttpSession session(final Map<String, Object> attributes) {
+        return proxy(HttpSession.class, (method, args) -> {
+            switch (method.getName()) {
+                case "getAttribute":
+                    return attributes.get(args[0]);
+                case "setAttribute":
+                    attributes.put((String)args[0], args[1]);
+                    return null;
+                case "removeAttribute":
+                    attributes.remove(args[0]);
+                    return null;
+                default:
+                    return null;
+            }
+        });
+    }
+
+    public static final class RecordingResponse {
+        private String location;
+        private int status;
+        private final ServletOutputStream outputStream = new ServletOutputStream() {
+            @Override
+            public void write(final int b) {
+            }
+
+            @Override
+            public void write(final byte[] b, final int off, final int len) {
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(final WriteListener writeListener) {
+            }
+        };
+        private final PrintWriter writer = new PrintWriter(new OutputStream() {
+            @Override
+            public void write(final int b) {
+            }
+        });
+        private final HttpServletResponse response = proxy(HttpServletResponse.class, (method, args) -> {
+            switch (method.getName()) {
+                case "sendRedirect":
+                    location = (String)args[0];
+                    status = HttpServletResponse.SC_MOVED_TEMPORARILY;
+                    return null;
+                case "setStatus":
+                    status = (Integer)args[0];
+                    return null;
+                case "getOutputStream":
+                    return outputStream;
+                case "getWriter":
+                    return writer;
+                default:
+                    return null;
+            }
+        });
+
+        public HttpServletResponse get() {
+            return response;
+        }
+
+        public String getLocation() {
+            return location;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+    }
+
+    private static ServletInputStream servletInputStream(final byte[] body) {
+        final ByteArrayInputStream in = new ByteArrayInputStream(body);
+        return new ServletInputStream() {
+            @Override
+            public int read() {
+                return in.read();
+            }
+
+            @Override
+            public int read(final byte[] b, final int off, final int len) {
+                return in.read(b, off, len);
+            }
+
+            @Override
+            public boolean isFinished() {
+                return in.available() == 0;
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setReadListener(final ReadListener readListener) {
+            }
+        };
+    }
+
+    private interface Handler {
+        Object handle(Method method, Object[] args) throws IOException;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(final Class<T> type, final Handler handler) {
+        return (T)Proxy.newProxyInstance(ServletMocks.class.getClassLoader(), new Class<?>[]{type}, new InvocationHandler() {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+                Object result = handler.handle(method, args);
+                if (result == null && method.getReturnType().isPrimitive()) {
+                    return defaultValue(method.getReturnType());
+                }
+                return result;
+            }
+        });
+    }
+
+    private static Object defaultValue(final Class<?> type) {
+        if (type == boolean.class) {
+            return false;
+        }
+        if (type == void.class) {
+            return null;
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+        if (type == char.class) {
+            return (char)0;
+        }
+        return 0;
+    }
+}
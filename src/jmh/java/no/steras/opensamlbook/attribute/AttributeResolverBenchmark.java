@@ -0,0 +1,85 @@
+package no.steras.opensamlbook.attribute;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resolving a user's attributes from two data connectors that each take <code>latencyMillis</code> to answer, like
+ * remote directories.
+ *
+ * A cache hit is compared with a resolution that misses, which asks both connectors at once, and with asking them one
+ * after the other. The coalesced benchmark has eight threads resolving the same user without caching results, logins
+ * arriving while a resolution is in progress share it; the connector lookups per resolution are printed at the end.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class AttributeResolverBenchmark {
+    private static final String PRINCIPAL = "bob";
+
+    @Param({"5"})
+    public long latencyMillis;
+
+    private LocalDataConnector directory;
+    private LocalDataConnector phonebook;
+    private AttributeResolver cached;
+    private AttributeResolver uncached;
+
+    @Setup
+    public void setUp() {
+        directory = connector("directory", "uid", "bob");
+        phonebook = connector("phonebook", "telephoneNumber", "999999999");
+        List<AttributeDefinition> definitions = Arrays.asList(
+                new AttributeDefinition("username", "directory", "uid"),
+                new AttributeDefinition("telephone", "phonebook", "telephoneNumber"));
+        cached = new AttributeResolver(Arrays.asList(directory, phonebook), definitions, new AttributeCache(10000, 60000, 60000), 10000);
+        // Results expire as they arrive, only resolutions in progress are shared
+        uncached = new AttributeResolver(Arrays.asList(directory, phonebook), definitions, new AttributeCache(10000, 0, 60000), 10000);
+        cached.resolve(PRINCIPAL).join();
+    }
+
+    private LocalDataConnector connector(final String id, final String attribute, final String value) {
+        Map<String, Map<String, List<String>>> users = new HashMap<String, Map<String, List<String>>>();
+        users.put(PRINCIPAL, Collections.singletonMap(attribute, Collections.singletonList(value)));
+        return new LocalDataConnector(id, users, latencyMillis);
+    }
+
+    @Benchmark
+    public Map<String, List<String>> hit() {
+        return cached.resolve(PRINCIPAL).join();
+    }
+
+    @Benchmark
+    public Map<String, List<String>> miss() {
+        return uncached.resolve(PRINCIPAL).join();
+    }
+
+    @Benchmark
+    public Map<String, List<String>> sequentialLookups() throws Exception {
+        directory.lookup(PRINCIPAL);
+        return phonebook.lookup(PRINCIPAL);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public Map<String, List<String>> coalesced() {
+        return uncached.resolve(PRINCIPAL).join();
+    }
+
+    @TearDown
+    public void tearDown() {
+        AttributeCache cache = uncached.getCache();
+        long resolutions = cache.getMisses() + cache.getCoalesced();
+        if (resolutions > 0) {
+            System.out.printf("%n%d resolutions without caching, %d coalesced, %.2f directory lookups per resolution%n",
+                    resolutions, cache.getCoalesced(),
+                    (double)uncached.getConnectorStatistics().get("directory").getLookups() / resolutions);
+        }
+    }
+}
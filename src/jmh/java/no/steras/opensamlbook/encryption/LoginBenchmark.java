@@ -0,0 +1,84 @@
+package no.steras.opensamlbook.encryption;
+
+import no.steras.opensamlbook.idp.ArtifactResolutionServlet;
+import no.steras.opensamlbook.idp.DemoResponses;
+import no.steras.opensamlbook.idp.IDPConstants;
+import no.steras.opensamlbook.signing.SignatureVerifier;
+import no.steras.opensamlbook.xml.SAMLSerializer;
+import no.steras.opensamlbook.xml.SharedParserPool;
+import org.opensaml.core.config.InitializationService;
+import org.opensaml.core.xml.config.XMLObjectProviderRegistrySupport;
+import org.opensaml.saml.saml2.core.Assertion;
+import org.opensaml.saml.saml2.core.EncryptedAssertion;
+import org.opensaml.saml.saml2.core.Response;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Logins per second without the HTTP round trips, with and without assertion encryption. A login is what the IDP and
+ * SP do for one response: build, sign, encrypt and serialize it, then parse, decrypt and verify it. The decrypt
+ * benchmark only measures the SP's decryption of one assertion.
+ *
+ * Compare the configurations with <code>-t 1</code> for the cost per core, and with more threads to see that the
+ * shared encrypter and decrypter scale.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class LoginBenchmark {
+
+    /**
+     * DISABLED, or the data encryption and key transport algorithm separated by a colon.
+     */
+    @Param({"DISABLED", "AES128_GCM:RSA_OAEP", "AES256_GCM:RSA_OAEP", "AES256_GCM:RSA_OAEP_SHA256"})
+    public String encryption;
+
+    private EncryptionConfiguration configuration;
+    private EncryptedAssertion encryptedAssertion;
+
+    @Setup
+    public void setUp() throws Exception {
+        InitializationService.initialize();
+        XMLObjectProviderRegistrySupport.setParserPool(SharedParserPool.getParserPool());
+
+        if ("DISABLED".equals(encryption)) {
+            configuration = EncryptionConfiguration.DISABLED;
+        } else {
+            String[] algorithms = encryption.split(":");
+            configuration = new EncryptionConfiguration(DataEncryptionAlgorithm.valueOf(algorithms[0]),
+                    KeyTransportAlgorithm.valueOf(algorithms[1]));
+        }
+
+        Response response = consume(issue());
+        encryptedAssertion = response.getEncryptedAssertions().isEmpty() ? null : response.getEncryptedAssertions().get(0);
+    }
+
+    @Benchmark
+    public Assertion login() throws Exception {
+        Response response = consume(issue());
+        Assertion assertion = response.getEncryptedAssertions().isEmpty()
+                ? response.getAssertions().get(0)
+                : AssertionDecrypter.getSharedDecrypter().decrypt(response.getEncryptedAssertions().get(0));
+        SignatureVerifier.getSharedVerifier().verify(assertion, IDPConstants.IDP_ENTITY_ID);
+        return assertion;
+    }
+
+    @Benchmark
+    public Assertion decrypt() {
+        if (encryptedAssertion == null) {
+            return null;
+        }
+        return AssertionDecrypter.getSharedDecrypter().decrypt(encryptedAssertion);
+    }
+
+    private byte[] issue() throws Exception {
+        return SAMLSerializer.toString(DemoResponses.build(configuration)).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static Response consume(final byte[] message) {
+        return ArtifactResolutionServlet.unmarshallArtifactResolve(new ByteArrayInputStream(message));
+    }
+}
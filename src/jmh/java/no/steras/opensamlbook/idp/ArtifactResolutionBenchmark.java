@@ -0,0 +1,61 @@
+package no.steras.opensamlbook.idp;
+
+import no.steras.opensamlbook.OpenSAMLUtils;
+import no.steras.opensamlbook.sp.SPConstants;
+import no.steras.opensamlbook.xml.SAMLSerializer;
+import no.steras.opensamlbook.xml.SharedParserPool;
+import org.opensaml.core.config.InitializationService;
+import org.opensaml.core.xml.config.XMLObjectProviderRegistrySupport;
+import org.opensaml.saml.saml2.core.ArtifactResponse;
+import org.opensaml.saml.saml2.core.Assertion;
+import org.opensaml.saml.saml2.core.Response;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The IDP side hot paths: building a signed ArtifactResponse, signing an assertion, serializing a message and
+ * unmarshalling a serialized Response.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+public class ArtifactResolutionBenchmark {
+    private ArtifactResolutionServlet servlet;
+    private ArtifactResponse artifactResponse;
+    private byte[] serializedResponse;
+
+    @Setup
+    public void setUp() throws Exception {
+        InitializationService.initialize();
+        XMLObjectProviderRegistrySupport.setParserPool(SharedParserPool.getParserPool());
+
+        servlet = new ArtifactResolutionServlet();
+        artifactResponse = buildArtifactResponse();
+        serializedResponse = SAMLSerializer.toString(DemoResponses.build()).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public ArtifactResponse buildArtifactResponse() {
+        return servlet.buildArtifactResponse(DemoResponses.build(), SPConstants.SP_ENTITY_ID);
+    }
+
+    @Benchmark
+    public Assertion signAssertion() {
+        Assertion assertion = DemoResponses.buildAssertion();
+        DemoResponses.signAssertion(assertion);
+        return assertion;
+    }
+
+    @Benchmark
+    public String encodeSAMLObject() throws Exception {
+        return OpenSAMLUtils.encodeSAMLObject(artifactResponse);
+    }
+
+    @Benchmark
+    public Response unmarshallArtifactResolve() {
+        return ArtifactResolutionServlet.unmarshallArtifactResolve(new ByteArrayInputStream(serializedResponse));
+    }
+}
@@ -0,0 +1,46 @@
+package no.steras.opensamlbook.idp;
+
+import no.steras.opensamlbook.encryption.EncryptionConfiguration;
+import no.steras.opensamlbook.sp.SPConstants;
+import org.opensaml.saml.saml2.core.Assertion;
+import org.opensaml.saml.saml2.core.Response;
+
+/**
+ * The IDP's responses for the demo user to this project's SP, built with OpenSAML objects by the shared
+ * {@link ResponseTemplateEngine}, for benchmarks that need a response to consume.
+ */
+public final class DemoResponses {
+
+    private DemoResponses() {
+    }
+
+    /**
+     * @return a response with a signed assertion, encrypted if encryption is configured for the SP
+     */
+    public static Response build() {
+        return build(EncryptionConfiguration.forPeer(SPConstants.SP_ENTITY_ID));
+    }
+
+    /**
+     * @return a response with a signed assertion, encrypted with the configuration if it is enabled
+     */
+    public static Response build(final EncryptionConfiguration encryptionConfiguration) {
+        return ResponseTemplateEngine.getSharedEngine().buildResponse(SPConstants.SP_ENTITY_ID,
+                assertionConsumerService(), ResponseValues.forDemoUser(), encryptionConfiguration);
+    }
+
+    /**
+     * @return an unsigned assertion
+     */
+    static Assertion buildAssertion() {
+        return ResponseTemplateEngine.getSharedEngine().buildAssertion(ResponseValues.forDemoUser(), assertionConsumerService());
+    }
+
+    static void signAssertion(final Assertion assertion) {
+        ResponseTemplateEngine.getSharedEngine().signAssertion(SPConstants.SP_ENTITY_ID, assertion);
+    }
+
+    private static String assertionConsumerService() {
+        return SingleSignOnServlet.assertionConsumerService(SPConstants.SP_ENTITY_ID);
+    }
+}
@@ -0,0 +1,117 @@
+package no.steras.opensamlbook.idp;
+
+import no.steras.opensamlbook.encryption.EncryptionConfiguration;
+import no.steras.opensamlbook.signing.SignatureVerifier;
+import no.steras.opensamlbook.signing.SigningAlgorithm;
+import no.steras.opensamlbook.signing.SigningConfiguration;
+import no.steras.opensamlbook.sp.SPConstants;
+import no.steras.opensamlbook.xml.SAMLSerializer;
+import no.steras.opensamlbook.xml.SharedParserPool;
+import org.apache.xml.security.c14n.Canonicalizer;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.opensaml.core.config.InitializationService;
+import org.opensaml.core.xml.config.XMLObjectProviderRegistrySupport;
+import org.opensaml.saml.saml2.core.Response;
+import org.opensaml.xmlsec.signature.support.SignatureConstants;
+import org.openjdk.jmh.annotations.*;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Producing the serialized response of a login by building, signing and serializing OpenSAML objects, and by
+ * filling in a compiled {@link ResponseTemplate}.
+ *
+ * The setup renders a response with fixed values both ways and fails unless the two are the same after exclusive
+ * canonicalization. The values contain characters that canonicalization escapes. RSA PKCS#1 signatures are
+ * deterministic, so for those the signature values must be the same too, for the others the template's signature is
+ * only verified.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class ResponseTemplateBenchmark {
+    private static final String DSIG_NS = "http://www.w3.org/2000/09/xmldsig#";
+
+    @Param({"RSA_SHA256", "ECDSA_P256_SHA256"})
+    public SigningAlgorithm algorithm;
+
+    private ResponseTemplateEngine engine;
+    private String assertionConsumerService;
+
+    @Setup
+    public void setUp() throws Exception {
+        InitializationService.initialize();
+        XMLObjectProviderRegistrySupport.setParserPool(SharedParserPool.getParserPool());
+        SigningConfiguration.setForPeer(SPConstants.SP_ENTITY_ID, new SigningConfiguration(algorithm));
+        engine = ResponseTemplateEngine.getSharedEngine();
+        assertionConsumerService = SingleSignOnServlet.assertionConsumerService(SPConstants.SP_ENTITY_ID);
+
+        Map<String, List<String>> attributes = new LinkedHashMap<String, List<String>>();
+        attributes.put("username", Arrays.asList("bob & <alice>"));
+        attributes.put("displayName", Arrays.asList("Bj\u00f8rn \"Bob\" \u00c5s", "line\r\nbreak\ttab"));
+        DateTime now = new DateTime(2018, 3, 1, 12, 30, 15, 123, DateTimeZone.UTC);
+        ResponseValues values = new ResponseValues("_response", "_assertion", now, now.minusDays(2), now.plusDays(2),
+                now, "name <&> \"id\"", "_request & co", attributes);
+
+        byte[] objects = SAMLSerializer.toString(engine.buildResponse(SPConstants.SP_ENTITY_ID, assertionConsumerService,
+                values, EncryptionConfiguration.DISABLED)).getBytes(StandardCharsets.UTF_8);
+        byte[] template = engine.render(SPConstants.SP_ENTITY_ID, assertionConsumerService, values);
+        if (engine.getObjectResponses() != 0) {
+            throw new IllegalStateException("The response template could not be compiled");
+        }
+
+        Response response = ArtifactResolutionServlet.unmarshallArtifactResolve(new ByteArrayInputStream(template));
+        SignatureVerifier.getSharedVerifier().verify(response.getAssertions().get(0), IDPConstants.IDP_ENTITY_ID);
+
+        boolean deterministic = algorithm.getJcaName().endsWith("withRSA");
+        String expected = canonicalize(objects, deterministic);
+        String actual = canonicalize(template, deterministic);
+        if (!expected.equals(actual)) {
+            throw new IllegalStateException("The template's response differs after canonicalization:\n" + expected
+                    + "\n" + actual);
+        }
+        System.out.printf("%nTemplate response of %d bytes is the same as the OpenSAML response of %d bytes after "
+                + "canonicalization%n", template.length, objects.length);
+    }
+
+    @Benchmark
+    public byte[] objects() throws Exception {
+        return SAMLSerializer.toString(engine.buildResponse(SPConstants.SP_ENTITY_ID, assertionConsumerService,
+                ResponseValues.forDemoUser(), EncryptionConfiguration.DISABLED)).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public byte[] template() {
+        return engine.render(SPConstants.SP_ENTITY_ID, assertionConsumerService, ResponseValues.forDemoUser());
+    }
+
+    /**
+     * @return the document canonicalized as the assertion's reference is, without the signature value unless it is
+     * to be compared
+     */
+    private static String canonicalize(final byte[] response, final boolean withSignatureValue) throws Exception {
+        Document document = SharedParserPool.getParserPool().parse(new ByteArrayInputStream(response));
+        if (!withSignatureValue) {
+            NodeList signatureValues = document.getElementsByTagNameNS(DSIG_NS, "SignatureValue");
+            for (int i = 0; i < signatureValues.getLength(); i++) {
+                signatureValues.item(i).setTextContent("");
+            }
+        }
+        NodeList inclusiveNamespaces = document.getElementsByTagNameNS("http://www.w3.org/2001/10/xml-exc-c14n#",
+                "InclusiveNamespaces");
+        String prefixes = inclusiveNamespaces.getLength() == 0 ? ""
+                : ((Element)inclusiveNamespaces.item(0)).getAttribute("PrefixList");
+        return new String(Canonicalizer.getInstance(SignatureConstants.ALGO_ID_C14N_EXCL_OMIT_COMMENTS)
+                .canonicalizeSubtree(document, prefixes), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,47 @@
+package no.steras.opensamlbook.load;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delays requests to the IDP as if it was a remote server that takes a while to answer. The delay does not hold a
+ * server thread, so only the threads of the SP waiting for the IDP are held, as they would be with a real remote IDP.
+ */
+class IdpLatencyFilter implements Filter {
+    private final long latencyMillis;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "idp-latency");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    IdpLatencyFilter(final long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    @Override
+    public void init(final FilterConfig filterConfig) {
+    }
+
+    /**
+     * Only mapped to requests, the request is dispatched to the IDP again after the delay.
+     */
+    @Override
+    public void doFilter(final ServletRequest request, final ServletResponse response, final FilterChain chain) {
+        AsyncContext context = request.startAsync();
+        context.setTimeout(0);
+        scheduler.schedule(() -> context.dispatch(), latencyMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void destroy() {
+        scheduler.shutdownNow();
+    }
+}
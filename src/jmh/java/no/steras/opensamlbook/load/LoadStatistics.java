@@ -0,0 +1,138 @@
+package no.steras.opensamlbook.load;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency of every step and of the whole login in nanoseconds, recorded by the virtual users into HdrHistogram
+ * recorders and collected once per reporting interval.
+ */
+public class LoadStatistics {
+    private static final int SIGNIFICANT_DIGITS = 3;
+    private static final int MAX_ERROR_SAMPLES = 10;
+    private static final double NANOS_PER_MILLI = 1e6;
+
+    private final Map<Step, Recorder> stepRecorders = new EnumMap<Step, Recorder>(Step.class);
+    private final Map<Step, Histogram> stepTotals = new EnumMap<Step, Histogram>(Step.class);
+    private final Map<Step, LongAdder> stepErrors = new EnumMap<Step, LongAdder>(Step.class);
+    private final Map<Step, Long> stepErrorTotals = new EnumMap<Step, Long>(Step.class);
+    private final Recorder loginRecorder = new Recorder(SIGNIFICANT_DIGITS);
+    private final Histogram loginTotal = new Histogram(SIGNIFICANT_DIGITS);
+    private final Queue<String> errorSamples = new ConcurrentLinkedQueue<String>();
+    private final AtomicInteger errorSampleCount = new AtomicInteger();
+
+    private Histogram loginInterval;
+
+    public LoadStatistics() {
+        for (Step step : Step.values()) {
+            stepRecorders.put(step, new Recorder(SIGNIFICANT_DIGITS));
+            stepTotals.put(step, new Histogram(SIGNIFICANT_DIGITS));
+            stepErrors.put(step, new LongAdder());
+            stepErrorTotals.put(step, 0L);
+        }
+    }
+
+    public void recordStep(final Step step, final long nanos) {
+        stepRecorders.get(step).recordValue(nanos);
+    }
+
+    public void recordLogin(final long nanos) {
+        loginRecorder.recordValue(nanos);
+    }
+
+    public void recordError(final Step step, final String message) {
+        stepErrors.get(step).increment();
+        if (errorSampleCount.incrementAndGet() <= MAX_ERROR_SAMPLES) {
+            errorSamples.add(step.getLabel() + ": " + message);
+        }
+    }
+
+    /**
+     * Takes the values recorded since the last call. They are added to the totals unless <code>keep</code> is false,
+     * which is how the warm-up is left out.
+     *
+     * @return the login latencies of the interval
+     */
+    public synchronized Histogram collect(final boolean keep) {
+        for (Step step : Step.values()) {
+            Histogram interval = stepRecorders.get(step).getIntervalHistogram();
+            long errors = stepErrors.get(step).sumThenReset();
+            if (keep) {
+                stepTotals.get(step).add(interval);
+                stepErrorTotals.put(step, stepErrorTotals.get(step) + errors);
+            }
+        }
+        loginInterval = loginRecorder.getIntervalHistogram(loginInterval);
+        if (keep) {
+            loginTotal.add(loginInterval);
+        }
+        return loginInterval;
+    }
+
+    public synchronized long getLogins() {
+        return loginTotal.getTotalCount();
+    }
+
+    public synchronized long getErrors() {
+        long errors = 0;
+        for (Long stepErrorTotal : stepErrorTotals.values()) {
+            errors += stepErrorTotal;
+        }
+        return errors;
+    }
+
+    public synchronized void printSummary(final PrintStream out) {
+        out.println(String.format("%-14s %9s %9s %9s %9s %9s %9s %9s %8s", "(ms)", "count", "mean", "p50", "p90", "p99",
+                "p99.9", "max", "errors"));
+        for (Step step : Step.values()) {
+            out.println(summaryLine(step.getLabel(), stepTotals.get(step), stepErrorTotals.get(step)));
+        }
+        out.println(summaryLine("login", loginTotal, getErrors()));
+        if (!errorSamples.isEmpty()) {
+            out.println();
+            out.println("First errors:");
+            for (String errorSample : errorSamples) {
+                out.println("  " + errorSample);
+            }
+        }
+    }
+
+    /**
+     * Writes the percentile distribution of every step and the login in milliseconds, in the format the HdrHistogram
+     * plotter reads.
+     */
+    public synchronized void writeDistributions(final Path directory) throws IOException {
+        Files.createDirectories(directory);
+        for (Step step : Step.values()) {
+            writeDistribution(directory.resolve(step.name().toLowerCase() + ".hgrm"), stepTotals.get(step));
+        }
+        writeDistribution(directory.resolve("login.hgrm"), loginTotal);
+    }
+
+    private static void writeDistribution(final Path file, final Histogram histogram) throws IOException {
+        try (PrintStream out = new PrintStream(Files.newOutputStream(file), false, "UTF-8")) {
+            histogram.outputPercentileDistribution(out, NANOS_PER_MILLI);
+        }
+    }
+
+    private static String summaryLine(final String label, final Histogram histogram, final long errors) {
+        return String.format("%-14s %9d %9.2f %9.2f %9.2f %9.2f %9.2f %9.2f %8d", label, histogram.getTotalCount(),
+                histogram.getMean() / NANOS_PER_MILLI, millis(histogram, 50), millis(histogram, 90),
+                millis(histogram, 99), millis(histogram, 99.9), histogram.getMaxValue() / NANOS_PER_MILLI, errors);
+    }
+
+    static double millis(final Histogram histogram, final double percentile) {
+        return histogram.getValueAtPercentile(percentile) / NANOS_PER_MILLI;
+    }
+}
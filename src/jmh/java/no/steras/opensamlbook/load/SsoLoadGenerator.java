@@ -0,0 +1,283 @@
+package no.steras.opensamlbook.load;
+
+import no.steras.opensamlbook.async.AsyncExecutors;
+import no.steras.opensamlbook.sp.SPConstants;
+import org.HdrHistogram.Histogram;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.api.ContentResponse;
+import org.eclipse.jetty.http.HttpStatus;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.FilterHolder;
+import org.eclipse.jetty.util.HttpCookieStore;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.webapp.WebAppContext;
+
+import javax.servlet.DispatcherType;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.EnumSet;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Load tests the whole browser login in one JVM: the web application runs in an embedded Jetty and virtual users log
+ * in against it, from the access filter's redirect to the authenticated application.
+ *
+ * The load is an open model: users arrive at a fixed rate, or with <code>--poisson</code> at exponentially distributed
+ * intervals, whether or not the earlier users are done. Latency is measured from the time a user was meant to arrive,
+ * so a server or a generator that falls behind shows up in the latency instead of being left out (coordinated
+ * omission). <code>--max-users</code> caps the users logging in at once; the users that arrive while it is reached wait
+ * and their wait counts towards the first step and the login.
+ *
+ * <code>--idp-latency</code> makes the IDP's artifact resolution endpoint answer after a delay, as a remote IDP
+ * would, to show how many logins the server threads carry while the SP waits on the back channel. Run it with
+ * <code>-Dopensamlbook.async.enabled=false</code> in <code>jmh.jvmArgs</code> and without to compare synchronous and
+ * asynchronous processing; the summary gives the logins per server thread.
+ *
+ * Users only start arriving when the application's readiness probe reports that its warm-up is done. The server
+ * listens on port 8080, as the SP and IDP endpoints are configured with it. The system properties that
+ * configure the application, like <code>opensamlbook.idp.responseBinding</code>, are passed with
+ * <code>jmh.jvmArgs</code>.
+ *
+ * <pre>
+ * mvn -Pbenchmark test-compile exec:exec -Djmh.main=no.steras.opensamlbook.load.SsoLoadGenerator -Djmh.args="--rate 100 --duration 60"
+ * </pre>
+ *
+ * Prints the login rate and latency every second and a summary per step at the end. The percentile distributions are
+ * written to target/load.
+ */
+public class SsoLoadGenerator {
+    private static final int PORT = 8080;
+    private static final String CONTEXT_PATH = "/webprofile-ref-project";
+    private static final String APPLICATION_URL = SPConstants.APPLICATION_BASE_URL + "appservlet";
+    private static final String READY_URL = "http://localhost:" + PORT + CONTEXT_PATH + "/ready";
+
+    private double rate = 50;
+    private long warmupSeconds = 10;
+    private long durationSeconds = 60;
+    private int maxUsers = 5000;
+    private int connections = 512;
+    private int serverThreads = 200;
+    private long timeoutSeconds = 30;
+    private long idpLatencyMillis;
+    private boolean poisson;
+
+    private final LoadStatistics statistics = new LoadStatistics();
+    private final Queue<Long> waitingUsers = new ArrayDeque<Long>();
+    private int activeUsers;
+    private int peakUsers;
+    private HttpClient client;
+
+    public static void main(final String[] args) throws Exception {
+        SsoLoadGenerator generator = new SsoLoadGenerator();
+        generator.parse(args);
+        generator.run();
+    }
+
+    private void parse(final String[] args) {
+        for (int i = 0; i < args.length; i += 2) {
+            if ("--poisson".equals(args[i])) {
+                poisson = true;
+                i--;
+                continue;
+            }
+            if (i + 1 == args.length) {
+                throw new IllegalArgumentException("Missing value for " + args[i]);
+            }
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--rate":
+                    rate = Double.parseDouble(value);
+                    break;
+                case "--warmup":
+                    warmupSeconds = Long.parseLong(value);
+                    break;
+                case "--duration":
+                    durationSeconds = Long.parseLong(value);
+                    break;
+                case "--max-users":
+                    maxUsers = Integer.parseInt(value);
+                    break;
+                case "--connections":
+                    connections = Integer.parseInt(value);
+                    break;
+                case "--server-threads":
+                    serverThreads = Integer.parseInt(value);
+                    break;
+                case "--timeout":
+                    timeoutSeconds = Long.parseLong(value);
+                    break;
+                case "--idp-latency":
+                    idpLatencyMillis = Long.parseLong(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i] + ", the options are --rate, "
+                            + "--warmup, --duration, --max-users, --connections, --server-threads, --timeout, --idp-latency and --poisson");
+            }
+        }
+    }
+
+    private void run() throws Exception {
+        Server server = startServer();
+        client = new HttpClient();
+        client.setFollowRedirects(false);
+        // Every virtual user keeps its own cookies
+        client.setCookieStore(new HttpCookieStore.Empty());
+        client.setMaxConnectionsPerDestination(connections);
+        client.setMaxRequestsQueuedPerDestination(Math.max(1024, maxUsers * 2));
+        client.start();
+        awaitReady();
+
+        System.out.println(String.format("%s logins/s%s for %d s after %d s warm-up, at most %d users, %d connections, "
+                        + "%d server threads, %d ms IDP latency, async processing %s, back channel on %s threads",
+                rate, poisson ? " (poisson)" : "", durationSeconds, warmupSeconds, maxUsers, connections, serverThreads,
+                idpLatencyMillis, AsyncExecutors.isEnabled() ? "on" : "off",
+                AsyncExecutors.isBackChannelVirtual() ? "virtual" : "platform"));
+        long startNanos = System.nanoTime();
+        long measureNanos = startNanos + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        long endNanos = measureNanos + TimeUnit.SECONDS.toNanos(durationSeconds);
+
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+        reporter.scheduleAtFixedRate(() -> report(startNanos, measureNanos), 1, 1, TimeUnit.SECONDS);
+
+        generateArrivals(startNanos, endNanos);
+        awaitUsers();
+        long measuredNanos = System.nanoTime() - measureNanos;
+        reporter.shutdown();
+        reporter.awaitTermination(timeoutSeconds, TimeUnit.SECONDS);
+        statistics.collect(true);
+
+        System.out.println();
+        double loginRate = statistics.getLogins() * 1e9 / measuredNanos;
+        System.out.println(String.format("%d logins, %d errors, %.1f logins/s of %.1f offered, at most %d users at once",
+                statistics.getLogins(), statistics.getErrors(), loginRate, rate, peakUsers));
+        System.out.println(String.format("Per server thread: %.2f logins/s, at most %.2f users at once",
+                loginRate / serverThreads, (double)peakUsers / serverThreads));
+        statistics.printSummary(System.out);
+        statistics.writeDistributions(Paths.get("target", "load"));
+
+        client.stop();
+        server.stop();
+    }
+
+    private Server startServer() throws Exception {
+        QueuedThreadPool threadPool = new QueuedThreadPool(serverThreads);
+        threadPool.setName("server");
+        Server server = new Server(threadPool);
+        ServerConnector connector = new ServerConnector(server);
+        connector.setPort(PORT);
+        server.addConnector(connector);
+
+        WebAppContext webapp = new WebAppContext("src/main/webapp", CONTEXT_PATH);
+        // The application's classes are on the class path already
+        webapp.setParentLoaderPriority(true);
+        if (idpLatencyMillis > 0) {
+            FilterHolder latency = new FilterHolder(new IdpLatencyFilter(idpLatencyMillis));
+            latency.setAsyncSupported(true);
+            webapp.addFilter(latency, "/idp/artifactResolutionService", EnumSet.of(DispatcherType.REQUEST));
+        }
+        server.setHandler(webapp);
+        server.start();
+        return server;
+    }
+
+    private void awaitReady() throws Exception {
+        System.out.println("Waiting for the application to be ready");
+        while (true) {
+            ContentResponse ready = client.GET(READY_URL);
+            if (ready.getStatus() == HttpStatus.OK_200) {
+                System.out.print(ready.getContentAsString());
+                return;
+            }
+            if (ready.getContentAsString().startsWith("FAILED")) {
+                throw new IllegalStateException("The application failed to start: " + ready.getContentAsString());
+            }
+            Thread.sleep(200);
+        }
+    }
+
+    /**
+     * Starts the users at their intended arrival times. If this thread falls behind, the late users are started at once
+     * and keep their intended times.
+     */
+    private void generateArrivals(final long startNanos, final long endNanos) {
+        Random random = new Random();
+        double intervalNanos = 1e9 / rate;
+        double offsetNanos = 0;
+        long arrivalNanos = startNanos;
+        while (arrivalNanos < endNanos) {
+            long now;
+            while ((now = System.nanoTime()) < arrivalNanos) {
+                LockSupport.parkNanos(arrivalNanos - now);
+            }
+            arrive(arrivalNanos);
+            offsetNanos += poisson ? -Math.log(1 - random.nextDouble()) * intervalNanos : intervalNanos;
+            arrivalNanos = startNanos + (long)offsetNanos;
+        }
+    }
+
+    private void arrive(final long arrivalNanos) {
+        synchronized (waitingUsers) {
+            if (activeUsers == maxUsers) {
+                waitingUsers.add(arrivalNanos);
+                return;
+            }
+            activeUsers++;
+            peakUsers = Math.max(peakUsers, activeUsers);
+        }
+        startUser(arrivalNanos);
+    }
+
+    private void startUser(final long arrivalNanos) {
+        new VirtualUser(client, statistics, timeoutSeconds, this::userDone).login(APPLICATION_URL, arrivalNanos);
+    }
+
+    /**
+     * A user that is done hands its place over to the longest waiting user.
+     */
+    private void userDone() {
+        Long waitingUser;
+        synchronized (waitingUsers) {
+            waitingUser = waitingUsers.poll();
+            if (waitingUser == null) {
+                activeUsers--;
+                waitingUsers.notifyAll();
+                return;
+            }
+        }
+        startUser(waitingUser);
+    }
+
+    private void awaitUsers() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(timeoutSeconds) * Step.values().length;
+        synchronized (waitingUsers) {
+            while (activeUsers > 0 && System.currentTimeMillis() < deadline) {
+                waitingUsers.wait(deadline - System.currentTimeMillis());
+            }
+            if (activeUsers > 0) {
+                System.out.println(activeUsers + " users did not finish");
+            }
+        }
+    }
+
+    private void report(final long startNanos, final long measureNanos) {
+        long now = System.nanoTime();
+        boolean measuring = now - TimeUnit.SECONDS.toNanos(1) >= measureNanos;
+        Histogram logins = statistics.collect(measuring);
+        int active;
+        int waiting;
+        synchronized (waitingUsers) {
+            active = activeUsers;
+            waiting = waitingUsers.size();
+        }
+        System.out.println(String.format("%5d s %s %6d logins/s  p50 %8.1f ms  p99 %8.1f ms  max %8.1f ms  %5d users %5d waiting",
+                TimeUnit.NANOSECONDS.toSeconds(now - startNanos), measuring ? "   " : "(w)", logins.getTotalCount(),
+                LoadStatistics.millis(logins, 50), LoadStatistics.millis(logins, 99), logins.getMaxValue() / 1e6,
+                active, waiting));
+    }
+}
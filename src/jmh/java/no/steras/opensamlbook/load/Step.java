@@ -0,0 +1,37 @@
+package no.steras.opensamlbook.load;
+
+/**
+ * The requests a browser makes for one login, in order.
+ */
+public enum Step {
+    /**
+     * The first request for the application, the access filter redirects to the IDP with an AuthnRequest.
+     */
+    ACCESS_FILTER("app redirect"),
+    /**
+     * The IDP's login page.
+     */
+    IDP_GET("idp get"),
+    /**
+     * Submitting the IDP's login page, answered with an artifact redirect or a POST binding form.
+     */
+    IDP_POST("idp post"),
+    /**
+     * The artifact or the POST binding form at the consumer, which starts the session and redirects to the application.
+     */
+    CONSUMER("consumer"),
+    /**
+     * The application, now authenticated.
+     */
+    APPLICATION("app");
+
+    private final String label;
+
+    Step(final String label) {
+        this.label = label;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+}
@@ -0,0 +1,171 @@
+package no.steras.opensamlbook.load;
+
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.api.Request;
+import org.eclipse.jetty.client.api.Response;
+import org.eclipse.jetty.client.api.Result;
+import org.eclipse.jetty.client.util.BufferingResponseListener;
+import org.eclipse.jetty.client.util.FormContentProvider;
+import org.eclipse.jetty.http.HttpHeader;
+import org.eclipse.jetty.http.HttpMethod;
+import org.eclipse.jetty.http.HttpStatus;
+import org.eclipse.jetty.util.Fields;
+
+import java.net.URI;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A browser that logs in once: it follows the redirects, submits the IDP's login form and the POST binding form the
+ * way the page's script would, and keeps its own cookies.
+ *
+ * The requests are sent asynchronously, so a virtual user holds no thread while it waits for a response. Each step is
+ * timed from the moment the previous response was complete, the first step from the user's intended arrival time.
+ */
+class VirtualUser {
+    private static final int MAX_RESPONSE_BYTES = 4 * 1024 * 1024;
+    private static final Pattern FORM_ACTION = Pattern.compile("<form[^>]*\\saction=\"([^\"]*)\"");
+    private static final Pattern HIDDEN_INPUT = Pattern.compile("<input type=\"hidden\" name=\"([^\"]+)\" value=\"([^\"]*)\"");
+
+    private final HttpClient client;
+    private final LoadStatistics statistics;
+    private final long timeoutSeconds;
+    private final Runnable onDone;
+    private final Map<String, String> cookies = new LinkedHashMap<String, String>();
+    private long arrivalNanos;
+
+    VirtualUser(final HttpClient client, final LoadStatistics statistics, final long timeoutSeconds, final Runnable onDone) {
+        this.client = client;
+        this.statistics = statistics;
+        this.timeoutSeconds = timeoutSeconds;
+        this.onDone = onDone;
+    }
+
+    /**
+     * @param arrivalNanos when the user was meant to arrive, by {@link System#nanoTime()}
+     */
+    void login(final String applicationURL, final long arrivalNanos) {
+        this.arrivalNanos = arrivalNanos;
+        send(Step.ACCESS_FILTER, client.newRequest(applicationURL), arrivalNanos, HttpStatus.FOUND_302,
+                (idpURL, page) -> send(Step.IDP_GET, client.newRequest(idpURL), System.nanoTime(), HttpStatus.OK_200,
+                        (unused, loginPage) -> submitLogin(idpURL, loginPage)));
+    }
+
+    private void submitLogin(final String idpURL, final String loginPage) {
+        Request login = post(idpURL, hiddenFields(loginPage));
+        send(Step.IDP_POST, login, System.nanoTime(), -1, (consumerURL, postForm) -> {
+            Request consumer = consumerURL != null
+                    ? client.newRequest(consumerURL)
+                    : post(formAction(idpURL, postForm), hiddenFields(postForm));
+            send(Step.CONSUMER, consumer, System.nanoTime(), HttpStatus.FOUND_302,
+                    (applicationURL, page) -> send(Step.APPLICATION, client.newRequest(applicationURL), System.nanoTime(),
+                            HttpStatus.OK_200, (unused, applicationPage) -> {
+                                statistics.recordLogin(System.nanoTime() - arrivalNanos);
+                                onDone.run();
+                            }));
+        });
+    }
+
+    /**
+     * Sends the request with the user's cookies and passes the redirect location and the body on to <code>next</code>.
+     *
+     * @param expectedStatus the status that continues the login, or -1 for either a redirect or a page
+     */
+    private void send(final Step step, final Request request, final long startNanos, final int expectedStatus,
+                      final Continuation next) {
+        if (!cookies.isEmpty()) {
+            request.header(HttpHeader.COOKIE, cookieHeader());
+        }
+        request.followRedirects(false).timeout(timeoutSeconds, TimeUnit.SECONDS).send(new BufferingResponseListener(MAX_RESPONSE_BYTES) {
+            @Override
+            public void onComplete(final Result result) {
+                long endNanos = System.nanoTime();
+                if (result.isFailed()) {
+                    fail(step, String.valueOf(result.getFailure()));
+                    return;
+                }
+                Response response = result.getResponse();
+                int status = response.getStatus();
+                boolean redirect = status == HttpStatus.FOUND_302 || status == HttpStatus.SEE_OTHER_303;
+                if (expectedStatus == -1 ? !redirect && status != HttpStatus.OK_200 : status != expectedStatus) {
+                    fail(step, "HTTP " + status + " from " + request.getURI());
+                    return;
+                }
+                statistics.recordStep(step, endNanos - startNanos);
+                for (String setCookie : response.getHeaders().getValuesList(HttpHeader.SET_COOKIE)) {
+                    storeCookie(setCookie);
+                }
+                String location = redirect ? request.getURI().resolve(response.getHeaders().get(HttpHeader.LOCATION)).toString() : null;
+                try {
+                    next.accept(location, getContentAsString());
+                } catch (RuntimeException e) {
+                    fail(step, e.toString());
+                }
+            }
+        });
+    }
+
+    private void fail(final Step step, final String message) {
+        statistics.recordError(step, message);
+        onDone.run();
+    }
+
+    private Request post(final String url, final Fields fields) {
+        return client.newRequest(url).method(HttpMethod.POST).content(new FormContentProvider(fields));
+    }
+
+    private void storeCookie(final String setCookie) {
+        int end = setCookie.indexOf(';');
+        String pair = end == -1 ? setCookie : setCookie.substring(0, end);
+        int separator = pair.indexOf('=');
+        if (separator > 0) {
+            cookies.put(pair.substring(0, separator).trim(), pair.substring(separator + 1).trim());
+        }
+    }
+
+    private String cookieHeader() {
+        StringBuilder header = new StringBuilder();
+        for (Map.Entry<String, String> cookie : cookies.entrySet()) {
+            if (header.length() > 0) {
+                header.append("; ");
+            }
+            header.append(cookie.getKey()).append('=').append(cookie.getValue());
+        }
+        return header.toString();
+    }
+
+    /**
+     * A form without an action is posted back to the page's own URL.
+     */
+    private static String formAction(final String pageURL, final String page) {
+        Matcher action = FORM_ACTION.matcher(page);
+        return action.find() ? URI.create(pageURL).resolve(unescape(action.group(1))).toString() : pageURL;
+    }
+
+    private static Fields hiddenFields(final String page) {
+        Fields fields = new Fields();
+        Matcher input = HIDDEN_INPUT.matcher(page);
+        while (input.find()) {
+            fields.put(input.group(1), unescape(input.group(2)));
+        }
+        return fields;
+    }
+
+    private static String unescape(final String html) {
+        if (html.indexOf('&') == -1) {
+            return html;
+        }
+        return html.replace("&quot;", "\"").replace("&#39;", "'").replace("&lt;", "<").replace("&gt;", ">")
+                .replace("&amp;", "&");
+    }
+
+    private interface Continuation {
+        /**
+         * @param location the absolute redirect location, or null if the response was not a redirect
+         */
+        void accept(String location, String body);
+    }
+}
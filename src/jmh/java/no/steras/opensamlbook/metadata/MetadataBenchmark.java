@@ -0,0 +1,248 @@
+package no.steras.opensamlbook.metadata;
+
+import no.steras.opensamlbook.ResourceLocation;
+import no.steras.opensamlbook.xml.SharedParserPool;
+import org.opensaml.core.config.InitializationService;
+import org.opensaml.core.xml.XMLObject;
+import org.opensaml.core.xml.config.XMLObjectProviderRegistrySupport;
+import org.openjdk.jmh.annotations.*;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Loading and querying a metadata aggregate of generated entities, like a national federation's. Every entity has the
+ * organization, contact and UI information real aggregates carry, which the registry skips.
+ *
+ * The load benchmarks compare the registry's streaming read with parsing the file into a DOM, and with unmarshalling
+ * that DOM into OpenSAML objects as a DOM based metadata resolver does. The heap each of them keeps is printed at
+ * setup. The lookup benchmarks measure the indexes the servlets use on every login.
+ */
+@State(Scope.Benchmark)
+public class MetadataBenchmark {
+    private static final Pattern CERTIFICATE = Pattern.compile("<ds:X509Certificate>\\s*([^<]+?)\\s*</ds:X509Certificate>");
+
+    @Param({"5000"})
+    public int entities;
+
+    private File aggregate;
+    private MetadataIndex index;
+    private String[] entityIds;
+    private String[] endpoints;
+    private byte[][] sourceIds;
+    private int next;
+
+    @Setup
+    public void setUp() throws Exception {
+        InitializationService.initialize();
+        XMLObjectProviderRegistrySupport.setParserPool(SharedParserPool.getParserPool());
+
+        aggregate = File.createTempFile("aggregate", ".xml");
+        aggregate.deleteOnExit();
+        writeAggregate(aggregate, entities);
+
+        long before = usedHeap();
+        index = load();
+        long afterIndex = usedHeap();
+        Document document = parse();
+        long afterDocument = usedHeap();
+        XMLObject unmarshalled = unmarshall(document);
+        long afterUnmarshall = usedHeap();
+        System.out.printf("%nAggregate of %d entities: %.1f MB. Heap kept by the index %.1f MB, by the DOM %.1f MB, by "
+                        + "the DOM and OpenSAML objects %.1f MB%n", index.size(), aggregate.length() / 1e6,
+                (afterIndex - before) / 1e6, (afterDocument - afterIndex) / 1e6, (afterUnmarshall - afterIndex) / 1e6);
+        // Keep the DOM and objects reachable until they have been measured
+        if (unmarshalled.getDOM().getOwnerDocument() != document) {
+            throw new IllegalStateException();
+        }
+
+        List<String> ids = new ArrayList<String>();
+        List<String> locations = new ArrayList<String>();
+        List<byte[]> sources = new ArrayList<byte[]>();
+        for (EntityMetadata entity : index.getEntities()) {
+            ids.add(entity.getEntityId());
+            if (entity.isServiceProvider()) {
+                locations.add(entity.getAssertionConsumerService());
+            }
+            if (entity.isIdentityProvider()) {
+                sources.add(MetadataIndex.sourceId(entity.getEntityId()).getBytes(StandardCharsets.ISO_8859_1));
+            }
+        }
+        entityIds = ids.toArray(new String[0]);
+        endpoints = locations.toArray(new String[0]);
+        sourceIds = sources.toArray(new byte[0][]);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public MetadataIndex streamingLoad() throws Exception {
+        return load();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public Document domParse() throws Exception {
+        return parse();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public XMLObject domUnmarshall() throws Exception {
+        return unmarshall(parse());
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public EntityMetadata lookupByEntityId() {
+        return index.getEntity(entityIds[next++ % entityIds.length]);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public EntityMetadata lookupByEndpoint() {
+        return index.getEntityByEndpoint(endpoints[next++ % endpoints.length]);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public EntityMetadata lookupBySourceId() {
+        return index.getIdentityProviderBySourceId(sourceIds[next++ % sourceIds.length]);
+    }
+
+    private MetadataIndex load() throws Exception {
+        return new MetadataRegistry(ResourceLocation.parse(aggregate.getPath())).getIndex();
+    }
+
+    private Document parse() throws Exception {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(aggregate), 64 * 1024)) {
+            return SharedParserPool.getParserPool().parse(in);
+        }
+    }
+
+    private static XMLObject unmarshall(final Document document) throws Exception {
+        Element root = document.getDocumentElement();
+        return XMLObjectProviderRegistrySupport.getUnmarshallerFactory().getUnmarshaller(root).unmarshall(root);
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Writes an aggregate where every fourth entity is an IDP and the rest are SPs, using the certificates of the
+     * project's own metadata.
+     */
+    static void writeAggregate(final File file, final int entities) throws Exception {
+        String metadata;
+        try (InputStream in = MetadataBenchmark.class.getClassLoader().getResourceAsStream("metadata.xml")) {
+            metadata = new String(readAll(in), StandardCharsets.UTF_8);
+        }
+        List<String> certificates = new ArrayList<String>();
+        Matcher matcher = CERTIFICATE.matcher(metadata);
+        while (matcher.find()) {
+            certificates.add(matcher.group(1).replaceAll("\\s+", ""));
+        }
+
+        try (Writer out = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+            out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<md:EntitiesDescriptor "
+                    + "xmlns:md=\"urn:oasis:names:tc:SAML:2.0:metadata\" xmlns:ds=\"http://www.w3.org/2000/09/xmldsig#\" "
+                    + "xmlns:mdui=\"urn:oasis:names:tc:SAML:metadata:ui\" Name=\"generated\">\n");
+            for (int i = 0; i < entities; i++) {
+                boolean identityProvider = i % 4 == 0;
+                String host = "https://" + (identityProvider ? "idp" : "sp") + i + ".example.org";
+                String certificate = certificates.get(i % certificates.size());
+                out.write("<md:EntityDescriptor entityID=\"" + host + "/saml\">\n");
+                out.write(identityProvider
+                        ? "<md:IDPSSODescriptor protocolSupportEnumeration=\"urn:oasis:names:tc:SAML:2.0:protocol\">\n"
+                        : "<md:SPSSODescriptor protocolSupportEnumeration=\"urn:oasis:names:tc:SAML:2.0:protocol\">\n");
+                writeUiInfo(out, i);
+                writeKeyDescriptor(out, "signing", certificate);
+                writeKeyDescriptor(out, "encryption", certificate);
+                if (identityProvider) {
+                    out.write("<md:ArtifactResolutionService Binding=\"urn:oasis:names:tc:SAML:2.0:bindings:SOAP\" Location=\""
+                            + host + "/saml/artifact\" index=\"0\"/>\n");
+                    out.write("<md:SingleSignOnService Binding=\"urn:oasis:names:tc:SAML:2.0:bindings:HTTP-Redirect\" Location=\""
+                            + host + "/saml/sso/redirect\"/>\n");
+                    out.write("<md:SingleSignOnService Binding=\"urn:oasis:names:tc:SAML:2.0:bindings:HTTP-POST\" Location=\""
+                            + host + "/saml/sso/post\"/>\n");
+                    out.write("</md:IDPSSODescriptor>\n");
+                } else {
+                    out.write("<md:AssertionConsumerService Binding=\"urn:oasis:names:tc:SAML:2.0:bindings:HTTP-POST\" Location=\""
+                            + host + "/saml/acs/post\" index=\"0\" isDefault=\"true\"/>\n");
+                    out.write("<md:AssertionConsumerService Binding=\"urn:oasis:names:tc:SAML:2.0:bindings:HTTP-Artifact\" Location=\""
+                            + host + "/saml/acs/artifact\" index=\"1\"/>\n");
+                    out.write("</md:SPSSODescriptor>\n");
+                }
+                out.write("<md:Organization><md:OrganizationName xml:lang=\"en\">Organization " + i
+                        + "</md:OrganizationName><md:OrganizationDisplayName xml:lang=\"en\">Organization " + i
+                        + "</md:OrganizationDisplayName><md:OrganizationURL xml:lang=\"en\">" + host
+                        + "</md:OrganizationURL></md:Organization>\n");
+                out.write("<md:ContactPerson contactType=\"technical\"><md:GivenName>Operations</md:GivenName>"
+                        + "<md:EmailAddress>mailto:operations@" + host.substring(8) + "</md:EmailAddress></md:ContactPerson>\n");
+                out.write("</md:EntityDescriptor>\n");
+            }
+            out.write("</md:EntitiesDescriptor>\n");
+        }
+    }
+
+    private static void writeUiInfo(final Writer out, final int i) throws Exception {
+        StringBuilder description = new StringBuilder();
+        for (int j = 0; j < 12; j++) {
+            description.append("Service ").append(i).append(" lets members of the federation sign in with their home account. ");
+        }
+        out.write("<md:Extensions><mdui:UIInfo>");
+        for (String language : new String[]{"en", "nb", "de"}) {
+            out.write("<mdui:DisplayName xml:lang=\"" + language + "\">Service " + i + "</mdui:DisplayName>"
+                    + "<mdui:Description xml:lang=\"" + language + "\">" + description + "</mdui:Description>");
+        }
+        byte[] logo = new byte[600];
+        for (int j = 0; j < logo.length; j++) {
+            logo[j] = (byte)(i + j);
+        }
+        out.write("<mdui:Logo height=\"16\" width=\"16\">data:image/png;base64," + Base64.getEncoder().encodeToString(logo)
+                + "</mdui:Logo></mdui:UIInfo></md:Extensions>\n");
+    }
+
+    private static void writeKeyDescriptor(final Writer out, final String use, final String certificate) throws Exception {
+        out.write("<md:KeyDescriptor use=\"" + use + "\"><ds:KeyInfo><ds:X509Data><ds:X509Certificate>");
+        for (int i = 0; i < certificate.length(); i += 64) {
+            out.write('\n');
+            out.write(certificate, i, Math.min(64, certificate.length() - i));
+        }
+        out.write("\n</ds:X509Certificate></ds:X509Data></ds:KeyInfo></md:KeyDescriptor>\n");
+    }
+
+    private static byte[] readAll(final InputStream in) throws Exception {
+        java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,27 @@
+package no.steras.opensamlbook.metrics;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost of timing one stage, two clock reads and a histogram record, with all threads recording the same stage.
+ * A login times about a dozen stages, compare with the time per operation of the hot path benchmarks to get the
+ * overhead. Run with <code>-jvmArgsAppend -Dopensamlbook.metrics.enabled=false</code> for the cost when timing is off.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class StageBenchmark {
+
+    @Benchmark
+    public long startEnd() {
+        return Stage.ASSERTION_BUILD.end(Stage.ASSERTION_BUILD.start());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long startEndContended() {
+        return Stage.ASSERTION_BUILD.end(Stage.ASSERTION_BUILD.start());
+    }
+}
@@ -0,0 +1,82 @@
+package no.steras.opensamlbook.signing;
+
+import no.steras.opensamlbook.OpenSAMLUtils;
+import org.opensaml.core.config.InitializationService;
+import org.opensaml.saml.saml2.core.Assertion;
+import org.opensaml.security.credential.BasicCredential;
+import org.opensaml.security.credential.Credential;
+import org.opensaml.xmlsec.signature.support.SignatureValidator;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.Provider;
+import java.security.Signature;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Signs and verifies per second for each signing algorithm, both as raw JCA operations and as enveloped XML signatures
+ * over a small assertion. Run with <code>-t 1</code> for per-core numbers. The JCA provider is picked up from
+ * <code>-Dopensamlbook.signing.provider</code> like in the application.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+public class SignatureBenchmark {
+    private static final byte[] DATA = "<saml2:Assertion>signed info sized payload</saml2:Assertion>".getBytes(StandardCharsets.UTF_8);
+
+    @Param({"RSA_SHA1", "RSA_SHA256", "RSA_SHA512", "RSA_PSS_SHA256", "ECDSA_P256_SHA256", "ECDSA_P384_SHA384"})
+    public SigningAlgorithm algorithm;
+
+    private SigningConfiguration configuration;
+    private Credential credential;
+    private Signature signer;
+    private Signature verifier;
+    private byte[] rawSignature;
+    private Assertion signedAssertion;
+
+    @Setup
+    public void setUp() throws Exception {
+        InitializationService.initialize();
+        configuration = new SigningConfiguration(algorithm);
+        Provider provider = SigningConfiguration.getProvider();
+
+        KeyPair keyPair = algorithm.getKeyType().generateKeyPair(provider);
+        credential = new BasicCredential(keyPair.getPublic(), keyPair.getPrivate());
+
+        signer = provider == null ? Signature.getInstance(algorithm.getJcaName()) : Signature.getInstance(algorithm.getJcaName(), provider);
+        signer.initSign(keyPair.getPrivate());
+        verifier = provider == null ? Signature.getInstance(algorithm.getJcaName()) : Signature.getInstance(algorithm.getJcaName(), provider);
+        verifier.initVerify(keyPair.getPublic());
+        rawSignature = rawSign();
+
+        signedAssertion = xmlSign();
+    }
+
+    @Benchmark
+    public byte[] rawSign() throws Exception {
+        signer.update(DATA);
+        return signer.sign();
+    }
+
+    @Benchmark
+    public boolean rawVerify() throws Exception {
+        verifier.update(DATA);
+        return verifier.verify(rawSignature);
+    }
+
+    @Benchmark
+    public Assertion xmlSign() {
+        Assertion assertion = OpenSAMLUtils.buildSAMLObject(Assertion.class);
+        assertion.setID("_a75adf55-01d7-40cc-929f-dbd8372ebdfc");
+        assertion.setIssuer(OpenSAMLUtils.buildIssuer("TestIDP"));
+        SAMLSigner.sign(assertion, credential, configuration);
+        return assertion;
+    }
+
+    @Benchmark
+    public Assertion xmlVerify() throws Exception {
+        SignatureValidator.validate(signedAssertion.getSignature(), credential);
+        return signedAssertion;
+    }
+}
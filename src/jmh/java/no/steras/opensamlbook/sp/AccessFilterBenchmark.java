@@ -0,0 +1,39 @@
+package no.steras.opensamlbook.sp;
+
+import no.steras.opensamlbook.ServletMocks;
+import no.steras.opensamlbook.bootstrap.OpenSAMLBootstrap;
+import org.openjdk.jmh.annotations.*;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An unauthenticated request through AccessFilter: building the AuthnRequest and encoding it into the redirect to
+ * the IDP with the HTTP-Redirect binding.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+public class AccessFilterBenchmark {
+    private AccessFilter filter;
+    private HttpServletRequest request;
+    private ServletMocks.RecordingResponse response;
+
+    @Setup
+    public void setUp() throws Exception {
+        filter = new AccessFilter();
+        OpenSAMLBootstrap.initialize();
+        filter.init(null);
+        request = ServletMocks.request("http://localhost:8080/webprofile-ref-project/app/appservlet", null,
+                ServletMocks.session(new HashMap<String, Object>()), Collections.<String, String>emptyMap(), null);
+        response = ServletMocks.response();
+    }
+
+    @Benchmark
+    public String redirectToIDP() throws Exception {
+        filter.doFilter(request, response.get(), null);
+        return response.getLocation();
+    }
+}
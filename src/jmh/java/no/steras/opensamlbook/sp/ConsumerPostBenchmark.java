@@ -0,0 +1,69 @@
+package no.steras.opensamlbook.sp;
+
+import no.steras.opensamlbook.ServletMocks;
+import no.steras.opensamlbook.idp.DemoResponses;
+import no.steras.opensamlbook.metadata.MetadataRegistry;
+import no.steras.opensamlbook.xml.SAMLSerializer;
+import no.steras.opensamlbook.xml.SharedParserPool;
+import org.opensaml.core.config.InitializationService;
+import org.opensaml.core.xml.config.XMLObjectProviderRegistrySupport;
+import org.openjdk.jmh.annotations.*;
+
+import javax.servlet.http.HttpSession;
+import java.io.ByteArrayOutputStream;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ConsumerServlet.doPost over a mock request: decoding and parsing the POST binding form, signature verification,
+ * the replay check and starting the session.
+ *
+ * The replay cache rejects a response that has been consumed before, so every call gets a new signed response. Building
+ * it is left out of the measurement with a per invocation setup. Its timing overhead is small next to the signature
+ * verification in every call.
+ *
+ * Async processing is turned off, the mock request can not be processed asynchronously and the benchmark measures the
+ * processing itself on the calling thread.
+ */
+@BenchmarkMode(Mode.Throughput)
+@Fork(jvmArgsAppend = "-Dopensamlbook.async.enabled=false")
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+public class ConsumerPostBenchmark {
+    private ConsumerServlet servlet;
+    private HttpSession session;
+    private String assertionConsumerService;
+    private byte[] body;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        InitializationService.initialize();
+        XMLObjectProviderRegistrySupport.setParserPool(SharedParserPool.getParserPool());
+
+        servlet = new ConsumerServlet();
+        Map<String, Object> attributes = new HashMap<String, Object>();
+        attributes.put(SPConstants.GOTO_URL_SESSION_ATTRIBUTE, "http://localhost:8080/webprofile-ref-project/app/appservlet");
+        session = ServletMocks.session(attributes);
+        assertionConsumerService = MetadataRegistry.getSharedRegistry().getIndex().requireEntity(SPConstants.SP_ENTITY_ID)
+                .getAssertionConsumerService();
+    }
+
+    @Setup(Level.Invocation)
+    public void newResponse() throws Exception {
+        ByteArrayOutputStream base64 = new ByteArrayOutputStream(8192);
+        SAMLSerializer.writeBase64(DemoResponses.build(), base64);
+        body = ("SAMLResponse=" + URLEncoder.encode(base64.toString("US-ASCII"), "UTF-8")).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Benchmark
+    public String doPost() throws Exception {
+        ServletMocks.RecordingResponse response = ServletMocks.response();
+        servlet.doPost(ServletMocks.request(assertionConsumerService, body, session,
+                Collections.<String, String>emptyMap(), null), response.get());
+        return response.getLocation();
+    }
+}
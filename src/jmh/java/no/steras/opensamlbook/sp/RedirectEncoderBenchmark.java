@@ -0,0 +1,134 @@
+package no.steras.opensamlbook.sp;
+
+import no.steras.opensamlbook.ServletMocks;
+import no.steras.opensamlbook.bootstrap.OpenSAMLBootstrap;
+import no.steras.opensamlbook.signing.SigningAlgorithm;
+import org.opensaml.messaging.context.MessageContext;
+import org.opensaml.saml.common.SAMLObject;
+import org.opensaml.saml.common.binding.SAMLBindingSupport;
+import org.opensaml.saml.common.messaging.context.SAMLPeerEntityContext;
+import org.opensaml.saml.saml2.binding.encoding.impl.HTTPRedirectDeflateEncoder;
+import org.opensaml.saml.saml2.core.AuthnRequest;
+import org.opensaml.security.credential.Credential;
+import org.opensaml.xmlsec.SignatureSigningParameters;
+import org.opensaml.xmlsec.context.SecurityParametersContext;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.Signature;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Inflater;
+
+/**
+ * Encoding an AuthnRequest into the HTTP-Redirect URL with a new OpenSAML HTTPRedirectDeflateEncoder, as the access
+ * filter used to, and with the pooled {@link RedirectEncoder}, with and without signing the query string with
+ * RSA_SHA256. Run with <code>-prof gc</code> to compare the allocation per redirect.
+ *
+ * The setup checks that both URLs carry the same AuthnRequest and RelayState and that the pooled encoder's signature
+ * verifies with the SP's public key.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class RedirectEncoderBenchmark {
+    private static final String RELAY_STATE = "appservlet";
+    private static final SigningAlgorithm ALGORITHM = SigningAlgorithm.RSA_SHA256;
+
+    @Param({"false", "true"})
+    public boolean signed;
+
+    private AuthnRequestTemplate template;
+    private AuthnRequest authnRequest;
+    private Credential credential;
+    private RedirectEncoder encoder;
+    private ServletMocks.RecordingResponse response;
+
+    @Setup
+    public void setUp() throws Exception {
+        OpenSAMLBootstrap.initialize();
+        template = new AuthnRequestTemplate("http://localhost:8080/webprofile-ref-project/idp/singleSignOnService",
+                SPConstants.SP_ENTITY_ID, "http://localhost:8080/webprofile-ref-project/sp/consumer");
+        authnRequest = template.newAuthnRequest();
+        credential = signed ? SPCredentials.getCredential(ALGORITHM.getKeyType()) : null;
+        encoder = new RedirectEncoder(1);
+        response = ServletMocks.response();
+
+        String openSAML = openSAML();
+        String pooled = pooled();
+        if (!inflate(parameter(openSAML, "SAMLRequest")).equals(inflate(parameter(pooled, "SAMLRequest")))
+                || !RELAY_STATE.equals(parameter(pooled, "RelayState"))) {
+            throw new IllegalStateException("Encoders differ:\n" + openSAML + "\n" + pooled);
+        }
+        if (signed) {
+            String query = pooled.substring(pooled.indexOf('?') + 1, pooled.indexOf("&Signature="));
+            Signature verifier = Signature.getInstance(ALGORITHM.getJcaName());
+            verifier.initVerify(credential.getPublicKey());
+            verifier.update(query.getBytes(StandardCharsets.US_ASCII));
+            if (!verifier.verify(Base64.getDecoder().decode(parameter(pooled, "Signature")))
+                    || !ALGORITHM.getSignatureURI().equals(parameter(pooled, "SigAlg"))) {
+                throw new IllegalStateException("Query string signature does not verify: " + pooled);
+            }
+        }
+    }
+
+    private static String parameter(final String url, final String name) throws Exception {
+        for (String pair : url.substring(url.indexOf('?') + 1).split("&")) {
+            if (pair.startsWith(name + "=")) {
+                return URLDecoder.decode(pair.substring(name.length() + 1), "UTF-8");
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The XML declaration is left out, OpenSAML does not write one.
+     */
+    private static String inflate(final String encoded) throws Exception {
+        Inflater inflater = new Inflater(true);
+        inflater.setInput(Base64.getDecoder().decode(encoded));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        while (!inflater.finished()) {
+            out.write(buffer, 0, inflater.inflate(buffer));
+        }
+        inflater.end();
+        String xml = new String(out.toByteArray(), StandardCharsets.UTF_8);
+        return xml.startsWith("<?xml") ? xml.substring(xml.indexOf("?>") + 2) : xml;
+    }
+
+    @Benchmark
+    public String openSAML() throws Exception {
+        MessageContext<SAMLObject> messageContext = template.newMessageContext(authnRequest);
+        SAMLBindingSupport.setRelayState(messageContext, RELAY_STATE);
+        if (signed) {
+            SignatureSigningParameters parameters = new SignatureSigningParameters();
+            parameters.setSigningCredential(credential);
+            parameters.setSignatureAlgorithm(ALGORITHM.getSignatureURI());
+            messageContext.getSubcontext(SecurityParametersContext.class, true).setSignatureSigningParameters(parameters);
+        }
+        HTTPRedirectDeflateEncoder httpRedirectDeflateEncoder = new HTTPRedirectDeflateEncoder();
+        httpRedirectDeflateEncoder.setMessageContext(messageContext);
+        httpRedirectDeflateEncoder.setHttpServletResponse(response.get());
+        httpRedirectDeflateEncoder.initialize();
+        httpRedirectDeflateEncoder.encode();
+        return response.getLocation();
+    }
+
+    @Benchmark
+    public String pooled() throws Exception {
+        return encoder.encode(authnRequest, template.getIDPEndpoint().getLocation(), RELAY_STATE, credential, ALGORITHM);
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.out.printf("%n%d redirects, %d deflaters created, %.0f bytes of XML, %.0f deflated, %.0f in the URL%n",
+                encoder.getEncoded(), encoder.getDeflatersCreated(),
+                (double)encoder.getXmlBytes() / encoder.getEncoded(),
+                (double)encoder.getDeflatedBytes() / encoder.getEncoded(),
+                (double)encoder.getUrlBytes() / encoder.getEncoded());
+        encoder.close();
+    }
+}
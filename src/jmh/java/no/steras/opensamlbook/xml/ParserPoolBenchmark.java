@@ -0,0 +1,66 @@
+package no.steras.opensamlbook.xml;
+
+import net.shibboleth.utilities.java.support.xml.BasicParserPool;
+import org.openjdk.jmh.annotations.*;
+import org.w3c.dom.Document;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares a new BasicParserPool per message, as the servlets used to do, with the shared instrumented pool.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class ParserPoolBenchmark {
+    private static final byte[] SOAP_MESSAGE = ("<soap11:Envelope xmlns:soap11=\"http://schemas.xmlsoap.org/soap/envelope/\">"
+            + "<soap11:Body><saml2p:ArtifactResolve xmlns:saml2p=\"urn:oasis:names:tc:SAML:2.0:protocol\""
+            + " Destination=\"http://localhost:8080/webprofile-ref-project/idp/artifactResolutionService\""
+            + " ID=\"_0b3b7f0d2c9a4e0f8d1c3a5b6e7f8091\" IssueInstant=\"2014-04-06T10:00:00.000Z\" Version=\"2.0\">"
+            + "<saml2:Issuer xmlns:saml2=\"urn:oasis:names:tc:SAML:2.0:assertion\">TestSP</saml2:Issuer>"
+            + "<saml2p:Artifact>AAQAAMFbLinlXaCM+FIxiDwGOLAy2T71gbpO7ZhNzAgEANlB90ECfpNEVLg=</saml2p:Artifact>"
+            + "</saml2p:ArtifactResolve></soap11:Body></soap11:Envelope>").getBytes(StandardCharsets.UTF_8);
+
+    @Param({"false", "true"})
+    public boolean perThreadBuilders;
+
+    private InstrumentedParserPool sharedPool;
+
+    @Setup
+    public void setUp() throws Exception {
+        sharedPool = new InstrumentedParserPool(50, perThreadBuilders);
+        sharedPool.initialize();
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.out.println(sharedPool);
+    }
+
+    @Benchmark
+    public Document perCallPool() throws Exception {
+        BasicParserPool ppMgr = new BasicParserPool();
+        ppMgr.setNamespaceAware(true);
+        ppMgr.initialize();
+        return ppMgr.parse(new ByteArrayInputStream(SOAP_MESSAGE));
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Document perCallPoolContended() throws Exception {
+        return perCallPool();
+    }
+
+    @Benchmark
+    public Document sharedPool() throws Exception {
+        return sharedPool.parse(new ByteArrayInputStream(SOAP_MESSAGE));
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Document sharedPoolContended() throws Exception {
+        return sharedPool();
+    }
+}
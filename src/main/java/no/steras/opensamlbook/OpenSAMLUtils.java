@@ -1,87 +1,122 @@
 package no.steras.opensamlbook;
 
-import net.shibboleth.utilities.java.support.security.SecureRandomIdentifierGenerationStrategy;
+import no.steras.opensamlbook.xml.SAMLSerializer;
 import org.opensaml.core.xml.XMLObject;
-import org.opensaml.core.xml.XMLObjectBuilderFactory;
+import org.opensaml.core.xml.XMLObjectBuilder;
 import org.opensaml.core.xml.config.XMLObjectProviderRegistrySupport;
-import org.opensaml.core.xml.io.Marshaller;
 import org.opensaml.core.xml.io.MarshallingException;
-import org.opensaml.saml.common.SignableSAMLObject;
+import org.opensaml.core.xml.schema.XSString;
+import org.opensaml.core.xml.schema.impl.XSStringBuilder;
+import org.opensaml.saml.saml2.core.Attribute;
+import org.opensaml.saml.saml2.core.AttributeValue;
+import org.opensaml.saml.saml2.core.Issuer;
+import org.opensaml.saml.saml2.core.Status;
+import org.opensaml.saml.saml2.core.StatusCode;
 import org.opensaml.soap.soap11.Body;
 import org.opensaml.soap.soap11.Envelope;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.w3c.dom.Element;
 
 import javax.xml.namespace.QName;
-import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
-import java.io.StringWriter;
 
 /**
  * Created by Privat on 4/6/14.
  */
 public class OpenSAMLUtils {
     private static Logger logger = LoggerFactory.getLogger(OpenSAMLUtils.class);
-    private static SecureRandomIdentifierGenerationStrategy secureRandomIdGenerator;
 
-    static {
-        secureRandomIdGenerator = new SecureRandomIdentifierGenerationStrategy();
-    }
+    /**
+     * Element name and builder for each SAML object class, resolved with reflection only the first time a class is built.
+     */
+    private static final ClassValue<CachedBuilder> builders = new ClassValue<CachedBuilder>() {
+        @Override
+        protected CachedBuilder computeValue(final Class<?> clazz) {
+            try {
+                QName defaultElementName = (QName)clazz.getDeclaredField("DEFAULT_ELEMENT_NAME").get(null);
+                XMLObjectBuilder<?> builder = XMLObjectProviderRegistrySupport.getBuilderFactory().getBuilder(defaultElementName);
+                if (builder == null) {
+                    // Not cached, OpenSAML may not have been bootstrapped yet
+                    throw new IllegalArgumentException("No builder registered for " + defaultElementName);
+                }
+                return new CachedBuilder(defaultElementName, builder);
+            } catch (IllegalAccessException e) {
+                throw new IllegalArgumentException("Could not create SAML object");
+            } catch (NoSuchFieldException e) {
+                throw new IllegalArgumentException("Could not create SAML object");
+            }
+        }
+    };
 
     public static <T extends XMLObject> T buildSAMLObject(final Class<T> clazz) {
-        T object = null;
-        try {
-            XMLObjectBuilderFactory builderFactory = XMLObjectProviderRegistrySupport.getBuilderFactory();
-            QName defaultElementName = (QName)clazz.getDeclaredField("DEFAULT_ELEMENT_NAME").get(null);
-            object = (T)builderFactory.getBuilder(defaultElementName).buildObject(defaultElementName);
-        } catch (IllegalAccessException e) {
-            throw new IllegalArgumentException("Could not create SAML object");
-        } catch (NoSuchFieldException e) {
-            throw new IllegalArgumentException("Could not create SAML object");
-        }
+        CachedBuilder cachedBuilder = builders.get(clazz);
+        return clazz.cast(cachedBuilder.builder.buildObject(cachedBuilder.elementName));
+    }
 
-        return object;
+    public static Issuer buildIssuer(final String value) {
+        Issuer issuer = buildSAMLObject(Issuer.class);
+        issuer.setValue(value);
+        return issuer;
     }
 
-    public static String generateSecureRandomId() {
-        return secureRandomIdGenerator.generateIdentifier();
+    public static Status buildStatus(final String statusCodeValue) {
+        Status status = buildSAMLObject(Status.class);
+        StatusCode statusCode = buildSAMLObject(StatusCode.class);
+        statusCode.setValue(statusCodeValue);
+        status.setStatusCode(statusCode);
+        return status;
     }
 
-    public static String encodeSAMLObject(final XMLObject object) throws MarshallingException, TransformerException {
-        Element element = null;
-
-        if (object instanceof SignableSAMLObject && ((SignableSAMLObject)object).isSigned() && object.getDOM() != null) {
-            element = object.getDOM();
-        } else {
-            Marshaller out = XMLObjectProviderRegistrySupport.getMarshallerFactory().getMarshaller(object);
-            out.marshall(object);
-            element = object.getDOM();
-        }
+    public static XSString buildStringAttributeValue(final String value) {
+        XSString attributeValue = XSStringBuilderHolder.builder.buildObject(AttributeValue.DEFAULT_ELEMENT_NAME, XSString.TYPE_NAME);
+        attributeValue.setValue(value);
+        return attributeValue;
+    }
 
-        Transformer transformer = TransformerFactory.newInstance().newTransformer();
-        // transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-        StreamResult result = new StreamResult(new StringWriter());
-        DOMSource source = new DOMSource(element);
+    public static Attribute buildAttribute(final String name, final String value) {
+        Attribute attribute = buildSAMLObject(Attribute.class);
+        attribute.setName(name);
+        attribute.getAttributeValues().add(buildStringAttributeValue(value));
+        return attribute;
+    }
 
-        transformer.transform(source, result);
-        String resultString = result.getWriter().toString();
-        logger.info("encoded Saml object to");
-        logger.info(resultString);
-        return resultString;
+    public static String generateSecureRandomId() {
+        return SecureIdGenerator.getSharedGenerator().generateIdentifier();
+    }
+
+    public static String encodeSAMLObject(final XMLObject object) throws MarshallingException, TransformerException {
+        return SAMLSerializer.toString(object);
     }
 
     public static void logSAMLObject(final XMLObject object) {
+        if (!logger.isDebugEnabled()) {
+            return;
+        }
         try {
-            encodeSAMLObject(object);
+            logger.debug(encodeSAMLObject(object));
         } catch (MarshallingException | TransformerException e) {
             e.printStackTrace();
         }
     }
 
+    private static final class CachedBuilder {
+        private final QName elementName;
+        private final XMLObjectBuilder<?> builder;
+
+        private CachedBuilder(final QName elementName, final XMLObjectBuilder<?> builder) {
+            this.elementName = elementName;
+            this.builder = builder;
+        }
+    }
+
+    /**
+     * Looked up on first use so that OpenSAML is bootstrapped by then.
+     */
+    private static final class XSStringBuilderHolder {
+        private static final XSStringBuilder builder =
+                (XSStringBuilder)XMLObjectProviderRegistrySupport.getBuilderFactory().getBuilder(XSString.TYPE_NAME);
+    }
+
     public static Envelope wrapInSOAPEnvelope(final XMLObject xmlObject) {
         Envelope envelope = OpenSAMLUtils.buildSAMLObject(Envelope.class);
         Body body = OpenSAMLUtils.buildSAMLObject(Body.class);
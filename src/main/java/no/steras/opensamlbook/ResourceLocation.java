@@ -0,0 +1,64 @@
+package no.steras.opensamlbook;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+
+/**
+ * A file, either a path on disk or a classpath resource prefixed with <code>classpath:</code>.
+ *
+ * Classpath resources in an exploded war or a directory are files and can be watched like any other file. Resources
+ * inside a jar never change.
+ */
+public class ResourceLocation {
+    private static final String CLASSPATH_PREFIX = "classpath:";
+
+    private final String location;
+    private final File file;
+    private final URL resource;
+
+    private ResourceLocation(final String location, final File file, final URL resource) {
+        this.location = location;
+        this.file = file;
+        this.resource = resource;
+    }
+
+    public static ResourceLocation parse(final String location) throws FileNotFoundException {
+        if (!location.startsWith(CLASSPATH_PREFIX)) {
+            return new ResourceLocation(location, new File(location), null);
+        }
+        String name = location.substring(CLASSPATH_PREFIX.length());
+        URL resource = ResourceLocation.class.getClassLoader().getResource(name);
+        if (resource == null) {
+            throw new FileNotFoundException(location);
+        }
+        if ("file".equals(resource.getProtocol())) {
+            try {
+                return new ResourceLocation(location, new File(resource.toURI()), null);
+            } catch (URISyntaxException e) {
+                throw new FileNotFoundException(location + ": " + e.getMessage());
+            }
+        }
+        return new ResourceLocation(location, null, resource);
+    }
+
+    public InputStream open() throws IOException {
+        return file != null ? new FileInputStream(file) : resource.openStream();
+    }
+
+    /**
+     * @return the modification time and size of the file, or null for a resource in a jar
+     */
+    public String getVersion() {
+        return file != null ? file.lastModified() + ":" + file.length() : null;
+    }
+
+    @Override
+    public String toString() {
+        return location;
+    }
+}
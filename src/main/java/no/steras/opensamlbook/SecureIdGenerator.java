@@ -0,0 +1,164 @@
+package no.steras.opensamlbook;
+
+import net.shibboleth.utilities.java.support.security.IdentifierGenerationStrategy;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Generates the IDs of SAML messages and assertions: an underscore and 16 random bytes in hex, like OpenSAML's
+ * SecureRandomIdentifierGenerationStrategy, without having every thread share one SecureRandom.
+ *
+ * The generator is split into stripes, each with its own SecureRandom seeded from the platform's default
+ * SecureRandom. A thread uses the stripe its ID maps to and moves on to the next one if that is busy. A stripe draws
+ * the random bytes of <code>batchSize</code> IDs at a time and hex encodes them into one char array, so an ID costs
+ * copying 33 chars into a String.
+ *
+ * The shared generator uses <code>opensamlbook.ids.algorithm</code> (default SHA1PRNG, as OpenSAML does),
+ * <code>opensamlbook.ids.stripes</code> (default twice the processors) and <code>opensamlbook.ids.batchSize</code>
+ * (default 64).
+ */
+public class SecureIdGenerator implements IdentifierGenerationStrategy {
+    public static final String PROPERTY_PREFIX = "opensamlbook.ids.";
+    private static final int ID_BYTES = 16;
+    private static final int ID_LENGTH = 1 + 2 * ID_BYTES;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final Stripe[] stripes;
+    private final int mask;
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder collisions = new LongAdder();
+
+    /**
+     * @param stripes rounded up to a power of two
+     */
+    public SecureIdGenerator(final String algorithm, final int stripes, final int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1");
+        }
+        int count = Integer.highestOneBit(Math.max(1, stripes));
+        if (count < stripes) {
+            count <<= 1;
+        }
+        SecureRandom seeds = new SecureRandom();
+        this.stripes = new Stripe[count];
+        for (int i = 0; i < count; i++) {
+            byte[] seed = new byte[32];
+            seeds.nextBytes(seed);
+            this.stripes[i] = new Stripe(newRandom(algorithm, seed), batchSize);
+        }
+        this.mask = count - 1;
+    }
+
+    private static SecureRandom newRandom(final String algorithm, final byte[] seed) {
+        try {
+            SecureRandom random = SecureRandom.getInstance(algorithm);
+            // Set before the first use so the PRNG does not seed itself from the blocking seed source
+            random.setSeed(seed);
+            return random;
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("Secure random algorithm " + algorithm + " is not supported", e);
+        }
+    }
+
+    public static SecureIdGenerator getSharedGenerator() {
+        return SharedGeneratorHolder.generator;
+    }
+
+    @Override
+    public String generateIdentifier() {
+        int home = (int)Thread.currentThread().getId() & mask;
+        for (int i = 0; i < stripes.length; i++) {
+            Stripe stripe = stripes[(home + i) & mask];
+            if (stripe.lock.tryLock()) {
+                try {
+                    return stripe.next();
+                } finally {
+                    stripe.lock.unlock();
+                }
+            }
+            collisions.increment();
+        }
+        Stripe stripe = stripes[home];
+        stripe.lock.lock();
+        try {
+            return stripe.next();
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    /**
+     * @param xmlSafe whether the ID starts with an underscore, so that it is a valid XML ID
+     */
+    @Override
+    public String generateIdentifier(final boolean xmlSafe) {
+        String id = generateIdentifier();
+        return xmlSafe ? id : id.substring(1);
+    }
+
+    public int getStripes() {
+        return stripes.length;
+    }
+
+    /**
+     * @return the times a stripe drew random bytes for a batch of IDs
+     */
+    public long getBatches() {
+        return batches.sum();
+    }
+
+    /**
+     * @return the times a thread found a stripe busy and tried another
+     */
+    public long getCollisions() {
+        return collisions.sum();
+    }
+
+    private final class Stripe {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final SecureRandom random;
+        private final byte[] bytes;
+        private final char[] ids;
+        private int next;
+
+        private Stripe(final SecureRandom random, final int batchSize) {
+            this.random = random;
+            this.bytes = new byte[batchSize * ID_BYTES];
+            this.ids = new char[batchSize * ID_LENGTH];
+            this.next = ids.length;
+        }
+
+        private String next() {
+            if (next == ids.length) {
+                refill();
+            }
+            String id = new String(ids, next, ID_LENGTH);
+            next += ID_LENGTH;
+            return id;
+        }
+
+        private void refill() {
+            random.nextBytes(bytes);
+            int c = 0;
+            for (int i = 0; i < bytes.length; i++) {
+                if (i % ID_BYTES == 0) {
+                    ids[c++] = '_';
+                }
+                ids[c++] = HEX_DIGITS[(bytes[i] >> 4) & 0x0f];
+                ids[c++] = HEX_DIGITS[bytes[i] & 0x0f];
+            }
+            next = 0;
+            batches.increment();
+        }
+    }
+
+    private static final class SharedGeneratorHolder {
+        private static final SecureIdGenerator generator = new SecureIdGenerator(
+                System.getProperty(PROPERTY_PREFIX + "algorithm", "SHA1PRNG"),
+                Integer.getInteger(PROPERTY_PREFIX + "stripes", 2 * Runtime.getRuntime().availableProcessors()),
+                Integer.getInteger(PROPERTY_PREFIX + "batchSize", 64));
+    }
+}
@@ -0,0 +1,227 @@
+package no.steras.opensamlbook.async;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The thread pools asynchronous logins run on, so container threads are not held while a login is processed.
+ *
+ * Parsing, signing, encryption and verification run on a pool with one thread per processor, more threads would only
+ * compete for the processors. Request bodies are read with blocking reads on a pool of their own, so clients that send
+ * their bodies slowly hold body reader threads and not the processors' threads. Back channel calls block a thread until the peer answers, so they run on a separate,
+ * larger pool and do not keep the processors' threads from working. With <code>virtualThreads</code> on a JVM that
+ * has them (Java 21) every back channel call gets a virtual thread instead, so a slow IDP parks cheap threads rather
+ * than using up the pool; on older JVMs the platform thread pool is used. The project is built for Java 8, so virtual
+ * threads are looked up at runtime.
+ *
+ * The calls to one IDP are limited to <code>maxCallsPerPeer</code> at once, calls over the limit wait in a queue
+ * without holding a thread. A slow IDP can then not take all back channel threads, or connections, from the others.
+ * The queues are not bounded otherwise, the number of logins in progress is bounded by {@link AsyncProcessor} before
+ * any work is queued.
+ *
+ * Configured with the system properties below, prefixed with <code>opensamlbook.async.</code>:
+ * <ul>
+ *     <li>enabled - false runs logins on the container thread as before (default true)</li>
+ *     <li>workerThreads - threads for processing (default the number of processors)</li>
+ *     <li>bodyReaderThreads - threads reading request bodies (default 50)</li>
+ *     <li>backChannelThreads - platform threads waiting for back channel calls (default 50, the back channel
+ *     client's connections per IDP)</li>
+ *     <li>virtualThreads - run back channel calls on virtual threads if the JVM has them (default false)</li>
+ *     <li>maxCallsPerPeer - back channel calls to one IDP at once (default 50)</li>
+ * </ul>
+ */
+public class AsyncExecutors {
+    private static Logger logger = LoggerFactory.getLogger(AsyncExecutors.class);
+    public static final String PROPERTY_PREFIX = "opensamlbook.async.";
+    private static final boolean enabled = Boolean.parseBoolean(System.getProperty(PROPERTY_PREFIX + "enabled", "true"));
+    private static final int MAX_CALLS_PER_PEER = Integer.getInteger(PROPERTY_PREFIX + "maxCallsPerPeer", 50);
+    private static final Executor DIRECT = Runnable::run;
+
+    private static final ConcurrentMap<String, BoundedExecutor> peerExecutors = new ConcurrentHashMap<String, BoundedExecutor>();
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return the executor for processing, or one running tasks on the calling thread if async processing is off
+     */
+    public static Executor worker() {
+        return enabled ? SharedExecutorsHolder.worker : DIRECT;
+    }
+
+    /**
+     * @return the executor for reading request bodies, or one running tasks on the calling thread if async processing
+     * is off
+     */
+    public static Executor bodyReader() {
+        return enabled ? SharedExecutorsHolder.bodyReader : DIRECT;
+    }
+
+    /**
+     * @return the executor for back channel calls to the peer, or one running tasks on the calling thread if async
+     * processing is off
+     */
+    public static Executor backChannel(final String peerEntityId) {
+        if (!enabled) {
+            return DIRECT;
+        }
+        BoundedExecutor executor = peerExecutors.get(peerEntityId);
+        if (executor == null) {
+            executor = new BoundedExecutor(SharedExecutorsHolder.backChannel, MAX_CALLS_PER_PEER);
+            BoundedExecutor existing = peerExecutors.putIfAbsent(peerEntityId, executor);
+            if (existing != null) {
+                executor = existing;
+            }
+        }
+        return executor;
+    }
+
+    /**
+     * Fails the future with a TimeoutException if it is not done in time, like Java 9's CompletableFuture.orTimeout.
+     * The work the future waits for is not interrupted, its result is ignored when it arrives late.
+     *
+     * @return the future
+     */
+    public static <T> CompletableFuture<T> orTimeout(final CompletableFuture<T> future, final long timeoutMillis) {
+        if (future.isDone()) {
+            return future;
+        }
+        ScheduledFuture<?> timeout = TimerHolder.timer.schedule(
+                () -> future.completeExceptionally(new TimeoutException("Not done after " + timeoutMillis + " ms")),
+                timeoutMillis, TimeUnit.MILLISECONDS);
+        future.whenComplete((result, failure) -> timeout.cancel(false));
+        return future;
+    }
+
+    /**
+     * Stops the pools when the application stops. Running tasks finish, new ones are refused, and pending timeouts are
+     * dropped.
+     */
+    public static void shutdown() {
+        SharedExecutorsHolder.worker.shutdown();
+        SharedExecutorsHolder.bodyReader.shutdown();
+        SharedExecutorsHolder.backChannelPool.shutdown();
+        if (SharedExecutorsHolder.backChannel instanceof ExecutorService) {
+            ((ExecutorService)SharedExecutorsHolder.backChannel).shutdown();
+        }
+        TimerHolder.timer.shutdownNow();
+    }
+
+    public static ThreadPoolExecutor getWorkerPool() {
+        return SharedExecutorsHolder.worker;
+    }
+
+    public static ThreadPoolExecutor getBodyReaderPool() {
+        return SharedExecutorsHolder.bodyReader;
+    }
+
+    /**
+     * @return the platform thread pool for back channel calls, idle when they run on virtual threads
+     */
+    public static ThreadPoolExecutor getBackChannelPool() {
+        return SharedExecutorsHolder.backChannelPool;
+    }
+
+    /**
+     * @return true if back channel calls run on virtual threads
+     */
+    public static boolean isBackChannelVirtual() {
+        return SharedExecutorsHolder.backChannel != SharedExecutorsHolder.backChannelPool;
+    }
+
+    /**
+     * @return the back channel executors by peer entity ID
+     */
+    public static Map<String, BoundedExecutor> getPeerExecutors() {
+        return Collections.unmodifiableMap(peerExecutors);
+    }
+
+    private static ThreadPoolExecutor newPool(final String name, final int threads) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * @return an executor starting a virtual thread per task, or null if the JVM has no virtual threads
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException e) {
+            return null;
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            // Java 19 and 20 only have virtual threads as a preview feature
+            logger.warn("Could not create virtual threads", e);
+            return null;
+        }
+    }
+
+    private static final class TimerHolder {
+        private static final ScheduledThreadPoolExecutor timer = createTimer();
+
+        private static ScheduledThreadPoolExecutor createTimer() {
+            ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+                Thread thread = new Thread(runnable, "async-timeout");
+                thread.setDaemon(true);
+                return thread;
+            });
+            // Most futures complete in time, their cancelled timeouts should not pile up in the queue
+            timer.setRemoveOnCancelPolicy(true);
+            return timer;
+        }
+    }
+
+    private static final class SharedExecutorsHolder {
+        private static final ThreadPoolExecutor worker = newPool("saml-worker",
+                Integer.getInteger(PROPERTY_PREFIX + "workerThreads", Runtime.getRuntime().availableProcessors()));
+        private static final ThreadPoolExecutor bodyReader = newPool("body-reader",
+                Integer.getInteger(PROPERTY_PREFIX + "bodyReaderThreads", 50));
+        private static final ThreadPoolExecutor backChannelPool = newPool("back-channel",
+                Integer.getInteger(PROPERTY_PREFIX + "backChannelThreads", 50));
+        private static final Executor backChannel = createBackChannel();
+
+        private static Executor createBackChannel() {
+            if (!Boolean.getBoolean(PROPERTY_PREFIX + "virtualThreads")) {
+                return backChannelPool;
+            }
+            ExecutorService virtual = newVirtualThreadExecutor();
+            if (virtual == null) {
+                logger.warn("Virtual threads need Java 21, back channel calls run on {} platform threads",
+                        backChannelPool.getMaximumPoolSize());
+                return backChannelPool;
+            }
+            logger.info("Back channel calls run on virtual threads");
+            return virtual;
+        }
+    }
+}
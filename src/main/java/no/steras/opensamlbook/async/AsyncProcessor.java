@@ -0,0 +1,270 @@
+package no.steras.opensamlbook.async;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Processes a servlet's requests without holding a container thread, using Servlet 3 asynchronous processing.
+ *
+ * The container thread only starts the request, the processing runs on the {@link AsyncExecutors}. The request body is
+ * streamed to the processing, which reads it with blocking reads on a body reader thread, so a body is never held in
+ * memory and a slow client does not hold a worker thread. The processing hands the rest of its work to the workers once
+ * the body is read. When async processing is off the request is processed on the container thread.
+ *
+ * At most <code>opensamlbook.async.maxInFlight</code> (default 1024) requests of each processor are in progress at
+ * once, more are refused with 503 before any work is queued. A request that is not done after
+ * <code>opensamlbook.async.timeoutMillis</code> (default 30000) is answered with 503. Processing still running for it
+ * is not interrupted: what it writes to the response afterwards is dropped, and it counts as in progress until it
+ * finishes.
+ */
+public class AsyncProcessor {
+    private static Logger logger = LoggerFactory.getLogger(AsyncProcessor.class);
+    private static final int MAX_IN_FLIGHT = Integer.getInteger(AsyncExecutors.PROPERTY_PREFIX + "maxInFlight", 1024);
+    private static final long TIMEOUT_MILLIS = Long.getLong(AsyncExecutors.PROPERTY_PREFIX + "timeoutMillis", 30000);
+    private static final List<AsyncProcessor> processors = new CopyOnWriteArrayList<AsyncProcessor>();
+
+    private final String name;
+    private final Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+
+    private AsyncProcessor(final String name) {
+        this.name = name;
+    }
+
+    /**
+     * Creates a processor that is published in the metrics under the name.
+     */
+    public static AsyncProcessor create(final String name) {
+        AsyncProcessor processor = new AsyncProcessor(name);
+        processors.add(processor);
+        return processor;
+    }
+
+    public static List<AsyncProcessor> getProcessors() {
+        return processors;
+    }
+
+    /**
+     * Processes a request. The processing is started on a body reader thread if it reads the body and on a worker
+     * thread if not, or on the calling thread if async processing is off, and is done when the stage it returns
+     * completes. Failures are logged and answered with 500.
+     *
+     * @param maxBodyBytes the largest body that is read, or -1 to not read the body
+     */
+    public void process(final HttpServletRequest req, final HttpServletResponse resp, final long maxBodyBytes,
+                        final Processing processing) throws IOException {
+        InputStream body = maxBodyBytes < 0 ? null : new LimitedInputStream(req.getInputStream(), maxBodyBytes);
+        if (!AsyncExecutors.isEnabled()) {
+            processSynchronously(body, resp, processing);
+            return;
+        }
+        if (!inFlight.tryAcquire()) {
+            rejected.increment();
+            resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return;
+        }
+
+        AsyncContext context;
+        try {
+            context = req.startAsync(req, resp);
+        } catch (RuntimeException e) {
+            inFlight.release();
+            throw e;
+        }
+        context.setTimeout(TIMEOUT_MILLIS);
+        GuardedResponse guarded = new GuardedResponse(resp);
+        context.addListener(new AsyncListener() {
+            @Override
+            public void onTimeout(final AsyncEvent event) {
+                guarded.finish(() -> {
+                    timedOut.increment();
+                    finish(context, resp, HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                            new TimeoutException("Not done after " + TIMEOUT_MILLIS + " ms"));
+                });
+            }
+
+            @Override
+            public void onError(final AsyncEvent event) {
+                guarded.finish(() -> {
+                    failed.increment();
+                    finish(context, resp, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, event.getThrowable());
+                });
+            }
+
+            @Override
+            public void onComplete(final AsyncEvent event) {
+            }
+
+            @Override
+            public void onStartAsync(final AsyncEvent event) {
+            }
+        });
+
+        CompletableFuture.supplyAsync(() -> start(processing, body, guarded),
+                body == null ? AsyncExecutors.worker() : AsyncExecutors.bodyReader())
+                .thenCompose(stage -> stage)
+                .whenComplete((result, failure) -> {
+                    // The work is over whether or not the request timed out before
+                    inFlight.release();
+                    guarded.finish(() -> {
+                        if (failure == null) {
+                            completed.increment();
+                            finish(context, resp, 0, null);
+                        } else {
+                            failed.increment();
+                            finish(context, resp, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, unwrap(failure));
+                        }
+                    });
+                });
+    }
+
+    private void processSynchronously(final InputStream body, final HttpServletResponse resp,
+                                      final Processing processing) throws IOException {
+        try {
+            start(processing, body, resp).toCompletableFuture().join();
+        } catch (CompletionException e) {
+            Throwable cause = unwrap(e);
+            if (cause instanceof IOException) {
+                throw (IOException)cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error)cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    private static CompletionStage<?> start(final Processing processing, final InputStream body,
+                                            final HttpServletResponse resp) {
+        try {
+            return processing.start(body, resp);
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    private void finish(final AsyncContext context, final HttpServletResponse resp, final int errorStatus,
+                        final Throwable failure) {
+        try {
+            if (failure != null) {
+                logger.error(name + " request failed", failure);
+                if (!resp.isCommitted()) {
+                    resp.sendError(errorStatus);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Could not send the error response", e);
+        } finally {
+            context.complete();
+        }
+    }
+
+    private static Throwable unwrap(final Throwable failure) {
+        Throwable cause = failure;
+        while (cause instanceof CompletionException && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        return cause;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getInFlight() {
+        return MAX_IN_FLIGHT - inFlight.availablePermits();
+    }
+
+    public long getCompleted() {
+        return completed.sum();
+    }
+
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    public long getTimedOut() {
+        return timedOut.sum();
+    }
+
+    /**
+     * The work of one request.
+     */
+    public interface Processing {
+        /**
+         * Processes the request, possibly handing parts of the work to the {@link AsyncExecutors}. Processing that
+         * reads the body runs on a body reader thread and should go on with {@link AsyncExecutors#worker()} once it
+         * has read it.
+         *
+         * @param body the request body, read with blocking reads, or null if it is not read
+         * @param resp the response to write to, writes are dropped once the request has timed out
+         * @return a stage that completes when the response has been written
+         */
+        CompletionStage<?> start(InputStream body, HttpServletResponse resp) throws IOException;
+    }
+
+    /**
+     * Fails the read that passes the limit, before the rest of a large body is read.
+     */
+    private static final class LimitedInputStream extends FilterInputStream {
+        private final long maxBytes;
+        private long bytesRead;
+
+        private LimitedInputStream(final InputStream in, final long maxBytes) {
+            super(in);
+            this.maxBytes = maxBytes;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                count(read);
+            }
+            return read;
+        }
+
+        private void count(final int read) throws IOException {
+            bytesRead += read;
+            if (bytesRead > maxBytes) {
+                throw new IOException("Request body is larger than " + maxBytes + " bytes");
+            }
+        }
+    }
+}
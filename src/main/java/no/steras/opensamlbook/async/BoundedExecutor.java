@@ -0,0 +1,77 @@
+package no.steras.opensamlbook.async;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs at most a fixed number of tasks at once on another executor. Tasks over the limit wait in a queue, without
+ * holding a thread, and are started as running tasks finish.
+ */
+public final class BoundedExecutor implements Executor {
+    private final Executor executor;
+    private final int limit;
+    private final Queue<Runnable> queue = new ConcurrentLinkedQueue<Runnable>();
+    private final AtomicInteger running = new AtomicInteger();
+
+    public BoundedExecutor(final Executor executor, final int limit) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("The limit must be at least 1");
+        }
+        this.executor = executor;
+        this.limit = limit;
+    }
+
+    @Override
+    public void execute(final Runnable task) {
+        queue.add(task);
+        startQueued();
+    }
+
+    /**
+     * Starts queued tasks while there is room. Both a new task and a finished one check for the other after changing
+     * their own state, so a queued task is not left behind when one finishes as another arrives.
+     */
+    private void startQueued() {
+        while (!queue.isEmpty()) {
+            int current = running.get();
+            if (current >= limit) {
+                return;
+            }
+            if (!running.compareAndSet(current, current + 1)) {
+                continue;
+            }
+            final Runnable task = queue.poll();
+            if (task == null) {
+                running.decrementAndGet();
+                continue;
+            }
+            try {
+                executor.execute(() -> {
+                    try {
+                        task.run();
+                    } finally {
+                        running.decrementAndGet();
+                        startQueued();
+                    }
+                });
+            } catch (RuntimeException e) {
+                running.decrementAndGet();
+                throw e;
+            }
+        }
+    }
+
+    public int getRunning() {
+        return running.get();
+    }
+
+    public int getQueued() {
+        return queue.size();
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+}
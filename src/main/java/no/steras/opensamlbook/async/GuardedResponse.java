@@ -0,0 +1,323 @@
+package no.steras.opensamlbook.async;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.Locale;
+
+/**
+ * The response of an asynchronous request as its processing sees it.
+ *
+ * Once the request is finished, by the processing or by a timeout, everything the processing still does to the
+ * response is dropped, so a late worker never writes to a response the container has completed and may have recycled.
+ * Every write holds the guard's lock, so the request can not be finished in the middle of one.
+ */
+class GuardedResponse extends HttpServletResponseWrapper {
+    private final Object lock = new Object();
+    private boolean finished;
+    private ServletOutputStream outputStream;
+    private PrintWriter writer;
+
+    GuardedResponse(final HttpServletResponse response) {
+        super(response);
+    }
+
+    /**
+     * Runs the action that finishes the request, unless it is already finished.
+     */
+    void finish(final Runnable action) {
+        synchronized (lock) {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            action.run();
+        }
+    }
+
+    private HttpServletResponse target() {
+        return (HttpServletResponse)getResponse();
+    }
+
+    @Override
+    public void sendRedirect(final String location) throws IOException {
+        synchronized (lock) {
+            if (!finished) {
+                target().sendRedirect(location);
+            }
+        }
+    }
+
+    @Override
+    public void sendError(final int sc, final String msg) throws IOException {
+        synchronized (lock) {
+            if (!finished) {
+                target().sendError(sc, msg);
+            }
+        }
+    }
+
+    @Override
+    public void sendError(final int sc) throws IOException {
+        synchronized (lock) {
+            if (!finished) {
+                target().sendError(sc);
+            }
+        }
+    }
+
+    @Override
+    public void setStatus(final int sc) {
+        synchronized (lock) {
+            if (!finished) {
+                target().setStatus(sc);
+            }
+        }
+    }
+
+    @Override
+    public void addCookie(final Cookie cookie) {
+        synchronized (lock) {
+            if (!finished) {
+                target().addCookie(cookie);
+            }
+        }
+    }
+
+    @Override
+    public void setHeader(final String name, final String value) {
+        synchronized (lock) {
+            if (!finished) {
+                target().setHeader(name, value);
+            }
+        }
+    }
+
+    @Override
+    public void addHeader(final String name, final String value) {
+        synchronized (lock) {
+            if (!finished) {
+                target().addHeader(name, value);
+            }
+        }
+    }
+
+    @Override
+    public void setDateHeader(final String name, final long date) {
+        synchronized (lock) {
+            if (!finished) {
+                target().setDateHeader(name, date);
+            }
+        }
+    }
+
+    @Override
+    public void addDateHeader(final String name, final long date) {
+        synchronized (lock) {
+            if (!finished) {
+                target().addDateHeader(name, date);
+            }
+        }
+    }
+
+    @Override
+    public void setIntHeader(final String name, final int value) {
+        synchronized (lock) {
+            if (!finished) {
+                target().setIntHeader(name, value);
+            }
+        }
+    }
+
+    @Override
+    public void addIntHeader(final String name, final int value) {
+        synchronized (lock) {
+            if (!finished) {
+                target().addIntHeader(name, value);
+            }
+        }
+    }
+
+    @Override
+    public void setContentType(final String type) {
+        synchronized (lock) {
+            if (!finished) {
+                target().setContentType(type);
+            }
+        }
+    }
+
+    @Override
+    public void setCharacterEncoding(final String charset) {
+        synchronized (lock) {
+            if (!finished) {
+                target().setCharacterEncoding(charset);
+            }
+        }
+    }
+
+    @Override
+    public void setContentLength(final int len) {
+        synchronized (lock) {
+            if (!finished) {
+                target().setContentLength(len);
+            }
+        }
+    }
+
+    @Override
+    public void setContentLengthLong(final long len) {
+        synchronized (lock) {
+            if (!finished) {
+                target().setContentLengthLong(len);
+            }
+        }
+    }
+
+    @Override
+    public void setLocale(final Locale locale) {
+        synchronized (lock) {
+            if (!finished) {
+                target().setLocale(locale);
+            }
+        }
+    }
+
+    @Override
+    public void setBufferSize(final int size) {
+        synchronized (lock) {
+            if (!finished) {
+                target().setBufferSize(size);
+            }
+        }
+    }
+
+    @Override
+    public void flushBuffer() throws IOException {
+        synchronized (lock) {
+            if (!finished) {
+                target().flushBuffer();
+            }
+        }
+    }
+
+    @Override
+    public void reset() {
+        synchronized (lock) {
+            if (!finished) {
+                target().reset();
+            }
+        }
+    }
+
+    @Override
+    public void resetBuffer() {
+        synchronized (lock) {
+            if (!finished) {
+                target().resetBuffer();
+            }
+        }
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException {
+        synchronized (lock) {
+            if (outputStream == null) {
+                final ServletOutputStream out = finished ? null : target().getOutputStream();
+                outputStream = new ServletOutputStream() {
+                    @Override
+                    public void write(final int b) throws IOException {
+                        synchronized (lock) {
+                            if (!finished) {
+                                out.write(b);
+                            }
+                        }
+                    }
+
+                    @Override
+                    public void write(final byte[] b, final int off, final int len) throws IOException {
+                        synchronized (lock) {
+                            if (!finished) {
+                                out.write(b, off, len);
+                            }
+                        }
+                    }
+
+                    @Override
+                    public void flush() throws IOException {
+                        synchronized (lock) {
+                            if (!finished) {
+                                out.flush();
+                            }
+                        }
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        synchronized (lock) {
+                            if (!finished) {
+                                out.close();
+                            }
+                        }
+                    }
+
+                    @Override
+                    public boolean isReady() {
+                        synchronized (lock) {
+                            return finished || out.isReady();
+                        }
+                    }
+
+                    @Override
+                    public void setWriteListener(final WriteListener writeListener) {
+                        throw new UnsupportedOperationException("Processing writes with blocking writes");
+                    }
+                };
+            }
+            return outputStream;
+        }
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException {
+        synchronized (lock) {
+            if (writer == null) {
+                final PrintWriter out = finished ? null : target().getWriter();
+                writer = new PrintWriter(new Writer() {
+                    @Override
+                    public void write(final char[] cbuf, final int off, final int len) {
+                        synchronized (lock) {
+                            if (!finished) {
+                                out.write(cbuf, off, len);
+                            }
+                        }
+                    }
+
+                    @Override
+                    public void flush() {
+                        synchronized (lock) {
+                            if (!finished) {
+                                out.flush();
+                            }
+                        }
+                    }
+
+                    @Override
+                    public void close() {
+                        synchronized (lock) {
+                            if (!finished) {
+                                out.close();
+                            }
+                        }
+                    }
+                });
+            }
+            return writer;
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package no.steras.opensamlbook.attribute;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * Keeps the resolved attributes of each principal for a while, and lets concurrent logins of the same principal share
+ * one resolution.
+ *
+ * The cache holds the resolution itself, so a login arriving while the principal's attributes are being resolved
+ * waits for that resolution instead of starting another. Resolved attributes are kept for <code>ttlMillis</code> after
+ * they arrive; failed resolutions are dropped at once so the next login tries again. A resolution that is not done
+ * after <code>maxPendingMillis</code> is given up: the logins waiting for it fail and the next login starts another.
+ *
+ * Entries are queued in the order they are added. As every entry lives equally long that is about the order they
+ * expire in, so expired entries and, when there are more than <code>maxEntries</code>, the oldest ones are removed from
+ * the head of the queue when an entry is added. One thread at a time does this, others skip it. As resolutions in
+ * progress expire too, one that hangs does not hold up the queue for longer than <code>maxPendingMillis</code>.
+ */
+public class AttributeCache {
+    private final int maxEntries;
+    private final long ttlMillis;
+    private final long maxPendingMillis;
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    private final Queue<Entry> order = new ConcurrentLinkedQueue<Entry>();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+    private final LongAdder abandoned = new LongAdder();
+
+    public AttributeCache(final int maxEntries, final long ttlMillis, final long maxPendingMillis) {
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+        this.maxPendingMillis = maxPendingMillis;
+    }
+
+    /**
+     * @return the cached or ongoing resolution of the principal's attributes, or the one the resolver starts if there
+     * is none
+     */
+    public CompletableFuture<Map<String, List<String>>> get(final String principal,
+                                                            final Function<String, CompletableFuture<Map<String, List<String>>>> resolver) {
+        long now = System.currentTimeMillis();
+        Entry entry = entries.get(principal);
+        if (entry != null && !entry.isExpired(now)) {
+            count(entry);
+            return entry.attributes;
+        }
+
+        Entry created = new Entry(principal, now + maxPendingMillis);
+        Entry[] replaced = new Entry[1];
+        Entry current = entries.compute(principal, (key, existing) -> {
+            if (existing != null && !existing.isExpired(now)) {
+                return existing;
+            }
+            replaced[0] = existing;
+            return created;
+        });
+        if (replaced[0] != null) {
+            expire(replaced[0]);
+        }
+        if (current != created) {
+            count(current);
+            return current.attributes;
+        }
+        misses.increment();
+        order.add(created);
+        evict(now);
+
+        CompletableFuture<Map<String, List<String>>> resolution;
+        try {
+            resolution = resolver.apply(principal);
+        } catch (RuntimeException e) {
+            resolution = new CompletableFuture<Map<String, List<String>>>();
+            resolution.completeExceptionally(e);
+        }
+        resolution.whenComplete((attributes, failure) -> {
+            if (failure == null) {
+                created.expiresAt = System.currentTimeMillis() + ttlMillis;
+                created.attributes.complete(attributes);
+            } else {
+                created.expiresAt = 0;
+                entries.remove(principal, created);
+                created.attributes.completeExceptionally(failure);
+            }
+        });
+        return created.attributes;
+    }
+
+    private void count(final Entry entry) {
+        if (entry.attributes.isDone()) {
+            hits.increment();
+        } else {
+            coalesced.increment();
+        }
+    }
+
+    /**
+     * Counts an expired entry that was removed, and fails its resolution if it is still in progress.
+     */
+    private void expire(final Entry entry) {
+        if (entry.attributes.isDone()) {
+            expired.increment();
+        } else {
+            abandoned.increment();
+            entry.attributes.completeExceptionally(new TimeoutException("Attributes of " + entry.principal
+                    + " not resolved after " + maxPendingMillis + " ms"));
+        }
+    }
+
+    private void evict(final long now) {
+        if (!evictionLock.tryLock()) {
+            return;
+        }
+        try {
+            Entry head;
+            while ((head = order.peek()) != null) {
+                boolean isExpired = head.isExpired(now);
+                if (!isExpired && entries.size() <= maxEntries) {
+                    return;
+                }
+                order.poll();
+                if (entries.remove(head.principal, head)) {
+                    if (isExpired) {
+                        expire(head);
+                    } else {
+                        evicted.increment();
+                    }
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Removes all entries, the resolutions in progress still complete for the logins waiting for them.
+     */
+    public void clear() {
+        entries.clear();
+        order.clear();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public long getTtlMillis() {
+        return ttlMillis;
+    }
+
+    public long getMaxPendingMillis() {
+        return maxPendingMillis;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the lookups that waited for a resolution another login started
+     */
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    public long getExpired() {
+        return expired.sum();
+    }
+
+    public long getEvicted() {
+        return evicted.sum();
+    }
+
+    /**
+     * @return the resolutions given up because they were not done after <code>maxPendingMillis</code>
+     */
+    public long getAbandoned() {
+        return abandoned.sum();
+    }
+
+    private static final class Entry {
+        private final String principal;
+        private final CompletableFuture<Map<String, List<String>>> attributes = new CompletableFuture<Map<String, List<String>>>();
+        /**
+         * Until the resolution completes, the time it is given up at.
+         */
+        private volatile long expiresAt;
+
+        private Entry(final String principal, final long expiresAt) {
+            this.principal = principal;
+            this.expiresAt = expiresAt;
+        }
+
+        private boolean isExpired(final long now) {
+            return now >= expiresAt;
+        }
+    }
+}
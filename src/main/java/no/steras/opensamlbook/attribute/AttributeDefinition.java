@@ -0,0 +1,39 @@
+package no.steras.opensamlbook.attribute;
+
+/**
+ * An attribute the IDP releases, read from an attribute of one data connector.
+ */
+public final class AttributeDefinition {
+    private final String name;
+    private final String connectorId;
+    private final String sourceAttribute;
+
+    public AttributeDefinition(final String name, final String connectorId, final String sourceAttribute) {
+        this.name = name;
+        this.connectorId = connectorId;
+        this.sourceAttribute = sourceAttribute;
+    }
+
+    /**
+     * @return the name the attribute is released with
+     */
+    public String getName() {
+        return name;
+    }
+
+    public String getConnectorId() {
+        return connectorId;
+    }
+
+    /**
+     * @return the name of the attribute in the data connector
+     */
+    public String getSourceAttribute() {
+        return sourceAttribute;
+    }
+
+    @Override
+    public String toString() {
+        return name + "=" + connectorId + "/" + sourceAttribute;
+    }
+}
@@ -0,0 +1,226 @@
+package no.steras.opensamlbook.attribute;
+
+import no.steras.opensamlbook.ResourceLocation;
+import no.steras.opensamlbook.async.AsyncExecutors;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Resolves the attributes the IDP releases about a user from its data connectors.
+ *
+ * Every released attribute is read from one connector. The connectors a resolution needs are all asked at once, each
+ * on the back channel executor with the connector's ID as the peer, so a resolution takes as long as the slowest
+ * connector and not as long as all of them together. A lookup that takes longer than <code>lookupTimeoutMillis</code>
+ * fails, the connector call itself is left to finish. When async processing is off the connectors are asked one after
+ * the other on the calling thread, without a timeout. The results are cached per principal in an
+ * {@link AttributeCache}, and a failed lookup fails the resolution.
+ *
+ * The shared resolver reads its connectors and attributes from the properties file in
+ * <code>opensamlbook.attributes.configuration</code> (default <code>classpath:attribute-resolver.properties</code>),
+ * see that file for the format. Lookups time out after <code>opensamlbook.attributes.lookupTimeoutMillis</code>
+ * (default 5000). Its cache holds <code>opensamlbook.attributes.cache.maxEntries</code> principals (default 10000) for
+ * <code>opensamlbook.attributes.cache.ttlSeconds</code> (default 300), and gives up resolutions that are not done after
+ * twice the lookup timeout.
+ */
+public class AttributeResolver {
+    public static final String PROPERTY_PREFIX = "opensamlbook.attributes.";
+
+    private final Map<String, DataConnector> connectors = new LinkedHashMap<String, DataConnector>();
+    private final List<AttributeDefinition> definitions;
+    private final AttributeCache cache;
+    private final long lookupTimeoutMillis;
+    private final Map<String, ConnectorStatistics> connectorStatistics = new LinkedHashMap<String, ConnectorStatistics>();
+
+    /**
+     * @param connectors the connectors, only those an attribute is read from are asked
+     * @param definitions the released attributes, in the order they are sent
+     * @param lookupTimeoutMillis how long a lookup in a connector may take
+     */
+    public AttributeResolver(final List<? extends DataConnector> connectors, final List<AttributeDefinition> definitions,
+                             final AttributeCache cache, final long lookupTimeoutMillis) {
+        Map<String, DataConnector> connectorsById = new HashMap<String, DataConnector>();
+        for (DataConnector connector : connectors) {
+            connectorsById.put(connector.getId(), connector);
+        }
+        for (AttributeDefinition definition : definitions) {
+            DataConnector connector = connectorsById.get(definition.getConnectorId());
+            if (connector == null) {
+                throw new IllegalArgumentException("No data connector " + definition.getConnectorId() + " for " + definition);
+            }
+            if (this.connectors.put(connector.getId(), connector) == null) {
+                connectorStatistics.put(connector.getId(), new ConnectorStatistics());
+            }
+        }
+        this.definitions = Collections.unmodifiableList(new ArrayList<AttributeDefinition>(definitions));
+        this.cache = cache;
+        this.lookupTimeoutMillis = lookupTimeoutMillis;
+    }
+
+    public static AttributeResolver getSharedResolver() {
+        return SharedResolverHolder.resolver;
+    }
+
+    /**
+     * Reads the connectors and attributes from a configuration file.
+     */
+    public static AttributeResolver load(final ResourceLocation configuration, final AttributeCache cache,
+                                         final long lookupTimeoutMillis) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream in = configuration.open()) {
+            properties.load(in);
+        }
+
+        List<DataConnector> connectors = new ArrayList<DataConnector>();
+        for (String id : list(properties, "connectors")) {
+            String location = properties.getProperty("connector." + id + ".location");
+            if (location == null) {
+                throw new IOException(configuration + ": connector " + id + " has no location");
+            }
+            long latencyMillis = Long.parseLong(properties.getProperty("connector." + id + ".latencyMillis", "0"));
+            connectors.add(LocalDataConnector.load(id, ResourceLocation.parse(location), latencyMillis));
+        }
+
+        List<AttributeDefinition> definitions = new ArrayList<AttributeDefinition>();
+        for (String name : list(properties, "attributes")) {
+            String source = properties.getProperty("attribute." + name);
+            if (source == null) {
+                throw new IOException(configuration + ": attribute " + name + " has no connector");
+            }
+            int separator = source.indexOf('/');
+            definitions.add(separator < 0
+                    ? new AttributeDefinition(name, source, name)
+                    : new AttributeDefinition(name, source.substring(0, separator), source.substring(separator + 1)));
+        }
+        try {
+            return new AttributeResolver(connectors, definitions, cache, lookupTimeoutMillis);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(configuration + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static List<String> list(final Properties properties, final String key) {
+        List<String> values = new ArrayList<String>();
+        for (String value : properties.getProperty(key, "").split(",")) {
+            if (!value.trim().isEmpty()) {
+                values.add(value.trim());
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Resolves the principal's attributes, from the cache if they are there. Attributes the connectors do not have for
+     * the principal are left out.
+     *
+     * @return the released attributes by name, in the order of the definitions
+     */
+    public CompletableFuture<Map<String, List<String>>> resolve(final String principal) {
+        return cache.get(principal, this::lookup);
+    }
+
+    private CompletableFuture<Map<String, List<String>>> lookup(final String principal) {
+        final Map<String, CompletableFuture<Map<String, List<String>>>> lookups =
+                new HashMap<String, CompletableFuture<Map<String, List<String>>>>();
+        for (final DataConnector connector : connectors.values()) {
+            CompletableFuture<Map<String, List<String>>> lookup = AsyncExecutors.orTimeout(CompletableFuture.supplyAsync(
+                    () -> lookup(connector, principal), AsyncExecutors.backChannel(connector.getId())), lookupTimeoutMillis);
+            lookup.whenComplete((attributes, failure) -> {
+                if (failure instanceof TimeoutException) {
+                    connectorStatistics.get(connector.getId()).timeouts.increment();
+                }
+            });
+            lookups.put(connector.getId(), lookup);
+        }
+        return CompletableFuture.allOf(lookups.values().toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+            Map<String, List<String>> attributes = new LinkedHashMap<String, List<String>>();
+            for (AttributeDefinition definition : definitions) {
+                List<String> values = lookups.get(definition.getConnectorId()).join().get(definition.getSourceAttribute());
+                if (values != null && !values.isEmpty()) {
+                    attributes.put(definition.getName(), values);
+                }
+            }
+            return Collections.unmodifiableMap(attributes);
+        });
+    }
+
+    private Map<String, List<String>> lookup(final DataConnector connector, final String principal) {
+        ConnectorStatistics statistics = connectorStatistics.get(connector.getId());
+        statistics.lookups.increment();
+        try {
+            return connector.lookup(principal);
+        } catch (IOException | RuntimeException e) {
+            statistics.failures.increment();
+            throw new CompletionException("Looking up " + principal + " in " + connector.getId() + " failed", e);
+        }
+    }
+
+    public List<AttributeDefinition> getDefinitions() {
+        return definitions;
+    }
+
+    public AttributeCache getCache() {
+        return cache;
+    }
+
+    public long getLookupTimeoutMillis() {
+        return lookupTimeoutMillis;
+    }
+
+    /**
+     * @return the lookups of each connector, by connector ID
+     */
+    public Map<String, ConnectorStatistics> getConnectorStatistics() {
+        return Collections.unmodifiableMap(connectorStatistics);
+    }
+
+    public static final class ConnectorStatistics {
+        private final LongAdder lookups = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder timeouts = new LongAdder();
+
+        public long getLookups() {
+            return lookups.sum();
+        }
+
+        public long getFailures() {
+            return failures.sum();
+        }
+
+        /**
+         * @return the lookups that were given up because the connector did not answer in time
+         */
+        public long getTimeouts() {
+            return timeouts.sum();
+        }
+    }
+
+    private static final class SharedResolverHolder {
+        private static final AttributeResolver resolver = loadShared();
+
+        private static AttributeResolver loadShared() {
+            long lookupTimeoutMillis = Long.getLong(PROPERTY_PREFIX + "lookupTimeoutMillis", 5000);
+            AttributeCache cache = new AttributeCache(Integer.getInteger(PROPERTY_PREFIX + "cache.maxEntries", 10000),
+                    TimeUnit.SECONDS.toMillis(Integer.getInteger(PROPERTY_PREFIX + "cache.ttlSeconds", 300)),
+                    2 * lookupTimeoutMillis);
+            String location = System.getProperty(PROPERTY_PREFIX + "configuration", "classpath:attribute-resolver.properties");
+            try {
+                return load(ResourceLocation.parse(location), cache, lookupTimeoutMillis);
+            } catch (IOException e) {
+                throw new RuntimeException("Could not read the attribute resolver configuration " + location, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package no.steras.opensamlbook.attribute;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A source of user attributes, like a directory or a database. Lookups may block, the {@link AttributeResolver} runs
+ * them on the back channel executors with the connector's ID as the peer.
+ */
+public interface DataConnector {
+    String getId();
+
+    /**
+     * @return the principal's attributes in this source by name, or an empty map if the source does not know the
+     * principal
+     */
+    Map<String, List<String>> lookup(String principal) throws IOException;
+}
@@ -0,0 +1,79 @@
+package no.steras.opensamlbook.attribute;
+
+import no.steras.opensamlbook.ResourceLocation;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A data connector holding its users in memory, standing in for a directory. A fixed latency can be added to every
+ * lookup to behave like a remote directory.
+ *
+ * The users are given as a map or read from a properties file with a line for each attribute of a user,
+ * <code>&lt;principal&gt;/&lt;attribute&gt;=&lt;value&gt;[;&lt;value&gt;...]</code>.
+ */
+public class LocalDataConnector implements DataConnector {
+    private final String id;
+    private final Map<String, Map<String, List<String>>> users;
+    private final long latencyMillis;
+
+    public LocalDataConnector(final String id, final Map<String, Map<String, List<String>>> users, final long latencyMillis) {
+        this.id = id;
+        this.users = new HashMap<String, Map<String, List<String>>>();
+        for (Map.Entry<String, Map<String, List<String>>> user : users.entrySet()) {
+            this.users.put(user.getKey(), Collections.unmodifiableMap(new LinkedHashMap<String, List<String>>(user.getValue())));
+        }
+        this.latencyMillis = latencyMillis;
+    }
+
+    public static LocalDataConnector load(final String id, final ResourceLocation location, final long latencyMillis) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream in = location.open()) {
+            properties.load(in);
+        }
+        Map<String, Map<String, List<String>>> users = new HashMap<String, Map<String, List<String>>>();
+        for (String key : properties.stringPropertyNames()) {
+            int separator = key.indexOf('/');
+            if (separator < 1 || separator == key.length() - 1) {
+                throw new IOException(location + ": " + key + " is not <principal>/<attribute>");
+            }
+            Map<String, List<String>> attributes = users.get(key.substring(0, separator));
+            if (attributes == null) {
+                attributes = new LinkedHashMap<String, List<String>>();
+                users.put(key.substring(0, separator), attributes);
+            }
+            attributes.put(key.substring(separator + 1),
+                    Collections.unmodifiableList(new ArrayList<String>(Arrays.asList(properties.getProperty(key).split(";")))));
+        }
+        return new LocalDataConnector(id, users, latencyMillis);
+    }
+
+    @Override
+    public String getId() {
+        return id;
+    }
+
+    @Override
+    public Map<String, List<String>> lookup(final String principal) throws IOException {
+        if (latencyMillis > 0) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(latencyMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted looking up " + principal + " in " + id);
+            }
+        }
+        Map<String, List<String>> attributes = users.get(principal);
+        return attributes != null ? attributes : Collections.<String, List<String>>emptyMap();
+    }
+}
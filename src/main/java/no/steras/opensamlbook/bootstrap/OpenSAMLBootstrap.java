@@ -0,0 +1,45 @@
+package no.steras.opensamlbook.bootstrap;
+
+import no.steras.opensamlbook.xml.SharedParserPool;
+import org.opensaml.core.config.InitializationException;
+import org.opensaml.core.config.InitializationService;
+import org.opensaml.core.xml.config.XMLObjectProviderRegistrySupport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.security.Provider;
+import java.security.Security;
+
+/**
+ * Initializes OpenSAML once for the whole application, SP and IDP, and registers the shared parser pool.
+ */
+public class OpenSAMLBootstrap {
+    private static Logger logger = LoggerFactory.getLogger(OpenSAMLBootstrap.class);
+    private static boolean initialized;
+
+    private OpenSAMLBootstrap() {
+    }
+
+    /**
+     * Initializes OpenSAML unless it has been done already.
+     */
+    public static synchronized void initialize() {
+        if (initialized) {
+            return;
+        }
+        if (logger.isDebugEnabled()) {
+            for (Provider jceProvider : Security.getProviders()) {
+                logger.debug(jceProvider.getInfo());
+            }
+        }
+
+        logger.info("Bootstrapping");
+        try {
+            InitializationService.initialize();
+        } catch (InitializationException e) {
+            throw new RuntimeException("Bootstrapping failed", e);
+        }
+        XMLObjectProviderRegistrySupport.setParserPool(SharedParserPool.getParserPool());
+        initialized = true;
+    }
+}
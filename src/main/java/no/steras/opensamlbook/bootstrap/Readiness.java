@@ -0,0 +1,54 @@
+package no.steras.opensamlbook.bootstrap;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Whether the application is ready to take traffic, and how long each startup phase took.
+ *
+ * The application is ready once OpenSAML is initialized and the warm-up is done. If a startup phase fails it never
+ * becomes ready.
+ */
+public class Readiness {
+    private static final Map<String, Long> phaseNanos = new LinkedHashMap<String, Long>();
+    private static volatile boolean ready;
+    private static volatile String failure;
+
+    private Readiness() {
+    }
+
+    public static boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * @return why startup failed, or null
+     */
+    public static String getFailure() {
+        return failure;
+    }
+
+    static void markReady() {
+        ready = true;
+    }
+
+    static void markFailed(final String reason) {
+        failure = reason;
+    }
+
+    static void recordPhase(final String phase, final long nanos) {
+        synchronized (phaseNanos) {
+            phaseNanos.put(phase, nanos);
+        }
+    }
+
+    /**
+     * @return the duration of each finished phase in nanoseconds, in the order they ran
+     */
+    public static Map<String, Long> getPhaseNanos() {
+        synchronized (phaseNanos) {
+            return Collections.unmodifiableMap(new LinkedHashMap<String, Long>(phaseNanos));
+        }
+    }
+}
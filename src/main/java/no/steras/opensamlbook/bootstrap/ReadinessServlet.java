@@ -0,0 +1,29 @@
+package no.steras.opensamlbook.bootstrap;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Readiness probe for load balancers: 200 when the application is ready, 503 while it is starting or if startup
+ * failed. The body lists the startup phases and their duration.
+ */
+public class ReadinessServlet extends HttpServlet {
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        boolean ready = Readiness.isReady();
+        String failure = Readiness.getFailure();
+        resp.setStatus(ready ? HttpServletResponse.SC_OK : HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        resp.setContentType("text/plain; charset=UTF-8");
+        PrintWriter out = resp.getWriter();
+        out.println(ready ? "READY" : failure != null ? "FAILED " + failure : "STARTING");
+        for (Map.Entry<String, Long> phase : Readiness.getPhaseNanos().entrySet()) {
+            out.println(phase.getKey() + " " + TimeUnit.NANOSECONDS.toMillis(phase.getValue()) + " ms");
+        }
+    }
+}
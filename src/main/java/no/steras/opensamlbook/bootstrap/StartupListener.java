@@ -0,0 +1,83 @@
+package no.steras.opensamlbook.bootstrap;
+
+import no.steras.opensamlbook.async.AsyncExecutors;
+import no.steras.opensamlbook.credential.CredentialManager;
+import no.steras.opensamlbook.idp.ArtifactStore;
+import no.steras.opensamlbook.idp.IDPCredentials;
+import no.steras.opensamlbook.metadata.MetadataRegistry;
+import no.steras.opensamlbook.soap.BackChannelClient;
+import no.steras.opensamlbook.sp.RedirectEncoder;
+import no.steras.opensamlbook.sp.SPCredentials;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Starts the application before any filter or servlet runs: initializes OpenSAML, loads the credentials and the
+ * metadata, then warms
+ * up in the background and marks the application ready. The time of each phase is logged and kept in
+ * {@link Readiness}.
+ *
+ * The number of warm-up cycles is set with the system property <code>opensamlbook.warmup.iterations</code>
+ * (default 200), 0 makes the application ready as soon as it is initialized.
+ *
+ * The shared resources the servlets and filters use are closed when the application stops, not when one of them is
+ * destroyed. Their threads are stopped then too, so they do not keep the application's class loader after an undeploy.
+ */
+public class StartupListener implements ServletContextListener {
+    private static Logger logger = LoggerFactory.getLogger(StartupListener.class);
+    public static final String WARMUP_ITERATIONS_PROPERTY = "opensamlbook.warmup.iterations";
+
+    private Thread warmUpThread;
+
+    @Override
+    public void contextInitialized(final ServletContextEvent event) {
+        long started = System.nanoTime();
+        phase("opensaml", OpenSAMLBootstrap::initialize);
+        phase("credentials", () -> {
+            IDPCredentials.getCredential();
+            SPCredentials.getCredential();
+        });
+        phase("metadata", MetadataRegistry::getSharedRegistry);
+
+        final int iterations = Integer.getInteger(WARMUP_ITERATIONS_PROPERTY, 200);
+        warmUpThread = new Thread(() -> {
+            try {
+                phase("warmup", () -> logger.info("Warm-up ran {} of {} cycles", new WarmUp(iterations).run(), iterations));
+                if (!Thread.currentThread().isInterrupted()) {
+                    Readiness.markReady();
+                    logger.info("Ready to take traffic {} ms after startup", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+                }
+            } catch (RuntimeException e) {
+                Readiness.markFailed(e.toString());
+                logger.error("Warm-up failed, the application will not become ready", e);
+            }
+        }, "warmup");
+        warmUpThread.setDaemon(true);
+        warmUpThread.start();
+    }
+
+    @Override
+    public void contextDestroyed(final ServletContextEvent event) {
+        if (warmUpThread != null) {
+            warmUpThread.interrupt();
+        }
+        BackChannelClient.getSharedClient().close();
+        RedirectEncoder.getSharedEncoder().close();
+        AsyncExecutors.shutdown();
+        CredentialManager.shutdown();
+        MetadataRegistry.getSharedRegistry().shutdown();
+        ArtifactStore.getSharedStore().shutdown();
+    }
+
+    private static void phase(final String name, final Runnable phase) {
+        long start = System.nanoTime();
+        phase.run();
+        long nanos = System.nanoTime() - start;
+        Readiness.recordPhase(name, nanos);
+        logger.info("Startup phase {} took {} ms", name, TimeUnit.NANOSECONDS.toMillis(nanos));
+    }
+}
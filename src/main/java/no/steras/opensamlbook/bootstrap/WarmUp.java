@@ -0,0 +1,64 @@
+package no.steras.opensamlbook.bootstrap;
+
+import no.steras.opensamlbook.encryption.AssertionDecrypter;
+import no.steras.opensamlbook.idp.ArtifactResolutionServlet;
+import no.steras.opensamlbook.idp.IDPConstants;
+import no.steras.opensamlbook.idp.ResponseTemplateEngine;
+import no.steras.opensamlbook.idp.ResponseValues;
+import no.steras.opensamlbook.idp.SingleSignOnServlet;
+import no.steras.opensamlbook.metrics.Stage;
+import no.steras.opensamlbook.signing.SignatureVerifier;
+import no.steras.opensamlbook.sp.SPConstants;
+import org.opensaml.saml.saml2.core.Assertion;
+import org.opensaml.saml.saml2.core.Response;
+import org.opensaml.xmlsec.signature.support.SignatureException;
+
+import java.io.ByteArrayInputStream;
+
+/**
+ * Runs synthetic logins through the same code as real ones so the JIT has compiled the hot paths before the first
+ * user arrives. A cycle renders a signed response as the IDP's single sign-on service does, encrypted if that is
+ * configured, parses it back, decrypts it and verifies the signature.
+ *
+ * The stage timings recorded during the warm-up are cleared when it is done. The signature verifier's statistics
+ * keep the warm-up verifications of the IDP's signatures.
+ */
+public class WarmUp {
+    private final int iterations;
+
+    public WarmUp(final int iterations) {
+        this.iterations = iterations;
+    }
+
+    /**
+     * Runs the cycles, stopping early if the thread is interrupted.
+     *
+     * @return the number of cycles run
+     */
+    public int run() {
+        ResponseTemplateEngine idp = ResponseTemplateEngine.getSharedEngine();
+        int cycles = 0;
+        try {
+            while (cycles < iterations && !Thread.currentThread().isInterrupted()) {
+                cycle(idp);
+                cycles++;
+            }
+        } catch (SignatureException e) {
+            throw new RuntimeException("Warm-up failed after " + cycles + " cycles", e);
+        }
+        for (Stage stage : Stage.values()) {
+            stage.getHistogram().reset();
+        }
+        return cycles;
+    }
+
+    private static void cycle(final ResponseTemplateEngine idp) throws SignatureException {
+        String assertionConsumerService = SingleSignOnServlet.assertionConsumerService(SPConstants.SP_ENTITY_ID);
+        byte[] message = idp.render(SPConstants.SP_ENTITY_ID, assertionConsumerService, ResponseValues.forDemoUser());
+        Response response = ArtifactResolutionServlet.unmarshallArtifactResolve(new ByteArrayInputStream(message));
+        Assertion assertion = response.getEncryptedAssertions().isEmpty()
+                ? response.getAssertions().get(0)
+                : AssertionDecrypter.getSharedDecrypter().decrypt(response.getEncryptedAssertions().get(0));
+        SignatureVerifier.getSharedVerifier().verify(assertion, IDPConstants.IDP_ENTITY_ID);
+    }
+}
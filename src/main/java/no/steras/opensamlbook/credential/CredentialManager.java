@@ -0,0 +1,315 @@
+package no.steras.opensamlbook.credential;
+
+import no.steras.opensamlbook.signing.KeyType;
+import no.steras.opensamlbook.signing.SigningConfiguration;
+import org.opensaml.security.credential.BasicCredential;
+import org.opensaml.security.credential.Credential;
+import org.opensaml.security.credential.MutableCredential;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Serves the keys of one entity from an immutable {@link CredentialSnapshot} and rotates them when the key files
+ * change.
+ *
+ * Readers only read a volatile field, so signing, verification and decryption never wait for a rotation. A watcher
+ * thread compares the modification time and size of the files at a fixed interval. When they change the keys are
+ * loaded, each key pair is checked by signing and verifying a test message, and the new snapshot replaces the old one
+ * in a single write. A file that can not be read or holds a broken key pair is logged and the current keys stay in
+ * use. Polling works for files that are replaced by renaming or through symbolic links, which file system events miss.
+ *
+ * Every credential is named by the first 8 bytes of the SHA-256 digest of its public key, in hex. The name is sent in
+ * the signature's KeyInfo, so the verifier picks the right key during an overlap window without trying them all.
+ * Key types the source has no key for are generated once and kept for the lifetime of the manager.
+ *
+ * Managers created from system properties read <code>opensamlbook.credentials.&lt;name&gt;.key</code> and
+ * <code>.certificate</code> (PEM), or <code>.keystore</code>, <code>.keystoreType</code> (JKS, or PKCS12 for .p12 and
+ * .pfx files), <code>.keystorePassword</code> (default password) and <code>.keyPassword</code> (default the keystore
+ * password). Retired keys are accepted for <code>opensamlbook.credentials.overlapSeconds</code> (default 600) and the
+ * files are checked every <code>opensamlbook.credentials.checkIntervalSeconds</code> (default 10, 0 turns watching off).
+ */
+public class CredentialManager {
+    private static Logger logger = LoggerFactory.getLogger(CredentialManager.class);
+    public static final String PROPERTY_PREFIX = "opensamlbook.credentials.";
+    private static final byte[] TEST_MESSAGE = "opensamlbook key pair check".getBytes(StandardCharsets.US_ASCII);
+
+    private static final ScheduledExecutorService watcher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            Thread thread = new Thread(runnable, "credential-watcher");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final String entityId;
+    private final CredentialSource source;
+    private final long overlapMillis;
+    private final ConcurrentMap<KeyType, Credential> generated = new ConcurrentHashMap<KeyType, Credential>();
+    private final List<Runnable> rotationListeners = new CopyOnWriteArrayList<Runnable>();
+    private volatile CredentialSnapshot snapshot;
+    /**
+     * Only touched while holding the manager's lock.
+     */
+    private String sourceVersion;
+
+    private final LongAdder rotations = new LongAdder();
+    private final LongAdder failedReloads = new LongAdder();
+
+    /**
+     * Loads the keys, failing if the source can not be read.
+     */
+    public CredentialManager(final String entityId, final CredentialSource source, final long overlapMillis) {
+        this.entityId = entityId;
+        this.source = source;
+        this.overlapMillis = overlapMillis;
+        try {
+            sourceVersion = source.getVersion();
+            snapshot = new CredentialSnapshot(load(), Collections.<CredentialSnapshot.Retired>emptyList());
+        } catch (IOException | GeneralSecurityException e) {
+            throw new RuntimeException("Could not load the keys of " + entityId + " from " + source, e);
+        }
+        logger.info("Loaded the keys of {} from {}: {}", entityId, source, snapshot);
+    }
+
+    /**
+     * Creates a manager configured with the system properties for the name, see the class documentation.
+     *
+     * @param defaultKeystore the keystore to use if none is configured
+     */
+    public static CredentialManager fromProperties(final String name, final String entityId, final String defaultKeystore) {
+        String prefix = PROPERTY_PREFIX + name + ".";
+        CredentialSource source;
+        try {
+            String key = System.getProperty(prefix + "key");
+            if (key != null) {
+                source = new PemSource(key, System.getProperty(prefix + "certificate"));
+            } else {
+                String keystore = System.getProperty(prefix + "keystore", defaultKeystore);
+                String lowerCase = keystore.toLowerCase();
+                String defaultType = lowerCase.endsWith(".p12") || lowerCase.endsWith(".pfx") ? "PKCS12" : "JKS";
+                String keystorePassword = System.getProperty(prefix + "keystorePassword", "password");
+                source = new KeyStoreSource(keystore, System.getProperty(prefix + "keystoreType", defaultType),
+                        keystorePassword, System.getProperty(prefix + "keyPassword", keystorePassword));
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Could not find the keys of " + entityId, e);
+        }
+
+        CredentialManager manager = new CredentialManager(entityId, source,
+                TimeUnit.SECONDS.toMillis(Integer.getInteger(PROPERTY_PREFIX + "overlapSeconds", 600)));
+        int checkIntervalSeconds = Integer.getInteger(PROPERTY_PREFIX + "checkIntervalSeconds", 10);
+        if (checkIntervalSeconds > 0) {
+            manager.watch(TimeUnit.SECONDS.toMillis(checkIntervalSeconds));
+        }
+        return manager;
+    }
+
+    /**
+     * Checks the key files for changes and retired keys for expiry at a fixed interval.
+     */
+    public void watch(final long intervalMillis) {
+        watcher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    check();
+                } catch (RuntimeException e) {
+                    logger.error("Checking the keys of " + entityId + " failed", e);
+                }
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops watching the key files of all managers, when the application stops.
+     */
+    public static void shutdown() {
+        watcher.shutdownNow();
+    }
+
+    /**
+     * @return the current credential for signing with the key type
+     */
+    public Credential getCredential(final KeyType keyType) {
+        return snapshot.getCredential(keyType);
+    }
+
+    public CredentialSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Runs the listener after every rotation and every time retired keys expire, for example to drop cached keys.
+     */
+    public void addRotationListener(final Runnable listener) {
+        rotationListeners.add(listener);
+    }
+
+    /**
+     * Reloads the keys if the files changed and drops retired keys whose overlap window has ended.
+     */
+    public synchronized void check() {
+        String version = source.getVersion();
+        if (version != null && !version.equals(sourceVersion)) {
+            // A file that fails to load is only tried again when it changes
+            sourceVersion = version;
+            try {
+                reload();
+            } catch (IOException | GeneralSecurityException | RuntimeException e) {
+                failedReloads.increment();
+                logger.error("Could not reload the keys of " + entityId + " from " + source + ", keeping the current keys", e);
+            }
+        }
+
+        CredentialSnapshot current = snapshot;
+        CredentialSnapshot expired = current.expire(System.currentTimeMillis());
+        if (expired != current) {
+            snapshot = expired;
+            logger.info("Retired keys of {} expired: {}", entityId, expired);
+            notifyListeners();
+        }
+    }
+
+    /**
+     * Loads the keys and makes them current if they differ from the current keys.
+     *
+     * @return true if the keys were rotated
+     */
+    public synchronized boolean reload() throws IOException, GeneralSecurityException {
+        Map<KeyType, Credential> loaded = load();
+        CredentialSnapshot current = snapshot;
+        if (current.hasSameKeys(loaded)) {
+            return false;
+        }
+        snapshot = current.rotate(loaded, System.currentTimeMillis() + overlapMillis);
+        rotations.increment();
+        logger.info("Rotated the keys of {}: {}", entityId, snapshot);
+        notifyListeners();
+        return true;
+    }
+
+    private void notifyListeners() {
+        for (Runnable listener : rotationListeners) {
+            listener.run();
+        }
+    }
+
+    private Map<KeyType, Credential> load() throws IOException, GeneralSecurityException {
+        Map<KeyType, Credential> credentials = new EnumMap<KeyType, Credential>(KeyType.class);
+        for (Credential credential : source.load()) {
+            KeyType keyType;
+            try {
+                keyType = KeyType.forKey(credential.getPublicKey());
+            } catch (IllegalArgumentException e) {
+                logger.warn("Ignoring a key of {} in {}: {}", entityId, source, e.getMessage());
+                continue;
+            }
+            if (!credentials.containsKey(keyType)) {
+                checkKeyPair(credential, keyType);
+                credentials.put(keyType, name(credential));
+            }
+        }
+        if (credentials.isEmpty()) {
+            throw new GeneralSecurityException(source + " has no usable key pair");
+        }
+        for (KeyType keyType : KeyType.values()) {
+            if (!credentials.containsKey(keyType)) {
+                credentials.put(keyType, generated.computeIfAbsent(keyType, this::generate));
+            }
+        }
+        return credentials;
+    }
+
+    private Credential generate(final KeyType keyType) {
+        logger.info("{} has no {} key for {}, generating one that only lives in this process", source, keyType, entityId);
+        KeyPair keyPair = keyType.generateKeyPair(SigningConfiguration.getProvider());
+        try {
+            return name(new BasicCredential(keyPair.getPublic(), keyPair.getPrivate()));
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private Credential name(final Credential credential) throws GeneralSecurityException {
+        if (!(credential instanceof MutableCredential)) {
+            throw new GeneralSecurityException("Can not name the credential " + credential);
+        }
+        ((MutableCredential)credential).setEntityId(entityId);
+        credential.getKeyNames().add(keyName(credential.getPublicKey()));
+        return credential;
+    }
+
+    /**
+     * @return the name of the key, the first 8 bytes of the SHA-256 digest of its encoding in hex
+     */
+    public static String keyName(final PublicKey publicKey) {
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256").digest(publicKey.getEncoded());
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        StringBuilder keyName = new StringBuilder(16);
+        for (int i = 0; i < 8; i++) {
+            keyName.append(Character.forDigit((digest[i] >> 4) & 0xf, 16)).append(Character.forDigit(digest[i] & 0xf, 16));
+        }
+        return keyName.toString();
+    }
+
+    /**
+     * Signs and verifies a test message, so a private key that does not belong to its certificate is never used.
+     */
+    private static void checkKeyPair(final Credential credential, final KeyType keyType) throws GeneralSecurityException {
+        String algorithm = "RSA".equals(keyType.getKeyAlgorithm()) ? "SHA256withRSA" : "SHA256withECDSA";
+        Signature signer = Signature.getInstance(algorithm);
+        signer.initSign(credential.getPrivateKey());
+        signer.update(TEST_MESSAGE);
+        byte[] signature = signer.sign();
+
+        Signature verifier = Signature.getInstance(algorithm);
+        verifier.initVerify(credential.getPublicKey());
+        verifier.update(TEST_MESSAGE);
+        if (!verifier.verify(signature)) {
+            throw new GeneralSecurityException("The " + keyType + " private key does not match its public key");
+        }
+    }
+
+    public String getEntityId() {
+        return entityId;
+    }
+
+    public long getRotations() {
+        return rotations.sum();
+    }
+
+    public long getFailedReloads() {
+        return failedReloads.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "CredentialManager{" + entityId + ", " + source + ", " + snapshot + "}";
+    }
+}
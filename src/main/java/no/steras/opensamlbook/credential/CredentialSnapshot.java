@@ -0,0 +1,159 @@
+package no.steras.opensamlbook.credential;
+
+import no.steras.opensamlbook.signing.KeyType;
+import org.opensaml.security.credential.Credential;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The keys of an entity at one point in time. A snapshot is never changed, a rotation replaces it with a new one.
+ *
+ * Every key type has one current credential, which is used for signing and encryption. Credentials replaced by a
+ * rotation are retired: they are still accepted for verification and decryption until their overlap window ends, so
+ * messages signed or encrypted with the old key just before the rotation still go through.
+ */
+public final class CredentialSnapshot {
+    private final Map<KeyType, Credential> current;
+    private final List<Retired> retired;
+    private final Map<String, Credential> byKeyName;
+    private final List<Credential> decryptionCredentials;
+    private final long createdAt;
+
+    CredentialSnapshot(final Map<KeyType, Credential> current, final List<Retired> retired) {
+        this.current = Collections.unmodifiableMap(new EnumMap<KeyType, Credential>(current));
+        this.retired = Collections.unmodifiableList(new ArrayList<Retired>(retired));
+        this.createdAt = System.currentTimeMillis();
+
+        Map<String, Credential> byKeyName = new HashMap<String, Credential>();
+        List<Credential> decryptionCredentials = new ArrayList<Credential>();
+        for (Retired retiredCredential : retired) {
+            byKeyName.put(keyName(retiredCredential.credential), retiredCredential.credential);
+        }
+        for (Credential credential : current.values()) {
+            byKeyName.put(keyName(credential), credential);
+        }
+        Credential currentRsa = current.get(KeyType.RSA_2048);
+        if (currentRsa != null) {
+            decryptionCredentials.add(currentRsa);
+        }
+        for (Retired retiredCredential : retired) {
+            if (retiredCredential.keyType == KeyType.RSA_2048) {
+                decryptionCredentials.add(retiredCredential.credential);
+            }
+        }
+        this.byKeyName = byKeyName;
+        this.decryptionCredentials = Collections.unmodifiableList(decryptionCredentials);
+    }
+
+    /**
+     * @return the current credential for signing with the key type, or null if there is none
+     */
+    public Credential getCredential(final KeyType keyType) {
+        return current.get(keyType);
+    }
+
+    /**
+     * @param keyName the key name from the signature's KeyInfo, or null to get the current credential
+     * @return the current or retired credential for verifying a signature, or null if the key is unknown or its
+     * overlap window has ended
+     */
+    public Credential getVerificationCredential(final KeyType keyType, final String keyName) {
+        if (keyName == null) {
+            return current.get(keyType);
+        }
+        Credential credential = byKeyName.get(keyName);
+        return credential != null && KeyType.forKey(credential.getPublicKey()) == keyType ? credential : null;
+    }
+
+    /**
+     * @return the current and retired RSA credentials, current first
+     */
+    public List<Credential> getDecryptionCredentials() {
+        return decryptionCredentials;
+    }
+
+    public Map<KeyType, Credential> getCurrent() {
+        return current;
+    }
+
+    public int getRetiredCount() {
+        return retired.size();
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    /**
+     * @return a snapshot with the new credentials as current, retiring the current credentials that are replaced
+     */
+    CredentialSnapshot rotate(final Map<KeyType, Credential> next, final long retiredUntil) {
+        List<Retired> nextRetired = new ArrayList<Retired>(retired);
+        for (Map.Entry<KeyType, Credential> entry : current.entrySet()) {
+            Credential replacement = next.get(entry.getKey());
+            if (replacement == null || !keyName(replacement).equals(keyName(entry.getValue()))) {
+                nextRetired.add(new Retired(entry.getKey(), entry.getValue(), retiredUntil));
+            }
+        }
+        return new CredentialSnapshot(next, nextRetired);
+    }
+
+    /**
+     * @return a snapshot without the retired credentials whose overlap window has ended, or this snapshot if there are
+     * none
+     */
+    CredentialSnapshot expire(final long now) {
+        List<Retired> stillRetired = new ArrayList<Retired>(retired.size());
+        for (Retired retiredCredential : retired) {
+            if (retiredCredential.retiredUntil > now) {
+                stillRetired.add(retiredCredential);
+            }
+        }
+        return stillRetired.size() == retired.size() ? this : new CredentialSnapshot(current, stillRetired);
+    }
+
+    /**
+     * @return true if the credentials have the same current keys
+     */
+    boolean hasSameKeys(final Map<KeyType, Credential> other) {
+        if (!current.keySet().equals(other.keySet())) {
+            return false;
+        }
+        for (Map.Entry<KeyType, Credential> entry : current.entrySet()) {
+            if (!keyName(entry.getValue()).equals(keyName(other.get(entry.getKey())))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static String keyName(final Credential credential) {
+        return credential.getKeyNames().iterator().next();
+    }
+
+    @Override
+    public String toString() {
+        Map<KeyType, String> currentNames = new EnumMap<KeyType, String>(KeyType.class);
+        for (Map.Entry<KeyType, Credential> entry : current.entrySet()) {
+            currentNames.put(entry.getKey(), keyName(entry.getValue()));
+        }
+        return "CredentialSnapshot{current=" + currentNames + ", retired=" + retired.size() + "}";
+    }
+
+    static final class Retired {
+        private final KeyType keyType;
+        private final Credential credential;
+        private final long retiredUntil;
+
+        Retired(final KeyType keyType, final Credential credential, final long retiredUntil) {
+            this.keyType = keyType;
+            this.credential = credential;
+            this.retiredUntil = retiredUntil;
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package no.steras.opensamlbook.credential;
+
+import org.opensaml.security.credential.Credential;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.List;
+
+/**
+ * Where the keys of an entity are read from.
+ */
+public interface CredentialSource {
+
+    /**
+     * Reads the key pairs. The credentials must hold both the public and the private key.
+     */
+    List<Credential> load() throws IOException, GeneralSecurityException;
+
+    /**
+     * @return a value that changes when the underlying files change, or null if the source can not change
+     */
+    String getVersion();
+}
@@ -0,0 +1,78 @@
+package no.steras.opensamlbook.credential;
+
+import no.steras.opensamlbook.ResourceLocation;
+import org.opensaml.security.credential.BasicCredential;
+import org.opensaml.security.credential.Credential;
+import org.opensaml.security.x509.BasicX509Credential;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reads every private key entry of a JKS or PKCS12 keystore, in alias order.
+ */
+public class KeyStoreSource implements CredentialSource {
+    private final ResourceLocation location;
+    private final String type;
+    private final char[] storePassword;
+    private final char[] keyPassword;
+
+    /**
+     * @param location a file path, or a classpath resource prefixed with <code>classpath:</code>
+     * @param type the keystore type, JKS or PKCS12
+     */
+    public KeyStoreSource(final String location, final String type, final String storePassword, final String keyPassword)
+            throws IOException {
+        this.location = ResourceLocation.parse(location);
+        this.type = type;
+        this.storePassword = storePassword.toCharArray();
+        this.keyPassword = keyPassword.toCharArray();
+    }
+
+    @Override
+    public List<Credential> load() throws IOException, GeneralSecurityException {
+        KeyStore keyStore = KeyStore.getInstance(type);
+        try (InputStream in = location.open()) {
+            keyStore.load(in, storePassword);
+        }
+
+        List<String> aliases = Collections.list(keyStore.aliases());
+        Collections.sort(aliases);
+        List<Credential> credentials = new ArrayList<Credential>();
+        for (String alias : aliases) {
+            if (!keyStore.isKeyEntry(alias)) {
+                continue;
+            }
+            Key key = keyStore.getKey(alias, keyPassword);
+            Certificate certificate = keyStore.getCertificate(alias);
+            if (!(key instanceof PrivateKey) || certificate == null) {
+                continue;
+            }
+            if (certificate instanceof X509Certificate) {
+                credentials.add(new BasicX509Credential((X509Certificate)certificate, (PrivateKey)key));
+            } else {
+                credentials.add(new BasicCredential(certificate.getPublicKey(), (PrivateKey)key));
+            }
+        }
+        return credentials;
+    }
+
+    @Override
+    public String getVersion() {
+        return location.getVersion();
+    }
+
+    @Override
+    public String toString() {
+        return type + " keystore " + location;
+    }
+}
@@ -0,0 +1,91 @@
+package no.steras.opensamlbook.encryption;
+
+import no.steras.opensamlbook.credential.CredentialSnapshot;
+import no.steras.opensamlbook.sp.SPCredentials;
+import org.opensaml.saml.saml2.core.Assertion;
+import org.opensaml.saml.saml2.core.EncryptedAssertion;
+import org.opensaml.saml.saml2.encryption.Decrypter;
+import org.opensaml.security.credential.Credential;
+import org.opensaml.xmlsec.encryption.support.DecryptionException;
+import org.opensaml.xmlsec.encryption.support.InlineEncryptedKeyResolver;
+import org.opensaml.xmlsec.keyinfo.impl.StaticKeyInfoCredentialResolver;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Decrypts assertions encrypted for one of a set of private keys, which are tried in order.
+ *
+ * Only AES-GCM data encryption and RSA-OAEP key transport are accepted, whatever the sender chose. RSA PKCS#1 v1.5 key
+ * transport and AES-CBC are open to padding oracle attacks; CBC is only accepted while a peer is configured for it,
+ * see {@link EncryptionConfiguration}.
+ *
+ * The credential resolvers and the Decrypter are configured once and keep no state between calls, so they are shared
+ * by all requests. The shared decrypter uses the SP's current RSA key and its retired RSA keys, and is replaced when
+ * the SP's keys change. While a retired key is in use, the Decrypter logs an error for every key it tries that does
+ * not fit.
+ */
+public class AssertionDecrypter {
+    private static volatile SharedDecrypter sharedDecrypter;
+
+    private final Decrypter decrypter;
+
+    public AssertionDecrypter(final Credential decryptionCredential) {
+        this(Collections.singletonList(decryptionCredential));
+    }
+
+    public AssertionDecrypter(final List<Credential> decryptionCredentials) {
+        StaticKeyInfoCredentialResolver keyInfoCredentialResolver = new StaticKeyInfoCredentialResolver(decryptionCredentials);
+
+        decrypter = new Decrypter(null, keyInfoCredentialResolver, new InlineEncryptedKeyResolver(),
+                acceptedAlgorithms(), Collections.<String>emptyList());
+        // The decrypted assertion gets its own document, so its signature can be verified on its own
+        decrypter.setRootInNewDocument(true);
+    }
+
+    /**
+     * @return the URIs of the accepted data encryption and key transport algorithms
+     */
+    static Set<String> acceptedAlgorithms() {
+        Set<String> algorithms = new HashSet<String>();
+        for (DataEncryptionAlgorithm dataAlgorithm : DataEncryptionAlgorithm.values()) {
+            if (dataAlgorithm != DataEncryptionAlgorithm.AES128_CBC || EncryptionConfiguration.isConfigured(dataAlgorithm)) {
+                algorithms.add(dataAlgorithm.getAlgorithmURI());
+            }
+        }
+        for (KeyTransportAlgorithm keyTransportAlgorithm : KeyTransportAlgorithm.values()) {
+            algorithms.addAll(keyTransportAlgorithm.getAlgorithmURIs());
+        }
+        return algorithms;
+    }
+
+    public static AssertionDecrypter getSharedDecrypter() {
+        CredentialSnapshot credentials = SPCredentials.getManager().getSnapshot();
+        SharedDecrypter shared = sharedDecrypter;
+        if (shared == null || shared.credentials != credentials) {
+            shared = new SharedDecrypter(credentials, new AssertionDecrypter(credentials.getDecryptionCredentials()));
+            sharedDecrypter = shared;
+        }
+        return shared.decrypter;
+    }
+
+    public Assertion decrypt(final EncryptedAssertion encryptedAssertion) {
+        try {
+            return decrypter.decrypt(encryptedAssertion);
+        } catch (DecryptionException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static final class SharedDecrypter {
+        private final CredentialSnapshot credentials;
+        private final AssertionDecrypter decrypter;
+
+        private SharedDecrypter(final CredentialSnapshot credentials, final AssertionDecrypter decrypter) {
+            this.credentials = credentials;
+            this.decrypter = decrypter;
+        }
+    }
+}
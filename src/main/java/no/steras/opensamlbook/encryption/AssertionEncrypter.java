@@ -0,0 +1,61 @@
+package no.steras.opensamlbook.encryption;
+
+import org.opensaml.saml.saml2.core.Assertion;
+import org.opensaml.saml.saml2.core.EncryptedAssertion;
+import org.opensaml.saml.saml2.encryption.Encrypter;
+import org.opensaml.security.credential.Credential;
+import org.opensaml.xmlsec.encryption.support.DataEncryptionParameters;
+import org.opensaml.xmlsec.encryption.support.EncryptionException;
+import org.opensaml.xmlsec.encryption.support.KeyEncryptionParameters;
+
+/**
+ * Encrypts assertions for one recipient key.
+ *
+ * The Encrypter only holds its parameters and generates a new data encryption key for every assertion, so one
+ * instance is shared by all requests.
+ */
+public class AssertionEncrypter {
+    private final EncryptionConfiguration configuration;
+    private final Credential recipientCredential;
+    private final Encrypter encrypter;
+
+    public AssertionEncrypter(final EncryptionConfiguration configuration, final Credential recipientCredential) {
+        if (!configuration.isEnabled()) {
+            throw new IllegalArgumentException("Encryption is disabled");
+        }
+        this.configuration = configuration;
+        this.recipientCredential = recipientCredential;
+
+        DataEncryptionParameters dataEncryptionParameters = new DataEncryptionParameters();
+        dataEncryptionParameters.setAlgorithm(configuration.getDataAlgorithm().getAlgorithmURI());
+
+        KeyEncryptionParameters keyEncryptionParameters = new KeyEncryptionParameters();
+        keyEncryptionParameters.setEncryptionCredential(recipientCredential);
+        keyEncryptionParameters.setAlgorithm(configuration.getKeyTransportAlgorithm().getAlgorithmURI());
+        if (configuration.getKeyTransportAlgorithm().getOAEPParameters() != null) {
+            keyEncryptionParameters.setRSAOAEPParameters(configuration.getKeyTransportAlgorithm().getOAEPParameters());
+        }
+
+        encrypter = new Encrypter(dataEncryptionParameters, keyEncryptionParameters);
+        encrypter.setKeyPlacement(Encrypter.KeyPlacement.INLINE);
+    }
+
+    /**
+     * The assertion must be signed before it is encrypted.
+     */
+    public EncryptedAssertion encrypt(final Assertion assertion) {
+        try {
+            return encrypter.encrypt(assertion);
+        } catch (EncryptionException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public EncryptionConfiguration getConfiguration() {
+        return configuration;
+    }
+
+    public Credential getRecipientCredential() {
+        return recipientCredential;
+    }
+}
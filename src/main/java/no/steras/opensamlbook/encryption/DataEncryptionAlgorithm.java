@@ -0,0 +1,25 @@
+package no.steras.opensamlbook.encryption;
+
+import org.opensaml.xmlsec.encryption.support.EncryptionConstants;
+
+/**
+ * The block ciphers assertions can be encrypted with.
+ */
+public enum DataEncryptionAlgorithm {
+    AES128_GCM(EncryptionConstants.ALGO_ID_BLOCKCIPHER_AES128_GCM),
+    AES256_GCM(EncryptionConstants.ALGO_ID_BLOCKCIPHER_AES256_GCM),
+    /**
+     * CBC mode is open to padding oracle attacks, only for peers that do not support GCM.
+     */
+    AES128_CBC(EncryptionConstants.ALGO_ID_BLOCKCIPHER_AES128);
+
+    private final String algorithmURI;
+
+    DataEncryptionAlgorithm(final String algorithmURI) {
+        this.algorithmURI = algorithmURI;
+    }
+
+    public String getAlgorithmURI() {
+        return algorithmURI;
+    }
+}
@@ -0,0 +1,99 @@
+package no.steras.opensamlbook.encryption;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Whether and how assertions for a peer are encrypted.
+ *
+ * Encryption is turned on by setting the data encryption algorithm for a peer with the system property
+ * <code>opensamlbook.encryption.&lt;entityId&gt;.dataAlgorithm</code>, or for all peers with
+ * <code>opensamlbook.encryption.dataAlgorithm</code>. The key transport is set the same way with
+ * <code>keyTransport</code> and defaults to RSA_OAEP. Valid values are the names in {@link DataEncryptionAlgorithm} and
+ * {@link KeyTransportAlgorithm}.
+ */
+public class EncryptionConfiguration {
+    public static final String PROPERTY_PREFIX = "opensamlbook.encryption.";
+
+    /**
+     * Assertions are sent in the clear.
+     */
+    public static final EncryptionConfiguration DISABLED = new EncryptionConfiguration(null, null);
+
+    private static final ConcurrentMap<String, EncryptionConfiguration> peerConfigurations = new ConcurrentHashMap<String, EncryptionConfiguration>();
+
+    private final DataEncryptionAlgorithm dataAlgorithm;
+    private final KeyTransportAlgorithm keyTransportAlgorithm;
+
+    public EncryptionConfiguration(final DataEncryptionAlgorithm dataAlgorithm, final KeyTransportAlgorithm keyTransportAlgorithm) {
+        this.dataAlgorithm = dataAlgorithm;
+        this.keyTransportAlgorithm = keyTransportAlgorithm;
+    }
+
+    public static EncryptionConfiguration forPeer(final String entityId) {
+        EncryptionConfiguration configuration = peerConfigurations.get(entityId);
+        if (configuration == null) {
+            configuration = readConfiguration(entityId);
+            EncryptionConfiguration existing = peerConfigurations.putIfAbsent(entityId, configuration);
+            if (existing != null) {
+                configuration = existing;
+            }
+        }
+        return configuration;
+    }
+
+    /**
+     * Overrides the configuration for a peer, mainly for benchmarks.
+     */
+    public static void setForPeer(final String entityId, final EncryptionConfiguration configuration) {
+        peerConfigurations.put(entityId, configuration);
+    }
+
+    private static EncryptionConfiguration readConfiguration(final String entityId) {
+        String dataAlgorithm = peerProperty(entityId, "dataAlgorithm", null);
+        if (dataAlgorithm == null || dataAlgorithm.isEmpty()) {
+            return DISABLED;
+        }
+        String keyTransport = peerProperty(entityId, "keyTransport", KeyTransportAlgorithm.RSA_OAEP.name());
+        return new EncryptionConfiguration(DataEncryptionAlgorithm.valueOf(dataAlgorithm), KeyTransportAlgorithm.valueOf(keyTransport));
+    }
+
+    private static String peerProperty(final String entityId, final String name, final String defaultValue) {
+        return System.getProperty(PROPERTY_PREFIX + entityId + "." + name, System.getProperty(PROPERTY_PREFIX + name, defaultValue));
+    }
+
+    /**
+     * @return true if the data encryption algorithm is configured for a peer or for all peers
+     */
+    public static boolean isConfigured(final DataEncryptionAlgorithm dataAlgorithm) {
+        for (EncryptionConfiguration configuration : peerConfigurations.values()) {
+            if (configuration.dataAlgorithm == dataAlgorithm) {
+                return true;
+            }
+        }
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith(PROPERTY_PREFIX) && name.endsWith("dataAlgorithm")
+                    && dataAlgorithm.name().equals(System.getProperty(name))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean isEnabled() {
+        return dataAlgorithm != null;
+    }
+
+    public DataEncryptionAlgorithm getDataAlgorithm() {
+        return dataAlgorithm;
+    }
+
+    public KeyTransportAlgorithm getKeyTransportAlgorithm() {
+        return keyTransportAlgorithm;
+    }
+
+    @Override
+    public String toString() {
+        return isEnabled() ? dataAlgorithm + "/" + keyTransportAlgorithm : "DISABLED";
+    }
+}
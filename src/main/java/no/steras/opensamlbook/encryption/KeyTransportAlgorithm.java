@@ -0,0 +1,59 @@
+package no.steras.opensamlbook.encryption;
+
+import org.opensaml.xmlsec.encryption.support.EncryptionConstants;
+import org.opensaml.xmlsec.encryption.support.RSAOAEPParameters;
+import org.opensaml.xmlsec.signature.support.SignatureConstants;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * How the data encryption key is encrypted for the recipient's RSA key.
+ */
+public enum KeyTransportAlgorithm {
+    /**
+     * RSA-OAEP with SHA-1 for both the digest and the mask generation, supported by every SAML implementation.
+     */
+    RSA_OAEP(EncryptionConstants.ALGO_ID_KEYTRANSPORT_RSAOAEP, null),
+    /**
+     * The XML Encryption 1.1 RSA-OAEP with SHA-256 for both the digest and the mask generation.
+     */
+    RSA_OAEP_SHA256(EncryptionConstants.ALGO_ID_KEYTRANSPORT_RSAOAEP11,
+            new RSAOAEPParameters(SignatureConstants.ALGO_ID_DIGEST_SHA256, EncryptionConstants.ALGO_ID_MGF1_SHA256, null));
+
+    private final String algorithmURI;
+    private final RSAOAEPParameters oaepParameters;
+
+    KeyTransportAlgorithm(final String algorithmURI, final RSAOAEPParameters oaepParameters) {
+        this.algorithmURI = algorithmURI;
+        this.oaepParameters = oaepParameters;
+    }
+
+    public String getAlgorithmURI() {
+        return algorithmURI;
+    }
+
+    /**
+     * @return the OAEP parameters, or null for the algorithm's defaults
+     */
+    public RSAOAEPParameters getOAEPParameters() {
+        return oaepParameters;
+    }
+
+    /**
+     * @return the key transport URI and the URIs of the digest and mask generation function it uses, SHA-1 based if the
+     * parameters are the defaults
+     */
+    public List<String> getAlgorithmURIs() {
+        List<String> uris = new ArrayList<String>(3);
+        uris.add(algorithmURI);
+        if (oaepParameters == null) {
+            uris.add(SignatureConstants.ALGO_ID_DIGEST_SHA1);
+            uris.add(EncryptionConstants.ALGO_ID_MGF1_SHA1);
+        } else {
+            uris.add(oaepParameters.getDigestMethod());
+            uris.add(oaepParameters.getMaskGenerationFunction());
+        }
+        return uris;
+    }
+}
@@ -0,0 +1,79 @@
+package no.steras.opensamlbook.idp;
+
+import no.steras.opensamlbook.metrics.Stage;
+import no.steras.opensamlbook.xml.SAMLSerializer;
+import org.opensaml.core.xml.io.MarshallingException;
+import org.opensaml.saml.common.SAMLObject;
+import org.opensaml.saml.saml2.binding.artifact.SAML2ArtifactType0004;
+
+import javax.xml.transform.TransformerException;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Issues SAML 2.0 type 0x0004 artifacts for messages and keeps the marshalled messages in the {@link ArtifactStore}
+ * until they are resolved.
+ */
+public class ArtifactIssuer {
+    private static final byte[] ENDPOINT_INDEX = {0, 0};
+    private static final byte[] SOURCE_ID;
+    private static final SecureRandom secureRandom = new SecureRandom();
+
+    static {
+        try {
+            SOURCE_ID = MessageDigest.getInstance("SHA-1").digest(IDPConstants.IDP_ENTITY_ID.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @param relyingParty the entity ID of the SP that may resolve the artifact
+     * @return the base64 encoded artifact for the message
+     */
+    public static String issue(final SAMLObject message, final String relyingParty) throws MarshallingException, TransformerException {
+        long start = Stage.MARSHALL.start();
+        SAMLSerializer.marshall(message);
+        start = Stage.MARSHALL.end(start);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(8192);
+        SAMLSerializer.write(message, out);
+        Stage.SERIALIZE.end(start);
+        return issue(out.toByteArray(), relyingParty);
+    }
+
+    /**
+     * @param relyingParty the entity ID of the SP that may resolve the artifact
+     * @return the base64 encoded artifact for the serialized message
+     */
+    public static String issue(final byte[] message, final String relyingParty) {
+        byte[] messageHandle = new byte[20];
+        secureRandom.nextBytes(messageHandle);
+        ArtifactStore.getSharedStore().put(messageHandle, message, relyingParty);
+
+        return new SAML2ArtifactType0004(ENDPOINT_INDEX, SOURCE_ID, messageHandle).base64Encode();
+    }
+
+    /**
+     * Removes the message of an artifact from the store.
+     *
+     * @param relyingParty the authenticated entity ID of the SP resolving the artifact
+     * @return the marshalled message, or null if the artifact is malformed, not issued by this IDP or not to the SP,
+     * expired or already resolved
+     */
+    public static byte[] resolve(final String base64Artifact, final String relyingParty) {
+        SAML2ArtifactType0004 artifact;
+        try {
+            artifact = SAML2ArtifactType0004.parseArtifact(java.util.Base64.getDecoder().decode(base64Artifact));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (!Arrays.equals(SOURCE_ID, artifact.getSourceID())) {
+            return null;
+        }
+        return ArtifactStore.getSharedStore().remove(artifact.getMessageHandle(), relyingParty);
+    }
+}
@@ -1,86 +1,157 @@
 package no.steras.opensamlbook.idp;
 
-import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
-import net.shibboleth.utilities.java.support.xml.BasicParserPool;
 import net.shibboleth.utilities.java.support.xml.XMLParserException;
 import no.steras.opensamlbook.OpenSAMLUtils;
-import no.steras.opensamlbook.sp.SPConstants;
-import no.steras.opensamlbook.sp.SPCredentials;
-import org.apache.xml.security.utils.EncryptionConstants;
+import no.steras.opensamlbook.async.AsyncExecutors;
+import no.steras.opensamlbook.async.AsyncProcessor;
+import no.steras.opensamlbook.metadata.MetadataRegistry;
+import no.steras.opensamlbook.metrics.Stage;
+import no.steras.opensamlbook.signing.SignatureVerifier;
+import no.steras.opensamlbook.trace.MessageTracer;
+import no.steras.opensamlbook.xml.SAMLSerializer;
+import no.steras.opensamlbook.xml.SharedParserPool;
 import org.joda.time.DateTime;
 import org.opensaml.core.xml.XMLObject;
 import org.opensaml.core.xml.config.XMLObjectProviderRegistrySupport;
 import org.opensaml.core.xml.io.*;
-import org.opensaml.core.xml.schema.XSString;
-import org.opensaml.core.xml.schema.impl.XSStringBuilder;
 import org.opensaml.saml.common.SAMLObject;
 import org.opensaml.saml.saml2.core.*;
-import org.opensaml.saml.saml2.encryption.Encrypter;
 import org.opensaml.soap.soap11.Body;
 import org.opensaml.soap.soap11.Envelope;
-import org.opensaml.xmlsec.encryption.support.DataEncryptionParameters;
-import org.opensaml.xmlsec.encryption.support.EncryptionException;
-import org.opensaml.xmlsec.encryption.support.KeyEncryptionParameters;
-import org.opensaml.xmlsec.signature.Signature;
-import org.opensaml.xmlsec.signature.support.SignatureConstants;
 import org.opensaml.xmlsec.signature.support.SignatureException;
-import org.opensaml.xmlsec.signature.support.Signer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
-import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.PrintWriter;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Created by Privat on 4/6/14.
  */
 public class ArtifactResolutionServlet extends HttpServlet {
     private static Logger logger = LoggerFactory.getLogger(ArtifactResolutionServlet.class);
-
+    /**
+     * Larger SOAP requests are rejected while they are read asynchronously.
+     */
+    private static final long MAX_REQUEST_BYTES = 64 * 1024;
+    private static final AsyncProcessor processor = AsyncProcessor.create("artifact_resolution");
+
+    /**
+     * The SOAP request is read and parsed on a body reader thread, the response is built, signed and written on a worker
+     * thread.
+     */
     @Override
-    protected void doPost(final HttpServletRequest req, final HttpServletResponse resp) throws ServletException, IOException {
-        ArtifactResponse artifactResponse = buildArtifactResponse();
-        artifactResponse.setInResponseTo("Made up ID");
+    protected void doPost(final HttpServletRequest req, final HttpServletResponse resp) throws IOException {
+        boolean tracing = MessageTracer.isTracing(req);
+        processor.process(req, resp, MAX_REQUEST_BYTES, (body, httpResponse) -> {
+            ArtifactResolve artifactResolve = unmarshallSOAPArtifactResolve(body);
+            MessageTracer.trace(tracing, "ArtifactResolve", artifactResolve);
+
+            return CompletableFuture.runAsync(() -> {
+                String relyingParty = authenticate(artifactResolve);
+                ArtifactResponse artifactResponse = buildArtifactResponse(resolveArtifact(artifactResolve, relyingParty), relyingParty);
+                artifactResponse.setInResponseTo(artifactResolve.getID());
+                MessageTracer.trace(tracing, "ArtifactResponse", artifactResponse);
+
+                httpResponse.setContentType("text/xml; charset=UTF-8");
+                try {
+                    Envelope envelope = wrapInSOAPEnvelope(artifactResponse);
+                    long start = Stage.MARSHALL.start();
+                    SAMLSerializer.marshall(envelope);
+                    start = Stage.MARSHALL.end(start);
+                    SAMLSerializer.write(envelope, httpResponse.getOutputStream());
+                    Stage.SERIALIZE.end(start);
+                } catch (MarshallingException | TransformerException | IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }, AsyncExecutors.worker());
+        });
+    }
 
-        printSAMLObject(wrapInSOAPEnvelope(artifactResponse), resp.getWriter());
+    /**
+     * @return the SP's default assertion consumer endpoint in the metadata
+     */
+    private static String assertionConsumerService(final String relyingParty) {
+        return MetadataRegistry.getSharedRegistry().getIndex().requireEntity(relyingParty).getAssertionConsumerService();
     }
 
     public static Response unmarshallArtifactResolve(final InputStream input) {
-        try {
-            BasicParserPool ppMgr = new BasicParserPool();
-            ppMgr.setNamespaceAware(true);
-            ppMgr.initialize();
+        return (Response)unmarshall(input);
+    }
 
-            Document soap = ppMgr.parse(input);
+    private static XMLObject unmarshall(final InputStream input) {
+        try {
+            long start = Stage.PARSE.start();
+            Document soap = SharedParserPool.getParserPool().parse(input);
+            start = Stage.PARSE.end(start);
 
             Element soapRoot = soap.getDocumentElement();
 
             UnmarshallerFactory unmarshallerFactory = XMLObjectProviderRegistrySupport.getUnmarshallerFactory();
             Unmarshaller unmarshaller = unmarshallerFactory.getUnmarshaller(soapRoot);
 
-            return (Response)unmarshaller.unmarshall(soapRoot);
-        } catch (UnmarshallingException | ComponentInitializationException | XMLParserException e) {
+            XMLObject object = unmarshaller.unmarshall(soapRoot);
+            Stage.UNMARSHALL.end(start);
+            return object;
+        } catch (UnmarshallingException | XMLParserException e) {
             throw new RuntimeException(e);
         }
 
     }
 
+    private static ArtifactResolve unmarshallSOAPArtifactResolve(final InputStream input) {
+        Envelope envelope = (Envelope)unmarshall(input);
+        if (envelope.getBody() == null || envelope.getBody().getUnknownXMLObjects(ArtifactResolve.DEFAULT_ELEMENT_NAME).isEmpty()) {
+            throw new RuntimeException("SOAP request doesn't contain an ArtifactResolve");
+        }
+        return (ArtifactResolve)envelope.getBody().getUnknownXMLObjects(ArtifactResolve.DEFAULT_ELEMENT_NAME).get(0);
+    }
+
+    /**
+     * @param relyingParty the authenticated Issuer of the ArtifactResolve
+     * @return the message the artifact was issued for, or null if it can not be resolved
+     */
+    private Response resolveArtifact(final ArtifactResolve artifactResolve, final String relyingParty) {
+        if (artifactResolve.getArtifact() == null || artifactResolve.getArtifact().getArtifact() == null) {
+            return null;
+        }
+        byte[] message = ArtifactIssuer.resolve(artifactResolve.getArtifact().getArtifact(), relyingParty);
+        if (message == null) {
+            logger.info("Artifact could not be resolved");
+            return null;
+        }
+        return (Response)unmarshall(new ByteArrayInputStream(message));
+    }
+
+    /**
+     * An artifact is only resolved for the SP it was issued to, so the ArtifactResolve must name its SP in the Issuer
+     * and be signed with that SP's key.
+     *
+     * @return the entity ID of the SP
+     * @throws RuntimeException if the ArtifactResolve has no Issuer or is not signed by it
+     */
+    private static String authenticate(final ArtifactResolve artifactResolve) {
+        Issuer issuer = artifactResolve.getIssuer();
+        if (issuer == null || issuer.getValue() == null || issuer.getValue().isEmpty()
+                || (issuer.getFormat() != null && !NameIDType.ENTITY.equals(issuer.getFormat()))) {
+            throw new RuntimeException("ArtifactResolve has no entity Issuer");
+        }
+        try {
+            SignatureVerifier.getSharedVerifier().verify(artifactResolve, issuer.getValue());
+        } catch (SignatureException e) {
+            throw new RuntimeException("ArtifactResolve from " + issuer.getValue() + " is not signed by it", e);
+        }
+        return issuer.getValue();
+    }
+
     public static org.w3c.dom.Element marshallSAMLObject(final SAMLObject object) {
         org.w3c.dom.Element element = null;
         try {
@@ -98,188 +169,27 @@ public class ArtifactResolutionServlet extends HttpServlet {
         return element;
     }
 
-    public ArtifactResponse buildArtifactResponse() {
+    /**
+     * Builds an ArtifactResponse carrying the message, or no message if it is null as when an artifact is unknown.
+     *
+     * @param relyingParty the entity ID of the SP the ArtifactResponse goes to
+     */
+    public ArtifactResponse buildArtifactResponse(final Response message, final String relyingParty) {
 
         ArtifactResponse artifactResponse = OpenSAMLUtils.buildSAMLObject(ArtifactResponse.class);
 
-        Issuer issuer = OpenSAMLUtils.buildSAMLObject(Issuer.class);
-        issuer.setValue(IDPConstants.IDP_ENTITY_ID);
-        artifactResponse.setIssuer(issuer);
+        artifactResponse.setIssuer(OpenSAMLUtils.buildIssuer(IDPConstants.IDP_ENTITY_ID));
         artifactResponse.setIssueInstant(new DateTime());
-        artifactResponse.setDestination(SPConstants.ASSERTION_CONSUMER_SERVICE);
+        artifactResponse.setDestination(assertionConsumerService(relyingParty));
 
         artifactResponse.setID(OpenSAMLUtils.generateSecureRandomId());
 
-        Status status = OpenSAMLUtils.buildSAMLObject(Status.class);
-        StatusCode statusCode = OpenSAMLUtils.buildSAMLObject(StatusCode.class);
-        statusCode.setValue(StatusCode.SUCCESS);
-        status.setStatusCode(statusCode);
-        artifactResponse.setStatus(status);
-
-        Response response = OpenSAMLUtils.buildSAMLObject(Response.class);
-        response.setDestination(SPConstants.ASSERTION_CONSUMER_SERVICE);
-        response.setIssueInstant(new DateTime());
-        response.setID(OpenSAMLUtils.generateSecureRandomId());
-        Issuer issuer2 = OpenSAMLUtils.buildSAMLObject(Issuer.class);
-        issuer2.setValue(IDPConstants.IDP_ENTITY_ID);
-
-        response.setIssuer(issuer2);
-
-        Status status2 = OpenSAMLUtils.buildSAMLObject(Status.class);
-        StatusCode statusCode2 = OpenSAMLUtils.buildSAMLObject(StatusCode.class);
-        statusCode2.setValue(StatusCode.SUCCESS);
-        status2.setStatusCode(statusCode2);
+        artifactResponse.setStatus(OpenSAMLUtils.buildStatus(StatusCode.SUCCESS));
 
-        response.setStatus(status2);
-
-        artifactResponse.setMessage(response);
-
-        Assertion assertion = buildAssertion();
-
-        signAssertion(assertion);
-
-        response.getAssertions().add(assertion);
+        artifactResponse.setMessage(message);
         return artifactResponse;
     }
 
-    private EncryptedAssertion encryptAssertion(Assertion assertion) {
-        DataEncryptionParameters dataEncryptionParameters = new DataEncryptionParameters();
-        dataEncryptionParameters.setAlgorithm(EncryptionConstants.ALGO_ID_BLOCKCIPHER_AES128);
-
-        KeyEncryptionParameters keyEncryptionParameters = new KeyEncryptionParameters();
-        keyEncryptionParameters.setEncryptionCredential(SPCredentials.getCredential());
-        keyEncryptionParameters.setAlgorithm(EncryptionConstants.ALGO_ID_KEYTRANSPORT_RSAOAEP);
-
-        Encrypter encrypter = new Encrypter(dataEncryptionParameters, keyEncryptionParameters);
-        encrypter.setKeyPlacement(Encrypter.KeyPlacement.INLINE);
-
-        try {
-            EncryptedAssertion encryptedAssertion = encrypter.encrypt(assertion);
-            return encryptedAssertion;
-        } catch (EncryptionException e) {
-            throw new RuntimeException(e);
-        }
-    }
-
-    private void signAssertion(Assertion assertion) {
-        Signature signature = OpenSAMLUtils.buildSAMLObject(Signature.class);
-        signature.setSigningCredential(IDPCredentials.getCredential());
-        signature.setSignatureAlgorithm(SignatureConstants.ALGO_ID_SIGNATURE_RSA_SHA1);
-        signature.setCanonicalizationAlgorithm(SignatureConstants.ALGO_ID_C14N_EXCL_OMIT_COMMENTS);
-
-        assertion.setSignature(signature);
-
-        try {
-            XMLObjectProviderRegistrySupport.getMarshallerFactory().getMarshaller(assertion).marshall(assertion);
-        } catch (MarshallingException e) {
-            throw new RuntimeException(e);
-        }
-
-        try {
-            Signer.signObject(signature);
-        } catch (SignatureException e) {
-            throw new RuntimeException(e);
-        }
-    }
-
-    private Assertion buildAssertion() {
-
-        Assertion assertion = OpenSAMLUtils.buildSAMLObject(Assertion.class);
-
-        Issuer issuer = OpenSAMLUtils.buildSAMLObject(Issuer.class);
-        issuer.setValue(IDPConstants.IDP_ENTITY_ID);
-        assertion.setIssuer(issuer);
-        assertion.setIssueInstant(new DateTime());
-
-        assertion.setID(OpenSAMLUtils.generateSecureRandomId());
-
-        Subject subject = OpenSAMLUtils.buildSAMLObject(Subject.class);
-        assertion.setSubject(subject);
-
-        NameID nameID = OpenSAMLUtils.buildSAMLObject(NameID.class);
-        nameID.setFormat(NameIDType.TRANSIENT);
-        nameID.setValue("Some NameID value");
-        nameID.setSPNameQualifier("SP name qualifier");
-        nameID.setNameQualifier("Name qualifier");
-
-        subject.setNameID(nameID);
-
-        subject.getSubjectConfirmations().add(buildSubjectConfirmation());
-
-        assertion.setConditions(buildConditions());
-
-        assertion.getAttributeStatements().add(buildAttributeStatement());
-
-        assertion.getAuthnStatements().add(buildAuthnStatement());
-
-        return assertion;
-    }
-
-    private SubjectConfirmation buildSubjectConfirmation() {
-        SubjectConfirmation subjectConfirmation = OpenSAMLUtils.buildSAMLObject(SubjectConfirmation.class);
-        subjectConfirmation.setMethod(SubjectConfirmation.METHOD_BEARER);
-
-        SubjectConfirmationData subjectConfirmationData = OpenSAMLUtils.buildSAMLObject(SubjectConfirmationData.class);
-        subjectConfirmationData.setInResponseTo("Made up ID");
-        subjectConfirmationData.setNotBefore(new DateTime().minusDays(2));
-        subjectConfirmationData.setNotOnOrAfter(new DateTime().plusDays(2));
-        subjectConfirmationData.setRecipient(SPConstants.ASSERTION_CONSUMER_SERVICE);
-
-        subjectConfirmation.setSubjectConfirmationData(subjectConfirmationData);
-
-        return subjectConfirmation;
-    }
-
-    private AuthnStatement buildAuthnStatement() {
-        AuthnStatement authnStatement = OpenSAMLUtils.buildSAMLObject(AuthnStatement.class);
-        AuthnContext authnContext = OpenSAMLUtils.buildSAMLObject(AuthnContext.class);
-        AuthnContextClassRef authnContextClassRef = OpenSAMLUtils.buildSAMLObject(AuthnContextClassRef.class);
-        authnContextClassRef.setAuthnContextClassRef(AuthnContext.SMARTCARD_AUTHN_CTX);
-        authnContext.setAuthnContextClassRef(authnContextClassRef);
-        authnStatement.setAuthnContext(authnContext);
-
-        authnStatement.setAuthnInstant(new DateTime());
-
-        return authnStatement;
-    }
-
-    private Conditions buildConditions() {
-        Conditions conditions = OpenSAMLUtils.buildSAMLObject(Conditions.class);
-        conditions.setNotBefore(new DateTime().minusDays(2));
-        conditions.setNotOnOrAfter(new DateTime().plusDays(2));
-        AudienceRestriction audienceRestriction = OpenSAMLUtils.buildSAMLObject(AudienceRestriction.class);
-        Audience audience = OpenSAMLUtils.buildSAMLObject(Audience.class);
-        audience.setAudienceURI(SPConstants.ASSERTION_CONSUMER_SERVICE);
-        audienceRestriction.getAudiences().add(audience);
-        conditions.getAudienceRestrictions().add(audienceRestriction);
-        return conditions;
-    }
-
-    private AttributeStatement buildAttributeStatement() {
-        AttributeStatement attributeStatement = OpenSAMLUtils.buildSAMLObject(AttributeStatement.class);
-
-        Attribute attributeUserName = OpenSAMLUtils.buildSAMLObject(Attribute.class);
-
-        XSStringBuilder stringBuilder = (XSStringBuilder)XMLObjectProviderRegistrySupport.getBuilderFactory().getBuilder(XSString.TYPE_NAME);
-        XSString userNameValue = stringBuilder.buildObject(AttributeValue.DEFAULT_ELEMENT_NAME, XSString.TYPE_NAME);
-        userNameValue.setValue("bob");
-
-        attributeUserName.getAttributeValues().add(userNameValue);
-        attributeUserName.setName("username");
-        attributeStatement.getAttributes().add(attributeUserName);
-
-        Attribute attributeLevel = OpenSAMLUtils.buildSAMLObject(Attribute.class);
-        XSString levelValue = stringBuilder.buildObject(AttributeValue.DEFAULT_ELEMENT_NAME, XSString.TYPE_NAME);
-        levelValue.setValue("999999999");
-
-        attributeLevel.getAttributeValues().add(levelValue);
-        attributeLevel.setName("telephone");
-        attributeStatement.getAttributes().add(attributeLevel);
-
-        return attributeStatement;
-
-    }
-
     public static Envelope wrapInSOAPEnvelope(final XMLObject xmlObject) {
         Envelope envelope = OpenSAMLUtils.buildSAMLObject(Envelope.class);
         Body body = OpenSAMLUtils.buildSAMLObject(Body.class);
@@ -292,30 +202,4 @@ public class ArtifactResolutionServlet extends HttpServlet {
     }
 
 
-    public static void printSAMLObject(final XMLObject object, final PrintWriter writer) {
-        try {
-            DocumentBuilder builder;
-            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-            factory.setNamespaceAware(true);
-
-            builder = factory.newDocumentBuilder();
-
-            org.w3c.dom.Document document = builder.newDocument();
-            Marshaller out = XMLObjectProviderRegistrySupport.getMarshallerFactory().getMarshaller(object);
-            out.marshall(object, document);
-
-            Transformer transformer = TransformerFactory.newInstance().newTransformer();
-            transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-            StreamResult result = new StreamResult(writer);
-            DOMSource source = new DOMSource(document);
-            transformer.transform(source, result);
-        } catch (ParserConfigurationException e) {
-            e.printStackTrace();
-        } catch (MarshallingException e) {
-            e.printStackTrace();
-        } catch (TransformerException e) {
-            e.printStackTrace();
-        }
-    }
-
 }
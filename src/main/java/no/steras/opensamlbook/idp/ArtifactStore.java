@@ -0,0 +1,278 @@
+package no.steras.opensamlbook.idp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Holds the marshalled SAML messages of issued artifacts until the SP resolves them.
+ *
+ * Entries are spread over shards that each have their own lock, so issuing and resolving only contend within a shard.
+ * Each shard has a hard capacity; when it is full the oldest pending artifact is dropped. Expiry uses a timer wheel per
+ * shard: an entry's message handle is appended to the slot of the tick it expires in, and a sweeper thread empties one
+ * slot per tick. Resolving an artifact removes it, so every artifact can only be used once.
+ *
+ * Each message is stored with the entity ID of the SP it was issued to, and only that SP can resolve it. A request
+ * from another entity leaves the artifact in place, so it can not be used up by whoever saw it.
+ *
+ * The shared store is sized with the system properties <code>opensamlbook.artifactStore.maxSize</code> (default 500000)
+ * and <code>opensamlbook.artifactStore.ttlSeconds</code> (default 60).
+ */
+public class ArtifactStore {
+    private static final int SHARDS = 64;
+    private static final long TICK_MILLIS = 1000;
+
+    private static final ArtifactStore sharedStore = new ArtifactStore(
+            Integer.getInteger("opensamlbook.artifactStore.maxSize", 500000),
+            TimeUnit.SECONDS.toMillis(Integer.getInteger("opensamlbook.artifactStore.ttlSeconds", 60)));
+
+    private final Shard[] shards;
+    private final long ttlMillis;
+    private final int wheelSize;
+    private final long startMillis;
+    private final ScheduledExecutorService sweeper;
+    /**
+     * Only touched by the sweeper thread.
+     */
+    private long lastSweptTick = -1;
+
+    private final LongAdder stored = new LongAdder();
+    private final LongAdder resolved = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    public ArtifactStore(final int maxSize, final long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+        this.wheelSize = (int)(ttlMillis / TICK_MILLIS) + 2;
+        this.startMillis = System.currentTimeMillis();
+
+        int shardCapacity = Math.max(1, (maxSize + SHARDS - 1) / SHARDS);
+        shards = new Shard[SHARDS];
+        for (int i = 0; i < SHARDS; i++) {
+            shards[i] = new Shard(shardCapacity, wheelSize);
+        }
+
+        sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                Thread thread = new Thread(runnable, "artifact-store-sweeper");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        sweeper.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                sweep();
+            }
+        }, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public static ArtifactStore getSharedStore() {
+        return sharedStore;
+    }
+
+    /**
+     * @param relyingParty the entity ID of the SP that may resolve the message
+     */
+    public void put(final byte[] messageHandle, final byte[] message, final String relyingParty) {
+        MessageHandle key = new MessageHandle(messageHandle);
+        long expiresAt = System.currentTimeMillis() + ttlMillis;
+        Shard shard = shardFor(key);
+        synchronized (shard) {
+            shard.entries.put(key, new Entry(message, relyingParty, expiresAt));
+            shard.slots[(int)(tickOf(expiresAt) % wheelSize)].add(key);
+            if (shard.entries.size() > shard.capacity) {
+                Iterator<MessageHandle> eldest = shard.entries.keySet().iterator();
+                eldest.next();
+                eldest.remove();
+                evicted.increment();
+            }
+        }
+        stored.increment();
+    }
+
+    /**
+     * Removes and returns the message for the handle, or null if it is unknown, already resolved or expired. A message
+     * issued to another SP is not removed.
+     *
+     * @param relyingParty the entity ID of the SP resolving the message
+     */
+    public byte[] remove(final byte[] messageHandle, final String relyingParty) {
+        MessageHandle key = new MessageHandle(messageHandle);
+        Shard shard = shardFor(key);
+        Entry entry;
+        synchronized (shard) {
+            entry = shard.entries.get(key);
+            if (entry != null && entry.relyingParty.equals(relyingParty)) {
+                shard.entries.remove(key);
+            }
+        }
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        if (!entry.relyingParty.equals(relyingParty)) {
+            rejected.increment();
+            return null;
+        }
+        if (entry.expiresAt < System.currentTimeMillis()) {
+            expired.increment();
+            return null;
+        }
+        resolved.increment();
+        return entry.message;
+    }
+
+    private void sweep() {
+        long now = System.currentTimeMillis();
+        // Slots before the current tick only hold entries that have expired by now. Catch up on ticks a late run missed.
+        long dueTick = tickOf(now) - 1;
+        for (long tick = Math.max(lastSweptTick + 1, dueTick - wheelSize + 1); tick <= dueTick; tick++) {
+            sweepSlot((int)(tick % wheelSize), now);
+        }
+        lastSweptTick = dueTick;
+    }
+
+    /**
+     * A slot can also hold entries of a later turn of the wheel when a late run catches up, those are moved to the slot
+     * they expire in.
+     */
+    private void sweepSlot(final int slot, final long now) {
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                List<MessageHandle> due = shard.slots[slot];
+                if (due.isEmpty()) {
+                    continue;
+                }
+                shard.slots[slot] = new ArrayList<MessageHandle>();
+                for (int i = 0; i < due.size(); i++) {
+                    MessageHandle key = due.get(i);
+                    Entry entry = shard.entries.get(key);
+                    if (entry == null) {
+                        continue;
+                    }
+                    if (entry.expiresAt <= now) {
+                        shard.entries.remove(key);
+                        expired.increment();
+                    } else {
+                        shard.slots[(int)(tickOf(entry.expiresAt) % wheelSize)].add(key);
+                    }
+                }
+            }
+        }
+    }
+
+    private long tickOf(final long millis) {
+        return (millis - startMillis) / TICK_MILLIS;
+    }
+
+    private Shard shardFor(final MessageHandle key) {
+        return shards[(key.hash & 0x7fffffff) % SHARDS];
+    }
+
+    public int size() {
+        int size = 0;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                size += shard.entries.size();
+            }
+        }
+        return size;
+    }
+
+    public long getStored() {
+        return stored.sum();
+    }
+
+    public long getResolved() {
+        return resolved.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getExpired() {
+        return expired.sum();
+    }
+
+    public long getEvicted() {
+        return evicted.sum();
+    }
+
+    /**
+     * @return the times an SP asked for a message issued to another SP
+     */
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    public void shutdown() {
+        sweeper.shutdownNow();
+    }
+
+    @Override
+    public String toString() {
+        return "ArtifactStore{size=" + size() + ", stored=" + getStored() + ", resolved=" + getResolved()
+                + ", misses=" + getMisses() + ", expired=" + getExpired() + ", evicted=" + getEvicted()
+                + ", rejected=" + getRejected() + "}";
+    }
+
+    private static final class Shard {
+        private final int capacity;
+        private final LinkedHashMap<MessageHandle, Entry> entries;
+        private final List<MessageHandle>[] slots;
+
+        @SuppressWarnings("unchecked")
+        private Shard(final int capacity, final int wheelSize) {
+            this.capacity = capacity;
+            this.entries = new LinkedHashMap<MessageHandle, Entry>(Math.min(capacity, 1024) * 2);
+            this.slots = new List[wheelSize];
+            for (int i = 0; i < wheelSize; i++) {
+                slots[i] = new ArrayList<MessageHandle>();
+            }
+        }
+    }
+
+    private static final class Entry {
+        private final byte[] message;
+        private final String relyingParty;
+        private final long expiresAt;
+
+        private Entry(final byte[] message, final String relyingParty, final long expiresAt) {
+            this.message = message;
+            this.relyingParty = relyingParty;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private static final class MessageHandle {
+        private final byte[] handle;
+        private final int hash;
+
+        private MessageHandle(final byte[] handle) {
+            this.handle = handle;
+            this.hash = Arrays.hashCode(handle);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(final Object other) {
+            return other instanceof MessageHandle && Arrays.equals(handle, ((MessageHandle)other).handle);
+        }
+    }
+}
@@ -5,6 +5,16 @@ package no.steras.opensamlbook.idp;
  */
 public class IDPConstants {
     public static final String IDP_ENTITY_ID = "TestIDP";
-    public static final String SSO_SERVICE = "http://localhost:8080/webprofile-ref-project/idp/singleSignOnService";
-    public static final String ARTIFACT_RESOLUTION_SERVICE = "http://localhost:8080/webprofile-ref-project/idp/artifactResolutionService";
+    /**
+     * The user every login is for, whose attributes are resolved.
+     */
+    public static final String DEMO_PRINCIPAL = "bob";
+    /**
+     * The subject of every login, the IDP does not authenticate anyone.
+     */
+    public static final String DEMO_NAME_ID = "Some NameID value";
+    /**
+     * The IDP does not read the AuthnRequest, so responses do not refer to its ID.
+     */
+    public static final String DEMO_IN_RESPONSE_TO = "Made up ID";
 }
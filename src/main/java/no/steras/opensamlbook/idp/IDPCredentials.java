@@ -1,33 +1,31 @@
 package no.steras.opensamlbook.idp;
 
-import org.opensaml.security.credential.BasicCredential;
+import no.steras.opensamlbook.credential.CredentialManager;
+import no.steras.opensamlbook.signing.KeyType;
 import org.opensaml.security.credential.Credential;
 
-import java.security.KeyPair;
-import java.security.KeyPairGenerator;
-import java.security.NoSuchAlgorithmException;
-
 /**
  * Created by Privat on 13/05/14.
+ *
+ * The IDP keys are read from <code>IDPKeystore.jks</code> on the classpath unless the <code>opensamlbook.credentials.idp.*</code>
+ * properties point somewhere else, see {@link CredentialManager}.
  */
 public class IDPCredentials {
-    private static final Credential credential;
+    private static final CredentialManager manager = CredentialManager.fromProperties("idp", IDPConstants.IDP_ENTITY_ID,
+            "classpath:IDPKeystore.jks");
 
-    static {
-        credential = generateCredential();
+    public static Credential getCredential() {
+        return manager.getCredential(KeyType.RSA_2048);
     }
 
-    private static Credential generateCredential() {
-        try {
-            KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
-            KeyPair keyPair = kpg.generateKeyPair();
-            return new BasicCredential(keyPair.getPublic(), keyPair.getPrivate());
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);
-        }
+    /**
+     * @return the current IDP credential for the key type
+     */
+    public static Credential getCredential(final KeyType keyType) {
+        return manager.getCredential(keyType);
     }
 
-    public static Credential getCredential() {
-        return credential;
+    public static CredentialManager getManager() {
+        return manager;
     }
 }
@@ -0,0 +1,473 @@
+package no.steras.opensamlbook.idp;
+
+import no.steras.opensamlbook.metrics.Stage;
+import no.steras.opensamlbook.signing.SigningAlgorithm;
+import no.steras.opensamlbook.signing.SigningConfiguration;
+import org.apache.xml.security.algorithms.JCEMapper;
+import org.apache.xml.security.algorithms.implementations.SignatureECDSA;
+import org.apache.xml.security.c14n.CanonicalizationException;
+import org.apache.xml.security.c14n.Canonicalizer;
+import org.apache.xml.security.c14n.InvalidCanonicalizerException;
+import org.apache.xml.security.exceptions.Base64DecodingException;
+import org.apache.xml.security.utils.Base64;
+import org.apache.xml.security.utils.XMLUtils;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.DateTimeFormatter;
+import org.opensaml.saml.config.SAMLConfigurationSupport;
+import org.opensaml.saml.saml2.core.Assertion;
+import org.opensaml.saml.saml2.core.Response;
+import org.opensaml.security.credential.Credential;
+import org.opensaml.xmlsec.signature.support.SignatureConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.Provider;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A signed response to one SP, compiled to canonical XML with slots for the values of a login.
+ *
+ * The template is compiled from a response OpenSAML built and signed with placeholders for the values. The signed
+ * assertion, its SignedInfo and the whole response are canonicalized once and cut where the placeholders are. A
+ * login then fills in its values, digests the canonical assertion and signs the canonical SignedInfo, which is the
+ * work Santuario does on the DOM without building, marshalling or canonicalizing anything. The response is sent in
+ * its canonical form, so it is byte for byte what canonicalizing the response OpenSAML builds gives.
+ *
+ * Compiling checks that the template reproduces the digest, SignedInfo and canonical response of the prototype. A
+ * template that does not is not used.
+ */
+final class ResponseTemplate {
+    private static Logger logger = LoggerFactory.getLogger(ResponseTemplate.class);
+
+    static final int RESPONSE_ID = 0;
+    static final int ASSERTION_ID = 1;
+    static final int ISSUE_INSTANT = 2;
+    static final int NOT_BEFORE = 3;
+    static final int NOT_ON_OR_AFTER = 4;
+    static final int AUTHN_INSTANT = 5;
+    static final int NAME_ID = 6;
+    static final int IN_RESPONSE_TO = 7;
+    static final int DIGEST_VALUE = 8;
+    static final int SIGNATURE_VALUE = 9;
+    static final int FIRST_ATTRIBUTE_VALUE = 10;
+
+    /**
+     * Placeholders are slot numbers between two private use characters, which the SAML values never contain.
+     */
+    private static final char SLOT_START = '\uE000';
+    private static final char SLOT_END = '\uE001';
+    private static final String DSIG_NS = "http://www.w3.org/2000/09/xmldsig#";
+    private static final String EXCLUSIVE_C14N_NS = "http://www.w3.org/2001/10/xml-exc-c14n#";
+
+    private final Credential credential;
+    private final SigningConfiguration signingConfiguration;
+    private final String assertionConsumerService;
+    private final int attributeValues;
+    private final String digestAlgorithm;
+    private final Text digestInput;
+    private final Text signedInfo;
+    private final Text signedAssertion;
+    private final Text response;
+
+    private ResponseTemplate(final Credential credential, final SigningConfiguration signingConfiguration,
+                             final String assertionConsumerService, final int attributeValues,
+                             final String digestAlgorithm, final Text digestInput, final Text signedInfo,
+                             final Text signedAssertion, final Text response) {
+        this.credential = credential;
+        this.signingConfiguration = signingConfiguration;
+        this.assertionConsumerService = assertionConsumerService;
+        this.attributeValues = attributeValues;
+        this.digestAlgorithm = digestAlgorithm;
+        this.digestInput = digestInput;
+        this.signedInfo = signedInfo;
+        this.signedAssertion = signedAssertion;
+        this.response = response;
+    }
+
+    /**
+     * A template that could not be compiled, kept so it is not compiled again for every login.
+     */
+    static ResponseTemplate unusable(final Credential credential, final SigningConfiguration signingConfiguration,
+                                     final String assertionConsumerService) {
+        return new ResponseTemplate(credential, signingConfiguration, assertionConsumerService, 0, null, null, null,
+                null, null);
+    }
+
+    /**
+     * @return values with a placeholder in every slot, for building the prototype of a template for responses with
+     * the attributes
+     */
+    static ResponseValues placeholders(final Map<String, List<String>> attributes) {
+        Map<String, List<String>> attributePlaceholders = new LinkedHashMap<String, List<String>>();
+        int slot = FIRST_ATTRIBUTE_VALUE;
+        for (Map.Entry<String, List<String>> attribute : attributes.entrySet()) {
+            List<String> values = new ArrayList<String>();
+            for (int i = 0; i < attribute.getValue().size(); i++) {
+                values.add(placeholder(slot++));
+            }
+            attributePlaceholders.put(attribute.getKey(), values);
+        }
+        return new ResponseValues(placeholder(RESPONSE_ID), placeholder(ASSERTION_ID), placeholderTime(ISSUE_INSTANT),
+                placeholderTime(NOT_BEFORE), placeholderTime(NOT_ON_OR_AFTER), placeholderTime(AUTHN_INSTANT),
+                placeholder(NAME_ID), placeholder(IN_RESPONSE_TO), attributePlaceholders);
+    }
+
+    private static String placeholder(final int slot) {
+        return SLOT_START + Integer.toString(slot) + SLOT_END;
+    }
+
+    /**
+     * Times can not hold a placeholder, each time slot gets its own year instead.
+     */
+    private static DateTime placeholderTime(final int slot) {
+        return new DateTime(1000 + slot, 1, 1, 0, 0, DateTimeZone.UTC);
+    }
+
+    /**
+     * Compiles the prototype, a response built with {@link #placeholders(Map)} and an assertion signed with the
+     * credential and configuration. The prototype's DOM is changed.
+     *
+     * @return the template, or an unusable one if the prototype can not be reproduced
+     */
+    static ResponseTemplate compile(final Response prototype, final ResponseValues placeholders,
+                                    final Credential credential, final SigningConfiguration signingConfiguration,
+                                    final String assertionConsumerService) {
+        try {
+            return compileAndCheck(prototype, placeholders, credential, signingConfiguration, assertionConsumerService);
+        } catch (GeneralSecurityException | CanonicalizationException | InvalidCanonicalizerException
+                | Base64DecodingException | IOException | RuntimeException e) {
+            logger.warn("Could not compile a response template, responses are built with OpenSAML", e);
+            return unusable(credential, signingConfiguration, assertionConsumerService);
+        }
+    }
+
+    private static ResponseTemplate compileAndCheck(final Response prototype, final ResponseValues placeholders,
+                                                    final Credential credential, final SigningConfiguration signingConfiguration,
+                                                    final String assertionConsumerService) throws GeneralSecurityException,
+            CanonicalizationException, InvalidCanonicalizerException, Base64DecodingException, IOException {
+        Assertion assertion = prototype.getAssertions().get(0);
+        Element assertionElement = assertion.getDOM();
+        Element signatureElement = assertion.getSignature().getDOM();
+        Element signedInfoElement = child(signatureElement, DSIG_NS, "SignedInfo");
+        Element reference = child(signedInfoElement, DSIG_NS, "Reference");
+        Element digestValueElement = child(reference, DSIG_NS, "DigestValue");
+        Element signatureValueElement = child(signatureElement, DSIG_NS, "SignatureValue");
+
+        // The reference's transforms are the enveloped signature transform and a canonicalization, which may list
+        // namespaces to keep that only appear in attribute values like xsi:type
+        String referenceCanonicalization = null;
+        String inclusivePrefixes = null;
+        for (Node node = child(reference, DSIG_NS, "Transforms").getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node instanceof Element && !SignatureConstants.TRANSFORM_ENVELOPED_SIGNATURE.equals(((Element)node).getAttribute("Algorithm"))) {
+                referenceCanonicalization = ((Element)node).getAttribute("Algorithm");
+                Element inclusiveNamespaces = child((Element)node, EXCLUSIVE_C14N_NS, "InclusiveNamespaces");
+                if (inclusiveNamespaces != null) {
+                    inclusivePrefixes = inclusiveNamespaces.getAttribute("PrefixList");
+                }
+            }
+        }
+        if (referenceCanonicalization == null) {
+            throw new IllegalStateException("The assertion's reference has no canonicalization transform");
+        }
+
+        String digestValue = digestValueElement.getTextContent();
+        String signatureValue = signatureValueElement.getTextContent();
+        String expectedSignedInfo = canonicalize(signingConfiguration.getCanonicalizationAlgorithm(), signedInfoElement, null);
+        String expectedAssertion = canonicalize(referenceCanonicalization, assertionElement, inclusivePrefixes);
+        String expectedResponse = canonicalize(SignatureConstants.ALGO_ID_C14N_EXCL_OMIT_COMMENTS, prototype.getDOM(), inclusivePrefixes);
+
+        digestValueElement.setTextContent(placeholder(DIGEST_VALUE));
+        signatureValueElement.setTextContent(placeholder(SIGNATURE_VALUE));
+        String signedAssertion = canonicalize(referenceCanonicalization, assertionElement, inclusivePrefixes);
+        String signatureStart = "<" + signatureElement.getTagName();
+        String signatureEnd = "</" + signatureElement.getTagName() + ">";
+        int start = signedAssertion.indexOf(signatureStart);
+        int end = signedAssertion.indexOf(signatureEnd, start) + signatureEnd.length();
+        if (start < 0 || end < signatureEnd.length()) {
+            throw new IllegalStateException("The signature was not found in the canonical assertion");
+        }
+
+        int attributeValues = 0;
+        for (List<String> values : placeholders.getAttributes().values()) {
+            attributeValues += values.size();
+        }
+        ResponseTemplate template = new ResponseTemplate(credential, signingConfiguration, assertionConsumerService,
+                attributeValues, JCEMapper.translateURItoJCEID(signingConfiguration.getAlgorithm().getDigestURI()),
+                Text.parse(signedAssertion.substring(0, start) + signedAssertion.substring(end)),
+                Text.parse(canonicalize(signingConfiguration.getCanonicalizationAlgorithm(), signedInfoElement, null)),
+                Text.parse(signedAssertion),
+                Text.parse(canonicalize(SignatureConstants.ALGO_ID_C14N_EXCL_OMIT_COMMENTS, prototype.getDOM(), inclusivePrefixes)));
+
+        String[] slots = template.slots(placeholders);
+        slots[DIGEST_VALUE] = template.digest(slots);
+        check(digestValue.equals(slots[DIGEST_VALUE]), "digest");
+        byte[] signedInfoBytes = template.signedInfo.render(slots).getBytes(StandardCharsets.UTF_8);
+        check(expectedSignedInfo.equals(new String(signedInfoBytes, StandardCharsets.UTF_8)), "SignedInfo");
+        check(template.verify(signedInfoBytes, template.sign(signedInfoBytes)), "signature");
+        check(signatureValue.equals(formatSignatureValue(Base64.decode(signatureValue))), "signature value");
+        slots[SIGNATURE_VALUE] = signatureValue;
+        check(expectedAssertion.equals(template.signedAssertion.render(slots)), "assertion");
+        check(expectedResponse.equals(template.response.render(slots)), "response");
+        return template;
+    }
+
+    private static void check(final boolean reproduced, final String part) {
+        if (!reproduced) {
+            throw new IllegalStateException("The template does not reproduce the prototype's " + part);
+        }
+    }
+
+    /**
+     * @return true if the template was compiled with the credential and configuration, for the endpoint
+     */
+    boolean isCurrent(final Credential credential, final SigningConfiguration signingConfiguration,
+                      final String assertionConsumerService) {
+        return this.credential == credential && this.signingConfiguration == signingConfiguration
+                && this.assertionConsumerService.equals(assertionConsumerService);
+    }
+
+    boolean isUsable() {
+        return response != null;
+    }
+
+    /**
+     * @return the signed response for the login as canonical XML in UTF-8
+     */
+    byte[] render(final ResponseValues values) {
+        String[] slots = signedSlots(values);
+        long start = Stage.SERIALIZE.start();
+        byte[] rendered = response.render(slots).getBytes(StandardCharsets.UTF_8);
+        Stage.SERIALIZE.end(start);
+        return rendered;
+    }
+
+    /**
+     * @return the signed assertion for the login as a canonical XML document in UTF-8
+     */
+    byte[] renderAssertion(final ResponseValues values) {
+        return signedAssertion.render(signedSlots(values)).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private String[] signedSlots(final ResponseValues values) {
+        long start = Stage.ASSERTION_BUILD.start();
+        String[] slots = slots(values);
+        start = Stage.ASSERTION_BUILD.end(start);
+        try {
+            slots[DIGEST_VALUE] = digest(slots);
+            slots[SIGNATURE_VALUE] = formatSignatureValue(sign(signedInfo.render(slots).getBytes(StandardCharsets.UTF_8)));
+        } catch (GeneralSecurityException | IOException e) {
+            throw new RuntimeException(e);
+        }
+        Stage.ASSERTION_SIGN.end(start);
+        return slots;
+    }
+
+    private String[] slots(final ResponseValues values) {
+        String[] slots = new String[FIRST_ATTRIBUTE_VALUE + attributeValues];
+        DateTimeFormatter formatter = SAMLConfigurationSupport.getSAMLDateFormatter();
+        slots[RESPONSE_ID] = values.getResponseId();
+        slots[ASSERTION_ID] = values.getAssertionId();
+        slots[ISSUE_INSTANT] = formatter.print(values.getIssueInstant());
+        slots[NOT_BEFORE] = formatter.print(values.getNotBefore());
+        slots[NOT_ON_OR_AFTER] = formatter.print(values.getNotOnOrAfter());
+        slots[AUTHN_INSTANT] = formatter.print(values.getAuthnInstant());
+        slots[NAME_ID] = values.getNameId();
+        slots[IN_RESPONSE_TO] = values.getInResponseTo();
+        int slot = FIRST_ATTRIBUTE_VALUE;
+        for (List<String> attributeValues : values.getAttributes().values()) {
+            for (String value : attributeValues) {
+                slots[slot++] = value;
+            }
+        }
+        if (slot != slots.length) {
+            throw new IllegalArgumentException("The template is for " + attributeValues + " attribute values, not "
+                    + (slot - FIRST_ATTRIBUTE_VALUE));
+        }
+        return slots;
+    }
+
+    /**
+     * @return the DigestValue of the canonical assertion, encoded as Santuario does
+     */
+    private String digest(final String[] slots) throws GeneralSecurityException {
+        MessageDigest messageDigest = MessageDigest.getInstance(digestAlgorithm);
+        return Base64.encode(messageDigest.digest(digestInput.render(slots).getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * @return the signature of the canonical SignedInfo in its XML signature form
+     */
+    private byte[] sign(final byte[] canonicalSignedInfo) throws GeneralSecurityException, IOException {
+        Signature signature = newSignature();
+        signature.initSign(credential.getPrivateKey());
+        signature.update(canonicalSignedInfo);
+        byte[] value = signature.sign();
+        // JCA encodes ECDSA signatures in ASN.1, XML signatures hold r and s as they are
+        return isECDSA() ? SignatureECDSA.convertASN1toXMLDSIG(value) : value;
+    }
+
+    private boolean verify(final byte[] canonicalSignedInfo, final byte[] value) throws GeneralSecurityException, IOException {
+        Signature signature = newSignature();
+        signature.initVerify(credential.getPublicKey());
+        signature.update(canonicalSignedInfo);
+        return signature.verify(isECDSA() ? SignatureECDSA.convertXMLDSIGtoASN1(value) : value);
+    }
+
+    private Signature newSignature() throws GeneralSecurityException {
+        String algorithm = signingConfiguration.getAlgorithm().getJcaName();
+        Provider provider = SigningConfiguration.getProvider();
+        return provider == null ? Signature.getInstance(algorithm) : Signature.getInstance(algorithm, provider);
+    }
+
+    private boolean isECDSA() {
+        SigningAlgorithm algorithm = signingConfiguration.getAlgorithm();
+        return algorithm == SigningAlgorithm.ECDSA_P256_SHA256 || algorithm == SigningAlgorithm.ECDSA_P384_SHA384;
+    }
+
+    /**
+     * Encodes a SignatureValue as Santuario does, long values on lines of their own unless line breaks are off.
+     */
+    private static String formatSignatureValue(final byte[] value) {
+        String encoded = Base64.encode(value);
+        if (encoded.length() > 76 && !XMLUtils.ignoreLineBreaks()) {
+            encoded = "\n" + encoded + "\n";
+        }
+        return encoded;
+    }
+
+    private static String canonicalize(final String algorithm, final Node node, final String inclusivePrefixes)
+            throws InvalidCanonicalizerException, CanonicalizationException {
+        Canonicalizer canonicalizer = Canonicalizer.getInstance(algorithm);
+        byte[] canonical = inclusivePrefixes == null
+                ? canonicalizer.canonicalizeSubtree(node)
+                : canonicalizer.canonicalizeSubtree(node, inclusivePrefixes);
+        return new String(canonical, StandardCharsets.UTF_8);
+    }
+
+    private static Element child(final Element parent, final String namespace, final String localName) {
+        for (Node node = parent.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node instanceof Element && namespace.equals(node.getNamespaceURI()) && localName.equals(node.getLocalName())) {
+                return (Element)node;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Canonical XML cut at the placeholders. A value is escaped as canonicalization escapes it where its slot is, in
+     * an attribute or in text.
+     */
+    private static final class Text {
+        private final String[] literals;
+        private final int[] slots;
+        private final boolean[] inAttribute;
+        private final int length;
+
+        private Text(final String[] literals, final int[] slots, final boolean[] inAttribute, final int length) {
+            this.literals = literals;
+            this.slots = slots;
+            this.inAttribute = inAttribute;
+            this.length = length;
+        }
+
+        static Text parse(final String canonical) {
+            // Times are found by their placeholder year and turned into placeholders like the other slots
+            String text = canonical;
+            DateTimeFormatter formatter = SAMLConfigurationSupport.getSAMLDateFormatter();
+            for (int slot : new int[]{ISSUE_INSTANT, NOT_BEFORE, NOT_ON_OR_AFTER, AUTHN_INSTANT}) {
+                text = text.replace(formatter.print(placeholderTime(slot)), placeholder(slot));
+            }
+
+            List<String> literals = new ArrayList<String>();
+            List<Integer> slots = new ArrayList<Integer>();
+            List<Boolean> inAttribute = new ArrayList<Boolean>();
+            boolean inTag = false;
+            boolean inQuotes = false;
+            int literalStart = 0;
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                if (c == SLOT_START) {
+                    int end = text.indexOf(SLOT_END, i);
+                    literals.add(text.substring(literalStart, i));
+                    slots.add(Integer.parseInt(text.substring(i + 1, end)));
+                    inAttribute.add(inQuotes);
+                    literalStart = end + 1;
+                    i = end;
+                } else if (c == '<' && !inTag) {
+                    inTag = true;
+                } else if (c == '"' && inTag) {
+                    // Canonical XML always quotes attributes with " and escapes it in their values
+                    inQuotes = !inQuotes;
+                } else if (c == '>' && inTag && !inQuotes) {
+                    inTag = false;
+                }
+            }
+            literals.add(text.substring(literalStart));
+
+            int length = 0;
+            for (String literal : literals) {
+                length += literal.length();
+            }
+            int[] slotArray = new int[slots.size()];
+            boolean[] inAttributeArray = new boolean[slots.size()];
+            for (int i = 0; i < slotArray.length; i++) {
+                slotArray[i] = slots.get(i);
+                inAttributeArray[i] = inAttribute.get(i);
+            }
+            return new Text(literals.toArray(new String[0]), slotArray, inAttributeArray, length);
+        }
+
+        String render(final String[] values) {
+            StringBuilder out = new StringBuilder(length + 64 * slots.length);
+            for (int i = 0; i < slots.length; i++) {
+                out.append(literals[i]);
+                if (inAttribute[i]) {
+                    appendAttributeValue(out, values[slots[i]]);
+                } else {
+                    appendText(out, values[slots[i]]);
+                }
+            }
+            out.append(literals[slots.length]);
+            return out.toString();
+        }
+
+        private static void appendAttributeValue(final StringBuilder out, final String value) {
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                switch (c) {
+                    case '&': out.append("&amp;"); break;
+                    case '<': out.append("&lt;"); break;
+                    case '"': out.append("&quot;"); break;
+                    case '\t': out.append("&#x9;"); break;
+                    case '\n': out.append("&#xA;"); break;
+                    case '\r': out.append("&#xD;"); break;
+                    default: out.append(c);
+                }
+            }
+        }
+
+        private static void appendText(final StringBuilder out, final String value) {
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                switch (c) {
+                    case '&': out.append("&amp;"); break;
+                    case '<': out.append("&lt;"); break;
+                    case '>': out.append("&gt;"); break;
+                    case '\r': out.append("&#xD;"); break;
+                    default: out.append(c);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,335 @@
+package no.steras.opensamlbook.idp;
+
+import net.shibboleth.utilities.java.support.xml.XMLParserException;
+import no.steras.opensamlbook.OpenSAMLUtils;
+import no.steras.opensamlbook.encryption.AssertionEncrypter;
+import no.steras.opensamlbook.encryption.EncryptionConfiguration;
+import no.steras.opensamlbook.metadata.MetadataRegistry;
+import no.steras.opensamlbook.metrics.Stage;
+import no.steras.opensamlbook.signing.SAMLSigner;
+import no.steras.opensamlbook.signing.SigningConfiguration;
+import no.steras.opensamlbook.xml.SAMLSerializer;
+import no.steras.opensamlbook.xml.SharedParserPool;
+import org.opensaml.core.xml.config.XMLObjectProviderRegistrySupport;
+import org.opensaml.core.xml.io.MarshallingException;
+import org.opensaml.core.xml.io.UnmarshallingException;
+import org.opensaml.saml.saml2.core.*;
+import org.opensaml.security.credential.Credential;
+import org.w3c.dom.Element;
+
+import javax.xml.transform.TransformerException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.security.PublicKey;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Builds the IDP's signed responses. The response to an SP is compiled to a {@link ResponseTemplate} at the first
+ * login, later logins only fill in their {@link ResponseValues} and sign.
+ *
+ * The engine is shared and thread safe. There is a template for each SP and set of attribute names, it is compiled
+ * again when the IDP's signing key, the SP's signing configuration or its endpoint in the metadata change. Encrypted
+ * assertions are encrypted for the SP's encryption key in the metadata. Templates
+ * are compiled from responses built with OpenSAML objects. That path is also used when a template can not be
+ * compiled, and for every response when templates are turned off with
+ * <code>opensamlbook.idp.responseTemplates=false</code>.
+ */
+public class ResponseTemplateEngine {
+    private static final boolean TEMPLATES_ENABLED = Boolean.parseBoolean(System.getProperty("opensamlbook.idp.responseTemplates", "true"));
+
+    private final ConcurrentMap<String, ResponseTemplate> templates = new ConcurrentHashMap<String, ResponseTemplate>();
+    private final ConcurrentMap<EncrypterKey, AssertionEncrypter> encrypters = new ConcurrentHashMap<EncrypterKey, AssertionEncrypter>();
+    private final LongAdder templateResponses = new LongAdder();
+    private final LongAdder objectResponses = new LongAdder();
+    private final LongAdder compilations = new LongAdder();
+
+    public static ResponseTemplateEngine getSharedEngine() {
+        return SharedEngineHolder.engine;
+    }
+
+    /**
+     * @param assertionConsumerService the SP's endpoint the response is delivered to, its Destination, Recipient and
+     *                                 Audience
+     * @return the response to the SP for the login, with the assertion encrypted if encryption is configured for the
+     * SP, serialized in UTF-8
+     */
+    public byte[] render(final String spEntityId, final String assertionConsumerService, final ResponseValues values) {
+        EncryptionConfiguration encryptionConfiguration = EncryptionConfiguration.forPeer(spEntityId);
+        ResponseTemplate template = TEMPLATES_ENABLED ? templateFor(spEntityId, assertionConsumerService, values) : null;
+        if (template == null || !template.isUsable()) {
+            objectResponses.increment();
+            return serialize(buildResponse(spEntityId, assertionConsumerService, values, encryptionConfiguration));
+        }
+        templateResponses.increment();
+        if (!encryptionConfiguration.isEnabled()) {
+            return template.render(values);
+        }
+
+        // The assertion is encrypted as a whole, so it is parsed again to be handed to the encrypter
+        Assertion assertion = unmarshallAssertion(template.renderAssertion(values));
+        long start = Stage.ASSERTION_ENCRYPT.start();
+        Response response = buildResponseWithoutAssertion(values, assertionConsumerService);
+        response.getEncryptedAssertions().add(encrypterFor(spEntityId, encryptionConfiguration).encrypt(assertion));
+        Stage.ASSERTION_ENCRYPT.end(start);
+        return serialize(response);
+    }
+
+    private ResponseTemplate templateFor(final String spEntityId, final String assertionConsumerService,
+                                         final ResponseValues values) {
+        SigningConfiguration signingConfiguration = SigningConfiguration.forPeer(spEntityId);
+        Credential credential = IDPCredentials.getCredential(signingConfiguration.getAlgorithm().getKeyType());
+        String key = templateKey(spEntityId, assertionConsumerService, values.getAttributes());
+
+        ResponseTemplate template = templates.get(key);
+        if (template == null || !template.isCurrent(credential, signingConfiguration, assertionConsumerService)) {
+            // Logins racing here compile the same template, the last one is kept
+            ResponseValues placeholders = ResponseTemplate.placeholders(values.getAttributes());
+            Response prototype = buildResponseWithoutAssertion(placeholders, assertionConsumerService);
+            Assertion assertion = buildAssertion(placeholders, assertionConsumerService);
+            SAMLSigner.sign(assertion, credential, signingConfiguration);
+            prototype.getAssertions().add(assertion);
+            try {
+                SAMLSerializer.marshall(prototype);
+            } catch (MarshallingException e) {
+                throw new RuntimeException(e);
+            }
+            template = ResponseTemplate.compile(prototype, placeholders, credential, signingConfiguration, assertionConsumerService);
+            compilations.increment();
+            templates.put(key, template);
+        }
+        return template;
+    }
+
+    /**
+     * The endpoint, attribute names and number of values are part of the template, the values are not.
+     */
+    private static String templateKey(final String spEntityId, final String assertionConsumerService,
+                                      final Map<String, List<String>> attributes) {
+        StringBuilder key = new StringBuilder(spEntityId).append('\n').append(assertionConsumerService);
+        for (Map.Entry<String, List<String>> attribute : attributes.entrySet()) {
+            key.append('\n').append(attribute.getKey()).append('\t').append(attribute.getValue().size());
+        }
+        return key.toString();
+    }
+
+    /**
+     * Builds the response with OpenSAML objects, with a signed assertion that is encrypted for the SP if encryption is
+     * enabled.
+     */
+    public Response buildResponse(final String spEntityId, final String assertionConsumerService,
+                                  final ResponseValues values, final EncryptionConfiguration encryptionConfiguration) {
+        Response response = buildResponseWithoutAssertion(values, assertionConsumerService);
+
+        long start = Stage.ASSERTION_BUILD.start();
+        Assertion assertion = buildAssertion(values, assertionConsumerService);
+        start = Stage.ASSERTION_BUILD.end(start);
+
+        signAssertion(spEntityId, assertion);
+        start = Stage.ASSERTION_SIGN.end(start);
+
+        if (encryptionConfiguration.isEnabled()) {
+            response.getEncryptedAssertions().add(encrypterFor(spEntityId, encryptionConfiguration).encrypt(assertion));
+            Stage.ASSERTION_ENCRYPT.end(start);
+        } else {
+            response.getAssertions().add(assertion);
+        }
+        return response;
+    }
+
+    /**
+     * @return an encrypter for the SP's encryption key in the metadata
+     * @throws RuntimeException if the SP publishes no RSA encryption key
+     */
+    private AssertionEncrypter encrypterFor(final String spEntityId, final EncryptionConfiguration configuration) {
+        Credential recipientCredential = MetadataRegistry.getSharedRegistry().getIndex().requireEntity(spEntityId)
+                .getEncryptionCredential();
+        if (recipientCredential == null) {
+            throw new RuntimeException("Encryption is configured for " + spEntityId + " but its metadata has no RSA encryption key");
+        }
+        EncrypterKey key = new EncrypterKey(configuration, recipientCredential);
+        AssertionEncrypter encrypter = encrypters.get(key);
+        if (encrypter == null) {
+            // First use of the configuration with the key, SPs sharing a key share the encrypter
+            encrypter = new AssertionEncrypter(configuration, recipientCredential);
+            encrypters.put(key, encrypter);
+        }
+        return encrypter;
+    }
+
+    void signAssertion(final String spEntityId, final Assertion assertion) {
+        SigningConfiguration signingConfiguration = SigningConfiguration.forPeer(spEntityId);
+        Credential credential = IDPCredentials.getCredential(signingConfiguration.getAlgorithm().getKeyType());
+        SAMLSigner.sign(assertion, credential, signingConfiguration);
+    }
+
+    private static Response buildResponseWithoutAssertion(final ResponseValues values, final String assertionConsumerService) {
+        Response response = OpenSAMLUtils.buildSAMLObject(Response.class);
+        response.setDestination(assertionConsumerService);
+        response.setIssueInstant(values.getIssueInstant());
+        response.setID(values.getResponseId());
+        response.setIssuer(OpenSAMLUtils.buildIssuer(IDPConstants.IDP_ENTITY_ID));
+        response.setStatus(OpenSAMLUtils.buildStatus(StatusCode.SUCCESS));
+        return response;
+    }
+
+    Assertion buildAssertion(final ResponseValues values, final String assertionConsumerService) {
+
+        Assertion assertion = OpenSAMLUtils.buildSAMLObject(Assertion.class);
+
+        assertion.setIssuer(OpenSAMLUtils.buildIssuer(IDPConstants.IDP_ENTITY_ID));
+        assertion.setIssueInstant(values.getIssueInstant());
+
+        assertion.setID(values.getAssertionId());
+
+        Subject subject = OpenSAMLUtils.buildSAMLObject(Subject.class);
+        assertion.setSubject(subject);
+
+        NameID nameID = OpenSAMLUtils.buildSAMLObject(NameID.class);
+        nameID.setFormat(NameIDType.TRANSIENT);
+        nameID.setValue(values.getNameId());
+        nameID.setSPNameQualifier("SP name qualifier");
+        nameID.setNameQualifier("Name qualifier");
+
+        subject.setNameID(nameID);
+
+        subject.getSubjectConfirmations().add(buildSubjectConfirmation(values, assertionConsumerService));
+
+        assertion.setConditions(buildConditions(values, assertionConsumerService));
+
+        assertion.getAttributeStatements().add(buildAttributeStatement(values));
+
+        assertion.getAuthnStatements().add(buildAuthnStatement(values));
+
+        return assertion;
+    }
+
+    private static SubjectConfirmation buildSubjectConfirmation(final ResponseValues values, final String assertionConsumerService) {
+        SubjectConfirmation subjectConfirmation = OpenSAMLUtils.buildSAMLObject(SubjectConfirmation.class);
+        subjectConfirmation.setMethod(SubjectConfirmation.METHOD_BEARER);
+
+        SubjectConfirmationData subjectConfirmationData = OpenSAMLUtils.buildSAMLObject(SubjectConfirmationData.class);
+        subjectConfirmationData.setInResponseTo(values.getInResponseTo());
+        subjectConfirmationData.setNotBefore(values.getNotBefore());
+        subjectConfirmationData.setNotOnOrAfter(values.getNotOnOrAfter());
+        subjectConfirmationData.setRecipient(assertionConsumerService);
+
+        subjectConfirmation.setSubjectConfirmationData(subjectConfirmationData);
+
+        return subjectConfirmation;
+    }
+
+    private static AuthnStatement buildAuthnStatement(final ResponseValues values) {
+        AuthnStatement authnStatement = OpenSAMLUtils.buildSAMLObject(AuthnStatement.class);
+        AuthnContext authnContext = OpenSAMLUtils.buildSAMLObject(AuthnContext.class);
+        AuthnContextClassRef authnContextClassRef = OpenSAMLUtils.buildSAMLObject(AuthnContextClassRef.class);
+        authnContextClassRef.setAuthnContextClassRef(AuthnContext.SMARTCARD_AUTHN_CTX);
+        authnContext.setAuthnContextClassRef(authnContextClassRef);
+        authnStatement.setAuthnContext(authnContext);
+
+        authnStatement.setAuthnInstant(values.getAuthnInstant());
+
+        return authnStatement;
+    }
+
+    private static Conditions buildConditions(final ResponseValues values, final String assertionConsumerService) {
+        Conditions conditions = OpenSAMLUtils.buildSAMLObject(Conditions.class);
+        conditions.setNotBefore(values.getNotBefore());
+        conditions.setNotOnOrAfter(values.getNotOnOrAfter());
+        AudienceRestriction audienceRestriction = OpenSAMLUtils.buildSAMLObject(AudienceRestriction.class);
+        Audience audience = OpenSAMLUtils.buildSAMLObject(Audience.class);
+        audience.setAudienceURI(assertionConsumerService);
+        audienceRestriction.getAudiences().add(audience);
+        conditions.getAudienceRestrictions().add(audienceRestriction);
+        return conditions;
+    }
+
+    private static AttributeStatement buildAttributeStatement(final ResponseValues values) {
+        AttributeStatement attributeStatement = OpenSAMLUtils.buildSAMLObject(AttributeStatement.class);
+
+        for (Map.Entry<String, List<String>> entry : values.getAttributes().entrySet()) {
+            Attribute attribute = OpenSAMLUtils.buildSAMLObject(Attribute.class);
+            attribute.setName(entry.getKey());
+            for (String value : entry.getValue()) {
+                attribute.getAttributeValues().add(OpenSAMLUtils.buildStringAttributeValue(value));
+            }
+            attributeStatement.getAttributes().add(attribute);
+        }
+
+        return attributeStatement;
+    }
+
+    private static byte[] serialize(final Response response) {
+        try {
+            long start = Stage.MARSHALL.start();
+            SAMLSerializer.marshall(response);
+            start = Stage.MARSHALL.end(start);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(8192);
+            SAMLSerializer.write(response, out);
+            Stage.SERIALIZE.end(start);
+            return out.toByteArray();
+        } catch (MarshallingException | TransformerException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static Assertion unmarshallAssertion(final byte[] assertion) {
+        try {
+            Element element = SharedParserPool.getParserPool().parse(new ByteArrayInputStream(assertion)).getDocumentElement();
+            return (Assertion)XMLObjectProviderRegistrySupport.getUnmarshallerFactory().getUnmarshaller(element).unmarshall(element);
+        } catch (XMLParserException | UnmarshallingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public int getTemplates() {
+        return templates.size();
+    }
+
+    public long getCompilations() {
+        return compilations.sum();
+    }
+
+    public long getTemplateResponses() {
+        return templateResponses.sum();
+    }
+
+    public long getObjectResponses() {
+        return objectResponses.sum();
+    }
+
+    /**
+     * An encryption configuration and recipient key. Keys are compared by their public key, so the credentials of a
+     * reloaded metadata file find the encrypters of the previous one.
+     */
+    private static final class EncrypterKey {
+        private final EncryptionConfiguration configuration;
+        private final PublicKey publicKey;
+
+        private EncrypterKey(final EncryptionConfiguration configuration, final Credential credential) {
+            this.configuration = configuration;
+            this.publicKey = credential.getPublicKey();
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof EncrypterKey)) {
+                return false;
+            }
+            EncrypterKey other = (EncrypterKey)o;
+            return configuration == other.configuration && publicKey.equals(other.publicKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(configuration) + publicKey.hashCode();
+        }
+    }
+
+    private static final class SharedEngineHolder {
+        private static final ResponseTemplateEngine engine = new ResponseTemplateEngine();
+    }
+}
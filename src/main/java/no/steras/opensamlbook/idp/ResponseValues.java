@@ -0,0 +1,102 @@
+package no.steras.opensamlbook.idp;
+
+import no.steras.opensamlbook.OpenSAMLUtils;
+import no.steras.opensamlbook.attribute.AttributeResolver;
+import org.joda.time.DateTime;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The values that differ between the responses of two logins: IDs, timestamps, the subject and the attribute values.
+ * Everything else in a response is the same for every login to an SP.
+ *
+ * The attributes are sent in the order of the map, each with its values in order.
+ */
+public final class ResponseValues {
+    private final String responseId;
+    private final String assertionId;
+    private final DateTime issueInstant;
+    private final DateTime notBefore;
+    private final DateTime notOnOrAfter;
+    private final DateTime authnInstant;
+    private final String nameId;
+    private final String inResponseTo;
+    private final Map<String, List<String>> attributes;
+
+    public ResponseValues(final String responseId, final String assertionId, final DateTime issueInstant,
+                          final DateTime notBefore, final DateTime notOnOrAfter, final DateTime authnInstant,
+                          final String nameId, final String inResponseTo, final Map<String, List<String>> attributes) {
+        this.responseId = responseId;
+        this.assertionId = assertionId;
+        this.issueInstant = issueInstant;
+        this.notBefore = notBefore;
+        this.notOnOrAfter = notOnOrAfter;
+        this.authnInstant = authnInstant;
+        this.nameId = nameId;
+        this.inResponseTo = inResponseTo;
+        this.attributes = Collections.unmodifiableMap(new LinkedHashMap<String, List<String>>(attributes));
+    }
+
+    /**
+     * Values for a login happening now, with new IDs and an assertion valid for two days either way.
+     */
+    public static ResponseValues newLogin(final String nameId, final String inResponseTo,
+                                          final Map<String, List<String>> attributes) {
+        DateTime now = new DateTime();
+        return new ResponseValues(OpenSAMLUtils.generateSecureRandomId(), OpenSAMLUtils.generateSecureRandomId(), now,
+                now.minusDays(2), now.plusDays(2), now, nameId, inResponseTo, attributes);
+    }
+
+    /**
+     * Values for a login of the IDP's only user, with the attributes resolved for {@link IDPConstants#DEMO_PRINCIPAL}.
+     */
+    public static ResponseValues forDemoUser(final Map<String, List<String>> attributes) {
+        return newLogin(IDPConstants.DEMO_NAME_ID, IDPConstants.DEMO_IN_RESPONSE_TO, attributes);
+    }
+
+    /**
+     * Values for a login of the IDP's only user, waiting for the shared resolver if its attributes are not cached.
+     */
+    public static ResponseValues forDemoUser() {
+        return forDemoUser(AttributeResolver.getSharedResolver().resolve(IDPConstants.DEMO_PRINCIPAL).join());
+    }
+
+    public String getResponseId() {
+        return responseId;
+    }
+
+    public String getAssertionId() {
+        return assertionId;
+    }
+
+    public DateTime getIssueInstant() {
+        return issueInstant;
+    }
+
+    public DateTime getNotBefore() {
+        return notBefore;
+    }
+
+    public DateTime getNotOnOrAfter() {
+        return notOnOrAfter;
+    }
+
+    public DateTime getAuthnInstant() {
+        return authnInstant;
+    }
+
+    public String getNameId() {
+        return nameId;
+    }
+
+    public String getInResponseTo() {
+        return inResponseTo;
+    }
+
+    public Map<String, List<String>> getAttributes() {
+        return attributes;
+    }
+}
@@ -1,58 +1,234 @@
 package no.steras.opensamlbook.idp;
 
-import no.steras.opensamlbook.OpenSAMLUtils;
-import org.apache.xml.security.utils.Base64;
-import org.opensaml.core.xml.io.MarshallingException;
-import org.opensaml.saml.saml2.core.ArtifactResponse;
+import com.google.common.html.HtmlEscapers;
+import net.shibboleth.utilities.java.support.xml.XMLParserException;
+import no.steras.opensamlbook.async.AsyncExecutors;
+import no.steras.opensamlbook.async.AsyncProcessor;
+import no.steras.opensamlbook.attribute.AttributeResolver;
+import no.steras.opensamlbook.metadata.MetadataRegistry;
+import no.steras.opensamlbook.metrics.Stage;
+import no.steras.opensamlbook.trace.MessageTracer;
+import no.steras.opensamlbook.xml.SharedParserPool;
+import org.opensaml.core.xml.XMLObject;
+import org.opensaml.core.xml.config.XMLObjectProviderRegistrySupport;
+import org.opensaml.core.xml.io.Unmarshaller;
+import org.opensaml.core.xml.io.UnmarshallingException;
+import org.opensaml.saml.common.xml.SAMLConstants;
+import org.opensaml.saml.saml2.core.AuthnRequest;
+import org.opensaml.saml.saml2.core.Issuer;
+import org.opensaml.saml.saml2.core.NameIDType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.w3c.dom.Element;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import javax.xml.transform.TransformerException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.io.Writer;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 /**
  * Created by Privat on 4/6/14.
  */
 public class SingleSignOnServlet extends HttpServlet {
     private static Logger logger = LoggerFactory.getLogger(SingleSignOnServlet.class);
-    private static final String ASSERTION_CONSUMER_SERVICE = "http://localhost:8080/webprofile-ref-project/sp/consumer";
+    private static final AsyncProcessor processor = AsyncProcessor.create("single_sign_on");
 
+    private static final String POST_BINDING = "post";
+    /**
+     * Set the system property <code>opensamlbook.idp.responseBinding</code> to post to send the whole response through
+     * the browser instead of an artifact.
+     */
+    private static final String RESPONSE_BINDING = System.getProperty("opensamlbook.idp.responseBinding", "artifact");
+    /**
+     * Larger inflated AuthnRequests are rejected.
+     */
+    private static final int MAX_AUTHN_REQUEST_BYTES = 64 * 1024;
 
+    /**
+     * The start of the POST form for each assertion consumer endpoint.
+     */
+    private static final ConcurrentMap<String, byte[]> postFormStarts = new ConcurrentHashMap<String, byte[]>();
+    private static final byte[] POST_FORM_RELAY_STATE = "\" /><input type=\"hidden\" name=\"RelayState\" value=\"".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] POST_FORM_END = ("\" />"
+            + "<input type=\"submit\" value=\"Submit\"/>" + "</form>"
+            + "<script type=\"text/javascript\">\n"
+            + "document.myform.submit();\n"
+            + "</script>"
+            + "</body></html>").getBytes(StandardCharsets.UTF_8);
+
+
+    /**
+     * The login form posts back to the request URL, so the AuthnRequest in the query string comes along with the POST.
+     */
     @Override
     protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
         logger.info("AuthnRequest recieved");
         Writer w = resp.getWriter();
         resp.setContentType("text/html");
-        w.append("<html>" + "<head></head>" + "<body><h1>You are now at IDP, click the button to authenticate</h1> <form method=\"POST\">"
-                + "<input type=\"submit\" value=\"Authenticate\"/>" + "</form>" + "</body>" + "</html>");
+        w.append("<html>" + "<head></head>" + "<body><h1>You are now at IDP, click the button to authenticate</h1> <form method=\"POST\">");
+        String relayState = req.getParameter("RelayState");
+        if (relayState != null) {
+            w.append("<input type=\"hidden\" name=\"RelayState\" value=\"" + HtmlEscapers.htmlEscaper().escape(relayState) + "\"/>");
+        }
+        w.append("<input type=\"submit\" value=\"Authenticate\"/>" + "</form>" + "</body>" + "</html>");
     }
 
+    /**
+     * The response goes to the SP that issued the AuthnRequest, at its endpoint in the metadata. The user's attributes
+     * are resolved without holding the container thread, then the response is rendered by the shared
+     * {@link ResponseTemplateEngine} on a worker thread.
+     */
     @Override
-    protected void doPost(final HttpServletRequest req, final HttpServletResponse resp) throws ServletException, IOException {
-        ArtifactResponse artifactResponse = new ArtifactResolutionServlet().buildArtifactResponse();
-        String encodedArtifact = null;
+    protected void doPost(final HttpServletRequest req, final HttpServletResponse resp) throws IOException {
+        String samlRequest = req.getParameter("SAMLRequest");
+        // The SP's RelayState is returned unchanged with the response
+        String relayState = req.getParameter("RelayState");
+        boolean tracing = MessageTracer.isTracing(req);
+        processor.process(req, resp, -1, (body, httpResponse) -> {
+            AuthnRequest authnRequest = decodeAuthnRequest(samlRequest);
+            MessageTracer.trace(tracing, "AuthnRequest", authnRequest);
+            String relyingParty = relyingParty(authnRequest);
+            String assertionConsumerService = assertionConsumerService(relyingParty);
+            long start = Stage.ATTRIBUTE_RESOLVE.start();
+            return AttributeResolver.getSharedResolver().resolve(IDPConstants.DEMO_PRINCIPAL).thenAcceptAsync(attributes -> {
+                Stage.ATTRIBUTE_RESOLVE.end(start);
+                byte[] response = ResponseTemplateEngine.getSharedEngine().render(relyingParty, assertionConsumerService,
+                        ResponseValues.forDemoUser(attributes));
+                if (tracing) {
+                    MessageTracer.trace(true, "Response", ArtifactResolutionServlet.unmarshallArtifactResolve(new ByteArrayInputStream(response)));
+                }
+
+                try {
+                    if (POST_BINDING.equals(RESPONSE_BINDING)) {
+                        sendWithPOST(response, assertionConsumerService, relayState, httpResponse);
+                    } else {
+                        sendWithArtifact(response, relyingParty, assertionConsumerService, relayState, httpResponse);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, AsyncExecutors.worker());
+        });
+    }
+
+    /**
+     * HTTP-Artifact binding: only a reference to the response goes through the browser, the SP fetches the response
+     * itself from the artifact resolution service.
+     */
+    private void sendWithArtifact(final byte[] response, final String relyingParty, final String assertionConsumerService,
+                                  final String relayState, final HttpServletResponse resp) throws IOException {
+        String artifact = ArtifactIssuer.issue(response, relyingParty);
+        String location = assertionConsumerService + "?SAMLart=" + URLEncoder.encode(artifact, "UTF-8");
+        if (relayState != null) {
+            location += "&RelayState=" + URLEncoder.encode(relayState, "UTF-8");
+        }
+        resp.sendRedirect(location);
+    }
+
+    private void sendWithPOST(final byte[] response, final String assertionConsumerService, final String relayState,
+                              final HttpServletResponse resp) throws IOException {
+        resp.setContentType("text/html; charset=UTF-8");
+        OutputStream out = resp.getOutputStream();
+        out.write(postFormStart(assertionConsumerService));
+        out.write(Base64.getEncoder().encode(response));
+        if (relayState != null) {
+            out.write(POST_FORM_RELAY_STATE);
+            out.write(HtmlEscapers.htmlEscaper().escape(relayState).getBytes(StandardCharsets.UTF_8));
+        }
+        out.write(POST_FORM_END);
+    }
+
+    /**
+     * @return the SP's assertion consumer endpoint in the metadata for the binding responses are sent with
+     */
+    public static String assertionConsumerService(final String relyingParty) {
+        String binding = POST_BINDING.equals(RESPONSE_BINDING) ? SAMLConstants.SAML2_POST_BINDING_URI
+                : SAMLConstants.SAML2_ARTIFACT_BINDING_URI;
+        String location = MetadataRegistry.getSharedRegistry().getIndex().requireEntity(relyingParty)
+                .getAssertionConsumerService(binding);
+        if (location == null) {
+            throw new RuntimeException(relyingParty + " has no assertion consumer endpoint for " + binding);
+        }
+        return location;
+    }
+
+    /**
+     * Decodes an AuthnRequest sent with the HTTP-Redirect binding.
+     */
+    private static AuthnRequest decodeAuthnRequest(final String samlRequest) {
+        if (samlRequest == null) {
+            throw new RuntimeException("Request doesn't contain a SAML AuthnRequest");
+        }
+        byte[] xml;
+        Inflater inflater = new Inflater(true);
+        try (InputStream in = new InflaterInputStream(new ByteArrayInputStream(Base64.getMimeDecoder().decode(samlRequest)),
+                inflater)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(4096);
+            byte[] buffer = new byte[4096];
+            for (int read; (read = in.read(buffer)) != -1; ) {
+                out.write(buffer, 0, read);
+                if (out.size() > MAX_AUTHN_REQUEST_BYTES) {
+                    throw new RuntimeException("AuthnRequest is larger than " + MAX_AUTHN_REQUEST_BYTES + " bytes");
+                }
+            }
+            xml = out.toByteArray();
+        } catch (IOException | IllegalArgumentException e) {
+            throw new RuntimeException("SAMLRequest is not a deflated, base64 encoded message", e);
+        } finally {
+            inflater.end();
+        }
         try {
-            encodedArtifact = Base64.encode(OpenSAMLUtils.encodeSAMLObject(artifactResponse).getBytes(), 0);
-        } catch (MarshallingException | TransformerException e) {
-            e.printStackTrace();
+            long start = Stage.PARSE.start();
+            Element root = SharedParserPool.getParserPool().parse(new ByteArrayInputStream(xml)).getDocumentElement();
+            start = Stage.PARSE.end(start);
+            Unmarshaller unmarshaller = XMLObjectProviderRegistrySupport.getUnmarshallerFactory().getUnmarshaller(root);
+            XMLObject object = unmarshaller == null ? null : unmarshaller.unmarshall(root);
+            Stage.UNMARSHALL.end(start);
+            if (!(object instanceof AuthnRequest)) {
+                throw new RuntimeException("SAMLRequest is not an AuthnRequest");
+            }
+            return (AuthnRequest)object;
+        } catch (XMLParserException | UnmarshallingException e) {
+            throw new RuntimeException("SAMLRequest is not a SAML message", e);
+        }
+    }
+
+    /**
+     * @return the entity ID of the SP that issued the AuthnRequest
+     * @throws RuntimeException if the AuthnRequest has no Issuer or the SP is not in the metadata
+     */
+    private static String relyingParty(final AuthnRequest authnRequest) {
+        Issuer issuer = authnRequest.getIssuer();
+        if (issuer == null || issuer.getValue() == null
+                || (issuer.getFormat() != null && !NameIDType.ENTITY.equals(issuer.getFormat()))) {
+            throw new RuntimeException("AuthnRequest has no entity Issuer");
         }
+        return MetadataRegistry.getSharedRegistry().getIndex().requireEntity(issuer.getValue()).getEntityId();
+    }
 
-        Writer w = resp.getWriter();
-        resp.setContentType("text/html");
-        w.append(
-                "<html><head></head><body><h1>Redirecting to SP</h1>" +
-                        "<form name = \"myform\" method=\"POST\" action=\"" + ASSERTION_CONSUMER_SERVICE + "\">"
-                        + "<input type=\"hidden\" name=\"SAMLResponse\" value=\"" + encodedArtifact + "\" />"
-                        + "<input type=\"submit\" value=\"Submit\"/>" + "</form>"
-                        + "<script type=\"text/javascript\">\n"
-                        + "document.myform.submit();\n"
-                        + "</script>"
-                        + "</body></html>");
+    private static byte[] postFormStart(final String assertionConsumerService) {
+        byte[] formStart = postFormStarts.get(assertionConsumerService);
+        if (formStart == null) {
+            formStart = postFormStarts.computeIfAbsent(assertionConsumerService, location ->
+                    ("<html><head></head><body><h1>Redirecting to SP</h1>"
+                    + "<form name = \"myform\" method=\"POST\" action=\"" + HtmlEscapers.htmlEscaper().escape(location) + "\">"
+                    + "<input type=\"hidden\" name=\"SAMLResponse\" value=\"").getBytes(StandardCharsets.UTF_8));
+        }
+        return formStart;
     }
 
 
@@ -0,0 +1,279 @@
+package no.steras.opensamlbook.metadata;
+
+import no.steras.opensamlbook.signing.KeyType;
+import org.opensaml.security.credential.Credential;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * What the registry keeps of one entity's metadata: its endpoints and keys. Everything else in the EntityDescriptor
+ * is skipped while it is read.
+ *
+ * The endpoint of a service is the one marked isDefault, else the one with the lowest index, else the first. Keys are
+ * kept for the whole entity, not per role.
+ */
+public final class EntityMetadata {
+    private final String entityId;
+    private final boolean identityProvider;
+    private final boolean serviceProvider;
+    private final Map<String, String> singleSignOnServices;
+    private final Map<String, String> assertionConsumerServices;
+    private final String defaultAssertionConsumerService;
+    private final Set<String> assertionConsumerServiceLocations;
+    private final String artifactResolutionService;
+    private final List<Credential> signingCredentials;
+    private final List<Credential> encryptionCredentials;
+    private final Credential encryptionCredential;
+    private final Map<KeyType, Credential> firstSigningCredentials;
+
+    private EntityMetadata(final Builder builder) {
+        this.entityId = builder.entityId;
+        this.identityProvider = builder.identityProvider;
+        this.serviceProvider = builder.serviceProvider;
+        this.singleSignOnServices = byBinding(builder.singleSignOnServices);
+        this.assertionConsumerServices = byBinding(builder.assertionConsumerServices);
+        Endpoint defaultAssertionConsumerService = preferred(builder.assertionConsumerServices);
+        this.defaultAssertionConsumerService = defaultAssertionConsumerService == null ? null : defaultAssertionConsumerService.location;
+        Set<String> assertionConsumerServiceLocations = new HashSet<String>();
+        for (Endpoint endpoint : builder.assertionConsumerServices) {
+            assertionConsumerServiceLocations.add(endpoint.location);
+        }
+        this.assertionConsumerServiceLocations = Collections.unmodifiableSet(assertionConsumerServiceLocations);
+        Endpoint artifactResolutionService = preferred(builder.artifactResolutionServices);
+        this.artifactResolutionService = artifactResolutionService == null ? null : artifactResolutionService.location;
+        this.signingCredentials = Collections.unmodifiableList(new ArrayList<Credential>(builder.signingCredentials));
+        this.encryptionCredentials = Collections.unmodifiableList(new ArrayList<Credential>(builder.encryptionCredentials));
+        Credential encryptionCredential = null;
+        for (Credential credential : encryptionCredentials) {
+            if ("RSA".equals(credential.getPublicKey().getAlgorithm())) {
+                encryptionCredential = credential;
+                break;
+            }
+        }
+        this.encryptionCredential = encryptionCredential;
+
+        Map<KeyType, Credential> firstSigningCredentials = new EnumMap<KeyType, Credential>(KeyType.class);
+        for (Credential credential : signingCredentials) {
+            KeyType keyType = keyType(credential);
+            if (keyType != null && !firstSigningCredentials.containsKey(keyType)) {
+                firstSigningCredentials.put(keyType, credential);
+            }
+        }
+        this.firstSigningCredentials = firstSigningCredentials;
+    }
+
+    public String getEntityId() {
+        return entityId;
+    }
+
+    public boolean isIdentityProvider() {
+        return identityProvider;
+    }
+
+    public boolean isServiceProvider() {
+        return serviceProvider;
+    }
+
+    /**
+     * @return the IDP's single sign on endpoint for the binding URI, or null
+     */
+    public String getSingleSignOnService(final String binding) {
+        return singleSignOnServices.get(binding);
+    }
+
+    /**
+     * @return the SP's assertion consumer endpoint for the binding URI, or null
+     */
+    public String getAssertionConsumerService(final String binding) {
+        return assertionConsumerServices.get(binding);
+    }
+
+    /**
+     * @return the SP's default assertion consumer endpoint, or null
+     */
+    public String getAssertionConsumerService() {
+        return defaultAssertionConsumerService;
+    }
+
+    /**
+     * @return whether the location is one of the SP's assertion consumer endpoints, for any binding or index
+     */
+    public boolean isAssertionConsumerService(final String location) {
+        return assertionConsumerServiceLocations.contains(location);
+    }
+
+    /**
+     * @return the IDP's artifact resolution endpoint, or null
+     */
+    public String getArtifactResolutionService() {
+        return artifactResolutionService;
+    }
+
+    public List<Credential> getSigningCredentials() {
+        return signingCredentials;
+    }
+
+    public List<Credential> getEncryptionCredentials() {
+        return encryptionCredentials;
+    }
+
+    /**
+     * @return the first encryption credential with an RSA key, the only keys the key transports encrypt for, or null
+     */
+    public Credential getEncryptionCredential() {
+        return encryptionCredential;
+    }
+
+    /**
+     * @return the first signing credential of the key type, or null
+     */
+    public Credential getSigningCredential(final KeyType keyType) {
+        return firstSigningCredentials.get(keyType);
+    }
+
+    static KeyType keyType(final Credential credential) {
+        try {
+            return KeyType.forKey(credential.getPublicKey());
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static Map<String, String> byBinding(final List<Endpoint> endpoints) {
+        if (endpoints.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        Map<String, List<Endpoint>> endpointsByBinding = new HashMap<String, List<Endpoint>>();
+        for (Endpoint endpoint : endpoints) {
+            List<Endpoint> bindingEndpoints = endpointsByBinding.get(endpoint.binding);
+            if (bindingEndpoints == null) {
+                bindingEndpoints = new ArrayList<Endpoint>(1);
+                endpointsByBinding.put(endpoint.binding, bindingEndpoints);
+            }
+            bindingEndpoints.add(endpoint);
+        }
+        if (endpointsByBinding.size() == 1) {
+            Map.Entry<String, List<Endpoint>> only = endpointsByBinding.entrySet().iterator().next();
+            return Collections.singletonMap(only.getKey(), preferred(only.getValue()).location);
+        }
+        Map<String, String> locations = new HashMap<String, String>(endpointsByBinding.size() * 2);
+        for (Map.Entry<String, List<Endpoint>> entry : endpointsByBinding.entrySet()) {
+            locations.put(entry.getKey(), preferred(entry.getValue()).location);
+        }
+        return Collections.unmodifiableMap(locations);
+    }
+
+    private static Endpoint preferred(final List<Endpoint> endpoints) {
+        Endpoint preferred = null;
+        for (Endpoint endpoint : endpoints) {
+            if (endpoint.isDefault) {
+                return endpoint;
+            }
+            if (preferred == null || endpoint.index < preferred.index) {
+                preferred = endpoint;
+            }
+        }
+        return preferred;
+    }
+
+    @Override
+    public String toString() {
+        return "EntityMetadata{" + entityId + (identityProvider ? ", IDP" : "") + (serviceProvider ? ", SP" : "") + "}";
+    }
+
+    static final class Endpoint {
+        private final String binding;
+        private final String location;
+        private final int index;
+        private final boolean isDefault;
+
+        Endpoint(final String binding, final String location, final int index, final boolean isDefault) {
+            this.binding = binding;
+            this.location = location;
+            this.index = index;
+            this.isDefault = isDefault;
+        }
+
+        String getLocation() {
+            return location;
+        }
+    }
+
+    /**
+     * Collects an entity while its EntityDescriptor is read.
+     */
+    static final class Builder {
+        private final String entityId;
+        private boolean identityProvider;
+        private boolean serviceProvider;
+        private final List<Endpoint> singleSignOnServices = new ArrayList<Endpoint>(2);
+        private final List<Endpoint> assertionConsumerServices = new ArrayList<Endpoint>(2);
+        private final List<Endpoint> artifactResolutionServices = new ArrayList<Endpoint>(1);
+        private final List<Credential> signingCredentials = new ArrayList<Credential>(2);
+        private final List<Credential> encryptionCredentials = new ArrayList<Credential>(2);
+
+        Builder(final String entityId) {
+            this.entityId = entityId;
+        }
+
+        void identityProvider() {
+            identityProvider = true;
+        }
+
+        void serviceProvider() {
+            serviceProvider = true;
+        }
+
+        void singleSignOnService(final Endpoint endpoint) {
+            if (endpoint != null) {
+                singleSignOnServices.add(endpoint);
+            }
+        }
+
+        void assertionConsumerService(final Endpoint endpoint) {
+            if (endpoint != null) {
+                assertionConsumerServices.add(endpoint);
+            }
+        }
+
+        void artifactResolutionService(final Endpoint endpoint) {
+            if (endpoint != null) {
+                artifactResolutionServices.add(endpoint);
+            }
+        }
+
+        /**
+         * @param use signing, encryption, or null for both
+         */
+        void key(final String use, final Credential credential) {
+            if (use == null || "signing".equals(use)) {
+                signingCredentials.add(credential);
+            }
+            if (use == null || "encryption".equals(use)) {
+                encryptionCredentials.add(credential);
+            }
+        }
+
+        List<Endpoint> getEndpoints() {
+            List<Endpoint> endpoints = new ArrayList<Endpoint>(singleSignOnServices);
+            endpoints.addAll(assertionConsumerServices);
+            endpoints.addAll(artifactResolutionServices);
+            return endpoints;
+        }
+
+        String getEntityId() {
+            return entityId;
+        }
+
+        EntityMetadata build() {
+            return new EntityMetadata(this);
+        }
+    }
+}
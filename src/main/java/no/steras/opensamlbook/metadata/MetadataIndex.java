@@ -0,0 +1,162 @@
+package no.steras.opensamlbook.metadata;
+
+import no.steras.opensamlbook.signing.KeyType;
+import org.opensaml.security.credential.Credential;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The entities of one metadata load, indexed for constant time lookups. An index is never changed, a reload replaces
+ * it with a new one.
+ *
+ * Entities are indexed by entity ID, by the location of every endpoint, and IDPs also by the SAML 2.0 artifact
+ * SourceID, the SHA-1 digest of the entity ID. Signing keys are indexed by entity ID and key name, where the key names
+ * are the KeyName elements of the KeyDescriptor and the name {@link no.steras.opensamlbook.credential.CredentialManager}
+ * gives the key.
+ */
+public final class MetadataIndex {
+    private static Logger logger = LoggerFactory.getLogger(MetadataIndex.class);
+
+    private final Map<String, EntityMetadata> byEntityId;
+    private final Map<String, EntityMetadata> byEndpoint;
+    private final Map<String, EntityMetadata> bySourceId;
+    private final Map<String, Credential> signingCredentialsByKeyName;
+    private final long createdAt;
+
+    private MetadataIndex(final Builder builder) {
+        this.byEntityId = Collections.unmodifiableMap(builder.byEntityId);
+        this.byEndpoint = builder.byEndpoint;
+        this.bySourceId = builder.bySourceId;
+        this.signingCredentialsByKeyName = builder.signingCredentialsByKeyName;
+        this.createdAt = System.currentTimeMillis();
+    }
+
+    /**
+     * @return the entity, or null if it is not in the metadata
+     */
+    public EntityMetadata getEntity(final String entityId) {
+        return byEntityId.get(entityId);
+    }
+
+    /**
+     * @throws RuntimeException if the entity is not in the metadata
+     */
+    public EntityMetadata requireEntity(final String entityId) {
+        EntityMetadata entity = byEntityId.get(entityId);
+        if (entity == null) {
+            throw new RuntimeException("No metadata for " + entityId);
+        }
+        return entity;
+    }
+
+    /**
+     * @return the first entity in the metadata that has an endpoint at the location, or null. Another entity may list
+     * the same location, so check a message's Destination against the expected entity's own endpoints instead.
+     */
+    public EntityMetadata getEntityByEndpoint(final String location) {
+        return byEndpoint.get(location);
+    }
+
+    /**
+     * @param sourceId the 20 byte SourceID of a type 0x0004 artifact
+     * @return the IDP that issued the artifact, or null
+     */
+    public EntityMetadata getIdentityProviderBySourceId(final byte[] sourceId) {
+        return bySourceId.get(new String(sourceId, StandardCharsets.ISO_8859_1));
+    }
+
+    /**
+     * @param keyName a key name of the entity, or null for its first signing key of the type
+     * @return the signing credential, or null if the entity has no such key
+     */
+    public Credential getSigningCredential(final String entityId, final KeyType keyType, final String keyName) {
+        if (keyName != null) {
+            Credential credential = signingCredentialsByKeyName.get(keyName(entityId, keyName));
+            if (credential != null && EntityMetadata.keyType(credential) == keyType) {
+                return credential;
+            }
+        }
+        EntityMetadata entity = byEntityId.get(entityId);
+        return entity == null ? null : entity.getSigningCredential(keyType);
+    }
+
+    public Collection<EntityMetadata> getEntities() {
+        return byEntityId.values();
+    }
+
+    public int size() {
+        return byEntityId.size();
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    private static String keyName(final String entityId, final String keyName) {
+        return entityId + ' ' + keyName;
+    }
+
+    /**
+     * The SAML 2.0 artifact SourceID of the entity, as a string of ISO-8859-1 characters so it can be a map key.
+     */
+    static String sourceId(final String entityId) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(entityId.getBytes(StandardCharsets.UTF_8));
+            return new String(digest, StandardCharsets.ISO_8859_1);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "MetadataIndex{entities=" + byEntityId.size() + ", endpoints=" + byEndpoint.size() + ", keyNames="
+                + signingCredentialsByKeyName.size() + "}";
+    }
+
+    /**
+     * Collects the entities while the metadata is read. The first entity with an entity ID or endpoint location wins.
+     */
+    static final class Builder {
+        private final Map<String, EntityMetadata> byEntityId = new HashMap<String, EntityMetadata>();
+        private final Map<String, EntityMetadata> byEndpoint = new HashMap<String, EntityMetadata>();
+        private final Map<String, EntityMetadata> bySourceId = new HashMap<String, EntityMetadata>();
+        private final Map<String, Credential> signingCredentialsByKeyName = new HashMap<String, Credential>();
+
+        void add(final EntityMetadata.Builder entityBuilder) {
+            String entityId = entityBuilder.getEntityId();
+            if (byEntityId.containsKey(entityId)) {
+                logger.warn("Ignoring a second EntityDescriptor for {}", entityId);
+                return;
+            }
+            EntityMetadata entity = entityBuilder.build();
+            byEntityId.put(entityId, entity);
+            for (EntityMetadata.Endpoint endpoint : entityBuilder.getEndpoints()) {
+                EntityMetadata existing = byEndpoint.putIfAbsent(endpoint.getLocation(), entity);
+                if (existing != null && existing != entity) {
+                    logger.debug("{} shares the endpoint {} with {}", entityId, endpoint.getLocation(), existing.getEntityId());
+                }
+            }
+            if (entity.isIdentityProvider()) {
+                bySourceId.put(sourceId(entityId), entity);
+            }
+            for (Credential credential : entity.getSigningCredentials()) {
+                for (String keyName : credential.getKeyNames()) {
+                    signingCredentialsByKeyName.putIfAbsent(keyName(entityId, keyName), credential);
+                }
+            }
+        }
+
+        MetadataIndex build() {
+            return new MetadataIndex(this);
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package no.steras.opensamlbook.metadata;
+
+import no.steras.opensamlbook.credential.CredentialManager;
+import org.opensaml.saml.common.xml.SAMLConstants;
+import org.opensaml.security.credential.BasicCredential;
+import org.opensaml.xmlsec.signature.support.SignatureConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Reads SAML metadata, a single EntityDescriptor or an aggregate of nested EntitiesDescriptors, with a StAX reader. Only
+ * the current entity is held in memory while the document is read, and elements the index does not use, such as
+ * Organization, ContactPerson, Extensions and signatures, are skipped without being read into objects.
+ *
+ * The metadata is trusted as it is read from the configured location, signatures on it are not verified. DTDs and
+ * external entities are not processed.
+ */
+class MetadataParser {
+    private static Logger logger = LoggerFactory.getLogger(MetadataParser.class);
+    private static final String MD_NS = SAMLConstants.SAML20MD_NS;
+    private static final String DS_NS = SignatureConstants.XMLSIG_NS;
+
+    private static final XMLInputFactory inputFactory;
+
+    static {
+        inputFactory = XMLInputFactory.newInstance();
+        inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        inputFactory.setProperty(XMLInputFactory.IS_COALESCING, true);
+    }
+
+    private final CertificateFactory certificateFactory;
+    private final MetadataIndex.Builder index = new MetadataIndex.Builder();
+
+    private EntityMetadata.Builder entity;
+    private boolean inKeyDescriptor;
+    private String keyUse;
+    private X509Certificate certificate;
+    private final List<String> keyNames = new ArrayList<String>(2);
+
+    private MetadataParser() throws CertificateException {
+        certificateFactory = CertificateFactory.getInstance("X.509");
+    }
+
+    static MetadataIndex parse(final InputStream input) throws XMLStreamException, CertificateException {
+        MetadataParser parser = new MetadataParser();
+        XMLStreamReader reader = inputFactory.createXMLStreamReader(input);
+        try {
+            parser.read(reader);
+        } finally {
+            reader.close();
+        }
+        return parser.index.build();
+    }
+
+    private void read(final XMLStreamReader reader) throws XMLStreamException, CertificateException {
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                String namespace = reader.getNamespaceURI();
+                if (MD_NS.equals(namespace)) {
+                    startMetadataElement(reader);
+                } else if (DS_NS.equals(namespace)) {
+                    startSignatureElement(reader);
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT && MD_NS.equals(reader.getNamespaceURI())) {
+                endMetadataElement(reader.getLocalName());
+            }
+        }
+    }
+
+    private void startMetadataElement(final XMLStreamReader reader) throws XMLStreamException {
+        String name = reader.getLocalName();
+        if ("EntityDescriptor".equals(name)) {
+            String entityId = reader.getAttributeValue(null, "entityID");
+            if (entityId == null) {
+                logger.warn("Skipping an EntityDescriptor without entityID");
+                skip(reader);
+            } else {
+                entity = new EntityMetadata.Builder(entityId);
+            }
+        } else if (entity == null) {
+            return;
+        } else if ("IDPSSODescriptor".equals(name)) {
+            entity.identityProvider();
+        } else if ("SPSSODescriptor".equals(name)) {
+            entity.serviceProvider();
+        } else if ("SingleSignOnService".equals(name)) {
+            entity.singleSignOnService(endpoint(reader));
+        } else if ("AssertionConsumerService".equals(name)) {
+            entity.assertionConsumerService(endpoint(reader));
+        } else if ("ArtifactResolutionService".equals(name)) {
+            entity.artifactResolutionService(endpoint(reader));
+        } else if ("KeyDescriptor".equals(name)) {
+            inKeyDescriptor = true;
+            keyUse = reader.getAttributeValue(null, "use");
+            certificate = null;
+            keyNames.clear();
+        } else if ("Extensions".equals(name) || "Organization".equals(name) || "ContactPerson".equals(name)) {
+            skip(reader);
+        }
+    }
+
+    private void startSignatureElement(final XMLStreamReader reader) throws XMLStreamException, CertificateException {
+        String name = reader.getLocalName();
+        if (!inKeyDescriptor) {
+            if ("Signature".equals(name)) {
+                skip(reader);
+            }
+        } else if ("KeyName".equals(name)) {
+            keyNames.add(reader.getElementText().trim());
+        } else if ("X509Certificate".equals(name) && certificate == null) {
+            byte[] encoded = Base64.getMimeDecoder().decode(reader.getElementText().trim());
+            certificate = (X509Certificate)certificateFactory.generateCertificate(new ByteArrayInputStream(encoded));
+        }
+    }
+
+    private void endMetadataElement(final String name) {
+        if ("EntityDescriptor".equals(name) && entity != null) {
+            index.add(entity);
+            entity = null;
+        } else if ("KeyDescriptor".equals(name) && entity != null) {
+            if (certificate != null) {
+                BasicCredential credential = new BasicCredential(certificate.getPublicKey());
+                credential.setEntityId(entity.getEntityId());
+                credential.getKeyNames().addAll(keyNames);
+                credential.getKeyNames().add(CredentialManager.keyName(certificate.getPublicKey()));
+                entity.key(keyUse, credential);
+            }
+            inKeyDescriptor = false;
+        }
+    }
+
+    /**
+     * @return the endpoint, or null if it has no Location
+     */
+    private static EntityMetadata.Endpoint endpoint(final XMLStreamReader reader) {
+        String location = reader.getAttributeValue(null, "Location");
+        if (location == null) {
+            return null;
+        }
+        String index = reader.getAttributeValue(null, "index");
+        String isDefault = reader.getAttributeValue(null, "isDefault");
+        return new EntityMetadata.Endpoint(reader.getAttributeValue(null, "Binding"), location,
+                index == null ? Integer.MAX_VALUE : Integer.parseInt(index.trim()),
+                "true".equals(isDefault) || "1".equals(isDefault));
+    }
+
+    /**
+     * Skips the current element and everything in it.
+     */
+    private static void skip(final XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package no.steras.opensamlbook.metadata;
+
+import no.steras.opensamlbook.ResourceLocation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.cert.CertificateException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Serves the SAML metadata of all known entities from an immutable {@link MetadataIndex}.
+ *
+ * Lookups only read a volatile field. A watcher thread checks the modification time and size of the metadata file at
+ * a fixed interval and, when they change, reads the file into a new index that replaces the old one in a single write.
+ * Lookups keep using the old index while the new one is read, and keep it if the new file can not be read.
+ *
+ * The shared registry reads <code>opensamlbook.metadata.location</code> (default <code>classpath:metadata.xml</code>),
+ * a file path or a classpath resource, every <code>opensamlbook.metadata.checkIntervalSeconds</code> (default 60, 0
+ * turns watching off).
+ */
+public class MetadataRegistry {
+    private static Logger logger = LoggerFactory.getLogger(MetadataRegistry.class);
+    public static final String PROPERTY_PREFIX = "opensamlbook.metadata.";
+
+    private final ResourceLocation location;
+    private final List<Runnable> reloadListeners = new CopyOnWriteArrayList<Runnable>();
+    private volatile MetadataIndex index;
+    private volatile long lastLoadNanos;
+    /**
+     * Only touched while holding the registry's lock.
+     */
+    private String version;
+    private ScheduledExecutorService watcher;
+
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder failedLoads = new LongAdder();
+
+    /**
+     * Reads the metadata, failing if it can not be read.
+     */
+    public MetadataRegistry(final ResourceLocation location) {
+        this.location = location;
+        try {
+            version = location.getVersion();
+            index = load();
+        } catch (IOException | XMLStreamException | CertificateException e) {
+            throw new RuntimeException("Could not read the metadata " + location, e);
+        }
+    }
+
+    public static MetadataRegistry getSharedRegistry() {
+        return SharedRegistryHolder.sharedRegistry;
+    }
+
+    /**
+     * @return the current index, the same object until the metadata is reloaded
+     */
+    public MetadataIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * Checks the metadata file for changes at a fixed interval.
+     */
+    public synchronized void watch(final long intervalMillis) {
+        if (watcher != null) {
+            watcher.shutdownNow();
+        }
+        watcher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                Thread thread = new Thread(runnable, "metadata-watcher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        watcher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    check();
+                } catch (RuntimeException e) {
+                    logger.error("Checking the metadata " + location + " failed", e);
+                }
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops watching the metadata file, when the application stops.
+     */
+    public synchronized void shutdown() {
+        if (watcher != null) {
+            watcher.shutdownNow();
+            watcher = null;
+        }
+    }
+
+    /**
+     * Runs the listener after every reload, for example to drop keys cached from the old metadata.
+     */
+    public void addReloadListener(final Runnable listener) {
+        reloadListeners.add(listener);
+    }
+
+    /**
+     * Reloads the metadata if the file changed.
+     */
+    public synchronized void check() {
+        String currentVersion = location.getVersion();
+        if (currentVersion == null || currentVersion.equals(version)) {
+            return;
+        }
+        // A file that fails to load is only tried again when it changes
+        version = currentVersion;
+        try {
+            reload();
+        } catch (IOException | XMLStreamException | CertificateException | RuntimeException e) {
+            failedLoads.increment();
+            logger.error("Could not reload the metadata " + location + ", keeping the current metadata", e);
+        }
+    }
+
+    /**
+     * Reads the metadata into a new index and makes it current.
+     */
+    public synchronized void reload() throws IOException, XMLStreamException, CertificateException {
+        index = load();
+        for (Runnable listener : reloadListeners) {
+            listener.run();
+        }
+    }
+
+    private MetadataIndex load() throws IOException, XMLStreamException, CertificateException {
+        long start = System.nanoTime();
+        MetadataIndex loaded;
+        try (InputStream in = new BufferedInputStream(location.open(), 64 * 1024)) {
+            loaded = MetadataParser.parse(in);
+        }
+        lastLoadNanos = System.nanoTime() - start;
+        loads.increment();
+        logger.info("Read the metadata {} in {} ms: {}", location, TimeUnit.NANOSECONDS.toMillis(lastLoadNanos), loaded);
+        return loaded;
+    }
+
+    public long getLoads() {
+        return loads.sum();
+    }
+
+    public long getFailedLoads() {
+        return failedLoads.sum();
+    }
+
+    public long getLastLoadNanos() {
+        return lastLoadNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "MetadataRegistry{" + location + ", " + index + "}";
+    }
+
+    private static final class SharedRegistryHolder {
+        private static final MetadataRegistry sharedRegistry = createSharedRegistry();
+
+        private static MetadataRegistry createSharedRegistry() {
+            ResourceLocation location;
+            try {
+                location = ResourceLocation.parse(System.getProperty(PROPERTY_PREFIX + "location", "classpath:metadata.xml"));
+            } catch (IOException e) {
+                throw new RuntimeException("Could not find the metadata", e);
+            }
+            MetadataRegistry registry = new MetadataRegistry(location);
+            int checkIntervalSeconds = Integer.getInteger(PROPERTY_PREFIX + "checkIntervalSeconds", 60);
+            if (checkIntervalSeconds > 0) {
+                registry.watch(TimeUnit.SECONDS.toMillis(checkIntervalSeconds));
+            }
+            return registry;
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package no.steras.opensamlbook.metadata;
+
+import no.steras.opensamlbook.signing.KeyType;
+import no.steras.opensamlbook.signing.TrustedKeyResolver;
+import org.opensaml.security.credential.Credential;
+
+/**
+ * Trusts the signing keys in the current metadata. A key name that is not in the metadata falls back to the issuer's
+ * first signing key of the type, as many peers send a KeyName of their own choosing.
+ */
+public class MetadataTrustedKeyResolver implements TrustedKeyResolver {
+    private final MetadataRegistry registry;
+
+    public MetadataTrustedKeyResolver(final MetadataRegistry registry) {
+        this.registry = registry;
+    }
+
+    @Override
+    public Credential resolve(final String issuer, final KeyType keyType, final String keyName) {
+        return registry.getIndex().getSigningCredential(issuer, keyType, keyName);
+    }
+}
@@ -0,0 +1,104 @@
+package no.steras.opensamlbook.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A fixed size latency histogram with power of two buckets, cheap enough to record on every request.
+ *
+ * Bucket i counts durations from 2^(i-1) up to 2^i - 1 nanoseconds, so percentiles are reported as the upper bound of their
+ * bucket and are at most a factor two too high.
+ */
+public class LatencyHistogram {
+    private static final int BUCKETS = 64;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+
+    public LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    public void record(final long nanos) {
+        long value = Math.max(0, nanos);
+        buckets[BUCKETS - Long.numberOfLeadingZeros(value)].increment();
+        count.increment();
+        totalNanos.add(value);
+    }
+
+    /**
+     * Records the time since <code>startNanos</code>, taken from {@link System#nanoTime()}.
+     */
+    public void recordSince(final long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getTotalNanos() {
+        return totalNanos.sum();
+    }
+
+    public double getMeanMicros() {
+        long samples = getCount();
+        return samples == 0 ? 0 : getTotalNanos() / (samples * 1000.0);
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the upper bound in microseconds of the bucket holding the percentile
+     */
+    public double getPercentileMicros(final double percentile) {
+        long[] snapshot = new long[BUCKETS];
+        long samples = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = buckets[i].sum();
+            samples += snapshot[i];
+        }
+        if (samples == 0) {
+            return 0;
+        }
+        long rank = (long)Math.ceil(samples * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= Math.max(1, rank)) {
+                return upperBoundNanos(i) / 1000.0;
+            }
+        }
+        return upperBoundNanos(BUCKETS - 1) / 1000.0;
+    }
+
+    /**
+     * @return the number of samples in each bucket, index i holding durations up to {@link #upperBoundNanos(int)}
+     */
+    public long[] getBucketCounts() {
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = buckets[i].sum();
+        }
+        return snapshot;
+    }
+
+    public static long upperBoundNanos(final int bucket) {
+        return bucket >= BUCKETS - 1 ? Long.MAX_VALUE : (1L << bucket) - 1;
+    }
+
+    public void reset() {
+        for (LongAdder bucket : buckets) {
+            bucket.reset();
+        }
+        count.reset();
+        totalNanos.reset();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d, mean=%.1fus, p50=%.0fus, p99=%.0fus, p999=%.0fus", getCount(), getMeanMicros(),
+                getPercentileMicros(50), getPercentileMicros(99), getPercentileMicros(99.9));
+    }
+}
@@ -0,0 +1,309 @@
+package no.steras.opensamlbook.metrics;
+
+import no.steras.opensamlbook.SecureIdGenerator;
+import no.steras.opensamlbook.async.AsyncExecutors;
+import no.steras.opensamlbook.async.AsyncProcessor;
+import no.steras.opensamlbook.async.BoundedExecutor;
+import no.steras.opensamlbook.attribute.AttributeCache;
+import no.steras.opensamlbook.attribute.AttributeResolver;
+import no.steras.opensamlbook.bootstrap.Readiness;
+import no.steras.opensamlbook.credential.CredentialManager;
+import no.steras.opensamlbook.idp.ArtifactStore;
+import no.steras.opensamlbook.idp.IDPCredentials;
+import no.steras.opensamlbook.idp.ResponseTemplateEngine;
+import no.steras.opensamlbook.metadata.MetadataRegistry;
+import no.steras.opensamlbook.signing.SignatureVerifier;
+import no.steras.opensamlbook.soap.BackChannelClient;
+import no.steras.opensamlbook.sp.RedirectEncoder;
+import no.steras.opensamlbook.sp.ReplayCache;
+import no.steras.opensamlbook.sp.SPCredentials;
+import no.steras.opensamlbook.xml.InstrumentedParserPool;
+import no.steras.opensamlbook.xml.SharedParserPool;
+import org.apache.http.pool.PoolStats;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * Publishes the stage timings and the counters of the shared components in the Prometheus text format.
+ *
+ * Stage timings are histograms in seconds. Their buckets are the power of two buckets of {@link LatencyHistogram}
+ * from about a microsecond to about a minute, shorter and longer durations count in the first bucket and +Inf.
+ */
+public class MetricsServlet extends HttpServlet {
+    private static final String PREFIX = "opensamlbook_";
+    private static final int FIRST_BUCKET = 10;
+    private static final int LAST_BUCKET = 36;
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        resp.setContentType("text/plain; version=0.0.4; charset=utf-8");
+        PrintWriter out = resp.getWriter();
+        writeStartup(out);
+        writeStages(out);
+        writeParserPool(out, SharedParserPool.getParserPool());
+        writeReplayCache(out, ReplayCache.getSharedCache());
+        writeArtifactStore(out, ArtifactStore.getSharedStore());
+        writeBackChannel(out, BackChannelClient.getSharedClient());
+        writeSignatureVerifier(out, SignatureVerifier.getSharedVerifier());
+        writeCredentials(out, IDPCredentials.getManager(), SPCredentials.getManager());
+        writeMetadata(out, MetadataRegistry.getSharedRegistry());
+        writeAsync(out);
+        writeResponseTemplates(out, ResponseTemplateEngine.getSharedEngine());
+        writeAttributes(out, AttributeResolver.getSharedResolver());
+        writeIdGenerator(out, SecureIdGenerator.getSharedGenerator());
+        writeRedirects(out, RedirectEncoder.getSharedEncoder());
+    }
+
+    private static void writeStartup(final PrintWriter out) {
+        gauge(out, "ready", "1 when startup and warm-up are done", Readiness.isReady() ? 1 : 0);
+        String name = PREFIX + "startup_phase_seconds";
+        header(out, name, "gauge", "Duration of each startup phase");
+        for (Map.Entry<String, Long> phase : Readiness.getPhaseNanos().entrySet()) {
+            sample(out, name, "phase=\"" + phase.getKey() + "\"", phase.getValue() / NANOS_PER_SECOND);
+        }
+    }
+
+    private static void writeStages(final PrintWriter out) {
+        String name = PREFIX + "stage_duration_seconds";
+        header(out, name, "histogram", "Time spent in each stage of a login");
+        for (Stage stage : Stage.values()) {
+            String label = "stage=\"" + stage.getMetricName() + "\"";
+            long[] buckets = stage.getHistogram().getBucketCounts();
+            long cumulative = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                cumulative += buckets[i];
+                if (i >= FIRST_BUCKET && i <= LAST_BUCKET) {
+                    double upperBound = (LatencyHistogram.upperBoundNanos(i) + 1) / NANOS_PER_SECOND;
+                    out.append(name).append("_bucket{").append(label).append(",le=\"").append(Double.toString(upperBound))
+                            .append("\"} ").append(Long.toString(cumulative)).append('\n');
+                }
+            }
+            out.append(name).append("_bucket{").append(label).append(",le=\"+Inf\"} ").append(Long.toString(cumulative)).append('\n');
+            sample(out, name + "_sum", label, stage.getHistogram().getTotalNanos() / NANOS_PER_SECOND);
+            sample(out, name + "_count", label, cumulative);
+        }
+    }
+
+    private static void writeParserPool(final PrintWriter out, final InstrumentedParserPool pool) {
+        counter(out, "parser_pool_checkouts_total", "Document builders checked out of the parser pool", pool.getCheckouts());
+        counter(out, "parser_pool_misses_total", "Checkouts that had to create a document builder", pool.getMisses());
+        counter(out, "parser_pool_wait_seconds_total", "Time spent waiting for a document builder",
+                pool.getTotalWaitNanos() / NANOS_PER_SECOND);
+        gauge(out, "parser_pool_in_use", "Document builders checked out", pool.getInUse());
+        gauge(out, "parser_pool_idle", "Idle document builders in the pool", pool.getIdle());
+    }
+
+    private static void writeReplayCache(final PrintWriter out, final ReplayCache cache) {
+        String name = PREFIX + "replay_cache_checks_total";
+        header(out, name, "counter", "Message IDs checked against the replay cache, by result");
+        sample(out, name, "result=\"stored\"", cache.getStored());
+        sample(out, name, "result=\"replayed\"", cache.getReplayed());
+        sample(out, name, "result=\"expired\"", cache.getExpired());
+        sample(out, name, "result=\"outside_window\"", cache.getOutsideWindow());
+        counter(out, "replay_cache_evictions_total", "IDs evicted from the full replay cache before they expired", cache.getEvicted());
+    }
+
+    private static void writeArtifactStore(final PrintWriter out, final ArtifactStore store) {
+        String name = PREFIX + "artifact_store_events_total";
+        header(out, name, "counter", "Artifact store operations, by outcome");
+        sample(out, name, "event=\"stored\"", store.getStored());
+        sample(out, name, "event=\"resolved\"", store.getResolved());
+        sample(out, name, "event=\"missed\"", store.getMisses());
+        sample(out, name, "event=\"expired\"", store.getExpired());
+        sample(out, name, "event=\"evicted\"", store.getEvicted());
+        sample(out, name, "event=\"rejected\"", store.getRejected());
+        gauge(out, "artifact_store_size", "Messages waiting in the artifact store", store.size());
+    }
+
+    private static void writeBackChannel(final PrintWriter out, final BackChannelClient client) {
+        counter(out, "back_channel_requests_total", "SOAP requests sent over the back channel", client.getRequests());
+        counter(out, "back_channel_failures_total", "Back channel requests that failed", client.getFailures());
+        counter(out, "back_channel_connections_opened_total", "Back channel connections opened", client.getConnectionsOpened());
+        counter(out, "back_channel_connections_reused_total", "Back channel requests sent on a pooled connection",
+                client.getConnectionsReused());
+        PoolStats poolStats = client.getPoolStats();
+        gauge(out, "back_channel_connections_leased", "Back channel connections in use", poolStats.getLeased());
+        gauge(out, "back_channel_connections_available", "Idle pooled back channel connections", poolStats.getAvailable());
+        gauge(out, "back_channel_requests_pending", "Requests waiting for a back channel connection", poolStats.getPending());
+    }
+
+    private static void writeSignatureVerifier(final PrintWriter out, final SignatureVerifier verifier) {
+        Map<String, SignatureVerifier.IssuerStatistics> statistics = verifier.getIssuerStatistics();
+        String name = PREFIX + "signature_verifications_total";
+        header(out, name, "counter", "Signature verifications, by issuer and result");
+        for (Map.Entry<String, SignatureVerifier.IssuerStatistics> issuer : statistics.entrySet()) {
+            String label = "issuer=\"" + escape(issuer.getKey()) + "\"";
+            sample(out, name, label + ",result=\"verified\"", issuer.getValue().getVerified());
+            sample(out, name, label + ",result=\"failed\"", issuer.getValue().getFailed());
+        }
+        name = PREFIX + "signature_result_cache_hits_total";
+        header(out, name, "counter", "Verifications answered from the result cache, by issuer");
+        for (Map.Entry<String, SignatureVerifier.IssuerStatistics> issuer : statistics.entrySet()) {
+            sample(out, name, "issuer=\"" + escape(issuer.getKey()) + "\"", issuer.getValue().getResultCacheHits());
+        }
+    }
+
+    private static void writeCredentials(final PrintWriter out, final CredentialManager... managers) {
+        String name = PREFIX + "credential_rotations_total";
+        header(out, name, "counter", "Key rotations, by entity");
+        for (CredentialManager manager : managers) {
+            sample(out, name, "entity=\"" + escape(manager.getEntityId()) + "\"", manager.getRotations());
+        }
+        name = PREFIX + "credential_reload_failures_total";
+        header(out, name, "counter", "Changed key files that could not be loaded, by entity");
+        for (CredentialManager manager : managers) {
+            sample(out, name, "entity=\"" + escape(manager.getEntityId()) + "\"", manager.getFailedReloads());
+        }
+        name = PREFIX + "credential_retired_keys";
+        header(out, name, "gauge", "Replaced keys still accepted in the overlap window, by entity");
+        for (CredentialManager manager : managers) {
+            sample(out, name, "entity=\"" + escape(manager.getEntityId()) + "\"", manager.getSnapshot().getRetiredCount());
+        }
+    }
+
+    private static void writeMetadata(final PrintWriter out, final MetadataRegistry registry) {
+        gauge(out, "metadata_entities", "Entities in the current metadata", registry.getIndex().size());
+        counter(out, "metadata_loads_total", "Times the metadata was read", registry.getLoads());
+        counter(out, "metadata_load_failures_total", "Changed metadata files that could not be read", registry.getFailedLoads());
+        gauge(out, "metadata_last_load_seconds", "Time the last metadata read took", registry.getLastLoadNanos() / NANOS_PER_SECOND);
+    }
+
+    private static void writeResponseTemplates(final PrintWriter out, final ResponseTemplateEngine engine) {
+        gauge(out, "response_templates", "Compiled response templates", engine.getTemplates());
+        counter(out, "response_template_compilations_total", "Times a response template was compiled", engine.getCompilations());
+        String name = PREFIX + "responses_total";
+        header(out, name, "counter", "Responses rendered by the IDP, by how they were built");
+        sample(out, name, "path=\"template\"", engine.getTemplateResponses());
+        sample(out, name, "path=\"objects\"", engine.getObjectResponses());
+    }
+
+    private static void writeAttributes(final PrintWriter out, final AttributeResolver resolver) {
+        AttributeCache cache = resolver.getCache();
+        gauge(out, "attribute_cache_entries", "Principals in the attribute cache", cache.size());
+        String name = PREFIX + "attribute_cache_lookups_total";
+        header(out, name, "counter", "Attribute resolutions, by whether the cache had the result or a resolution in progress");
+        sample(out, name, "result=\"hit\"", cache.getHits());
+        sample(out, name, "result=\"miss\"", cache.getMisses());
+        sample(out, name, "result=\"coalesced\"", cache.getCoalesced());
+        name = PREFIX + "attribute_cache_removals_total";
+        header(out, name, "counter", "Principals removed from the attribute cache, by reason");
+        sample(out, name, "reason=\"expired\"", cache.getExpired());
+        sample(out, name, "reason=\"evicted\"", cache.getEvicted());
+        sample(out, name, "reason=\"abandoned\"", cache.getAbandoned());
+        Map<String, AttributeResolver.ConnectorStatistics> connectors = resolver.getConnectorStatistics();
+        name = PREFIX + "attribute_connector_lookups_total";
+        header(out, name, "counter", "Lookups in each data connector");
+        for (Map.Entry<String, AttributeResolver.ConnectorStatistics> connector : connectors.entrySet()) {
+            sample(out, name, "connector=\"" + escape(connector.getKey()) + "\"", connector.getValue().getLookups());
+        }
+        name = PREFIX + "attribute_connector_failures_total";
+        header(out, name, "counter", "Failed lookups in each data connector");
+        for (Map.Entry<String, AttributeResolver.ConnectorStatistics> connector : connectors.entrySet()) {
+            sample(out, name, "connector=\"" + escape(connector.getKey()) + "\"", connector.getValue().getFailures());
+        }
+        name = PREFIX + "attribute_connector_timeouts_total";
+        header(out, name, "counter", "Lookups in each data connector given up after the lookup timeout");
+        for (Map.Entry<String, AttributeResolver.ConnectorStatistics> connector : connectors.entrySet()) {
+            sample(out, name, "connector=\"" + escape(connector.getKey()) + "\"", connector.getValue().getTimeouts());
+        }
+    }
+
+    private static void writeIdGenerator(final PrintWriter out, final SecureIdGenerator generator) {
+        gauge(out, "id_generator_stripes", "Stripes of the ID generator, each with its own SecureRandom", generator.getStripes());
+        counter(out, "id_generator_batches_total", "Batches of IDs drawn from the stripes' SecureRandoms", generator.getBatches());
+        counter(out, "id_generator_collisions_total", "Times a thread found an ID generator stripe busy and tried another", generator.getCollisions());
+    }
+
+    private static void writeRedirects(final PrintWriter out, final RedirectEncoder encoder) {
+        counter(out, "redirects_total", "Messages encoded for the HTTP-Redirect binding", encoder.getEncoded());
+        counter(out, "redirects_signed_total", "HTTP-Redirect query strings that were signed", encoder.getSigned());
+        String name = PREFIX + "redirect_bytes_total";
+        header(out, name, "counter", "Bytes of the HTTP-Redirect messages, serialized, deflated and of the whole URL");
+        sample(out, name, "form=\"xml\"", encoder.getXmlBytes());
+        sample(out, name, "form=\"deflated\"", encoder.getDeflatedBytes());
+        sample(out, name, "form=\"url\"", encoder.getUrlBytes());
+        gauge(out, "redirect_max_url_bytes", "Longest HTTP-Redirect URL", encoder.getMaxUrlBytes());
+        gauge(out, "redirect_deflaters_idle", "Deflaters waiting in the pool", encoder.getIdleDeflaters());
+        name = PREFIX + "redirect_deflaters_total";
+        header(out, name, "counter", "Deflaters of the HTTP-Redirect encoder, by event");
+        sample(out, name, "event=\"created\"", encoder.getDeflatersCreated());
+        sample(out, name, "event=\"reused\"", encoder.getDeflatersReused());
+        sample(out, name, "event=\"ended\"", encoder.getDeflatersEnded());
+    }
+
+    private static void writeAsync(final PrintWriter out) {
+        String name = PREFIX + "async_requests_total";
+        header(out, name, "counter", "Asynchronously processed requests, by servlet and outcome");
+        for (AsyncProcessor processor : AsyncProcessor.getProcessors()) {
+            String label = "servlet=\"" + processor.getName() + "\"";
+            sample(out, name, label + ",outcome=\"completed\"", processor.getCompleted());
+            sample(out, name, label + ",outcome=\"failed\"", processor.getFailed());
+            sample(out, name, label + ",outcome=\"rejected\"", processor.getRejected());
+            sample(out, name, label + ",outcome=\"timed_out\"", processor.getTimedOut());
+        }
+        name = PREFIX + "async_requests_in_flight";
+        header(out, name, "gauge", "Requests being processed asynchronously, by servlet");
+        for (AsyncProcessor processor : AsyncProcessor.getProcessors()) {
+            sample(out, name, "servlet=\"" + processor.getName() + "\"", processor.getInFlight());
+        }
+        ThreadPoolExecutor worker = AsyncExecutors.getWorkerPool();
+        gauge(out, "async_worker_threads_active", "Worker threads processing a request", worker.getActiveCount());
+        gauge(out, "async_worker_queue", "Tasks waiting for a worker thread", worker.getQueue().size());
+        ThreadPoolExecutor bodyReader = AsyncExecutors.getBodyReaderPool();
+        gauge(out, "async_body_reader_threads_active", "Threads reading a request body", bodyReader.getActiveCount());
+        gauge(out, "async_body_reader_queue", "Request bodies waiting for a reader thread", bodyReader.getQueue().size());
+        ThreadPoolExecutor backChannel = AsyncExecutors.getBackChannelPool();
+        gauge(out, "async_back_channel_virtual", "1 when back channel calls run on virtual threads",
+                AsyncExecutors.isBackChannelVirtual() ? 1 : 0);
+        gauge(out, "async_back_channel_threads_active", "Platform threads waiting for a back channel call", backChannel.getActiveCount());
+        gauge(out, "async_back_channel_queue", "Back channel calls waiting for a platform thread", backChannel.getQueue().size());
+        name = PREFIX + "async_back_channel_calls";
+        header(out, name, "gauge", "Back channel calls running and waiting for the peer's limit, by peer");
+        for (Map.Entry<String, BoundedExecutor> peer : AsyncExecutors.getPeerExecutors().entrySet()) {
+            String label = "peer=\"" + escape(peer.getKey()) + "\"";
+            sample(out, name, label + ",state=\"running\"", peer.getValue().getRunning());
+            sample(out, name, label + ",state=\"queued\"", peer.getValue().getQueued());
+        }
+    }
+
+    private static void counter(final PrintWriter out, final String name, final String help, final double value) {
+        header(out, PREFIX + name, "counter", help);
+        sample(out, PREFIX + name, null, value);
+    }
+
+    private static void gauge(final PrintWriter out, final String name, final String help, final double value) {
+        header(out, PREFIX + name, "gauge", help);
+        sample(out, PREFIX + name, null, value);
+    }
+
+    private static void header(final PrintWriter out, final String name, final String type, final String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(final PrintWriter out, final String name, final String labels, final double value) {
+        out.append(name);
+        if (labels != null) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ');
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            out.append(Long.toString((long)value));
+        } else {
+            out.append(Double.toString(value));
+        }
+        out.append('\n');
+    }
+
+    private static String escape(final String labelValue) {
+        return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -0,0 +1,104 @@
+package no.steras.opensamlbook.metrics;
+
+/**
+ * The stages of a login that are timed, each with its own {@link LatencyHistogram}. They are published by
+ * {@link MetricsServlet}.
+ *
+ * A stage is timed with the value returned by {@link #start()} passed to {@link #end(long)}, or with a duration the
+ * caller measured passed to {@link #record(long)}. Stages that fail are not
+ * recorded. Timing can be switched off with the system property <code>opensamlbook.metrics.enabled=false</code>, to
+ * measure its overhead.
+ */
+public enum Stage {
+    /**
+     * Building the AuthnRequest in the access filter.
+     */
+    AUTHN_REQUEST_BUILD,
+    /**
+     * Deflating, encoding, optionally signing and sending the AuthnRequest with the HTTP-Redirect binding.
+     */
+    AUTHN_REQUEST_ENCODE,
+    /**
+     * Resolving the user's attributes at the IDP, cache hits included.
+     */
+    ATTRIBUTE_RESOLVE,
+    ASSERTION_BUILD,
+    ASSERTION_SIGN,
+    ASSERTION_ENCRYPT,
+    /**
+     * Marshalling a message the IDP sends to a DOM.
+     */
+    MARSHALL,
+    /**
+     * Writing the DOM of a message the IDP sends as bytes.
+     */
+    SERIALIZE,
+    /**
+     * Reading the POST binding form around the SAMLResponse. The SAMLResponse itself is decoded while it is parsed.
+     */
+    FORM_DECODE,
+    /**
+     * Parsing a received message to a DOM, on the SP and the IDP.
+     */
+    PARSE,
+    /**
+     * Unmarshalling the DOM of a received message, on the SP and the IDP.
+     */
+    UNMARSHALL,
+    /**
+     * The SP's back channel round trip to resolve an artifact.
+     */
+    ARTIFACT_RESOLVE,
+    ASSERTION_DECRYPT,
+    SIGNATURE_VERIFY,
+    /**
+     * Starting the SP session, the container session or the session cookie, and redirecting to the application.
+     */
+    SESSION_SETUP;
+
+    private static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("opensamlbook.metrics.enabled", "true"));
+
+    private final LatencyHistogram histogram = new LatencyHistogram();
+    private final String metricName = name().toLowerCase();
+
+    /**
+     * @return the start time to pass to {@link #end(long)}
+     */
+    public long start() {
+        return ENABLED ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Records the time since <code>startNanos</code>.
+     *
+     * @return the end time, to be used as the start of a stage that follows right after
+     */
+    public long end(final long startNanos) {
+        if (!ENABLED) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        histogram.record(now - startNanos);
+        return now;
+    }
+
+    /**
+     * Records a duration measured with System.nanoTime, for a stage made of several stretches of time.
+     */
+    public void record(final long nanos) {
+        if (ENABLED) {
+            histogram.record(nanos);
+        }
+    }
+
+    public LatencyHistogram getHistogram() {
+        return histogram;
+    }
+
+    /**
+     * @return the stage name as it is used in metric labels
+     */
+    public String getMetricName() {
+        return metricName;
+    }
+}
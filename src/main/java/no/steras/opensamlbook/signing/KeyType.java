@@ -0,0 +1,75 @@
+package no.steras.opensamlbook.signing;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Provider;
+import java.security.PublicKey;
+import java.security.interfaces.ECPublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.ECGenParameterSpec;
+
+/**
+ * The key pairs the signing algorithms need.
+ */
+public enum KeyType {
+    RSA_2048("RSA", 2048, null),
+    EC_P256("EC", 256, "secp256r1"),
+    EC_P384("EC", 384, "secp384r1");
+
+    private final String keyAlgorithm;
+    private final int keySize;
+    private final String curveName;
+
+    KeyType(final String keyAlgorithm, final int keySize, final String curveName) {
+        this.keyAlgorithm = keyAlgorithm;
+        this.keySize = keySize;
+        this.curveName = curveName;
+    }
+
+    public String getKeyAlgorithm() {
+        return keyAlgorithm;
+    }
+
+    public int getKeySize() {
+        return keySize;
+    }
+
+    /**
+     * @return the key type of the public key, RSA keys of 2048 bits or more count as RSA_2048
+     * @throws IllegalArgumentException if no signing algorithm uses keys like it
+     */
+    public static KeyType forKey(final PublicKey publicKey) {
+        if (publicKey instanceof RSAPublicKey && ((RSAPublicKey)publicKey).getModulus().bitLength() >= RSA_2048.keySize) {
+            return RSA_2048;
+        }
+        if (publicKey instanceof ECPublicKey) {
+            int fieldSize = ((ECPublicKey)publicKey).getParams().getCurve().getField().getFieldSize();
+            for (KeyType keyType : values()) {
+                if (keyType.curveName != null && keyType.keySize == fieldSize) {
+                    return keyType;
+                }
+            }
+        }
+        throw new IllegalArgumentException("Unsupported " + publicKey.getAlgorithm() + " key");
+    }
+
+    /**
+     * Generates a key pair with the given provider, or the first provider supporting the key algorithm if null.
+     */
+    public KeyPair generateKeyPair(final Provider provider) {
+        try {
+            KeyPairGenerator kpg = provider == null
+                    ? KeyPairGenerator.getInstance(keyAlgorithm)
+                    : KeyPairGenerator.getInstance(keyAlgorithm, provider);
+            if (curveName != null) {
+                kpg.initialize(new ECGenParameterSpec(curveName));
+            } else {
+                kpg.initialize(keySize);
+            }
+            return kpg.generateKeyPair();
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package no.steras.opensamlbook.signing;
+
+import no.steras.opensamlbook.idp.IDPConstants;
+import no.steras.opensamlbook.idp.IDPCredentials;
+import no.steras.opensamlbook.sp.SPConstants;
+import no.steras.opensamlbook.sp.SPCredentials;
+import org.opensaml.security.credential.Credential;
+
+/**
+ * Trusts the current keys of the IDP and SP in this project, and their retired keys until the overlap window ends. The
+ * key name picks the key, without one the current key of the type is used.
+ */
+public class LocalTrustedKeyResolver implements TrustedKeyResolver {
+
+    /**
+     * @return true if the issuer is the IDP or SP of this project
+     */
+    public static boolean isLocal(final String issuer) {
+        return IDPConstants.IDP_ENTITY_ID.equals(issuer) || SPConstants.SP_ENTITY_ID.equals(issuer);
+    }
+
+    @Override
+    public Credential resolve(final String issuer, final KeyType keyType, final String keyName) {
+        if (IDPConstants.IDP_ENTITY_ID.equals(issuer)) {
+            return IDPCredentials.getManager().getSnapshot().getVerificationCredential(keyType, keyName);
+        }
+        if (SPConstants.SP_ENTITY_ID.equals(issuer)) {
+            return SPCredentials.getManager().getSnapshot().getVerificationCredential(keyType, keyName);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,58 @@
+package no.steras.opensamlbook.signing;
+
+import no.steras.opensamlbook.OpenSAMLUtils;
+import org.opensaml.core.xml.config.XMLObjectProviderRegistrySupport;
+import org.opensaml.core.xml.io.MarshallingException;
+import org.opensaml.saml.common.SAMLObjectContentReference;
+import org.opensaml.saml.common.SignableSAMLObject;
+import org.opensaml.security.credential.Credential;
+import org.opensaml.xmlsec.keyinfo.KeyInfoSupport;
+import org.opensaml.xmlsec.signature.KeyInfo;
+import org.opensaml.xmlsec.signature.Signature;
+import org.opensaml.xmlsec.signature.support.ContentReference;
+import org.opensaml.xmlsec.signature.support.SignatureException;
+import org.opensaml.xmlsec.signature.support.Signer;
+
+/**
+ * Signs SAML objects with the algorithm configured for the receiving peer. The credential's key name is sent in the
+ * KeyInfo so the peer knows which of the signer's keys to verify with.
+ */
+public class SAMLSigner {
+
+    /**
+     * Marshalls and signs the object. The credential must hold a key of the configured algorithm's key type.
+     */
+    public static void sign(final SignableSAMLObject object, final Credential credential, final SigningConfiguration configuration) {
+        SigningAlgorithm algorithm = configuration.getAlgorithm();
+
+        Signature signature = OpenSAMLUtils.buildSAMLObject(Signature.class);
+        signature.setSigningCredential(credential);
+        signature.setSignatureAlgorithm(algorithm.getSignatureURI());
+        signature.setCanonicalizationAlgorithm(configuration.getCanonicalizationAlgorithm());
+        if (!credential.getKeyNames().isEmpty()) {
+            KeyInfo keyInfo = OpenSAMLUtils.buildSAMLObject(KeyInfo.class);
+            KeyInfoSupport.addKeyName(keyInfo, credential.getKeyNames().iterator().next());
+            signature.setKeyInfo(keyInfo);
+        }
+
+        object.setSignature(signature);
+
+        for (ContentReference contentReference : signature.getContentReferences()) {
+            if (contentReference instanceof SAMLObjectContentReference) {
+                ((SAMLObjectContentReference)contentReference).setDigestAlgorithm(algorithm.getDigestURI());
+            }
+        }
+
+        try {
+            XMLObjectProviderRegistrySupport.getMarshallerFactory().getMarshaller(object).marshall(object);
+        } catch (MarshallingException e) {
+            throw new RuntimeException(e);
+        }
+
+        try {
+            Signer.signObject(signature);
+        } catch (SignatureException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,348 @@
+package no.steras.opensamlbook.signing;
+
+import no.steras.opensamlbook.idp.IDPConstants;
+import no.steras.opensamlbook.idp.IDPCredentials;
+import no.steras.opensamlbook.metadata.MetadataRegistry;
+import no.steras.opensamlbook.metadata.MetadataTrustedKeyResolver;
+import no.steras.opensamlbook.metrics.LatencyHistogram;
+import no.steras.opensamlbook.sp.SPConstants;
+import no.steras.opensamlbook.sp.SPCredentials;
+import org.apache.xml.security.exceptions.XMLSecurityException;
+import org.apache.xml.security.signature.SignedInfo;
+import org.apache.xml.security.signature.XMLSignature;
+import org.opensaml.saml.common.SignableSAMLObject;
+import org.opensaml.saml.security.impl.SAMLSignatureProfileValidator;
+import org.opensaml.security.credential.Credential;
+import org.opensaml.xmlsec.signature.KeyInfo;
+import org.opensaml.xmlsec.signature.KeyName;
+import org.opensaml.xmlsec.signature.Signature;
+import org.opensaml.xmlsec.signature.impl.SignatureImpl;
+import org.opensaml.xmlsec.signature.support.SignatureException;
+import org.opensaml.xmlsec.signature.support.SignatureValidator;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Verifies the signatures of incoming SAML objects against the issuer's trusted key.
+ *
+ * Trusted keys are resolved once per issuer, key type and key name and then cached. Signatures that have been verified
+ * are remembered by the signed object's ID and a digest of its SignedInfo and SignatureValue. When the same object is
+ * presented again, only the reference digests are checked and the public key operation is skipped. Since the
+ * SignedInfo holds the digest of the signed content, a changed object can not reuse an earlier result.
+ *
+ * The signature algorithm is taken from the signature, so it is checked before anything else: it must be the one
+ * configured for the issuer in {@link SigningConfiguration} or one of the accepted algorithms, and the references must
+ * be digested with the algorithm's digest.
+ *
+ * The shared verifier trusts the keys of this project's IDP and SP and the signing keys in the metadata for every other
+ * issuer. It forgets them when the keys are rotated or the metadata reloaded, and remembers
+ * <code>opensamlbook.signatureVerifier.resultCacheSize</code> (default 10000) results. It accepts the algorithms named in
+ * <code>opensamlbook.signatureVerifier.acceptedAlgorithms</code>, separated by commas (default every algorithm but
+ * RSA_SHA1); set it empty to only accept each issuer's configured algorithm.
+ */
+public class SignatureVerifier {
+    private static final String PROPERTY_PREFIX = "opensamlbook.signatureVerifier.";
+
+    private final TrustedKeyResolver keyResolver;
+    private final Set<SigningAlgorithm> acceptedAlgorithms;
+    /**
+     * The validator holds no state, so one instance serves all threads.
+     */
+    private final SAMLSignatureProfileValidator profileValidator = new SAMLSignatureProfileValidator();
+    private final ConcurrentMap<String, Credential> trustedKeys = new ConcurrentHashMap<String, Credential>();
+    /**
+     * Incremented by {@link #invalidate(String)}, so a key resolved before the invalidation is not cached after it.
+     */
+    private final AtomicLong keyGeneration = new AtomicLong();
+    private final ConcurrentMap<String, IssuerStatistics> issuerStatistics = new ConcurrentHashMap<String, IssuerStatistics>();
+
+    /**
+     * Results are kept in two generations. When the current one is half the cache size it replaces the previous one,
+     * which drops the oldest results without tracking access order.
+     */
+    private final int resultCacheSize;
+    private volatile ConcurrentMap<String, Credential> currentResults = new ConcurrentHashMap<String, Credential>();
+    private volatile ConcurrentMap<String, Credential> previousResults = new ConcurrentHashMap<String, Credential>();
+
+    private final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    };
+
+    /**
+     * @param acceptedAlgorithms accepted from every issuer, besides the algorithm configured for the issuer
+     */
+    public SignatureVerifier(final TrustedKeyResolver keyResolver, final Set<SigningAlgorithm> acceptedAlgorithms,
+                             final int resultCacheSize) {
+        this.keyResolver = keyResolver;
+        this.acceptedAlgorithms = acceptedAlgorithms.isEmpty()
+                ? EnumSet.noneOf(SigningAlgorithm.class) : EnumSet.copyOf(acceptedAlgorithms);
+        this.resultCacheSize = resultCacheSize;
+    }
+
+    public static SignatureVerifier getSharedVerifier() {
+        return SharedVerifierHolder.sharedVerifier;
+    }
+
+    /**
+     * @param object a signed object, unmarshalled from its DOM
+     * @param issuer the entity ID whose key the object must be signed with
+     * @throws SignatureException if the object is not signed, the signature does not follow the SAML profile, uses an
+     * algorithm that is not accepted from the issuer or does not verify with the issuer's key
+     */
+    public void verify(final SignableSAMLObject object, final String issuer) throws SignatureException {
+        IssuerStatistics statistics = statisticsFor(issuer);
+        long start = System.nanoTime();
+        boolean verified = false;
+        try {
+            if (verifySignature(object, issuer)) {
+                statistics.resultCacheHits.increment();
+            }
+            verified = true;
+        } finally {
+            statistics.latency.recordSince(start);
+            if (verified) {
+                statistics.verified.increment();
+            } else {
+                statistics.failed.increment();
+            }
+        }
+    }
+
+    /**
+     * @return true if the result came from the result cache
+     */
+    private boolean verifySignature(final SignableSAMLObject object, final String issuer) throws SignatureException {
+        Signature signature = object.getSignature();
+        if (signature == null) {
+            throw new SignatureException("The SAML object is not signed");
+        }
+        profileValidator.validate(signature);
+
+        SigningAlgorithm algorithm;
+        try {
+            algorithm = SigningAlgorithm.fromSignatureURI(signature.getSignatureAlgorithm());
+        } catch (IllegalArgumentException e) {
+            throw new SignatureException(e.getMessage());
+        }
+        if (algorithm != SigningConfiguration.forPeer(issuer).getAlgorithm() && !acceptedAlgorithms.contains(algorithm)) {
+            throw new SignatureException("Signature algorithm " + algorithm + " is not accepted from " + issuer);
+        }
+        Credential credential = trustedKey(issuer, algorithm.getKeyType(), firstKeyName(signature.getKeyInfo()));
+
+        XMLSignature xmlSignature = signature instanceof SignatureImpl ? ((SignatureImpl)signature).getXMLSignature() : null;
+        if (xmlSignature != null) {
+            checkDigestAlgorithm(xmlSignature, algorithm);
+        }
+        String resultKey = xmlSignature == null ? null : resultKey(object.getSignatureReferenceID(), xmlSignature);
+
+        if (resultKey != null && cachedResult(resultKey) == credential) {
+            try {
+                if (!xmlSignature.getSignedInfo().verifyReferences()) {
+                    throw new SignatureException("Signed content does not match the digest");
+                }
+            } catch (XMLSecurityException e) {
+                throw new SignatureException("Could not verify the signature references", e);
+            }
+            return true;
+        }
+
+        SignatureValidator.validate(signature, credential);
+        if (resultKey != null) {
+            storeResult(resultKey, credential);
+        }
+        return false;
+    }
+
+    private static void checkDigestAlgorithm(final XMLSignature xmlSignature, final SigningAlgorithm algorithm)
+            throws SignatureException {
+        try {
+            SignedInfo signedInfo = xmlSignature.getSignedInfo();
+            for (int i = 0; i < signedInfo.getLength(); i++) {
+                String digestURI = signedInfo.item(i).getMessageDigestAlgorithm().getAlgorithmURI();
+                if (!algorithm.getDigestURI().equals(digestURI)) {
+                    throw new SignatureException("Digest algorithm " + digestURI + " does not go with " + algorithm);
+                }
+            }
+        } catch (XMLSecurityException e) {
+            throw new SignatureException("Could not read the signature references", e);
+        }
+    }
+
+    private Credential trustedKey(final String issuer, final KeyType keyType, final String keyName) throws SignatureException {
+        String cacheKey = issuer + '|' + keyType + '|' + keyName;
+        Credential credential = trustedKeys.get(cacheKey);
+        if (credential == null) {
+            long generation = keyGeneration.get();
+            credential = keyResolver.resolve(issuer, keyType, keyName);
+            if (credential == null) {
+                throw new SignatureException("No trusted " + keyType + " key for " + issuer);
+            }
+            trustedKeys.put(cacheKey, credential);
+            if (keyGeneration.get() != generation) {
+                trustedKeys.remove(cacheKey, credential);
+            }
+        }
+        return credential;
+    }
+
+    private static String firstKeyName(final KeyInfo keyInfo) {
+        if (keyInfo == null || keyInfo.getKeyNames().isEmpty()) {
+            return null;
+        }
+        KeyName keyName = keyInfo.getKeyNames().get(0);
+        return keyName.getValue();
+    }
+
+    private String resultKey(final String id, final XMLSignature xmlSignature) throws SignatureException {
+        try {
+            MessageDigest digest = digests.get();
+            digest.update(xmlSignature.getSignedInfo().getCanonicalizedOctetStream());
+            digest.update(xmlSignature.getSignatureValue());
+            return id + ':' + Base64.getEncoder().encodeToString(digest.digest());
+        } catch (XMLSecurityException e) {
+            throw new SignatureException("Could not read the signature", e);
+        }
+    }
+
+    private Credential cachedResult(final String resultKey) {
+        Credential credential = currentResults.get(resultKey);
+        return credential != null ? credential : previousResults.get(resultKey);
+    }
+
+    private void storeResult(final String resultKey, final Credential credential) {
+        ConcurrentMap<String, Credential> results = currentResults;
+        results.put(resultKey, credential);
+        if (results.size() >= resultCacheSize / 2) {
+            synchronized (this) {
+                if (currentResults == results) {
+                    previousResults = results;
+                    currentResults = new ConcurrentHashMap<String, Credential>();
+                }
+            }
+        }
+    }
+
+    /**
+     * Forgets the cached keys and results of an issuer, for example after its keys were rotated.
+     */
+    public void invalidate(final String issuer) {
+        keyGeneration.incrementAndGet();
+        trustedKeys.keySet().removeIf(key -> key.startsWith(issuer + '|'));
+        synchronized (this) {
+            previousResults = new ConcurrentHashMap<String, Credential>();
+            currentResults = new ConcurrentHashMap<String, Credential>();
+        }
+    }
+
+    /**
+     * Forgets all cached keys and results, for example after the metadata was reloaded.
+     */
+    public void invalidateAll() {
+        keyGeneration.incrementAndGet();
+        trustedKeys.clear();
+        synchronized (this) {
+            previousResults = new ConcurrentHashMap<String, Credential>();
+            currentResults = new ConcurrentHashMap<String, Credential>();
+        }
+    }
+
+    private IssuerStatistics statisticsFor(final String issuer) {
+        IssuerStatistics statistics = issuerStatistics.get(issuer);
+        if (statistics == null) {
+            statistics = issuerStatistics.computeIfAbsent(issuer, key -> new IssuerStatistics());
+        }
+        return statistics;
+    }
+
+    public Map<String, IssuerStatistics> getIssuerStatistics() {
+        return Collections.unmodifiableMap(issuerStatistics);
+    }
+
+    @Override
+    public String toString() {
+        return "SignatureVerifier" + issuerStatistics;
+    }
+
+    public static final class IssuerStatistics {
+        private final LongAdder verified = new LongAdder();
+        private final LongAdder failed = new LongAdder();
+        private final LongAdder resultCacheHits = new LongAdder();
+        private final LatencyHistogram latency = new LatencyHistogram();
+
+        public long getVerified() {
+            return verified.sum();
+        }
+
+        public long getFailed() {
+            return failed.sum();
+        }
+
+        public long getResultCacheHits() {
+            return resultCacheHits.sum();
+        }
+
+        public LatencyHistogram getLatency() {
+            return latency;
+        }
+
+        @Override
+        public String toString() {
+            return "{verified=" + getVerified() + ", failed=" + getFailed() + ", resultCacheHits=" + getResultCacheHits()
+                    + ", " + latency + "}";
+        }
+    }
+
+    private static final class SharedVerifierHolder {
+        private static final SignatureVerifier sharedVerifier = new SignatureVerifier(sharedKeyResolver(),
+                acceptedAlgorithms(System.getProperty(PROPERTY_PREFIX + "acceptedAlgorithms")),
+                Integer.getInteger(PROPERTY_PREFIX + "resultCacheSize", 10000));
+
+        private static Set<SigningAlgorithm> acceptedAlgorithms(final String names) {
+            if (names == null) {
+                return EnumSet.complementOf(EnumSet.of(SigningAlgorithm.RSA_SHA1));
+            }
+            Set<SigningAlgorithm> algorithms = EnumSet.noneOf(SigningAlgorithm.class);
+            for (String name : names.split(",")) {
+                if (!name.trim().isEmpty()) {
+                    algorithms.add(SigningAlgorithm.valueOf(name.trim()));
+                }
+            }
+            return algorithms;
+        }
+
+        /**
+         * The IDP and SP of this project are only trusted with their own current and retired keys, never with keys in
+         * the metadata that may have been rotated away.
+         */
+        private static TrustedKeyResolver sharedKeyResolver() {
+            final TrustedKeyResolver localKeyResolver = new LocalTrustedKeyResolver();
+            final TrustedKeyResolver metadataKeyResolver = new MetadataTrustedKeyResolver(MetadataRegistry.getSharedRegistry());
+            return (issuer, keyType, keyName) -> LocalTrustedKeyResolver.isLocal(issuer)
+                    ? localKeyResolver.resolve(issuer, keyType, keyName)
+                    : metadataKeyResolver.resolve(issuer, keyType, keyName);
+        }
+
+        static {
+            MetadataRegistry.getSharedRegistry().addReloadListener(sharedVerifier::invalidateAll);
+            IDPCredentials.getManager().addRotationListener(() -> sharedVerifier.invalidate(IDPConstants.IDP_ENTITY_ID));
+            SPCredentials.getManager().addRotationListener(() -> sharedVerifier.invalidate(SPConstants.SP_ENTITY_ID));
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package no.steras.opensamlbook.signing;
+
+import org.apache.xml.security.signature.XMLSignature;
+import org.opensaml.xmlsec.signature.support.SignatureConstants;
+
+/**
+ * The XML signature algorithms a peer can be configured with, together with the digest and key type they go with.
+ */
+public enum SigningAlgorithm {
+    RSA_SHA1(SignatureConstants.ALGO_ID_SIGNATURE_RSA_SHA1, SignatureConstants.ALGO_ID_DIGEST_SHA1, "SHA1withRSA", KeyType.RSA_2048),
+    RSA_SHA256(SignatureConstants.ALGO_ID_SIGNATURE_RSA_SHA256, SignatureConstants.ALGO_ID_DIGEST_SHA256, "SHA256withRSA", KeyType.RSA_2048),
+    RSA_SHA512(SignatureConstants.ALGO_ID_SIGNATURE_RSA_SHA512, SignatureConstants.ALGO_ID_DIGEST_SHA512, "SHA512withRSA", KeyType.RSA_2048),
+    /**
+     * RSASSA-PSS. Santuario maps this to the JCA name SHA256withRSAandMGF1, which needs the BC provider.
+     */
+    RSA_PSS_SHA256(XMLSignature.ALGO_ID_SIGNATURE_RSA_SHA256_MGF1, SignatureConstants.ALGO_ID_DIGEST_SHA256, "SHA256withRSAandMGF1", KeyType.RSA_2048),
+    ECDSA_P256_SHA256(SignatureConstants.ALGO_ID_SIGNATURE_ECDSA_SHA256, SignatureConstants.ALGO_ID_DIGEST_SHA256, "SHA256withECDSA", KeyType.EC_P256),
+    ECDSA_P384_SHA384(SignatureConstants.ALGO_ID_SIGNATURE_ECDSA_SHA384, SignatureConstants.ALGO_ID_DIGEST_SHA384, "SHA384withECDSA", KeyType.EC_P384);
+
+    private final String signatureURI;
+    private final String digestURI;
+    private final String jcaName;
+    private final KeyType keyType;
+
+    SigningAlgorithm(final String signatureURI, final String digestURI, final String jcaName, final KeyType keyType) {
+        this.signatureURI = signatureURI;
+        this.digestURI = digestURI;
+        this.jcaName = jcaName;
+        this.keyType = keyType;
+    }
+
+    public String getSignatureURI() {
+        return signatureURI;
+    }
+
+    public String getDigestURI() {
+        return digestURI;
+    }
+
+    /**
+     * @return the JCA signature algorithm name, for raw signature operations
+     */
+    public String getJcaName() {
+        return jcaName;
+    }
+
+    public KeyType getKeyType() {
+        return keyType;
+    }
+
+    public static SigningAlgorithm fromSignatureURI(final String signatureURI) {
+        for (SigningAlgorithm algorithm : values()) {
+            if (algorithm.signatureURI.equals(signatureURI)) {
+                return algorithm;
+            }
+        }
+        throw new IllegalArgumentException("Unsupported signature algorithm " + signatureURI);
+    }
+}
@@ -0,0 +1,110 @@
+package no.steras.opensamlbook.signing;
+
+import org.apache.xml.security.algorithms.JCEMapper;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.opensaml.xmlsec.signature.support.SignatureConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.security.Provider;
+import java.security.Security;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * How messages for a peer are signed.
+ *
+ * The algorithm for a peer is read from the system property <code>opensamlbook.signing.&lt;entityId&gt;.algorithm</code>,
+ * falling back to <code>opensamlbook.signing.algorithm</code> and then to RSA_SHA256. Valid values are the names in
+ * {@link SigningAlgorithm}.
+ *
+ * The JCA provider is chosen with <code>opensamlbook.signing.provider</code>, for example BC. Santuario only has one
+ * provider setting, so the provider applies to every peer.
+ */
+public class SigningConfiguration {
+    private static Logger logger = LoggerFactory.getLogger(SigningConfiguration.class);
+
+    public static final String PROPERTY_PREFIX = "opensamlbook.signing.";
+
+    private static final Provider provider;
+    private static final ConcurrentMap<String, SigningConfiguration> peerConfigurations = new ConcurrentHashMap<String, SigningConfiguration>();
+
+    static {
+        provider = resolveProvider(System.getProperty(PROPERTY_PREFIX + "provider"));
+        if (provider != null) {
+            JCEMapper.setProviderId(provider.getName());
+            logger.info("Using JCA provider " + provider.getName() + " for XML signatures");
+        }
+    }
+
+    private final SigningAlgorithm algorithm;
+    private final String canonicalizationAlgorithm;
+
+    public SigningConfiguration(final SigningAlgorithm algorithm) {
+        this.algorithm = algorithm;
+        this.canonicalizationAlgorithm = SignatureConstants.ALGO_ID_C14N_EXCL_OMIT_COMMENTS;
+        if (algorithm == SigningAlgorithm.RSA_PSS_SHA256) {
+            ensureBouncyCastleInstalled();
+        }
+    }
+
+    public static SigningConfiguration forPeer(final String entityId) {
+        SigningConfiguration configuration = peerConfigurations.get(entityId);
+        if (configuration == null) {
+            String algorithmName = System.getProperty(PROPERTY_PREFIX + entityId + ".algorithm",
+                    System.getProperty(PROPERTY_PREFIX + "algorithm", SigningAlgorithm.RSA_SHA256.name()));
+            configuration = new SigningConfiguration(SigningAlgorithm.valueOf(algorithmName));
+            SigningConfiguration existing = peerConfigurations.putIfAbsent(entityId, configuration);
+            if (existing != null) {
+                configuration = existing;
+            }
+        }
+        return configuration;
+    }
+
+    /**
+     * Overrides the configuration for a peer, mainly for benchmarks.
+     */
+    public static void setForPeer(final String entityId, final SigningConfiguration configuration) {
+        peerConfigurations.put(entityId, configuration);
+    }
+
+    private static Provider resolveProvider(final String providerName) {
+        if (providerName == null || providerName.isEmpty()) {
+            return null;
+        }
+        if (BouncyCastleProvider.PROVIDER_NAME.equals(providerName)) {
+            ensureBouncyCastleInstalled();
+        }
+        Provider resolved = Security.getProvider(providerName);
+        if (resolved == null) {
+            throw new IllegalArgumentException("JCA provider " + providerName + " is not installed");
+        }
+        return resolved;
+    }
+
+    /**
+     * RSA-PSS has no name in the JDK providers that Santuario knows, so it needs BC installed even when BC is not the
+     * configured provider.
+     */
+    public static synchronized void ensureBouncyCastleInstalled() {
+        if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null) {
+            Security.addProvider(new BouncyCastleProvider());
+        }
+    }
+
+    /**
+     * @return the configured JCA provider, or null when the JDK default providers are used
+     */
+    public static Provider getProvider() {
+        return provider;
+    }
+
+    public SigningAlgorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    public String getCanonicalizationAlgorithm() {
+        return canonicalizationAlgorithm;
+    }
+}
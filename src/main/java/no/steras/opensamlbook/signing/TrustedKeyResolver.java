@@ -0,0 +1,17 @@
+package no.steras.opensamlbook.signing;
+
+import org.opensaml.security.credential.Credential;
+
+/**
+ * Looks up the key a peer signs with.
+ */
+public interface TrustedKeyResolver {
+
+    /**
+     * @param issuer the entity ID of the signer
+     * @param keyType the type of key the signature algorithm needs
+     * @param keyName the first KeyName in the signature's KeyInfo, or null
+     * @return the trusted credential, or null if the issuer has no such key
+     */
+    Credential resolve(String issuer, KeyType keyType, String keyName);
+}
@@ -0,0 +1,172 @@
+package no.steras.opensamlbook.soap;
+
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import no.steras.opensamlbook.xml.SharedParserPool;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.ConnectionConfig;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.config.SocketConfig;
+import org.apache.http.conn.ManagedHttpClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.ManagedHttpClientConnectionFactory;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+import org.opensaml.messaging.context.InOutOperationContext;
+import org.opensaml.security.SecurityException;
+import org.opensaml.soap.client.http.HttpSOAPClient;
+import org.opensaml.soap.common.SOAPException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A long lived SOAP client for back channel calls, such as artifact resolution, sharing one pool of keep-alive
+ * connections.
+ *
+ * Configured with the system properties below, prefixed with <code>opensamlbook.backChannel.</code>:
+ * <ul>
+ *     <li>maxTotal - connections in the pool (default 200)</li>
+ *     <li>maxPerRoute - connections to one IDP endpoint (default 50)</li>
+ *     <li>connectTimeoutMillis (default 2000), readTimeoutMillis (default 5000)</li>
+ *     <li>poolTimeoutMillis - how long to wait for a free pooled connection (default 1000)</li>
+ *     <li>idleSeconds - idle connections are closed after this (default 30)</li>
+ * </ul>
+ */
+public class BackChannelClient {
+    private static Logger logger = LoggerFactory.getLogger(BackChannelClient.class);
+
+    private static final String PROPERTY_PREFIX = "opensamlbook.backChannel.";
+
+    private static final BackChannelClient sharedClient = new BackChannelClient(
+            Integer.getInteger(PROPERTY_PREFIX + "maxTotal", 200),
+            Integer.getInteger(PROPERTY_PREFIX + "maxPerRoute", 50),
+            Integer.getInteger(PROPERTY_PREFIX + "connectTimeoutMillis", 2000),
+            Integer.getInteger(PROPERTY_PREFIX + "readTimeoutMillis", 5000),
+            Integer.getInteger(PROPERTY_PREFIX + "poolTimeoutMillis", 1000),
+            Integer.getInteger(PROPERTY_PREFIX + "idleSeconds", 30));
+
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final CloseableHttpClient httpClient;
+    private final HttpSOAPClient soapClient;
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder connectionsOpened = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    public BackChannelClient(final int maxTotal, final int maxPerRoute, final int connectTimeoutMillis,
+                             final int readTimeoutMillis, final int poolTimeoutMillis, final int idleSeconds) {
+        connectionManager = new PoolingHttpClientConnectionManager(
+                RegistryBuilder.<ConnectionSocketFactory>create()
+                        .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                        .register("https", SSLConnectionSocketFactory.getSocketFactory())
+                        .build(),
+                new CountingConnectionFactory());
+        connectionManager.setMaxTotal(maxTotal);
+        connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+        connectionManager.setDefaultSocketConfig(SocketConfig.custom().setSoTimeout(readTimeoutMillis).setTcpNoDelay(true).build());
+        // Check connections that have been idle for a while before reusing them, the IDP may have closed them
+        connectionManager.setValidateAfterInactivity(2000);
+
+        httpClient = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setConnectTimeout(connectTimeoutMillis)
+                        .setSocketTimeout(readTimeoutMillis)
+                        .setConnectionRequestTimeout(poolTimeoutMillis)
+                        .build())
+                .addInterceptorFirst(new HttpRequestInterceptor() {
+                    @Override
+                    public void process(final HttpRequest request, final HttpContext context) throws HttpException, IOException {
+                        requests.increment();
+                    }
+                })
+                .evictExpiredConnections()
+                .evictIdleConnections(idleSeconds, TimeUnit.SECONDS)
+                .build();
+
+        soapClient = new HttpSOAPClient();
+        soapClient.setHttpClient(httpClient);
+        soapClient.setParserPool(SharedParserPool.getParserPool());
+        try {
+            soapClient.initialize();
+        } catch (ComponentInitializationException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static BackChannelClient getSharedClient() {
+        return sharedClient;
+    }
+
+    /**
+     * Sends the outbound message of the context to the endpoint and stores the response as the inbound message.
+     */
+    public void send(final String endpoint, final InOutOperationContext context) throws SOAPException, SecurityException {
+        try {
+            soapClient.send(endpoint, context);
+        } catch (SOAPException | SecurityException | RuntimeException e) {
+            failures.increment();
+            throw e;
+        }
+    }
+
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    public long getConnectionsOpened() {
+        return connectionsOpened.sum();
+    }
+
+    /**
+     * @return requests that went over a connection that was already open
+     */
+    public long getConnectionsReused() {
+        return Math.max(0, getRequests() - getConnectionsOpened());
+    }
+
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    public PoolStats getPoolStats() {
+        return connectionManager.getTotalStats();
+    }
+
+    public void close() {
+        try {
+            httpClient.close();
+        } catch (IOException e) {
+            logger.warn("Could not close back channel client", e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        PoolStats stats = getPoolStats();
+        return "BackChannelClient{requests=" + getRequests() + ", connectionsOpened=" + getConnectionsOpened()
+                + ", connectionsReused=" + getConnectionsReused() + ", failures=" + getFailures()
+                + ", leased=" + stats.getLeased() + ", available=" + stats.getAvailable()
+                + ", pending=" + stats.getPending() + ", max=" + stats.getMax() + "}";
+    }
+
+    private class CountingConnectionFactory extends ManagedHttpClientConnectionFactory {
+        @Override
+        public ManagedHttpClientConnection create(final HttpRoute route, final ConnectionConfig config) {
+            connectionsOpened.increment();
+            return super.create(route, config);
+        }
+    }
+}
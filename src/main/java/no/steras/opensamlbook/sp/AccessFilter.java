@@ -1,51 +1,54 @@
 package no.steras.opensamlbook.sp;
 
-import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
-import no.steras.opensamlbook.OpenSAMLUtils;
 import no.steras.opensamlbook.idp.IDPConstants;
-import org.joda.time.DateTime;
-import org.opensaml.core.config.InitializationException;
-import org.opensaml.core.config.InitializationService;
-import org.opensaml.core.xml.config.XMLObjectProviderInitializer;
-import org.opensaml.messaging.context.MessageContext;
+import no.steras.opensamlbook.metadata.MetadataIndex;
+import no.steras.opensamlbook.metadata.MetadataRegistry;
+import no.steras.opensamlbook.metrics.Stage;
+import no.steras.opensamlbook.signing.SigningAlgorithm;
+import no.steras.opensamlbook.signing.SigningConfiguration;
+import no.steras.opensamlbook.trace.MessageTracer;
 import org.opensaml.messaging.encoder.MessageEncodingException;
-import org.opensaml.saml.common.SAMLObject;
-import org.opensaml.saml.common.messaging.context.SAMLEndpointContext;
-import org.opensaml.saml.common.messaging.context.SAMLPeerEntityContext;
 import org.opensaml.saml.common.xml.SAMLConstants;
-import org.opensaml.saml.saml2.binding.encoding.impl.HTTPRedirectDeflateEncoder;
-import org.opensaml.saml.saml2.core.*;
-import org.opensaml.saml.saml2.metadata.Endpoint;
-import org.opensaml.saml.saml2.metadata.SingleSignOnService;
+import org.opensaml.saml.saml2.core.AuthnRequest;
+import org.opensaml.security.credential.Credential;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.servlet.*;
+import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
-import java.security.Provider;
-import java.security.Security;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
 
 /**
  * The filter intercepts the user and start the SAML authentication if it is not authenticated
+ *
+ * In the stateless session mode (see {@link SessionTokenCodec}) the user is authenticated by the session token cookie
+ * and the requested page, relative to {@link SPConstants#APPLICATION_BASE_URL}, is sent to the IDP as RelayState, so no
+ * container session is created. Pages whose relative path is too long for RelayState are refused.
+ *
+ * The IDP's single sign on endpoint and the SP's assertion consumer endpoint are looked up in the metadata.
+ *
+ * The AuthnRequest is sent with the shared {@link RedirectEncoder}. With <code>opensamlbook.sp.signAuthnRequests=true</code>
+ * the query string is signed with the SP key and the algorithm configured for the IDP.
  */
 public class AccessFilter implements Filter {
     private static Logger logger = LoggerFactory.getLogger(AccessFilter.class);
-
+    private static final boolean SIGN_AUTHN_REQUESTS = Boolean.getBoolean("opensamlbook.sp.signAuthnRequests");
+    private static final String APPLICATION_BASE_PATH = URI.create(SPConstants.APPLICATION_BASE_URL).getRawPath();
+    /**
+     * Built from the current metadata and replaced when the metadata is reloaded.
+     */
+    private volatile MetadataTemplate template;
+
+    /**
+     * OpenSAML has been initialized by the {@link no.steras.opensamlbook.bootstrap.StartupListener} at this point.
+     */
     @Override
     public void init(FilterConfig filterConfig) throws ServletException {
-        for (Provider jceProvider : Security.getProviders()) {
-            logger.info(jceProvider.getInfo());
-        }
-
-        try {
-            logger.info("Bootstrapping");
-            InitializationService.initialize();
-            new XMLObjectProviderInitializer().init();
-        } catch (InitializationException e) {
-            throw new RuntimeException("Bootstrapping failed");
-        }
+        template = new MetadataTemplate(MetadataRegistry.getSharedRegistry().getIndex());
     }
 
     @Override
@@ -53,124 +56,130 @@ public class AccessFilter implements Filter {
         HttpServletRequest httpServletRequest = (HttpServletRequest)request;
         HttpServletResponse httpServletResponse = (HttpServletResponse)response;
 
-        if (httpServletRequest.getSession().getAttribute(SPConstants.AUTHENTICATED_SESSION_ATTRIBUTE) != null) {
+        if (SessionTokenCodec.isStatelessMode()) {
+            String principal = SessionTokenCodec.getSharedCodec().verify(getSessionToken(httpServletRequest));
+            if (principal != null) {
+                httpServletRequest.setAttribute(SPConstants.PRINCIPAL_REQUEST_ATTRIBUTE, principal);
+                chain.doFilter(request, response);
+            } else {
+                String relayState = relayState(httpServletRequest);
+                if (relayState == null) {
+                    httpServletResponse.sendError(HttpServletResponse.SC_REQUEST_URI_TOO_LONG,
+                            "The page can not be returned to after login");
+                    return;
+                }
+                redirectUserForAuthentication(httpServletResponse, relayState, MessageTracer.isTracing(httpServletRequest));
+            }
+        } else if (httpServletRequest.getSession().getAttribute(SPConstants.AUTHENTICATED_SESSION_ATTRIBUTE) != null) {
             chain.doFilter(request, response);
         } else {
             setGotoURLOnSession(httpServletRequest);
-            redirectUserForAuthentication(httpServletResponse);
+            redirectUserForAuthentication(httpServletResponse, null, MessageTracer.isTracing(httpServletRequest));
         }
     }
 
-    private void setGotoURLOnSession(HttpServletRequest request) {
-        request.getSession().setAttribute(SPConstants.GOTO_URL_SESSION_ATTRIBUTE, request.getRequestURL().toString());
-    }
-
-    private void redirectUserForAuthentication(HttpServletResponse httpServletResponse) {
-        AuthnRequest authnRequest = buildAuthnRequest();
-        redirectUserWithRequest(httpServletResponse, authnRequest);
-
+    private String getSessionToken(HttpServletRequest request) {
+        Cookie[] cookies = request.getCookies();
+        if (cookies == null) {
+            return null;
+        }
+        for (Cookie cookie : cookies) {
+            if (SPConstants.SESSION_COOKIE_NAME.equals(cookie.getName())) {
+                return cookie.getValue();
+            }
+        }
+        return null;
     }
 
-    private void redirectUserWithRequest(HttpServletResponse httpServletResponse, AuthnRequest authnRequest) {
-        logger.info("AuthnRequest: ");
-        OpenSAMLUtils.logSAMLObject(authnRequest);
-        logger.info("Redirecting to IDP");
-
-        // No response adapters needed anymore; the response now gets set directly on the encoder
-        httpServletResponse.setStatus(HttpServletResponse.SC_MOVED_TEMPORARILY);
-
-        // check your makeSamlMessageContext() method to see if any other properties on messageContext need to be set here
-        MessageContext<SAMLObject> messageContext = new MessageContext<SAMLObject>();
-        messageContext.setMessage(authnRequest);
-
-        // Endpoint is now set via subcontexts
-        SAMLPeerEntityContext peerEntityContext = messageContext.getSubcontext(SAMLPeerEntityContext.class, true);
-        SAMLEndpointContext endpointContext = peerEntityContext.getSubcontext(SAMLEndpointContext.class, true);
-        endpointContext.setEndpoint(getIDPEndpoint());
-
-        // MessageContext and HttpServletResponse now get set directly on the encoder
-        HTTPRedirectDeflateEncoder httpRedirectDeflateEncoder = new HTTPRedirectDeflateEncoder();
-        httpRedirectDeflateEncoder.setMessageContext(messageContext);
-        httpRedirectDeflateEncoder.setHttpServletResponse(httpServletResponse);
-        try {
-            httpRedirectDeflateEncoder.initialize();
-            httpRedirectDeflateEncoder.encode();
-        } catch (MessageEncodingException e) {
-            throw new RuntimeException(e);
-        } catch (ComponentInitializationException e) {
-            throw new RuntimeException(e);
+    /**
+     * @return the requested page relative to the application base, or null if it is longer than RelayState may be
+     */
+    private static String relayState(HttpServletRequest request) {
+        String uri = request.getRequestURI();
+        if (!uri.startsWith(APPLICATION_BASE_PATH)) {
+            throw new RuntimeException("Request is not for the application: " + uri);
         }
+        String relayState = uri.substring(APPLICATION_BASE_PATH.length());
+        if (relayState.getBytes(StandardCharsets.UTF_8).length > SPConstants.MAX_RELAY_STATE_BYTES) {
+            logger.info("Path of " + uri + " is too long for RelayState");
+            return null;
+        }
+        return relayState;
     }
 
-    private AuthnRequest buildAuthnRequest() {
-        AuthnRequest authnRequest = OpenSAMLUtils.buildSAMLObject(AuthnRequest.class);
-        authnRequest.setIssueInstant(new DateTime());
-        authnRequest.setDestination(getIDPSSODestination());
-        authnRequest.setProtocolBinding(SAMLConstants.SAML2_POST_BINDING_URI);
-        authnRequest.setAssertionConsumerServiceURL(getAssertionConsumerEndpoint());
-        authnRequest.setID(OpenSAMLUtils.generateSecureRandomId());
-        authnRequest.setIssuer(buildIssuer());
-        authnRequest.setNameIDPolicy(buildNameIdPolicy());
-        authnRequest.setRequestedAuthnContext(buildRequestedAuthnContext());
-
-        return authnRequest;
+    private void setGotoURLOnSession(HttpServletRequest request) {
+        request.getSession().setAttribute(SPConstants.GOTO_URL_SESSION_ATTRIBUTE, request.getRequestURL().toString());
     }
-    private RequestedAuthnContext buildRequestedAuthnContext() {
-        RequestedAuthnContext requestedAuthnContext = OpenSAMLUtils.buildSAMLObject(RequestedAuthnContext.class);
-        requestedAuthnContext.setComparison(AuthnContextComparisonTypeEnumeration.MINIMUM);
-
-        AuthnContextClassRef passwordAuthnContextClassRef = OpenSAMLUtils.buildSAMLObject(AuthnContextClassRef.class);
-        passwordAuthnContextClassRef.setAuthnContextClassRef(AuthnContext.PASSWORD_AUTHN_CTX);
-
-        requestedAuthnContext.getAuthnContextClassRefs().add(passwordAuthnContextClassRef);
 
-        return requestedAuthnContext;
+    private void redirectUserForAuthentication(HttpServletResponse httpServletResponse, String relayState, boolean tracing) {
+        long start = Stage.AUTHN_REQUEST_BUILD.start();
+        AuthnRequestTemplate authnRequestTemplate = authnRequestTemplate();
+        AuthnRequest authnRequest = authnRequestTemplate.newAuthnRequest();
+        Stage.AUTHN_REQUEST_BUILD.end(start);
+        redirectUserWithRequest(httpServletResponse, authnRequestTemplate, authnRequest, relayState, tracing);
 
     }
 
-    private NameIDPolicy buildNameIdPolicy() {
-        NameIDPolicy nameIDPolicy = OpenSAMLUtils.buildSAMLObject(NameIDPolicy.class);
-        nameIDPolicy.setAllowCreate(true);
-
-        nameIDPolicy.setFormat(NameIDType.TRANSIENT);
-
-        return nameIDPolicy;
+    private AuthnRequestTemplate authnRequestTemplate() {
+        MetadataIndex metadata = MetadataRegistry.getSharedRegistry().getIndex();
+        MetadataTemplate current = template;
+        if (current.metadata != metadata) {
+            current = new MetadataTemplate(metadata);
+            template = current;
+        }
+        return current.authnRequestTemplate;
     }
 
-    private Issuer buildIssuer() {
-        Issuer issuer = OpenSAMLUtils.buildSAMLObject(Issuer.class);
-        issuer.setValue(getSPIssuerValue());
-
-        return issuer;
-    }
+    private void redirectUserWithRequest(HttpServletResponse httpServletResponse, AuthnRequestTemplate authnRequestTemplate,
+                                         AuthnRequest authnRequest, String relayState, boolean tracing) {
+        MessageTracer.trace(tracing, "AuthnRequest", authnRequest);
+        logger.info("Redirecting to IDP");
 
-    private String getSPIssuerValue() {
-        return SPConstants.SP_ENTITY_ID;
+        long start = Stage.AUTHN_REQUEST_ENCODE.start();
+        Credential signingCredential = null;
+        SigningAlgorithm signingAlgorithm = null;
+        if (SIGN_AUTHN_REQUESTS) {
+            signingAlgorithm = SigningConfiguration.forPeer(IDPConstants.IDP_ENTITY_ID).getAlgorithm();
+            signingCredential = SPCredentials.getCredential(signingAlgorithm.getKeyType());
+        }
+        try {
+            RedirectEncoder.getSharedEncoder().sendRedirect(httpServletResponse, authnRequest,
+                    authnRequestTemplate.getIDPEndpoint().getLocation(), relayState, signingCredential, signingAlgorithm);
+            Stage.AUTHN_REQUEST_ENCODE.end(start);
+        } catch (MessageEncodingException e) {
+            throw new RuntimeException(e);
+        }
     }
 
-    private String getSPNameQualifier() {
+    private static String getSPIssuerValue() {
         return SPConstants.SP_ENTITY_ID;
     }
 
-    private String getAssertionConsumerEndpoint() {
-        return SPConstants.ASSERTION_CONSUMER_SERVICE;
+    private static String getAssertionConsumerEndpoint(MetadataIndex metadata) {
+        return metadata.requireEntity(SPConstants.SP_ENTITY_ID).getAssertionConsumerService();
     }
 
-    private String getIDPSSODestination() {
-        return IDPConstants.SSO_SERVICE;
+    private static String getIDPSSODestination(MetadataIndex metadata) {
+        String destination = metadata.requireEntity(IDPConstants.IDP_ENTITY_ID).getSingleSignOnService(SAMLConstants.SAML2_REDIRECT_BINDING_URI);
+        if (destination == null) {
+            throw new RuntimeException(IDPConstants.IDP_ENTITY_ID + " has no HTTP-Redirect single sign on endpoint");
+        }
+        return destination;
     }
 
-    private Endpoint getIDPEndpoint() {
-        SingleSignOnService endpoint = OpenSAMLUtils.buildSAMLObject(SingleSignOnService.class);
-        endpoint.setBinding(SAMLConstants.SAML2_REDIRECT_BINDING_URI);
-        endpoint.setLocation(getIDPSSODestination());
+    @Override
+    public void destroy() {
 
-        return endpoint;
     }
 
+    private static final class MetadataTemplate {
+        private final MetadataIndex metadata;
+        private final AuthnRequestTemplate authnRequestTemplate;
 
-    @Override
-    public void destroy() {
-
+        private MetadataTemplate(final MetadataIndex metadata) {
+            this.metadata = metadata;
+            this.authnRequestTemplate = new AuthnRequestTemplate(getIDPSSODestination(metadata), getSPIssuerValue(),
+                    getAssertionConsumerEndpoint(metadata));
+        }
     }
 }
\ No newline at end of file
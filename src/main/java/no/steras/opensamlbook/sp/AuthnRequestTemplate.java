@@ -0,0 +1,104 @@
+package no.steras.opensamlbook.sp;
+
+import no.steras.opensamlbook.OpenSAMLUtils;
+import org.joda.time.DateTime;
+import org.opensaml.messaging.context.MessageContext;
+import org.opensaml.saml.common.SAMLObject;
+import org.opensaml.saml.common.messaging.context.SAMLEndpointContext;
+import org.opensaml.saml.common.messaging.context.SAMLPeerEntityContext;
+import org.opensaml.saml.common.xml.SAMLConstants;
+import org.opensaml.saml.saml2.core.*;
+import org.opensaml.saml.saml2.metadata.Endpoint;
+import org.opensaml.saml.saml2.metadata.SingleSignOnService;
+
+/**
+ * Builds AuthnRequests for one IDP/SP pair where everything except the ID and IssueInstant is built only once.
+ *
+ * Every thread keeps its own AuthnRequest. Setting a new ID and IssueInstant only drops the DOM of the root element,
+ * so marshalling reuses the already marshalled Issuer, NameIDPolicy and RequestedAuthnContext.
+ */
+public class AuthnRequestTemplate {
+    private final String idpSSODestination;
+    private final String spEntityId;
+    private final String assertionConsumerServiceURL;
+    private final Endpoint idpEndpoint;
+
+    private final ThreadLocal<AuthnRequest> threadRequests = new ThreadLocal<AuthnRequest>() {
+        @Override
+        protected AuthnRequest initialValue() {
+            return buildPrototype();
+        }
+    };
+
+    public AuthnRequestTemplate(final String idpSSODestination, final String spEntityId, final String assertionConsumerServiceURL) {
+        this.idpSSODestination = idpSSODestination;
+        this.spEntityId = spEntityId;
+        this.assertionConsumerServiceURL = assertionConsumerServiceURL;
+
+        SingleSignOnService endpoint = OpenSAMLUtils.buildSAMLObject(SingleSignOnService.class);
+        endpoint.setBinding(SAMLConstants.SAML2_REDIRECT_BINDING_URI);
+        endpoint.setLocation(idpSSODestination);
+        idpEndpoint = endpoint;
+    }
+
+    /**
+     * Returns the calling thread's AuthnRequest with a new ID and IssueInstant. The request is only valid until the
+     * next call from the same thread, so it must be encoded before the servlet request completes.
+     */
+    public AuthnRequest newAuthnRequest() {
+        AuthnRequest authnRequest = threadRequests.get();
+        authnRequest.setID(OpenSAMLUtils.generateSecureRandomId());
+        authnRequest.setIssueInstant(new DateTime());
+        return authnRequest;
+    }
+
+    /**
+     * Builds the outbound context for the request. The endpoint is shared between requests and must not be modified.
+     */
+    public MessageContext<SAMLObject> newMessageContext(final AuthnRequest authnRequest) {
+        MessageContext<SAMLObject> messageContext = new MessageContext<SAMLObject>();
+        messageContext.setMessage(authnRequest);
+
+        SAMLPeerEntityContext peerEntityContext = messageContext.getSubcontext(SAMLPeerEntityContext.class, true);
+        SAMLEndpointContext endpointContext = peerEntityContext.getSubcontext(SAMLEndpointContext.class, true);
+        endpointContext.setEndpoint(idpEndpoint);
+
+        return messageContext;
+    }
+
+    public Endpoint getIDPEndpoint() {
+        return idpEndpoint;
+    }
+
+    private AuthnRequest buildPrototype() {
+        AuthnRequest authnRequest = OpenSAMLUtils.buildSAMLObject(AuthnRequest.class);
+        authnRequest.setDestination(idpSSODestination);
+        authnRequest.setProtocolBinding(SAMLConstants.SAML2_POST_BINDING_URI);
+        authnRequest.setAssertionConsumerServiceURL(assertionConsumerServiceURL);
+        authnRequest.setIssuer(OpenSAMLUtils.buildIssuer(spEntityId));
+        authnRequest.setNameIDPolicy(buildNameIdPolicy());
+        authnRequest.setRequestedAuthnContext(buildRequestedAuthnContext());
+        return authnRequest;
+    }
+
+    private static RequestedAuthnContext buildRequestedAuthnContext() {
+        RequestedAuthnContext requestedAuthnContext = OpenSAMLUtils.buildSAMLObject(RequestedAuthnContext.class);
+        requestedAuthnContext.setComparison(AuthnContextComparisonTypeEnumeration.MINIMUM);
+
+        AuthnContextClassRef passwordAuthnContextClassRef = OpenSAMLUtils.buildSAMLObject(AuthnContextClassRef.class);
+        passwordAuthnContextClassRef.setAuthnContextClassRef(AuthnContext.PASSWORD_AUTHN_CTX);
+
+        requestedAuthnContext.getAuthnContextClassRefs().add(passwordAuthnContextClassRef);
+
+        return requestedAuthnContext;
+    }
+
+    private static NameIDPolicy buildNameIdPolicy() {
+        NameIDPolicy nameIDPolicy = OpenSAMLUtils.buildSAMLObject(NameIDPolicy.class);
+        nameIDPolicy.setAllowCreate(true);
+
+        nameIDPolicy.setFormat(NameIDType.TRANSIENT);
+
+        return nameIDPolicy;
+    }
+}
@@ -1,142 +1,302 @@
 package no.steras.opensamlbook.sp;
 
-import com.google.common.io.CharStreams;
-import net.shibboleth.utilities.java.support.xml.BasicParserPool;
 import no.steras.opensamlbook.OpenSAMLUtils;
-import no.steras.opensamlbook.Utils;
+import no.steras.opensamlbook.async.AsyncExecutors;
+import no.steras.opensamlbook.async.AsyncProcessor;
+import no.steras.opensamlbook.encryption.AssertionDecrypter;
 import no.steras.opensamlbook.idp.ArtifactResolutionServlet;
-import no.steras.opensamlbook.idp.IDPConstants;
-import no.steras.opensamlbook.idp.IDPCredentials;
-import org.apache.http.impl.client.HttpClientBuilder;
-import org.bouncycastle.util.encoders.Base64;
+import no.steras.opensamlbook.metadata.EntityMetadata;
+import no.steras.opensamlbook.metadata.MetadataIndex;
+import no.steras.opensamlbook.metadata.MetadataRegistry;
+import no.steras.opensamlbook.metrics.Stage;
+import no.steras.opensamlbook.signing.SAMLSigner;
+import no.steras.opensamlbook.signing.SignatureVerifier;
+import no.steras.opensamlbook.signing.SigningConfiguration;
+import no.steras.opensamlbook.trace.MessageTracer;
+import no.steras.opensamlbook.soap.BackChannelClient;
 import org.joda.time.DateTime;
 import org.opensaml.core.xml.XMLObject;
-import org.opensaml.core.xml.config.XMLObjectProviderRegistrySupport;
-import org.opensaml.core.xml.io.MarshallingException;
 import org.opensaml.core.xml.schema.XSString;
 import org.opensaml.messaging.context.MessageContext;
 import org.opensaml.profile.context.ProfileRequestContext;
+import org.opensaml.saml.saml2.binding.artifact.SAML2ArtifactType0004;
 import org.opensaml.saml.saml2.core.*;
-import org.opensaml.saml.saml2.encryption.Decrypter;
-import org.opensaml.saml.security.impl.SAMLSignatureProfileValidator;
-import org.opensaml.soap.client.http.HttpSOAPClient;
+import org.opensaml.security.credential.Credential;
 import org.opensaml.soap.messaging.context.SOAP11Context;
 import org.opensaml.soap.soap11.Envelope;
-import org.opensaml.xmlsec.encryption.support.DecryptionException;
-import org.opensaml.xmlsec.encryption.support.InlineEncryptedKeyResolver;
-import org.opensaml.xmlsec.keyinfo.impl.StaticKeyInfoCredentialResolver;
-import org.opensaml.xmlsec.signature.Signature;
-import org.opensaml.xmlsec.signature.support.SignatureConstants;
 import org.opensaml.xmlsec.signature.support.SignatureException;
-import org.opensaml.xmlsec.signature.support.SignatureValidator;
-import org.opensaml.xmlsec.signature.support.Signer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.io.ByteArrayInputStream;
+import javax.servlet.http.HttpSession;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.Reader;
-import java.net.URLDecoder;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.CompletableFuture;
+import java.util.regex.Pattern;
 
 /**
  * Created by Privat on 4/6/14.
+ *
+ * Responses are processed asynchronously, see {@link AsyncProcessor}, so the container thread is released while a
+ * response is verified and while an artifact is resolved.
  */
 public class ConsumerServlet extends HttpServlet {
     private static Logger logger = LoggerFactory.getLogger(ConsumerServlet.class);
-
+    /**
+     * Larger POST bodies are rejected while they are read. Set with the system property
+     * <code>opensamlbook.sp.maxPostBytes</code>.
+     */
+    private static final long MAX_POST_BYTES = Long.getLong("opensamlbook.sp.maxPostBytes", 1024 * 1024);
+    /**
+     * Assertions are accepted for at most this long after they were issued, whatever their NotOnOrAfter says. Set with
+     * the system property <code>opensamlbook.sp.maxAssertionAgeSeconds</code>.
+     */
+    private static final long MAX_ASSERTION_AGE_MILLIS = Integer.getInteger("opensamlbook.sp.maxAssertionAgeSeconds", 300) * 1000L;
+    private static final AsyncProcessor processor = AsyncProcessor.create("consumer");
+    /**
+     * A relative URL path without dot segments, so it stays under the application base. Percent encoded dots, slashes
+     * and backslashes are refused outright, browsers may decode them into dot segments after the redirect.
+     */
+    private static final Pattern RELAY_STATE_PATH = Pattern.compile("(?!/)(?!(.*/)?\\.\\.?(/|$))(?!.*%(2[eEfF]|5[cC]))[A-Za-z0-9._~%!$&'()*+,;=:@/-]*");
+
+    /**
+     * HTTP-Artifact binding, the artifact is resolved with the IDP over the back channel. The ArtifactResolve is signed
+     * on a worker thread, the call waits on a back channel thread and the response is checked on a worker thread again.
+     */
     @Override
-    protected void doPost(final HttpServletRequest req, final HttpServletResponse resp) throws IOException {
-        String text = null;
-        Reader reader = new InputStreamReader(req.getInputStream());
-        text = URLDecoder.decode(CharStreams.toString(reader), "UTF-8");
-        String samlResponse = Utils.getSamlResponseFromForm(text);
-        if (samlResponse == null) {
-            throw new RuntimeException("IDP response doesn't contain SAML Response");
+    protected void doGet(final HttpServletRequest req, final HttpServletResponse resp) throws IOException {
+        RequestState state = new RequestState(req);
+        Artifact artifact = buildArtifactFromRequest(req);
+        if (artifact.getArtifact() == null) {
+            throw new RuntimeException("IDP response doesn't contain SAML artifact");
         }
+        String relayState = req.getParameter("RelayState");
+
+        processor.process(req, resp, -1, (body, httpResponse) -> {
+            EntityMetadata idp = identityProviderFor(artifact);
+            String artifactResolutionService = idp.getArtifactResolutionService();
+            ArtifactResolve artifactResolve = buildArtifactResolve(artifact, artifactResolutionService);
+            signArtifactResolve(artifactResolve, idp.getEntityId());
+            MessageTracer.trace(state.tracing, "ArtifactResolve", artifactResolve);
+
+            return CompletableFuture.supplyAsync(() -> {
+                long start = Stage.ARTIFACT_RESOLVE.start();
+                ArtifactResponse artifactResponse = sendAndReceiveArtifactResolve(artifactResolve, artifactResolutionService);
+                Stage.ARTIFACT_RESOLVE.end(start);
+                return artifactResponse;
+            }, AsyncExecutors.backChannel(idp.getEntityId())).thenAcceptAsync(artifactResponse -> {
+                logger.info("ArtifactResponse received");
+                MessageTracer.trace(state.tracing, "ArtifactResponse", artifactResponse);
+
+                if (!artifactResolve.getID().equals(artifactResponse.getInResponseTo())) {
+                    throw new RuntimeException("ArtifactResponse is not a response to the ArtifactResolve");
+                }
+                if (!(artifactResponse.getMessage() instanceof Response)) {
+                    throw new RuntimeException("IDP could not resolve the SAML artifact");
+                }
+
+                handleResponse(state, httpResponse, (Response)artifactResponse.getMessage(), relayState);
+            }, AsyncExecutors.worker());
+        });
+    }
 
-        samlResponse = new String(Base64.decode(samlResponse));
-        logger.info("trying to unmarshall the artifactResponse string");
-        logger.info(samlResponse);
-
-        Response response = ArtifactResolutionServlet.unmarshallArtifactResolve(new ByteArrayInputStream(samlResponse.getBytes()));
-        logger.info("ArtifactResponse received");
-        logger.info("ArtifactResponse: ");
-        OpenSAMLUtils.logSAMLObject(response);
+    /**
+     * HTTP-POST binding. The body is streamed into the parser on a body reader thread, the response is checked on a
+     * worker thread.
+     */
+    @Override
+    protected void doPost(final HttpServletRequest req, final HttpServletResponse resp) throws IOException {
+        RequestState state = new RequestState(req);
+        processor.process(req, resp, MAX_POST_BYTES, (body, httpResponse) -> {
+            // The response is URL decoded, base64 decoded and parsed as the body is read, without copying it
+            long start = System.nanoTime();
+            FormPostDecoder form = new FormPostDecoder(body, MAX_POST_BYTES);
+            InputStream samlResponse = form.openField("SAMLResponse");
+            if (samlResponse == null) {
+                throw new RuntimeException("IDP response doesn't contain SAML Response");
+            }
+            // The time spent parsing the SAMLResponse is left out of the form decode stage
+            long decodeNanos = System.nanoTime() - start;
+
+            Response response = ArtifactResolutionServlet.unmarshallArtifactResolve(Base64.getMimeDecoder().wrap(samlResponse));
+            start = System.nanoTime();
+            form.readRemainingFields();
+            Stage.FORM_DECODE.record(decodeNanos + System.nanoTime() - start);
+            logger.info("Response received");
+            MessageTracer.trace(state.tracing, "Response", response);
+
+            String relayState = form.getField("RelayState");
+            return CompletableFuture.runAsync(() -> handleResponse(state, httpResponse, response, relayState),
+                    AsyncExecutors.worker());
+        });
+    }
 
-        Assertion assertion = response.getAssertions().get(0);
-        logger.info("Decrypted Assertion: ");
-        OpenSAMLUtils.logSAMLObject(assertion);
+    private void handleResponse(final RequestState state, final HttpServletResponse resp, final Response response,
+                                final String relayState) {
+        MetadataIndex metadata = MetadataRegistry.getSharedRegistry().getIndex();
+        checkDestination(metadata, response);
+        Assertion assertion = getAssertion(response);
+        MessageTracer.trace(state.tracing, "Assertion", assertion);
+        verifyAssertionSignature(assertion, identityProviderFor(metadata, assertion));
+        checkReplay(response, assertion);
 
         logAssertionAttributes(assertion);
         logAuthenticationInstant(assertion);
         logAuthenticationMethod(assertion);
 
-        setAuthenticatedSession(req);
-        redirectToGotoURL(req, resp);
+        long start = Stage.SESSION_SETUP.start();
+        if (SessionTokenCodec.isStatelessMode()) {
+            setSessionCookie(state, resp, assertion.getSubject().getNameID().getValue());
+            redirectToRelayState(resp, relayState);
+        } else {
+            setAuthenticatedSession(state);
+            redirectToGotoURL(state, resp);
+        }
+        Stage.SESSION_SETUP.end(start);
     }
 
-    private Assertion decryptAssertion(EncryptedAssertion encryptedAssertion) {
-        StaticKeyInfoCredentialResolver keyInfoCredentialResolver = new StaticKeyInfoCredentialResolver(SPCredentials.getCredential());
-
-        Decrypter decrypter = new Decrypter(null, keyInfoCredentialResolver, new InlineEncryptedKeyResolver());
-        decrypter.setRootInNewDocument(true);
+    /**
+     * Returns the assertion of the response, decrypting it first if the IDP encrypted it.
+     */
+    private Assertion getAssertion(Response response) {
+        if (!response.getEncryptedAssertions().isEmpty()) {
+            long start = Stage.ASSERTION_DECRYPT.start();
+            Assertion assertion = AssertionDecrypter.getSharedDecrypter().decrypt(response.getEncryptedAssertions().get(0));
+            Stage.ASSERTION_DECRYPT.end(start);
+            return assertion;
+        }
+        return response.getAssertions().get(0);
+    }
 
+    /**
+     * Finds the IDP that issued a type 0x0004 artifact by the artifact's SourceID.
+     */
+    private static EntityMetadata identityProviderFor(final Artifact artifact) {
+        SAML2ArtifactType0004 parsed;
         try {
-            return decrypter.decrypt(encryptedAssertion);
-        } catch (DecryptionException e) {
-            throw new RuntimeException(e);
+            parsed = SAML2ArtifactType0004.parseArtifact(Base64.getDecoder().decode(artifact.getArtifact()));
+        } catch (IllegalArgumentException e) {
+            throw new RuntimeException("Malformed SAML artifact", e);
+        }
+        EntityMetadata idp = MetadataRegistry.getSharedRegistry().getIndex().getIdentityProviderBySourceId(parsed.getSourceID());
+        if (idp == null || idp.getArtifactResolutionService() == null) {
+            throw new RuntimeException("SAML artifact from an unknown IDP");
+        }
+        return idp;
+    }
+
+    /**
+     * @return the issuer of the assertion, which must be an IDP in the metadata
+     */
+    private static EntityMetadata identityProviderFor(final MetadataIndex metadata, final Assertion assertion) {
+        String issuer = assertion.getIssuer() == null ? null : assertion.getIssuer().getValue();
+        EntityMetadata idp = issuer == null ? null : metadata.getEntity(issuer);
+        if (idp == null || !idp.isIdentityProvider()) {
+            throw new RuntimeException("Assertion from an unknown IDP: " + issuer);
+        }
+        return idp;
+    }
+
+    /**
+     * Rejects responses sent to an endpoint that is not one of this SP's.
+     */
+    private static void checkDestination(final MetadataIndex metadata, final Response response) {
+        if (response.getDestination() == null) {
+            return;
+        }
+        if (!metadata.requireEntity(SPConstants.SP_ENTITY_ID).isAssertionConsumerService(response.getDestination())) {
+            throw new RuntimeException("Response is for another destination: " + response.getDestination());
         }
     }
 
-    private void verifyAssertionSignature(Assertion assertion) {
+    private void verifyAssertionSignature(Assertion assertion, EntityMetadata idp) {
         if (!assertion.isSigned()) {
             throw new RuntimeException("The SAML Assertion was not signed");
         }
 
         try {
-            SAMLSignatureProfileValidator profileValidator = new SAMLSignatureProfileValidator();
-            profileValidator.validate(assertion.getSignature());
-
-            SignatureValidator.validate(assertion.getSignature(), IDPCredentials.getCredential());
-
-            logger.info("SAML Assertion signature verified");
+            long start = Stage.SIGNATURE_VERIFY.start();
+            SignatureVerifier.getSharedVerifier().verify(assertion, idp.getEntityId());
+            Stage.SIGNATURE_VERIFY.end(start);
+            logger.debug("SAML Assertion signature verified");
         } catch (SignatureException e) {
             throw new RuntimeException(e);
         }
 
     }
 
-    private void signArtifactResolve(ArtifactResolve artifactResolve) {
-        Signature signature = OpenSAMLUtils.buildSAMLObject(Signature.class);
-        signature.setSigningCredential(SPCredentials.getCredential());
-        signature.setSignatureAlgorithm(SignatureConstants.ALGO_ID_SIGNATURE_RSA_SHA1);
-        signature.setCanonicalizationAlgorithm(SignatureConstants.ALGO_ID_C14N_EXCL_OMIT_COMMENTS);
-
-        artifactResolve.setSignature(signature);
+    /**
+     * Rejects assertions, and responses to an AuthnRequest, that have been consumed before. IDs are remembered until
+     * the assertion is too old to be accepted.
+     */
+    private void checkReplay(final Response response, final Assertion assertion) {
+        long expiresAt = assertion.getIssueInstant().getMillis() + MAX_ASSERTION_AGE_MILLIS;
+        if (assertion.getConditions() != null && assertion.getConditions().getNotOnOrAfter() != null) {
+            expiresAt = Math.min(expiresAt, assertion.getConditions().getNotOnOrAfter().getMillis());
+        }
 
-        try {
-            XMLObjectProviderRegistrySupport.getMarshallerFactory().getMarshaller(artifactResolve).marshall(artifactResolve);
-        } catch (MarshallingException e) {
-            throw new RuntimeException(e);
+        ReplayCache replayCache = ReplayCache.getSharedCache();
+        ReplayCache.Result result = replayCache.checkAndStore(assertion.getID(), expiresAt);
+        if (result != ReplayCache.Result.STORED) {
+            throw new RuntimeException("Assertion " + assertion.getID() + " rejected by the replay cache: " + result);
         }
+        if (response.getInResponseTo() != null) {
+            result = replayCache.checkAndStore("InResponseTo:" + response.getInResponseTo(), expiresAt);
+            if (result != ReplayCache.Result.STORED) {
+                throw new RuntimeException("Response to " + response.getInResponseTo() + " rejected by the replay cache: " + result);
+            }
+        }
+    }
+
+    private void signArtifactResolve(ArtifactResolve artifactResolve, String idpEntityId) {
+        SigningConfiguration signingConfiguration = SigningConfiguration.forPeer(idpEntityId);
+        Credential credential = SPCredentials.getCredential(signingConfiguration.getAlgorithm().getKeyType());
+        SAMLSigner.sign(artifactResolve, credential, signingConfiguration);
+    }
+
+    private void setAuthenticatedSession(RequestState state) {
+        state.session.setAttribute(SPConstants.AUTHENTICATED_SESSION_ATTRIBUTE, true);
+    }
+
+    /**
+     * The token is URL safe base64 and needs no quoting. The path is taken from the servlet's context, this runs on a
+     * worker thread where the container may no longer know the request's context path.
+     */
+    private void setSessionCookie(RequestState state, HttpServletResponse resp, String principal) {
+        SessionTokenCodec codec = SessionTokenCodec.getSharedCodec();
+        Cookie cookie = new Cookie(SPConstants.SESSION_COOKIE_NAME, codec.issue(principal));
+        String contextPath = getServletContext().getContextPath();
+        cookie.setPath(contextPath.isEmpty() ? "/" : contextPath);
+        cookie.setMaxAge((int)(codec.getLifetimeMillis() / 1000));
+        cookie.setHttpOnly(true);
+        cookie.setSecure(state.secure);
+        resp.addCookie(cookie);
+    }
 
+    /**
+     * The RelayState is a page relative to the application base, as the access filter sends it.
+     */
+    private void redirectToRelayState(HttpServletResponse resp, String relayState) {
+        if (relayState == null || !RELAY_STATE_PATH.matcher(relayState).matches()
+                || relayState.getBytes(StandardCharsets.UTF_8).length > SPConstants.MAX_RELAY_STATE_BYTES) {
+            throw new RuntimeException("RelayState is not an application page: " + relayState);
+        }
+        logger.info("Redirecting to RelayState: " + relayState);
         try {
-            Signer.signObject(signature);
-        } catch (SignatureException e) {
+            resp.sendRedirect(SPConstants.APPLICATION_BASE_URL + relayState);
+        } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
-    private void setAuthenticatedSession(HttpServletRequest req) {
-        req.getSession().setAttribute(SPConstants.AUTHENTICATED_SESSION_ATTRIBUTE, true);
-    }
-
-    private void redirectToGotoURL(HttpServletRequest req, HttpServletResponse resp) {
-        String gotoURL = (String)req.getSession().getAttribute(SPConstants.GOTO_URL_SESSION_ATTRIBUTE);
+    private void redirectToGotoURL(RequestState state, HttpServletResponse resp) {
+        String gotoURL = state.gotoURL;
         logger.info("Redirecting to requested URL: " + gotoURL);
         try {
             resp.sendRedirect(gotoURL);
@@ -167,22 +327,10 @@ public class ConsumerServlet extends HttpServlet {
         }
     }
 
-    private EncryptedAssertion getEncryptedAssertion(ArtifactResponse artifactResponse) {
-        Response response = (Response)artifactResponse.getMessage();
-        return response.getEncryptedAssertions().get(0);
-    }
-
-    private ArtifactResponse sendAndReceiveArtifactResolve(final ArtifactResolve artifactResolve) {
+    private ArtifactResponse sendAndReceiveArtifactResolve(final ArtifactResolve artifactResolve, final String artifactResolutionService) {
         try {
             Envelope envelope = OpenSAMLUtils.wrapInSOAPEnvelope(artifactResolve);
 
-            // build the soap client
-            BasicParserPool basicParserPool = new BasicParserPool();
-            basicParserPool.initialize();
-            HttpSOAPClient soapClient = new HttpSOAPClient();
-            soapClient.setParserPool(basicParserPool);
-            soapClient.setHttpClient(HttpClientBuilder.create().build());
-
             // Build the outbound context
             SOAP11Context soap11Context = new SOAP11Context();
             soap11Context.setEnvelope(envelope);
@@ -192,7 +340,7 @@ public class ConsumerServlet extends HttpServlet {
             profileRequestContext.setOutboundMessageContext(messageContext);
 
             // Call IDP
-            soapClient.send(IDPConstants.ARTIFACT_RESOLUTION_SERVICE, profileRequestContext);
+            BackChannelClient.getSharedClient().send(artifactResolutionService, profileRequestContext);
 
             // Parse the response
             MessageContext<XMLObject> inboundContext = profileRequestContext.getInboundMessageContext();
@@ -215,22 +363,43 @@ public class ConsumerServlet extends HttpServlet {
         return artifact;
     }
 
-    private ArtifactResolve buildArtifactResolve(final Artifact artifact) {
+    private ArtifactResolve buildArtifactResolve(final Artifact artifact, final String artifactResolutionService) {
         ArtifactResolve artifactResolve = OpenSAMLUtils.buildSAMLObject(ArtifactResolve.class);
 
-        Issuer issuer = OpenSAMLUtils.buildSAMLObject(Issuer.class);
-        issuer.setValue(SPConstants.SP_ENTITY_ID);
-        artifactResolve.setIssuer(issuer);
+        artifactResolve.setIssuer(OpenSAMLUtils.buildIssuer(SPConstants.SP_ENTITY_ID));
 
         artifactResolve.setIssueInstant(new DateTime());
 
         artifactResolve.setID(OpenSAMLUtils.generateSecureRandomId());
 
-        artifactResolve.setDestination(IDPConstants.ARTIFACT_RESOLUTION_SERVICE);
+        artifactResolve.setDestination(artifactResolutionService);
 
         artifactResolve.setArtifact(artifact);
 
         return artifactResolve;
     }
 
+    /**
+     * What the processing needs from the request and its session, taken on the container thread. Worker threads never
+     * touch the request: once a request has timed out the container may reuse the object for another user's request.
+     */
+    private static final class RequestState {
+        private final boolean tracing;
+        private final boolean secure;
+        private final HttpSession session;
+        private final String gotoURL;
+
+        private RequestState(final HttpServletRequest req) {
+            tracing = MessageTracer.isTracing(req);
+            secure = req.isSecure();
+            if (SessionTokenCodec.isStatelessMode()) {
+                session = null;
+                gotoURL = null;
+            } else {
+                session = req.getSession();
+                gotoURL = (String)session.getAttribute(SPConstants.GOTO_URL_SESSION_ATTRIBUTE);
+            }
+        }
+    }
+
 }
@@ -0,0 +1,224 @@
+package no.steras.opensamlbook.sp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reads an application/x-www-form-urlencoded request body as a stream, so a large field can be passed on to the XML
+ * parser without ever holding the whole body in memory.
+ *
+ * One field is opened as an input stream of its URL decoded bytes. All other fields are decoded as UTF-8 into strings,
+ * and may be at most {@link #MAX_FIELD_BYTES} long. The whole body may be at most <code>maxBytes</code> long, larger
+ * bodies fail with an IOException as soon as the limit is passed.
+ *
+ * Not thread safe, create one per request.
+ */
+public class FormPostDecoder {
+    public static final int MAX_FIELD_BYTES = 8192;
+    private static final int BUFFER_SIZE = 8192;
+
+    private final InputStream in;
+    private final long maxBytes;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position;
+    private int limit;
+    private long bytesRead;
+    private boolean endOfBody;
+
+    private final Map<String, String> fields = new HashMap<String, String>();
+    private FieldInputStream openField;
+
+    public FormPostDecoder(final InputStream in, final long maxBytes) {
+        this.in = in;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Reads up to the named field and returns a stream of its decoded value. The fields before it are available from
+     * {@link #getField(String)}.
+     *
+     * @return the value stream, or null if the body does not have the field
+     */
+    public InputStream openField(final String name) throws IOException {
+        ByteArrayOutputStream nameBytes = new ByteArrayOutputStream(32);
+        while (!endOfBody) {
+            nameBytes.reset();
+            int end = readEncoded(nameBytes, '=');
+            String fieldName = new String(nameBytes.toByteArray(), StandardCharsets.UTF_8);
+            if (end != '=') {
+                // A field without a value
+                fields.put(fieldName, "");
+                continue;
+            }
+            if (fieldName.equals(name)) {
+                openField = new FieldInputStream();
+                return openField;
+            }
+            readValue(fieldName);
+        }
+        return null;
+    }
+
+    /**
+     * Reads the fields after the opened field. The rest of the opened field is skipped.
+     */
+    public void readRemainingFields() throws IOException {
+        if (openField != null) {
+            openField.close();
+        }
+        ByteArrayOutputStream nameBytes = new ByteArrayOutputStream(32);
+        while (!endOfBody) {
+            nameBytes.reset();
+            int end = readEncoded(nameBytes, '=');
+            String fieldName = new String(nameBytes.toByteArray(), StandardCharsets.UTF_8);
+            if (end == '=') {
+                readValue(fieldName);
+            } else {
+                fields.put(fieldName, "");
+            }
+        }
+    }
+
+    /**
+     * @return the value of a field that has been read, or null
+     */
+    public String getField(final String name) {
+        return fields.get(name);
+    }
+
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    private void readValue(final String fieldName) throws IOException {
+        ByteArrayOutputStream value = new ByteArrayOutputStream(64);
+        readEncoded(value, -1);
+        fields.put(fieldName, new String(value.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Decodes into <code>out</code> until the terminator, the end of the field or the end of the body.
+     *
+     * @return the character that ended the read, or -1 at the end of the body
+     */
+    private int readEncoded(final ByteArrayOutputStream out, final int terminator) throws IOException {
+        while (true) {
+            int c = nextRaw();
+            if (c == -1 || c == '&' || c == terminator) {
+                return c;
+            }
+            if (out.size() >= MAX_FIELD_BYTES) {
+                throw new IOException("Form field is longer than " + MAX_FIELD_BYTES + " bytes");
+            }
+            out.write(decode(c));
+        }
+    }
+
+    private int decode(final int c) throws IOException {
+        if (c == '+') {
+            return ' ';
+        }
+        if (c == '%') {
+            return (hexValue(nextRaw()) << 4) | hexValue(nextRaw());
+        }
+        return c;
+    }
+
+    private static int hexValue(final int c) throws IOException {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        throw new IOException("Invalid URL encoding in form body");
+    }
+
+    private int nextRaw() throws IOException {
+        if (position == limit && !fill()) {
+            return -1;
+        }
+        return buffer[position++] & 0xff;
+    }
+
+    private boolean fill() throws IOException {
+        if (endOfBody) {
+            return false;
+        }
+        int read = in.read(buffer, 0, buffer.length);
+        if (read < 0) {
+            endOfBody = true;
+            return false;
+        }
+        bytesRead += read;
+        if (bytesRead > maxBytes) {
+            throw new IOException("Form body is larger than " + maxBytes + " bytes");
+        }
+        position = 0;
+        limit = read;
+        return true;
+    }
+
+    /**
+     * The decoded bytes of one field. Closing it skips the rest of the field but leaves the request stream open, as
+     * XML parsers close their input when they are done.
+     */
+    private final class FieldInputStream extends InputStream {
+        private boolean endOfField;
+
+        @Override
+        public int read() throws IOException {
+            if (endOfField) {
+                return -1;
+            }
+            int c = nextRaw();
+            if (c == -1 || c == '&') {
+                endOfField = true;
+                return -1;
+            }
+            return decode(c);
+        }
+
+        @Override
+        public int read(final byte[] target, final int offset, final int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            int count = 0;
+            while (count < length && !endOfField) {
+                // Unencoded bytes are copied straight from the buffer
+                if (position < limit) {
+                    int c = buffer[position] & 0xff;
+                    if (c != '%' && c != '+' && c != '&') {
+                        target[offset + count++] = (byte)c;
+                        position++;
+                        continue;
+                    }
+                } else if (count > 0) {
+                    // Return what is decoded rather than block on the request stream
+                    break;
+                }
+                int c = read();
+                if (c == -1) {
+                    break;
+                }
+                target[offset + count++] = (byte)c;
+            }
+            return count == 0 ? -1 : count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            while (read() != -1) {
+                // skip to the end of the field
+            }
+        }
+    }
+}
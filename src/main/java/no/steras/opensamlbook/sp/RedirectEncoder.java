@@ -0,0 +1,381 @@
+package no.steras.opensamlbook.sp;
+
+import net.shibboleth.utilities.java.support.net.HttpServletSupport;
+import no.steras.opensamlbook.signing.SigningAlgorithm;
+import no.steras.opensamlbook.signing.SigningConfiguration;
+import no.steras.opensamlbook.xml.SAMLSerializer;
+import org.opensaml.core.xml.io.MarshallingException;
+import org.opensaml.messaging.encoder.MessageEncodingException;
+import org.opensaml.saml.common.SAMLObject;
+import org.opensaml.saml.common.SignableSAMLObject;
+import org.opensaml.saml.saml2.core.RequestAbstractType;
+import org.opensaml.saml.saml2.core.StatusResponseType;
+import org.opensaml.security.credential.Credential;
+
+import javax.servlet.http.HttpServletResponse;
+import javax.xml.transform.TransformerException;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.Provider;
+import java.security.Signature;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Deflater;
+
+/**
+ * Encodes SAML messages into the URL of the HTTP-Redirect binding, like OpenSAML's HTTPRedirectDeflateEncoder but
+ * without an encoder and a native Deflater per redirect.
+ *
+ * The message is serialized into a reusable buffer, deflated with a pooled Deflater and base64 and URL encoded in one
+ * pass straight into the URL. When a signing credential is given the query string is signed as the binding requires,
+ * with SigAlg and Signature parameters. Query parameters of the endpoint are kept after those of the binding.
+ *
+ * A Deflater holds native memory that is only freed when it is ended, so the pool holds at most
+ * <code>poolSize</code> of them with their buffers. Deflaters that do not fit in the pool, that failed or that come back
+ * after {@link #close()} are ended at once. Buffers that grew past {@link #MAX_RETAINED_BYTES} for a large message are
+ * not kept.
+ *
+ * The shared encoder pools <code>opensamlbook.redirect.deflaterPoolSize</code> Deflaters (default twice the
+ * processors).
+ */
+public class RedirectEncoder {
+    public static final String PROPERTY_PREFIX = "opensamlbook.redirect.";
+    public static final int MAX_RETAINED_BYTES = 64 * 1024;
+    /**
+     * The level OpenSAML deflates with.
+     */
+    private static final int DEFLATE_LEVEL = 8;
+    private static final int INITIAL_BUFFER_BYTES = 4096;
+    private static final String[] BASE64_URL_ENCODED = new String[64];
+    private static final String PAD = "%3D";
+    private static final Map<SigningAlgorithm, String> ENCODED_SIGNATURE_URIS = new EnumMap<SigningAlgorithm, String>(SigningAlgorithm.class);
+
+    static {
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i = 0; i < BASE64_URL_ENCODED.length; i++) {
+            BASE64_URL_ENCODED[i] = urlEncode(alphabet.substring(i, i + 1));
+        }
+        for (SigningAlgorithm algorithm : SigningAlgorithm.values()) {
+            ENCODED_SIGNATURE_URIS.put(algorithm, urlEncode(algorithm.getSignatureURI()));
+        }
+    }
+
+    private final BlockingQueue<Encoding> idle;
+    private volatile boolean closed;
+
+    private final LongAdder encoded = new LongAdder();
+    private final LongAdder signed = new LongAdder();
+    private final LongAdder xmlBytes = new LongAdder();
+    private final LongAdder deflatedBytes = new LongAdder();
+    private final LongAdder urlBytes = new LongAdder();
+    private final LongAccumulator maxUrlBytes = new LongAccumulator(Math::max, 0);
+    private final LongAdder deflatersCreated = new LongAdder();
+    private final LongAdder deflatersReused = new LongAdder();
+    private final LongAdder deflatersEnded = new LongAdder();
+
+    public RedirectEncoder(final int poolSize) {
+        this.idle = new ArrayBlockingQueue<Encoding>(Math.max(1, poolSize));
+    }
+
+    public static RedirectEncoder getSharedEncoder() {
+        return SharedEncoderHolder.encoder;
+    }
+
+    /**
+     * Encodes the message and redirects the user to the endpoint with it, with the headers OpenSAML sets.
+     *
+     * @param signingCredential the credential to sign the query string with, or null to not sign it
+     */
+    public void sendRedirect(final HttpServletResponse response, final SAMLObject message, final String endpoint,
+                             final String relayState, final Credential signingCredential,
+                             final SigningAlgorithm signingAlgorithm) throws MessageEncodingException {
+        String url = encode(message, endpoint, relayState, signingCredential, signingAlgorithm);
+        HttpServletSupport.addNoCacheHeaders(response);
+        HttpServletSupport.setUTF8Encoding(response);
+        try {
+            response.sendRedirect(url);
+        } catch (IOException e) {
+            throw new MessageEncodingException("Problem sending HTTP redirect", e);
+        }
+    }
+
+    /**
+     * @param signingCredential the credential to sign the query string with, or null to not sign it
+     * @return the URL to redirect the user to
+     */
+    public String encode(final SAMLObject message, final String endpoint, final String relayState,
+                         final Credential signingCredential, final SigningAlgorithm signingAlgorithm)
+            throws MessageEncodingException {
+        String parameter;
+        if (message instanceof RequestAbstractType) {
+            parameter = "SAMLRequest=";
+        } else if (message instanceof StatusResponseType) {
+            parameter = "SAMLResponse=";
+        } else {
+            throw new MessageEncodingException("SAML message is neither a SAML RequestAbstractType or StatusResponseType");
+        }
+        // The binding signs the query string instead of the message
+        if (message instanceof SignableSAMLObject && ((SignableSAMLObject)message).isSigned()) {
+            ((SignableSAMLObject)message).setSignature(null);
+        }
+
+        Encoding encoding = checkout();
+        boolean failed = true;
+        try {
+            int xmlLength = encoding.serialize(message);
+            int deflatedLength = encoding.deflate();
+
+            StringBuilder url = encoding.url;
+            int queryStart = endpoint.indexOf('?');
+            url.append(endpoint, 0, queryStart < 0 ? endpoint.length() : queryStart).append('?');
+            int signedStart = url.length();
+            url.append(parameter);
+            appendBase64UrlEncoded(url, encoding.deflated, deflatedLength);
+            if (relayState != null) {
+                url.append("&RelayState=").append(urlEncode(relayState));
+            }
+            if (signingCredential != null) {
+                url.append("&SigAlg=").append(ENCODED_SIGNATURE_URIS.get(signingAlgorithm));
+                byte[] signature = encoding.sign(signingCredential.getPrivateKey(), signingAlgorithm, signedStart);
+                url.append("&Signature=");
+                appendBase64UrlEncoded(url, signature, signature.length);
+                signed.increment();
+            }
+            if (queryStart >= 0 && queryStart < endpoint.length() - 1) {
+                url.append('&').append(endpoint, queryStart + 1, endpoint.length());
+            }
+            String result = url.toString();
+
+            encoded.increment();
+            xmlBytes.add(xmlLength);
+            deflatedBytes.add(deflatedLength);
+            urlBytes.add(result.length());
+            maxUrlBytes.accumulate(result.length());
+            failed = false;
+            return result;
+        } finally {
+            checkin(encoding, failed);
+        }
+    }
+
+    private Encoding checkout() {
+        Encoding encoding = idle.poll();
+        if (encoding != null) {
+            deflatersReused.increment();
+            return encoding;
+        }
+        deflatersCreated.increment();
+        return new Encoding();
+    }
+
+    private void checkin(final Encoding encoding, final boolean failed) {
+        if (failed || closed || !encoding.reset() || !idle.offer(encoding)) {
+            end(encoding);
+            return;
+        }
+        // close() may have drained the pool while this was being returned
+        if (closed && idle.remove(encoding)) {
+            end(encoding);
+        }
+    }
+
+    private void end(final Encoding encoding) {
+        encoding.deflater.end();
+        deflatersEnded.increment();
+    }
+
+    /**
+     * Ends the pooled Deflaters. Encodings still in progress end theirs when they are done.
+     */
+    public void close() {
+        closed = true;
+        Encoding encoding;
+        while ((encoding = idle.poll()) != null) {
+            end(encoding);
+        }
+    }
+
+    private static void appendBase64UrlEncoded(final StringBuilder out, final byte[] data, final int length) {
+        int i = 0;
+        for (; i + 3 <= length; i += 3) {
+            int bits = (data[i] & 0xff) << 16 | (data[i + 1] & 0xff) << 8 | (data[i + 2] & 0xff);
+            out.append(BASE64_URL_ENCODED[bits >>> 18]).append(BASE64_URL_ENCODED[(bits >>> 12) & 0x3f])
+                    .append(BASE64_URL_ENCODED[(bits >>> 6) & 0x3f]).append(BASE64_URL_ENCODED[bits & 0x3f]);
+        }
+        if (length - i == 1) {
+            int bits = (data[i] & 0xff) << 16;
+            out.append(BASE64_URL_ENCODED[bits >>> 18]).append(BASE64_URL_ENCODED[(bits >>> 12) & 0x3f])
+                    .append(PAD).append(PAD);
+        } else if (length - i == 2) {
+            int bits = (data[i] & 0xff) << 16 | (data[i + 1] & 0xff) << 8;
+            out.append(BASE64_URL_ENCODED[bits >>> 18]).append(BASE64_URL_ENCODED[(bits >>> 12) & 0x3f])
+                    .append(BASE64_URL_ENCODED[(bits >>> 6) & 0x3f]).append(PAD);
+        }
+    }
+
+    private static String urlEncode(final String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public int getIdleDeflaters() {
+        return idle.size();
+    }
+
+    public long getEncoded() {
+        return encoded.sum();
+    }
+
+    public long getSigned() {
+        return signed.sum();
+    }
+
+    /**
+     * @return the bytes of all serialized messages before they were deflated
+     */
+    public long getXmlBytes() {
+        return xmlBytes.sum();
+    }
+
+    public long getDeflatedBytes() {
+        return deflatedBytes.sum();
+    }
+
+    /**
+     * @return the length of all redirect URLs
+     */
+    public long getUrlBytes() {
+        return urlBytes.sum();
+    }
+
+    public long getMaxUrlBytes() {
+        return maxUrlBytes.get();
+    }
+
+    public long getDeflatersCreated() {
+        return deflatersCreated.sum();
+    }
+
+    public long getDeflatersReused() {
+        return deflatersReused.sum();
+    }
+
+    public long getDeflatersEnded() {
+        return deflatersEnded.sum();
+    }
+
+    /**
+     * A Deflater with the buffers of one encoding. The signature object is kept for the key it was last used with.
+     */
+    private static final class Encoding {
+        private final Deflater deflater = new Deflater(DEFLATE_LEVEL, true);
+        private final XmlBuffer xml = new XmlBuffer();
+        private byte[] deflated = new byte[INITIAL_BUFFER_BYTES];
+        private byte[] query = new byte[INITIAL_BUFFER_BYTES];
+        private final StringBuilder url = new StringBuilder(INITIAL_BUFFER_BYTES);
+        private Signature signature;
+        private SigningAlgorithm signatureAlgorithm;
+        private PrivateKey signatureKey;
+
+        private int serialize(final SAMLObject message) throws MessageEncodingException {
+            try {
+                SAMLSerializer.write(message, xml);
+            } catch (MarshallingException | TransformerException e) {
+                throw new MessageEncodingException("Unable to serialize SAML message", e);
+            }
+            return xml.size();
+        }
+
+        private int deflate() {
+            deflater.setInput(xml.buffer(), 0, xml.size());
+            deflater.finish();
+            int length = 0;
+            while (!deflater.finished()) {
+                if (length == deflated.length) {
+                    deflated = Arrays.copyOf(deflated, 2 * deflated.length);
+                }
+                length += deflater.deflate(deflated, length, deflated.length - length);
+            }
+            return length;
+        }
+
+        /**
+         * Signs the ASCII query string in the URL from <code>start</code>.
+         */
+        private byte[] sign(final PrivateKey key, final SigningAlgorithm algorithm, final int start)
+                throws MessageEncodingException {
+            int length = url.length() - start;
+            if (query.length < length) {
+                query = new byte[Math.max(length, 2 * query.length)];
+            }
+            for (int i = 0; i < length; i++) {
+                query[i] = (byte)url.charAt(start + i);
+            }
+            try {
+                if (signature == null || algorithm != signatureAlgorithm) {
+                    Provider provider = SigningConfiguration.getProvider();
+                    signature = provider == null ? Signature.getInstance(algorithm.getJcaName())
+                            : Signature.getInstance(algorithm.getJcaName(), provider);
+                    signatureAlgorithm = algorithm;
+                    signatureKey = null;
+                }
+                if (key != signatureKey) {
+                    signature.initSign(key);
+                    signatureKey = key;
+                }
+                signature.update(query, 0, length);
+                return signature.sign();
+            } catch (GeneralSecurityException e) {
+                throw new MessageEncodingException("Unable to sign the HTTP-Redirect query string", e);
+            }
+        }
+
+        /**
+         * @return false if the buffers grew too large to be kept
+         */
+        private boolean reset() {
+            deflater.reset();
+            url.setLength(0);
+            xml.reset();
+            if (xml.capacity() > MAX_RETAINED_BYTES || deflated.length > MAX_RETAINED_BYTES
+                    || query.length > MAX_RETAINED_BYTES || url.capacity() > MAX_RETAINED_BYTES) {
+                return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Gives the deflater the serialized bytes without copying them.
+     */
+    private static final class XmlBuffer extends ByteArrayOutputStream {
+        private XmlBuffer() {
+            super(INITIAL_BUFFER_BYTES);
+        }
+
+        private byte[] buffer() {
+            return buf;
+        }
+
+        private int capacity() {
+            return buf.length;
+        }
+    }
+
+    private static final class SharedEncoderHolder {
+        private static final RedirectEncoder encoder = new RedirectEncoder(
+                Integer.getInteger(PROPERTY_PREFIX + "deflaterPoolSize", 2 * Runtime.getRuntime().availableProcessors()));
+    }
+}
@@ -0,0 +1,220 @@
+package no.steras.opensamlbook.sp;
+
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Remembers the IDs of consumed assertions until they expire, so an assertion can only be used once.
+ *
+ * Every ID is stored as a single long in a preallocated open addressing table: the upper 48 bits are a seeded hash of
+ * the ID and the lower 16 bits the time bucket it expires in. The cache holds no objects per entry and inserts are a
+ * compare-and-set without locks. There is no cleanup thread, a slot whose bucket has passed is simply reused by the
+ * next insert that probes it. When all slots an ID may use hold live IDs, the one that expires first is overwritten and
+ * counted as evicted, so the table never grows.
+ *
+ * Only IDs that expire within <code>windowSeconds</code> can be stored, longer lived assertions are refused.
+ *
+ * The shared cache is configured with the system properties, prefixed with <code>opensamlbook.replayCache.</code>:
+ * maxEntries (default 1048576), windowSeconds (default 600) and bucketSeconds (default 10).
+ */
+public class ReplayCache {
+    public enum Result {
+        STORED, REPLAYED, EXPIRED, OUTSIDE_WINDOW
+    }
+
+    private static final String PROPERTY_PREFIX = "opensamlbook.replayCache.";
+    private static final int MAX_PROBES = 16;
+    private static final long BUCKET_MASK = 0xFFFF;
+    private static final long HASH_MASK = ~BUCKET_MASK;
+
+    private final AtomicLongArray table;
+    private final int mask;
+    private final long windowMillis;
+    private final long bucketMillis;
+    private final long windowBuckets;
+    private final long seed = new SecureRandom().nextLong();
+
+    private final LongAdder stored = new LongAdder();
+    private final LongAdder replayed = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+    private final LongAdder outsideWindow = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+
+    public ReplayCache(final int maxEntries, final long windowMillis, final long bucketMillis) {
+        this.windowMillis = windowMillis;
+        this.bucketMillis = bucketMillis;
+        this.windowBuckets = windowMillis / bucketMillis + 1;
+        if (windowBuckets >= BUCKET_MASK / 2) {
+            throw new IllegalArgumentException("The window must be less than 32767 buckets");
+        }
+        // Keep the table at most half full
+        int tableSize = Integer.highestOneBit(Math.max(MAX_PROBES, maxEntries) * 2 - 1) << 1;
+        this.table = new AtomicLongArray(tableSize);
+        this.mask = tableSize - 1;
+    }
+
+    public static ReplayCache getSharedCache() {
+        return SharedCacheHolder.sharedCache;
+    }
+
+    /**
+     * Stores the ID unless it is already in the cache. If the same ID is stored by two threads at once, at most one of
+     * them gets STORED.
+     *
+     * @param id the message or assertion ID
+     * @param expiresAt when the message can no longer be accepted anyway, in milliseconds since the epoch
+     */
+    public Result checkAndStore(final String id, final long expiresAt) {
+        long now = System.currentTimeMillis();
+        if (expiresAt <= now) {
+            expired.increment();
+            return Result.EXPIRED;
+        }
+        if (expiresAt - now > windowMillis) {
+            outsideWindow.increment();
+            return Result.OUTSIDE_WINDOW;
+        }
+
+        long currentBucket = now / bucketMillis;
+        long hash = hash(id);
+        long entry = hash | ((expiresAt / bucketMillis) & BUCKET_MASK);
+        int start = (int)(hash >>> 32) & mask;
+
+        while (true) {
+            int freeIndex = -1;
+            long freeValue = 0;
+            int oldestIndex = start;
+            long oldestValue = 0;
+            long oldestRemaining = Long.MAX_VALUE;
+
+            for (int probe = 0; probe < MAX_PROBES; probe++) {
+                int index = (start + probe) & mask;
+                long current = table.get(index);
+                if (current == 0) {
+                    // Never used, so the ID can not be further along
+                    if (freeIndex < 0) {
+                        freeIndex = index;
+                        freeValue = 0;
+                    }
+                    break;
+                }
+                long remaining = (current - currentBucket) & BUCKET_MASK;
+                if (remaining > windowBuckets) {
+                    if (freeIndex < 0) {
+                        freeIndex = index;
+                        freeValue = current;
+                    }
+                    continue;
+                }
+                if ((current & HASH_MASK) == hash) {
+                    replayed.increment();
+                    return Result.REPLAYED;
+                }
+                if (remaining < oldestRemaining) {
+                    oldestIndex = index;
+                    oldestValue = current;
+                    oldestRemaining = remaining;
+                }
+            }
+
+            boolean evicting = freeIndex < 0;
+            int index = evicting ? oldestIndex : freeIndex;
+            if (!table.compareAndSet(index, evicting ? oldestValue : freeValue, entry)) {
+                // Someone else took the slot, probe again in case it was the same ID
+                continue;
+            }
+            if (storedElsewhere(start, index, hash, currentBucket)) {
+                replayed.increment();
+                return Result.REPLAYED;
+            }
+            if (evicting) {
+                evicted.increment();
+            }
+            stored.increment();
+            return Result.STORED;
+        }
+    }
+
+    /**
+     * Two threads storing the same ID may pick different slots if an entry expired between their probes. Both write
+     * before they check, so at least one of them sees the other's entry.
+     */
+    private boolean storedElsewhere(final int start, final int storedIndex, final long hash, final long currentBucket) {
+        for (int probe = 0; probe < MAX_PROBES; probe++) {
+            int index = (start + probe) & mask;
+            if (index == storedIndex) {
+                continue;
+            }
+            long current = table.get(index);
+            if (current == 0) {
+                return false;
+            }
+            if ((current & HASH_MASK) == hash && ((current - currentBucket) & BUCKET_MASK) <= windowBuckets) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private long hash(final String id) {
+        long hash = seed;
+        for (int i = 0; i < id.length(); i++) {
+            hash ^= id.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        hash &= HASH_MASK;
+        // 0 marks a slot that was never used
+        return hash == 0 ? 1L << 16 : hash;
+    }
+
+    public long getWindowMillis() {
+        return windowMillis;
+    }
+
+    public int getCapacity() {
+        return table.length();
+    }
+
+    public long getStored() {
+        return stored.sum();
+    }
+
+    public long getReplayed() {
+        return replayed.sum();
+    }
+
+    public long getExpired() {
+        return expired.sum();
+    }
+
+    public long getOutsideWindow() {
+        return outsideWindow.sum();
+    }
+
+    public long getEvicted() {
+        return evicted.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "ReplayCache{capacity=" + getCapacity() + ", stored=" + getStored() + ", replayed=" + getReplayed()
+                + ", expired=" + getExpired() + ", outsideWindow=" + getOutsideWindow() + ", evicted=" + getEvicted() + "}";
+    }
+
+    /**
+     * The table is allocated when the cache is first used.
+     */
+    private static final class SharedCacheHolder {
+        private static final ReplayCache sharedCache = new ReplayCache(
+                Integer.getInteger(PROPERTY_PREFIX + "maxEntries", 1 << 20),
+                TimeUnit.SECONDS.toMillis(Integer.getInteger(PROPERTY_PREFIX + "windowSeconds", 600)),
+                TimeUnit.SECONDS.toMillis(Integer.getInteger(PROPERTY_PREFIX + "bucketSeconds", 10)));
+    }
+}
@@ -7,6 +7,15 @@ public class SPConstants {
     public static final String SP_ENTITY_ID = "TestSP";
     public static final String AUTHENTICATED_SESSION_ATTRIBUTE = "authenticated";
     public static final String GOTO_URL_SESSION_ATTRIBUTE = "gotoURL";
-    public static final String ASSERTION_CONSUMER_SERVICE = "http://localhost:8080/webprofile-ref-project/sp/consumer";
+    /**
+     * The RelayState is the requested page relative to this URL, so the consumer can not be used as an open redirect.
+     */
+    public static final String APPLICATION_BASE_URL = "http://localhost:8080/webprofile-ref-project/app/";
+    /**
+     * The SAML bindings limit RelayState to 80 bytes.
+     */
+    public static final int MAX_RELAY_STATE_BYTES = 80;
+    public static final String SESSION_COOKIE_NAME = "SAMLSession";
+    public static final String PRINCIPAL_REQUEST_ATTRIBUTE = "principal";
 
 }
@@ -1,29 +1,31 @@
 package no.steras.opensamlbook.sp;
 
-import org.opensaml.security.credential.BasicCredential;
+import no.steras.opensamlbook.credential.CredentialManager;
+import no.steras.opensamlbook.signing.KeyType;
 import org.opensaml.security.credential.Credential;
 
-import java.security.KeyPair;
-import java.security.KeyPairGenerator;
-import java.security.NoSuchAlgorithmException;
-
 /**
  * Created by Privat on 13/05/14.
+ *
+ * The SP keys are read from <code>SPKeystore.jks</code> on the classpath unless the <code>opensamlbook.credentials.sp.*</code>
+ * properties point somewhere else, see {@link CredentialManager}.
  */
 public class SPCredentials {
-    private static final Credential credential;
+    private static final CredentialManager manager = CredentialManager.fromProperties("sp", SPConstants.SP_ENTITY_ID,
+            "classpath:SPKeystore.jks");
 
-    static {
-        try {
-            KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
-            KeyPair keyPair = kpg.generateKeyPair();
-            credential = new BasicCredential(keyPair.getPublic(), keyPair.getPrivate());
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);
-        }
+    public static Credential getCredential() {
+        return manager.getCredential(KeyType.RSA_2048);
     }
 
-    public static Credential getCredential() {
-        return credential;
+    /**
+     * @return the current SP credential for the key type
+     */
+    public static Credential getCredential(final KeyType keyType) {
+        return manager.getCredential(keyType);
+    }
+
+    public static CredentialManager getManager() {
+        return manager;
     }
 }
@@ -0,0 +1,213 @@
+package no.steras.opensamlbook.sp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Issues and verifies the signed session tokens of the stateless session mode.
+ *
+ * A token is the URL safe base64 of an 8 byte expiry time followed by the UTF-8 principal name, with an HMAC-SHA256
+ * over both appended. When encryption is on, the same payload is instead sealed with AES-GCM, which also
+ * authenticates it.
+ *
+ * Configured with the system properties, prefixed with <code>opensamlbook.sp.</code>:
+ * <ul>
+ *     <li>sessionMode - stateless to use tokens instead of the container session (default container)</li>
+ *     <li>sessionToken.key - base64 secret of at least 32 bytes, shared by all SP nodes. A random key is generated
+ *     when not set, which only works with a single node.</li>
+ *     <li>sessionToken.lifetimeSeconds (default 3600)</li>
+ *     <li>sessionToken.encrypt - true to hide the principal from the browser (default false)</li>
+ * </ul>
+ */
+public class SessionTokenCodec {
+    private static Logger logger = LoggerFactory.getLogger(SessionTokenCodec.class);
+
+    private static final String PROPERTY_PREFIX = "opensamlbook.sp.";
+    private static final int MAC_LENGTH = 32;
+    private static final int IV_LENGTH = 12;
+    private static final int GCM_TAG_BITS = 128;
+
+    private static final boolean statelessMode = "stateless".equals(System.getProperty(PROPERTY_PREFIX + "sessionMode"));
+    private static final SessionTokenCodec sharedCodec = new SessionTokenCodec(
+            configuredKey(),
+            Integer.getInteger(PROPERTY_PREFIX + "sessionToken.lifetimeSeconds", 3600),
+            Boolean.getBoolean(PROPERTY_PREFIX + "sessionToken.encrypt"));
+
+    private final SecretKeySpec macKey;
+    private final SecretKeySpec encryptionKey;
+    private final long lifetimeMillis;
+    private final boolean encrypt;
+    private final SecureRandom secureRandom = new SecureRandom();
+
+    private final ThreadLocal<Mac> macs = new ThreadLocal<Mac>() {
+        @Override
+        protected Mac initialValue() {
+            try {
+                Mac mac = Mac.getInstance("HmacSHA256");
+                mac.init(macKey);
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    };
+
+    private final ThreadLocal<Cipher> ciphers = new ThreadLocal<Cipher>() {
+        @Override
+        protected Cipher initialValue() {
+            try {
+                return Cipher.getInstance("AES/GCM/NoPadding");
+            } catch (GeneralSecurityException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    };
+
+    public SessionTokenCodec(final byte[] secret, final int lifetimeSeconds, final boolean encrypt) {
+        if (secret.length < 32) {
+            throw new IllegalArgumentException("Session token secret must be at least 32 bytes");
+        }
+        // Separate keys for the MAC and the cipher, both derived from the secret
+        this.macKey = new SecretKeySpec(hmac(secret, "mac"), "HmacSHA256");
+        this.encryptionKey = new SecretKeySpec(Arrays.copyOf(hmac(secret, "enc"), 16), "AES");
+        this.lifetimeMillis = lifetimeSeconds * 1000L;
+        this.encrypt = encrypt;
+    }
+
+    public static boolean isStatelessMode() {
+        return statelessMode;
+    }
+
+    public static SessionTokenCodec getSharedCodec() {
+        return sharedCodec;
+    }
+
+    private static byte[] configuredKey() {
+        String key = System.getProperty(PROPERTY_PREFIX + "sessionToken.key");
+        if (key != null) {
+            return Base64.getDecoder().decode(key);
+        }
+        if (statelessMode) {
+            logger.warn("No session token key configured, generating one. Tokens will not be accepted by other SP nodes");
+        }
+        byte[] generated = new byte[32];
+        new SecureRandom().nextBytes(generated);
+        return generated;
+    }
+
+    private static byte[] hmac(final byte[] secret, final String label) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+            return mac.doFinal(label.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public String issue(final String principal) {
+        byte[] principalBytes = principal.getBytes(StandardCharsets.UTF_8);
+        byte[] payload = new byte[8 + principalBytes.length];
+        writeLong(payload, System.currentTimeMillis() + lifetimeMillis);
+        System.arraycopy(principalBytes, 0, payload, 8, principalBytes.length);
+
+        byte[] token;
+        try {
+            if (encrypt) {
+                byte[] iv = new byte[IV_LENGTH];
+                secureRandom.nextBytes(iv);
+                Cipher cipher = ciphers.get();
+                cipher.init(Cipher.ENCRYPT_MODE, encryptionKey, new GCMParameterSpec(GCM_TAG_BITS, iv));
+                token = new byte[IV_LENGTH + cipher.getOutputSize(payload.length)];
+                System.arraycopy(iv, 0, token, 0, IV_LENGTH);
+                cipher.doFinal(payload, 0, payload.length, token, IV_LENGTH);
+            } else {
+                token = Arrays.copyOf(payload, payload.length + MAC_LENGTH);
+                Mac mac = macs.get();
+                mac.update(payload);
+                mac.doFinal(token, payload.length);
+            }
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(token);
+    }
+
+    /**
+     * @return the principal of a valid, unexpired token, or null
+     */
+    public String verify(final String token) {
+        if (token == null || token.isEmpty()) {
+            return null;
+        }
+        byte[] bytes;
+        try {
+            bytes = Base64.getUrlDecoder().decode(token);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+
+        byte[] payload;
+        int payloadLength;
+        if (encrypt) {
+            if (bytes.length < IV_LENGTH + GCM_TAG_BITS / 8 + 8) {
+                return null;
+            }
+            try {
+                Cipher cipher = ciphers.get();
+                cipher.init(Cipher.DECRYPT_MODE, encryptionKey, new GCMParameterSpec(GCM_TAG_BITS, bytes, 0, IV_LENGTH));
+                // Decrypt in place, the plaintext is shorter than the ciphertext
+                payloadLength = cipher.doFinal(bytes, IV_LENGTH, bytes.length - IV_LENGTH, bytes, 0);
+                payload = bytes;
+            } catch (GeneralSecurityException e) {
+                return null;
+            }
+        } else {
+            if (bytes.length < 8 + MAC_LENGTH) {
+                return null;
+            }
+            payloadLength = bytes.length - MAC_LENGTH;
+            Mac mac = macs.get();
+            mac.update(bytes, 0, payloadLength);
+            byte[] expected = mac.doFinal();
+            if (!MessageDigest.isEqual(expected, Arrays.copyOfRange(bytes, payloadLength, bytes.length))) {
+                return null;
+            }
+            payload = bytes;
+        }
+
+        if (readLong(payload) < System.currentTimeMillis()) {
+            return null;
+        }
+        return new String(payload, 8, payloadLength - 8, StandardCharsets.UTF_8);
+    }
+
+    public long getLifetimeMillis() {
+        return lifetimeMillis;
+    }
+
+    private static void writeLong(final byte[] bytes, final long value) {
+        for (int i = 0; i < 8; i++) {
+            bytes[i] = (byte)(value >>> (56 - 8 * i));
+        }
+    }
+
+    private static long readLong(final byte[] bytes) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (bytes[i] & 0xff);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,172 @@
+package no.steras.opensamlbook.trace;
+
+import no.steras.opensamlbook.xml.SAMLSerializer;
+import org.joda.time.DateTime;
+import org.opensaml.core.xml.XMLObject;
+import org.opensaml.core.xml.io.MarshallingException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.xml.transform.TransformerException;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Captures the XML of sampled SAML messages in a fixed size in-memory ring buffer.
+ *
+ * Callers decide once per request whether to trace with {@link #isTracing(HttpServletRequest)} and pass the
+ * decision to {@link #trace(boolean, String, XMLObject)}. When tracing is off no message is marshalled or serialized.
+ *
+ * Configured with the system properties <code>opensamlbook.trace.enabled</code> (default false),
+ * <code>opensamlbook.trace.sampleRate</code> (0.0 - 1.0, default 1.0) and <code>opensamlbook.trace.bufferSize</code>
+ * (default 256). When <code>opensamlbook.trace.headerOnly=true</code> only requests carrying the
+ * {@link #DEBUG_HEADER} header are traced, otherwise the header forces tracing of a request regardless of sampling.
+ *
+ * The trace holds complete messages, so it is only available to those who know the secret in
+ * <code>opensamlbook.trace.token</code> (at least 16 characters): the debug header must carry the token and the
+ * {@link TraceServlet} asks for it as a bearer token. Without a token the header is ignored and the trace can not be
+ * read.
+ */
+public class MessageTracer {
+    private static Logger logger = LoggerFactory.getLogger(MessageTracer.class);
+
+    public static final String DEBUG_HEADER = "X-SAML-Debug";
+    private static final int MIN_TOKEN_LENGTH = 16;
+
+    private static volatile boolean enabled = Boolean.getBoolean("opensamlbook.trace.enabled");
+    private static volatile double sampleRate = Double.parseDouble(System.getProperty("opensamlbook.trace.sampleRate", "1.0"));
+    private static volatile boolean headerOnly = Boolean.getBoolean("opensamlbook.trace.headerOnly");
+
+    private static final AtomicReferenceArray<TraceEntry> buffer =
+            new AtomicReferenceArray<TraceEntry>(Integer.getInteger("opensamlbook.trace.bufferSize", 256));
+    private static final AtomicLong sequence = new AtomicLong();
+    private static final byte[] token = token(System.getProperty("opensamlbook.trace.token"));
+
+    private static byte[] token(final String configured) {
+        if (configured == null || configured.isEmpty()) {
+            return null;
+        }
+        if (configured.length() < MIN_TOKEN_LENGTH) {
+            logger.warn("opensamlbook.trace.token is shorter than " + MIN_TOKEN_LENGTH + " characters, the trace can not be read");
+            return null;
+        }
+        return configured.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Decides whether the messages of this request should be traced.
+     */
+    public static boolean isTracing(final HttpServletRequest request) {
+        if (!enabled) {
+            return false;
+        }
+        if (request != null && isTrusted(request.getHeader(DEBUG_HEADER))) {
+            return true;
+        }
+        return !headerOnly && isSampled();
+    }
+
+    /**
+     * Decides whether to trace when there is no request to look for the debug header on.
+     */
+    public static boolean isTracing() {
+        return enabled && !headerOnly && isSampled();
+    }
+
+    /**
+     * @return true if the value is the configured trace token
+     */
+    public static boolean isTrusted(final String presented) {
+        return token != null && presented != null
+                && MessageDigest.isEqual(token, presented.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static boolean isSampled() {
+        double rate = sampleRate;
+        return rate >= 1.0 || (rate > 0.0 && ThreadLocalRandom.current().nextDouble() < rate);
+    }
+
+    public static void trace(final boolean tracing, final String label, final XMLObject object) {
+        if (!tracing) {
+            return;
+        }
+        try {
+            record(label, SAMLSerializer.toString(object));
+        } catch (MarshallingException | TransformerException e) {
+            logger.warn("Could not trace " + label, e);
+        }
+    }
+
+    private static void record(final String label, final String xml) {
+        long seq = sequence.getAndIncrement();
+        buffer.set((int)(seq % buffer.length()), new TraceEntry(seq, System.currentTimeMillis(), label, xml));
+        if (logger.isDebugEnabled()) {
+            logger.debug(label + ": " + xml);
+        }
+    }
+
+    /**
+     * @return the buffered entries, oldest first
+     */
+    public static List<TraceEntry> getEntries() {
+        int capacity = buffer.length();
+        long end = sequence.get();
+        long start = Math.max(0, end - capacity);
+        List<TraceEntry> entries = new ArrayList<TraceEntry>((int)(end - start));
+        for (long seq = start; seq < end; seq++) {
+            TraceEntry entry = buffer.get((int)(seq % capacity));
+            // Skip slots that a concurrent writer has already overwritten or not yet filled
+            if (entry != null && entry.getSequence() == seq) {
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    public static void dump(final Writer writer) throws IOException {
+        for (TraceEntry entry : getEntries()) {
+            writer.write("#" + entry.getSequence() + " " + new DateTime(entry.getTimestamp()) + " " + entry.getLabel() + "\n");
+            writer.write(entry.getXml());
+            writer.write("\n\n");
+        }
+        writer.flush();
+    }
+
+    public static void clear() {
+        for (int i = 0; i < buffer.length(); i++) {
+            buffer.set(i, null);
+        }
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setEnabled(final boolean enabled) {
+        MessageTracer.enabled = enabled;
+    }
+
+    public static double getSampleRate() {
+        return sampleRate;
+    }
+
+    public static void setSampleRate(final double sampleRate) {
+        MessageTracer.sampleRate = sampleRate;
+    }
+
+    public static boolean isHeaderOnly() {
+        return headerOnly;
+    }
+
+    public static void setHeaderOnly(final boolean headerOnly) {
+        MessageTracer.headerOnly = headerOnly;
+    }
+}
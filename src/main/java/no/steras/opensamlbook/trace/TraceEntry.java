@@ -0,0 +1,34 @@
+package no.steras.opensamlbook.trace;
+
+/**
+ * A single SAML message captured by the {@link MessageTracer}.
+ */
+public class TraceEntry {
+    private final long sequence;
+    private final long timestamp;
+    private final String label;
+    private final String xml;
+
+    TraceEntry(final long sequence, final long timestamp, final String label, final String xml) {
+        this.sequence = sequence;
+        this.timestamp = timestamp;
+        this.label = label;
+        this.xml = xml;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    public String getXml() {
+        return xml;
+    }
+}
@@ -0,0 +1,34 @@
+package no.steras.opensamlbook.trace;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Dumps the message trace buffer as plain text. As the buffer holds complete assertions, only requests with the trace
+ * token as bearer token are answered, see {@link MessageTracer}. The client's address is not trusted, behind a proxy
+ * every request comes from the proxy.
+ */
+public class TraceServlet extends HttpServlet {
+    private static final String BEARER = "Bearer ";
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        String authorization = req.getHeader("Authorization");
+        if (authorization == null || !authorization.regionMatches(true, 0, BEARER, 0, BEARER.length())
+                || !MessageTracer.isTrusted(authorization.substring(BEARER.length()).trim())) {
+            resp.setHeader("WWW-Authenticate", "Bearer realm=\"trace\"");
+            resp.sendError(HttpServletResponse.SC_UNAUTHORIZED);
+            return;
+        }
+
+        resp.setContentType("text/plain; charset=UTF-8");
+        MessageTracer.dump(resp.getWriter());
+
+        if (Boolean.parseBoolean(req.getParameter("clear"))) {
+            MessageTracer.clear();
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package no.steras.opensamlbook.xml;
+
+import net.shibboleth.utilities.java.support.xml.BasicParserPool;
+import net.shibboleth.utilities.java.support.xml.XMLParserException;
+
+import javax.xml.parsers.DocumentBuilder;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A {@link BasicParserPool} that counts checkouts, misses and the time spent waiting for a builder.
+ * Optionally each thread keeps its own builder so the shared pool lock is only taken once per thread.
+ */
+public class InstrumentedParserPool extends BasicParserPool {
+    private final boolean perThreadBuilders;
+    private final ThreadLocal<ThreadBuilder> threadBuilders = new ThreadLocal<ThreadBuilder>();
+    /**
+     * Builders from the shared pool that are checked out. Builders are also returned by the finalizer of their proxy,
+     * so only these count as in use when they come back.
+     */
+    private final Set<DocumentBuilder> sharedCheckouts = Collections.newSetFromMap(new ConcurrentHashMap<DocumentBuilder, Boolean>());
+
+    private final LongAdder checkouts = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder threadHits = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicLong inUse = new AtomicLong();
+
+    public InstrumentedParserPool(final int maxPoolSize, final boolean perThreadBuilders) {
+        this.perThreadBuilders = perThreadBuilders;
+        setMaxPoolSize(maxPoolSize);
+        setNamespaceAware(true);
+    }
+
+    @Override
+    public DocumentBuilder getBuilder() throws XMLParserException {
+        long start = System.nanoTime();
+        checkouts.increment();
+        try {
+            if (perThreadBuilders) {
+                ThreadBuilder threadBuilder = threadBuilders.get();
+                if (threadBuilder == null) {
+                    threadBuilder = new ThreadBuilder(super.getBuilder());
+                    threadBuilders.set(threadBuilder);
+                    threadBuilder.inUse = true;
+                    inUse.incrementAndGet();
+                    return threadBuilder.builder;
+                }
+                if (!threadBuilder.inUse) {
+                    threadBuilder.inUse = true;
+                    threadHits.increment();
+                    inUse.incrementAndGet();
+                    return threadBuilder.builder;
+                }
+                // Nested checkout on the same thread, fall through to the shared pool
+            }
+            DocumentBuilder builder = super.getBuilder();
+            sharedCheckouts.add(builder);
+            inUse.incrementAndGet();
+            return builder;
+        } finally {
+            recordWait(System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public void returnBuilder(final DocumentBuilder builder) {
+        if (builder == null) {
+            return;
+        }
+        if (perThreadBuilders) {
+            ThreadBuilder threadBuilder = threadBuilders.get();
+            if (threadBuilder != null && threadBuilder.builder == builder) {
+                builder.reset();
+                if (threadBuilder.inUse) {
+                    threadBuilder.inUse = false;
+                    inUse.decrementAndGet();
+                }
+                return;
+            }
+        }
+        if (sharedCheckouts.remove(builder)) {
+            inUse.decrementAndGet();
+        }
+        super.returnBuilder(builder);
+    }
+
+    @Override
+    protected DocumentBuilder createBuilder() throws XMLParserException {
+        misses.increment();
+        return super.createBuilder();
+    }
+
+    private void recordWait(final long nanos) {
+        waitNanos.add(nanos);
+        long currentMax = maxWaitNanos.get();
+        while (nanos > currentMax && !maxWaitNanos.compareAndSet(currentMax, nanos)) {
+            currentMax = maxWaitNanos.get();
+        }
+    }
+
+    public boolean isPerThreadBuilders() {
+        return perThreadBuilders;
+    }
+
+    /**
+     * @return number of builders handed out, including per-thread reuse
+     */
+    public long getCheckouts() {
+        return checkouts.sum();
+    }
+
+    /**
+     * @return number of times no pooled builder was available and a new one had to be created
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return number of checkouts served by the calling thread's own builder
+     */
+    public long getThreadHits() {
+        return threadHits.sum();
+    }
+
+    public long getTotalWaitNanos() {
+        return waitNanos.sum();
+    }
+
+    public long getMaxWaitNanos() {
+        return maxWaitNanos.get();
+    }
+
+    public long getInUse() {
+        return inUse.get();
+    }
+
+    /**
+     * @return number of idle builders currently held by the shared pool
+     */
+    public int getIdle() {
+        return getPoolSize();
+    }
+
+    @Override
+    public String toString() {
+        long checkoutCount = getCheckouts();
+        return "InstrumentedParserPool{maxPoolSize=" + getMaxPoolSize()
+                + ", perThreadBuilders=" + perThreadBuilders
+                + ", checkouts=" + checkoutCount
+                + ", misses=" + getMisses()
+                + ", threadHits=" + getThreadHits()
+                + ", inUse=" + getInUse()
+                + ", idle=" + getIdle()
+                + ", avgWaitNanos=" + (checkoutCount == 0 ? 0 : getTotalWaitNanos() / checkoutCount)
+                + ", maxWaitNanos=" + getMaxWaitNanos() + "}";
+    }
+
+    private static final class ThreadBuilder {
+        private final DocumentBuilder builder;
+        private boolean inUse;
+
+        private ThreadBuilder(final DocumentBuilder builder) {
+            this.builder = builder;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package no.steras.opensamlbook.xml;
+
+import org.opensaml.core.xml.XMLObject;
+import org.opensaml.core.xml.config.XMLObjectProviderRegistrySupport;
+import org.opensaml.core.xml.io.Marshaller;
+import org.opensaml.core.xml.io.MarshallingException;
+import org.w3c.dom.Element;
+
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Serializes SAML objects as compact UTF-8 directly to an output stream.
+ *
+ * The transformer factory is created once and every thread keeps its own configured identity transformer,
+ * so no factory lookup or transformer setup happens per message.
+ */
+public class SAMLSerializer {
+    private static final TransformerFactory transformerFactory = TransformerFactory.newInstance();
+
+    private static final ThreadLocal<Transformer> transformers = new ThreadLocal<Transformer>() {
+        @Override
+        protected Transformer initialValue() {
+            return newTransformer();
+        }
+    };
+
+    private static Transformer newTransformer() {
+        try {
+            Transformer transformer;
+            synchronized (transformerFactory) {
+                transformer = transformerFactory.newTransformer();
+            }
+            transformer.setOutputProperty(OutputKeys.METHOD, "xml");
+            transformer.setOutputProperty(OutputKeys.ENCODING, StandardCharsets.UTF_8.name());
+            transformer.setOutputProperty(OutputKeys.INDENT, "no");
+            return transformer;
+        } catch (TransformerConfigurationException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Returns the DOM of the object, marshalling it only if it does not already have one.
+     * Re-marshalling a signed object would invalidate its signature.
+     */
+    public static Element marshall(final XMLObject object) throws MarshallingException {
+        if (object.getDOM() != null) {
+            return object.getDOM();
+        }
+        Marshaller marshaller = XMLObjectProviderRegistrySupport.getMarshallerFactory().getMarshaller(object);
+        if (marshaller == null) {
+            throw new MarshallingException("No marshaller registered for " + object.getElementQName());
+        }
+        return marshaller.marshall(object);
+    }
+
+    public static void write(final XMLObject object, final OutputStream out) throws MarshallingException, TransformerException {
+        Element element = marshall(object);
+
+        transformers.get().transform(new DOMSource(element), new StreamResult(out));
+    }
+
+    /**
+     * Writes the base64 encoding of the serialized object, as used by the HTTP-POST binding.
+     * The given stream is not closed.
+     */
+    public static void writeBase64(final XMLObject object, final OutputStream out) throws MarshallingException, TransformerException, IOException {
+        OutputStream base64Out = Base64.getEncoder().wrap(new FilterOutputStream(out) {
+            @Override
+            public void write(final byte[] b, final int off, final int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() {
+                // The caller owns the underlying stream
+            }
+        });
+        write(object, base64Out);
+        // Closing the encoder writes the final padding
+        base64Out.close();
+    }
+
+    public static String toString(final XMLObject object) throws MarshallingException, TransformerException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(4096);
+        write(object, out);
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,31 @@
+package no.steras.opensamlbook.xml;
+
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+
+/**
+ * Holds the single parser pool used by both the SP and the IDP side of the application.
+ *
+ * The pool is sized with the system property <code>opensamlbook.parserPool.maxPoolSize</code> (default 50)
+ * and per-thread builders are enabled with <code>opensamlbook.parserPool.perThreadBuilders=true</code>.
+ */
+public class SharedParserPool {
+    public static final String MAX_POOL_SIZE_PROPERTY = "opensamlbook.parserPool.maxPoolSize";
+    public static final String PER_THREAD_BUILDERS_PROPERTY = "opensamlbook.parserPool.perThreadBuilders";
+
+    private static final InstrumentedParserPool parserPool;
+
+    static {
+        parserPool = new InstrumentedParserPool(
+                Integer.getInteger(MAX_POOL_SIZE_PROPERTY, 50),
+                Boolean.getBoolean(PER_THREAD_BUILDERS_PROPERTY));
+        try {
+            parserPool.initialize();
+        } catch (ComponentInitializationException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static InstrumentedParserPool getParserPool() {
+        return parserPool;
+    }
+}